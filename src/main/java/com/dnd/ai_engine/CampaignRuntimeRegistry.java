@@ -0,0 +1,295 @@
+package com.dnd.ai_engine;
+
+import com.dnd.game_rules.ParsedActionCache;
+import com.dnd.game_rules.SRDDataLoader;
+import com.dnd.game_rules.SRDSnapshotStore;
+import com.dnd.game_rules.TextEmbedder;
+import com.dnd.game_rules.TrivialActionClassifier;
+import com.dnd.game_state.GameManager;
+import com.dnd.game_state.GameState;
+import com.dnd.messages.RelevantContextBuilder;
+import com.dnd.service.CampaignEntityIndex;
+import com.dnd.service.EmbeddingService;
+import com.dnd.service.GameStateService;
+import com.dnd.service.HttpClientProfiles;
+import com.dnd.service.OllamaHealthMonitor;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Реестр игровых движков по кампаниям.
+ * Каждая кампания получает собственные GameManager и DungeonMasterAI со своим GameState и GameContext,
+ * поэтому несколько кампаний обрабатываются параллельно без общего currentGame.
+ * LLM клиент и оркестратор не хранят состояния кампании и разделяются между всеми движками.
+ * GameState движка - экземпляр из кэша GameStateService; пока движок загружен, состояние закреплено
+ * в кэше (pin) и не вытесняется, поэтому у кампании одна копия состояния.
+ */
+@Component
+public class CampaignRuntimeRegistry {
+    private static final String DM_MODEL = "mistral:7b";
+
+    private final Map<String, DungeonMasterAI> runtimes = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastAccess = new ConcurrentHashMap<>();
+    // Ходы кампании в очереди и в работе: такой движок не выгружается, иначе следующий ход загрузит второй
+    private final Map<String, AtomicInteger> turnsInFlight = new ConcurrentHashMap<>();
+    // Кампании, выгрузка которых отложена до завершения их ходов
+    private final Set<String> releaseRequested = ConcurrentHashMap.newKeySet();
+
+    private final AutowireCapableBeanFactory beanFactory;
+    private final GameStateService gameStateService;
+    private final RelevantContextBuilder relevantContextBuilder;
+    private final LocalLLMClient llmClient;
+    private final SRDSnapshotStore srdStore;
+    private final GameOrchestrator orchestrator;
+    private final TrivialActionClassifier trivialClassifier;
+    private final ParsedActionCache parseCache;
+
+    @Value("${campaign.runtime.max-active:64}")
+    private int maxActiveRuntimes;
+
+    @Autowired
+    private CampaignEntityIndex entityIndex;
+
+    @Autowired
+    public CampaignRuntimeRegistry(AutowireCapableBeanFactory beanFactory,
+                                   GameStateService gameStateService,
+                                   RelevantContextBuilder relevantContextBuilder,
+                                   OllamaHealthMonitor healthMonitor,
+                                   HttpClientProfiles httpClients,
+                                   LLMScheduler llmScheduler,
+                                   EmbeddingService embeddingService,
+                                   @Value("${action-parser.single-pass:true}") boolean singlePassParse,
+                                   @Value("${action-classifier.enabled:true}") boolean classifierEnabled,
+                                   @Value("${action-classifier.knn.k:5}") int classifierK,
+                                   @Value("${action-classifier.knn.min-similarity:0.8}") double classifierMinSimilarity,
+                                   @Value("${action-parser.cache.enabled:true}") boolean parseCacheEnabled,
+                                   @Value("${action-parser.cache.max-size:1000}") int parseCacheMaxSize,
+                                   @Value("${action-parser.cache.ttl-minutes:60}") long parseCacheTtlMinutes,
+                                   @Value("${action-parser.cache.similarity-threshold:0.95}") double parseCacheThreshold,
+                                   @Value("${ollama.chat-api:true}") boolean chatApi,
+                                   @Value("${ollama.keep-alive:30m}") String keepAlive,
+                                   ObjectProvider<MeterRegistry> meterRegistryProvider) {
+        this.beanFactory = beanFactory;
+        this.gameStateService = gameStateService;
+        this.relevantContextBuilder = relevantContextBuilder;
+        try {
+            this.llmClient = DungeonMasterAI.createLLMClient(DM_MODEL, healthMonitor, httpClients.generation(), llmScheduler);
+            this.llmClient.getConfig().setChatApi(chatApi);
+            this.llmClient.getConfig().setKeepAlive(keepAlive);
+            // Данные SRD загружаются один раз при старте и дальше обслуживаются из памяти
+            this.srdStore = new SRDSnapshotStore(new SRDDataLoader(httpClients.srd()));
+            this.srdStore.load();
+            TextEmbedder embedder = texts -> {
+                if (!embeddingService.isAvailable()) {
+                    throw new IOException("сервис эмбеддингов недоступен");
+                }
+                return embeddingService.embedBatch(texts);
+            };
+            // Тривиальные действия определяются локально (словарь + ближайшие размеченные примеры) без LLM
+            this.trivialClassifier = classifierEnabled
+                ? new TrivialActionClassifier(embedder, classifierK, classifierMinSimilarity)
+                : null;
+            this.parseCache = parseCacheEnabled
+                ? new ParsedActionCache(embedder, parseCacheMaxSize, TimeUnit.MINUTES.toMillis(parseCacheTtlMinutes),
+                    parseCacheThreshold, meterRegistryProvider.getIfAvailable())
+                : null;
+            this.orchestrator = new GameOrchestrator(llmClient, srdStore, singlePassParse, trivialClassifier, parseCache);
+            System.out.println("✅ AI Dungeon Master инициализирован с фильтрацией контекста и сохранением сообщений");
+        } catch (Exception e) {
+            System.err.println("❌ Ошибка инициализации: " + e.getMessage());
+            e.printStackTrace();
+            throw new RuntimeException("Не удалось инициализировать AI Dungeon Master", e);
+        }
+    }
+
+    /**
+     * Получить движок кампании, при необходимости загрузив ее состояние из БД
+     */
+    public DungeonMasterAI getRuntime(String campaignId) {
+        if (campaignId == null || campaignId.isEmpty()) {
+            throw new IllegalArgumentException("Campaign ID не может быть пустым");
+        }
+
+        DungeonMasterAI runtime = runtimes.get(campaignId);
+        if (runtime == null) {
+            // Загрузка идет вне блокировки карты: медленная БД одной кампании не тормозит остальные.
+            // Состояние закрепляется до загрузки, чтобы кэш не вытеснил его до регистрации движка
+            gameStateService.pin(campaignId);
+            DungeonMasterAI loaded = newRuntime();
+            GameState game = loaded.getGameManager().loadGame(campaignId);
+            if (game == null) {
+                if (!runtimes.containsKey(campaignId)) {
+                    gameStateService.unpin(campaignId);
+                }
+                throw new IllegalArgumentException("Кампания не найдена: " + campaignId);
+            }
+            loaded.setCurrentGame(game);
+
+            runtime = runtimes.putIfAbsent(campaignId, loaded);
+            if (runtime == null) {
+                runtime = loaded;
+                System.out.println("🎲 Загружен движок кампании " + campaignId + " (активных: " + runtimes.size() + ")");
+            }
+        }
+
+        lastAccess.put(campaignId, System.currentTimeMillis());
+        evictIfNeeded(campaignId);
+        return runtime;
+    }
+
+    /**
+     * Создать новую кампанию и зарегистрировать ее движок
+     */
+    public DungeonMasterAI createRuntime(String sessionId) {
+        DungeonMasterAI runtime = newRuntime();
+        gameStateService.pin(sessionId);
+        GameState game = runtime.getGameManager().startNewGame(sessionId);
+        runtime.setCurrentGame(game);
+
+        String campaignId = game.getSessionId();
+        gameStateService.pin(campaignId);
+        DungeonMasterAI existing = runtimes.putIfAbsent(campaignId, runtime);
+        if (existing != null) {
+            runtime = existing;
+        }
+
+        lastAccess.put(campaignId, System.currentTimeMillis());
+        evictIfNeeded(campaignId);
+        return runtime;
+    }
+
+    /**
+     * Отметить ход кампании, поставленный в очередь или начатый; парный вызов - endTurn.
+     * Счетчик меняется под той же блокировкой, что и в endTurn и release: иначе ход мог бы увеличить
+     * счетчик, который endTurn только что удалил, и движок выгрузили бы посреди хода
+     */
+    public void beginTurn(String campaignId) {
+        if (campaignId != null) {
+            synchronized (turnsInFlight) {
+                turnsInFlight.computeIfAbsent(campaignId, k -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Ход кампании завершен; если ее выгрузку просили во время хода, выгружаем сейчас
+     */
+    public void endTurn(String campaignId) {
+        if (campaignId == null) {
+            return;
+        }
+        boolean idle;
+        synchronized (turnsInFlight) {
+            AtomicInteger count = turnsInFlight.get(campaignId);
+            idle = count == null || count.decrementAndGet() <= 0;
+            if (idle) {
+                turnsInFlight.remove(campaignId);
+            }
+        }
+        if (idle && releaseRequested.remove(campaignId)) {
+            release(campaignId);
+        }
+    }
+
+    private boolean hasTurnsInFlight(String campaignId) {
+        AtomicInteger count = turnsInFlight.get(campaignId);
+        return count != null && count.get() > 0;
+    }
+
+    /**
+     * Выгрузить движок кампании из памяти (состояние уже сохранено в БД после каждого хода).
+     * Пока у кампании есть ходы в очереди или в работе, выгрузка откладывается до последнего из них.
+     */
+    public void release(String campaignId) {
+        if (campaignId == null) {
+            return;
+        }
+        DungeonMasterAI removed;
+        synchronized (turnsInFlight) {
+            if (hasTurnsInFlight(campaignId)) {
+                releaseRequested.add(campaignId);
+                return;
+            }
+            releaseRequested.remove(campaignId);
+            // Движок убирается под блокировкой: новый ход не начнется между проверкой и выгрузкой
+            lastAccess.remove(campaignId);
+            removed = runtimes.remove(campaignId);
+        }
+        gameStateService.unpin(campaignId);
+        entityIndex.invalidate(campaignId);
+        if (removed != null) {
+            System.out.println("📤 Движок кампании " + campaignId + " выгружен (активных: " + runtimes.size() + ")");
+        }
+    }
+
+    public boolean isLoaded(String campaignId) {
+        return campaignId != null && runtimes.containsKey(campaignId);
+    }
+
+    public int getActiveCount() {
+        return runtimes.size();
+    }
+
+    /**
+     * Явно обновить данные SRD для всех кампаний из 5e-srd-api
+     */
+    public void reloadSrd() {
+        srdStore.reloadFromApi();
+        if (parseCache != null) {
+            // Результаты парсинга зависят от данных SRD
+            parseCache.clear();
+        }
+    }
+
+    /**
+     * Отчет точности и полноты классификатора тривиальных действий на размеченном корпусе
+     */
+    public Map<String, Object> evaluateActionClassifier() {
+        if (trivialClassifier == null) {
+            throw new IllegalStateException("Классификатор тривиальных действий отключен (action-classifier.enabled=false)");
+        }
+        return trivialClassifier.evaluate();
+    }
+
+    private DungeonMasterAI newRuntime() {
+        GameManager gameManager = new GameManager(gameStateService);
+        DungeonMasterAI runtime = new DungeonMasterAI(gameManager, llmClient, orchestrator);
+        runtime.setRelevantContextBuilder(relevantContextBuilder);
+        // MessageService, CampaignRepository и AnalysisProcessor внедряются через @Autowired поля
+        beanFactory.autowireBean(runtime);
+        return runtime;
+    }
+
+    /**
+     * Выгружает давно не использовавшиеся кампании, если их больше лимита.
+     * Кампании с ходами в очереди или в работе не вытесняются, даже если лимит из-за них превышен.
+     */
+    private void evictIfNeeded(String keepCampaignId) {
+        while (runtimes.size() > maxActiveRuntimes) {
+            String oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> entry : lastAccess.entrySet()) {
+                if (!entry.getKey().equals(keepCampaignId) && entry.getValue() < oldestTime &&
+                    !hasTurnsInFlight(entry.getKey())) {
+                    oldest = entry.getKey();
+                    oldestTime = entry.getValue();
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            release(oldest);
+        }
+    }
+}
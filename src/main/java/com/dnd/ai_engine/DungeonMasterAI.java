@@ -9,15 +9,20 @@ import com.dnd.prompts.DMPrompts;
 import com.dnd.repository.CampaignRepository;
 import com.dnd.service.MessageService;
 import com.dnd.service.AnalysisProcessor;
+import com.dnd.service.CampaignMemoryService;
+import com.dnd.service.OllamaHealthMonitor;
+import com.dnd.service.TurnCommitService;
 import com.dnd.entity.Quest;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import okhttp3.OkHttpClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 
 /**
@@ -25,6 +30,9 @@ import java.util.function.Consumer;
  */
 public class DungeonMasterAI {
     private static final Gson gson = new GsonBuilder().setLenient().create();
+    // Висячие запятые перед } и ] (\s включает перевод строки)
+    private static final Pattern TRAILING_COMMA_OBJECT = Pattern.compile(",\\s*}");
+    private static final Pattern TRAILING_COMMA_ARRAY = Pattern.compile(",\\s*]");
     private final GameManager gameManager;
     private GameState currentGame;
     private final LocalLLMClient llmClient;
@@ -39,22 +47,59 @@ public class DungeonMasterAI {
     
     @Autowired(required = false)
     private AnalysisProcessor analysisProcessor; // Обработчик анализа от LLM
+    
+    @Autowired(required = false)
+    private CampaignMemoryService campaignMemoryService; // Сводки пройденных этапов и синопсис кампании
+    
+    @Autowired(required = false)
+    private TurnCommitService turnCommitService; // Запись всех изменений хода одной транзакцией
 
     public DungeonMasterAI(String localModel) {
         this(new GameManager(), localModel);
     }
     
     public DungeonMasterAI(GameManager gameManager, String localModel) {
+        this(gameManager, createLLMClient(localModel));
+    }
+    
+    private DungeonMasterAI(GameManager gameManager, LocalLLMClient llmClient) {
+        this(gameManager, llmClient, new GameOrchestrator(llmClient));
+    }
+    
+    /**
+     * Создает DM для одной кампании поверх общих LLM клиента и оркестратора.
+     * Оба не хранят состояния кампании, поэтому их можно разделять между кампаниями.
+     */
+    public DungeonMasterAI(GameManager gameManager, LocalLLMClient llmClient, GameOrchestrator orchestrator) {
         this.gameManager = gameManager;
-        
-        // Инициализируем локальную модель (увеличено maxTokens для детальных описаний и проработанного мира)
+        this.llmClient = llmClient;
+        this.orchestrator = orchestrator;
+    }
+    
+    /**
+     * Инициализирует локальную модель (увеличено maxTokens для детальных описаний и проработанного мира)
+     */
+    public static LocalLLMClient createLLMClient(String localModel) {
+        return createLLMClient(localModel, null, null);
+    }
+    
+    /**
+     * Инициализирует локальную модель с общим монитором состояния Ollama и общим HTTP клиентом
+     */
+    public static LocalLLMClient createLLMClient(String localModel, OllamaHealthMonitor healthMonitor,
+                                                 OkHttpClient httpClient) {
+        return createLLMClient(localModel, healthMonitor, httpClient, null);
+    }
+    
+    /**
+     * Инициализирует локальную модель, запросы которой проходят через общий планировщик LLM
+     */
+    public static LocalLLMClient createLLMClient(String localModel, OllamaHealthMonitor healthMonitor,
+                                                 OkHttpClient httpClient, LLMScheduler scheduler) {
         LocalLLMClient.LocalLLMConfig config = new LocalLLMClient.LocalLLMConfig(
             localModel, 0.7, 3000
         );
-        this.llmClient = new LocalLLMClient(config);
-        
-        // Инициализируем Orchestrator
-        this.orchestrator = new GameOrchestrator(llmClient);
+        return new LocalLLMClient(config, LocalLLMClient.getOllamaBaseUrlFromEnv(), healthMonitor, httpClient, scheduler);
     }
     
     /**
@@ -68,6 +113,10 @@ public class DungeonMasterAI {
         return currentGame;
     }
     
+    public GameManager getGameManager() {
+        return gameManager;
+    }
+    
     public void setCurrentGame(GameState game) {
         this.currentGame = game;
         if (game != null) {
@@ -83,6 +132,16 @@ public class DungeonMasterAI {
     }
 
     public Map<String, Object> startNewCampaign(String sessionId, com.dnd.game_state.SessionDuration sessionDuration, Consumer<String> progressCallback) {
+        // Запросы к LLM при создании кампании учитываются в очереди планировщика от имени этой кампании
+        LLMScheduler.CampaignScope scope = LLMScheduler.enterCampaign(sessionId);
+        try {
+            return doStartNewCampaign(sessionId, sessionDuration, progressCallback);
+        } finally {
+            scope.close();
+        }
+    }
+
+    private Map<String, Object> doStartNewCampaign(String sessionId, com.dnd.game_state.SessionDuration sessionDuration, Consumer<String> progressCallback) {
         if (!gameManager.haveAllUsersCreatedCharacters()) {
             throw new IllegalStateException("Все пользователи должны создать персонажей перед началом кампании.");
         }
@@ -200,15 +259,37 @@ public class DungeonMasterAI {
     }
 
     public Map<String, Object> processAction(String action, String characterName) {
+        return processAction(action, characterName, null);
+    }
+
+    /**
+     * Обрабатывает действие игрока.
+     * Если передан responseDeltaCallback, текст ответа DM (нарратив и продолжение истории)
+     * отдается в него фрагментами по мере генерации; полный ответ возвращается в результате как обычно.
+     */
+    public Map<String, Object> processAction(String action, String characterName, Consumer<String> responseDeltaCallback) {
         if (currentGame == null) {
             throw new IllegalStateException("Нет активной кампании");
         }
+        LLMScheduler.CampaignScope scope = LLMScheduler.enterCampaign(currentGame.getSessionId());
+        try {
+            return doProcessAction(action, characterName, responseDeltaCallback);
+        } finally {
+            scope.close();
+        }
+    }
+
+    private Map<String, Object> doProcessAction(String action, String characterName, Consumer<String> responseDeltaCallback) {
         
         Character character = currentGame.getCharacter(characterName);
         if (character == null) {
             throw new IllegalArgumentException("Персонаж " + characterName + " не найден");
         }
         
+        // Изменения хода в БД копятся здесь и записываются одной транзакцией в конце хода
+        TurnCommitService.Turn turn = turnCommitService != null && messageService != null
+            ? turnCommitService.begin(currentGame.getSessionId()) : null;
+        
         // Получаем последнюю ситуацию из истории
         String lastSituation = "";
         List<com.dnd.game_state.GameState.GameEvent> history = currentGame.getGameHistory();
@@ -236,7 +317,7 @@ public class DungeonMasterAI {
             }
             
             Map<String, Object> result = orchestrator.processPlayerAction(
-                action, character, orchestratorContext
+                action, character, orchestratorContext, responseDeltaCallback
             );
             
             // Парсим ответ через MessageParser для получения StructuredMessage
@@ -245,18 +326,25 @@ public class DungeonMasterAI {
             System.out.println("   " + dmResponseRaw);
             StructuredMessage structuredMessage;
             try {
-                structuredMessage = MessageParser.parseMessage(dmResponseRaw, characterName);
-            } catch (Exception e) {
-                // Fallback на старый формат для обратной совместимости
-                System.err.println("⚠️ Ошибка парсинга через MessageParser, используем старый формат: " + e.getMessage());
-                JsonObject jsonObj = extractJsonObject(dmResponseRaw);
-                String content = jsonObj.has("narrative") ? jsonObj.get("narrative").getAsString() : 
-                                jsonObj.has("content") ? jsonObj.get("content").getAsString() : "";
-                String location = jsonObj.has("location") ? jsonObj.get("location").getAsString() : 
-                                 currentGame.getCurrentLocation();
-                Map<String, Object> metadata = new HashMap<>();
-                if (location != null) metadata.put("location", location);
-                structuredMessage = new StructuredMessage(MessageType.ACTION_RESULT, content, characterName, metadata);
+                // Нарратив сгенерирован по схеме NARRATIVE - связываем напрямую
+                structuredMessage = StructuredOutput.bind(dmResponseRaw, StructuredOutput.DMMessage.class)
+                    .toStructuredMessage(characterName);
+            } catch (IllegalArgumentException bindError) {
+                System.err.println("⚠️ Ответ не связан со схемой, разбираем через MessageParser: " + bindError.getMessage());
+                try {
+                    structuredMessage = MessageParser.parseMessage(dmResponseRaw, characterName);
+                } catch (Exception e) {
+                    // Fallback на старый формат для обратной совместимости
+                    System.err.println("⚠️ Ошибка парсинга через MessageParser, используем старый формат: " + e.getMessage());
+                    JsonObject jsonObj = extractJsonObject(dmResponseRaw);
+                    String content = jsonObj.has("narrative") ? jsonObj.get("narrative").getAsString() : 
+                                    jsonObj.has("content") ? jsonObj.get("content").getAsString() : "";
+                    String location = jsonObj.has("location") ? jsonObj.get("location").getAsString() : 
+                                     currentGame.getCurrentLocation();
+                    Map<String, Object> metadata = new HashMap<>();
+                    if (location != null) metadata.put("location", location);
+                    structuredMessage = new StructuredMessage(MessageType.ACTION_RESULT, content, characterName, metadata);
+                }
             }
             
             // Валидируем тип сообщения через MessageTypeValidator
@@ -289,23 +377,19 @@ public class DungeonMasterAI {
             // Проверяем прогресс квеста
             boolean questAdvanced = false;
             if (result.getOrDefault("success", false).equals(true) && !currentGame.isStoryCompleted()) {
-                questAdvanced = checkAndAdvanceQuest();
+                questAdvanced = checkAndAdvanceQuest(turn);
             }
             
-            // Сохраняем сообщение игрока в БД
-            if (messageService != null) {
-                try {
-                    messageService.savePlayerMessage(currentGame.getSessionId(), characterName, action);
-                } catch (Exception e) {
-                    System.err.println("Ошибка сохранения сообщения игрока: " + e.getMessage());
-                }
+            // Сообщение игрока запишется вместе с ходом
+            if (turn != null) {
+                turn.addPlayerMessage(characterName, action);
             }
             
             // Добавляем в GameState для совместимости
             currentGame.addGameEvent("player_action", action, characterName);
             
-                // Сохраняем ответ DM в БД
-                if (messageService != null) {
+                // Ответ DM запишется вместе с ходом
+                if (turn != null) {
                     try {
                     // Определяем связанные сущности из анализа
                     List<Long> npcIds = null;
@@ -355,39 +439,27 @@ public class DungeonMasterAI {
                         }
                         }
                         
-                    // Сохраняем событие и получаем его ID
-                    com.dnd.entity.GameEvent savedEvent = messageService.saveDMMessage(
-                            currentGame.getSessionId(),
+                    // Анализ (новые NPC, локации, квесты и упоминания) применится при записи хода
+                    Map<String, Object> analysis = structuredMessage.getMetadata().containsKey("analysis")
+                        ? (Map<String, Object>) structuredMessage.getMetadata().get("analysis") : null;
+                    if (analysisProcessor == null || analysis == null || analysis.isEmpty()) {
+                        System.out.println("ℹ️ [DungeonMasterAI] Анализ пустой или отсутствует, пропускаем обработку");
+                        analysis = null;
+                    } else {
+                        System.out.println("📋 [DungeonMasterAI] Анализ: " + analysis);
+                    }
+                    
+                    turn.addEvent(
                         "dm_response",
                         dmResponse,
                         dmResponse,
                         characterName,
-                            currentGame.getCurrentLocation(),
+                        currentGame.getCurrentLocation(),
                         npcIds,
-                            questIds,
-                            locationIds
-                        );
-                    
-                    Long lastEventId = savedEvent.getId();
-                    
-                    // Обрабатываем анализ с привязкой к событию
-                    if (analysisProcessor != null && structuredMessage.getMetadata().containsKey("analysis")) {
-                        try {
-                            Map<String, Object> analysis = (Map<String, Object>) structuredMessage.getMetadata().get("analysis");
-                            if (analysis != null && !analysis.isEmpty()) {
-                                System.out.println("📊 [DungeonMasterAI] Обработка анализа от LLM...");
-                                System.out.println("📋 [DungeonMasterAI] Анализ: " + analysis);
-                                analysisProcessor.processAnalysis(currentGame.getSessionId(), analysis, lastEventId);
-                            } else {
-                                System.out.println("ℹ️ [DungeonMasterAI] Анализ пустой или отсутствует, пропускаем обработку");
-                            }
-                    } catch (Exception e) {
-                            System.err.println("⚠️ Ошибка обработки анализа: " + e.getMessage());
-                            e.printStackTrace();
-                    }
-                } else {
-                    System.out.println("ℹ️ [DungeonMasterAI] Поле 'analysis' отсутствует в метаданных сообщения");
-                }
+                        questIds,
+                        locationIds,
+                        analysis
+                    );
                 } catch (Exception e) {
                     System.err.println("Ошибка сохранения ответа DM: " + e.getMessage());
                 }
@@ -400,8 +472,8 @@ public class DungeonMasterAI {
                 String finalScene = generateFinalScene();
                 dmResponse = dmResponse + "\n\n" + finalScene;
                 
-                // Сохраняем финальную сцену в БД
-                if (messageService != null) {
+                // Финальная сцена запишется вместе с ходом
+                if (turn != null) {
                     try {
                         List<Long> questIds = messageService.getActiveQuestIds(currentGame.getSessionId());
                         List<Long> locationIds = null;
@@ -412,8 +484,7 @@ public class DungeonMasterAI {
                             );
                         }
                         
-                        messageService.saveDMMessage(
-                            currentGame.getSessionId(),
+                        turn.addEvent(
                             "final_scene",
                             finalScene,
                             finalScene,
@@ -421,7 +492,8 @@ public class DungeonMasterAI {
                             currentGame.getCurrentLocation(),
                             null, // npcIds
                             questIds,
-                            locationIds
+                            locationIds,
+                            null
                         );
                     } catch (Exception e) {
                         System.err.println("Ошибка сохранения финальной сцены: " + e.getMessage());
@@ -432,7 +504,7 @@ public class DungeonMasterAI {
             } else if (!currentGame.isStoryCompleted() && result.getOrDefault("success", false).equals(true)) {
                 // Если квест не завершен и действие успешно - генерируем продолжение истории
                 try {
-                    String storyContinuation = generateStoryContinuation(action, dmResponse, character);
+                    String storyContinuation = generateStoryContinuation(action, dmResponse, character, responseDeltaCallback, turn);
                     if (storyContinuation != null && !storyContinuation.trim().isEmpty()) {
                         dmResponse = dmResponse + "\n\n" + storyContinuation;
                     }
@@ -445,6 +517,18 @@ public class DungeonMasterAI {
             // Синхронизируем GameContext обратно в GameState
             currentGame.setGameContext(gameContext);
             
+            // Записываем ход: сообщение игрока, события, связи и анализ - одной транзакцией.
+            // Сбой записи - ошибка хода: вызывающий должен узнать, что ход не сохранен
+            if (turn != null) {
+                TurnCommitService.Turn committing = turn;
+                turn = null;
+                try {
+                    committing.assignIds(turnCommitService.commit(committing), currentGame);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Ход не записан в БД: " + e.getMessage(), e);
+                }
+            }
+            
             gameManager.saveGame();
             
             Map<String, Object> response = new HashMap<>();
@@ -460,7 +544,17 @@ public class DungeonMasterAI {
             return response;
             
         } catch (Exception e) {
-            throw new RuntimeException("Ошибка обработки действия в Orchestrator: " + e.getMessage(), e);
+            RuntimeException failure = new RuntimeException("Ошибка обработки действия в Orchestrator: " + e.getMessage(), e);
+            // Уже собранная часть хода (сообщение игрока, ответ DM, который клиент успел получить) сохраняется и при ошибке
+            if (turn != null) {
+                try {
+                    turn.assignIds(turnCommitService.commit(turn), currentGame);
+                } catch (Exception commitError) {
+                    System.err.println("❌ Ошибка записи хода в БД после сбоя хода: " + commitError.getMessage());
+                    failure.addSuppressed(commitError);
+                }
+            }
+            throw failure;
         }
     }
 
@@ -468,7 +562,8 @@ public class DungeonMasterAI {
      * Генерирует продолжение истории после действия игрока
      * DM продолжает сюжет: развивает квест, организует встречу с NPC, создает событие и т.д.
      */
-    private String generateStoryContinuation(String playerAction, String dmResponse, Character character) {
+    private String generateStoryContinuation(String playerAction, String dmResponse, Character character,
+                                             Consumer<String> responseDeltaCallback, TurnCommitService.Turn turn) {
         if (currentGame == null) {
             throw new IllegalStateException("Нет активной кампании для генерации продолжения истории");
         }
@@ -481,7 +576,7 @@ public class DungeonMasterAI {
         System.out.println("⏳ Генерация продолжения истории для " + character.getName() + "...");
         
         int maxTokens = llmClient.getConfig().getMaxTokens();
-        String systemPrompt = DMPrompts.getSystemPrompt(maxTokens);
+        String systemPrompt = DMPrompts.getStoryContinuationSystemPrompt(maxTokens);
         
         // Подготавливаем информацию о квесте
         Map<String, Object> questInfo = null;
@@ -501,7 +596,7 @@ public class DungeonMasterAI {
             try {
                 RelevantContextBuilder.RelevantContext relevantContext = 
                     relevantContextBuilder.buildRelevantContext(currentGame, currentGame.getSessionId());
-                relevantContextText = relevantContext.formatForPrompt();
+                relevantContextText = relevantContextBuilder.format(relevantContext, RelevantContextBuilder.CALL_CONTINUATION);
             } catch (Exception e) {
                 System.err.println("Ошибка при построении релевантного контекста для продолжения истории: " + e.getMessage());
             }
@@ -519,7 +614,22 @@ public class DungeonMasterAI {
             relevantContextText
         )));
         
-        String response = llmClient.generateResponse(messages, systemPrompt);
+        String response;
+        if (responseDeltaCallback != null) {
+            // Продолжение идет после нарратива действия тем же сообщением, отделяем его пустой строкой
+            boolean[] separatorSent = {false};
+            response = llmClient.generateStructuredResponseStreaming(messages, systemPrompt, StructuredOutput.Schema.CONTINUATION,
+                new StreamingContentExtractor("content", fragment -> {
+                    if (!separatorSent[0]) {
+                        separatorSent[0] = true;
+                        responseDeltaCallback.accept("\n\n");
+                    }
+                    responseDeltaCallback.accept(fragment);
+                }), LLMScheduler.Priority.CONTINUATION);
+        } else {
+            response = llmClient.generateStructuredResponse(messages, systemPrompt, StructuredOutput.Schema.CONTINUATION,
+                LLMScheduler.Priority.CONTINUATION);
+        }
         long generationTime = System.currentTimeMillis() - startTime;
         System.out.println("✅ Генерация продолжения истории завершена за " + (generationTime / 1000.0) + " секунд");
         
@@ -539,17 +649,24 @@ public class DungeonMasterAI {
         // Парсим JSON ответ через MessageParser
         StructuredMessage structuredMessage;
         try {
-            structuredMessage = MessageParser.parseMessage(response, character.getName());
-        } catch (Exception e) {
-            // Fallback на старый формат
-            System.err.println("⚠️ Ошибка парсинга через MessageParser, используем старый формат: " + e.getMessage());
-            JsonObject jsonObj = extractJsonObject(response);
-            String content = jsonObj.has("content") ? jsonObj.get("content").getAsString() : "";
-            String location = jsonObj.has("location") ? jsonObj.get("location").getAsString() : 
-                             currentGame.getCurrentLocation();
-            Map<String, Object> metadata = new HashMap<>();
-            if (location != null) metadata.put("location", location);
-            structuredMessage = new StructuredMessage(MessageType.SITUATION_CONTINUATION, content, character.getName(), metadata);
+            // Продолжение сгенерировано по схеме CONTINUATION - связываем напрямую
+            structuredMessage = StructuredOutput.bind(response, StructuredOutput.DMMessage.class)
+                .toStructuredMessage(character.getName());
+        } catch (IllegalArgumentException bindError) {
+            System.err.println("⚠️ Ответ не связан со схемой, разбираем через MessageParser: " + bindError.getMessage());
+            try {
+                structuredMessage = MessageParser.parseMessage(response, character.getName());
+            } catch (Exception e) {
+                // Fallback на старый формат
+                System.err.println("⚠️ Ошибка парсинга через MessageParser, используем старый формат: " + e.getMessage());
+                JsonObject jsonObj = extractJsonObject(response);
+                String content = jsonObj.has("content") ? jsonObj.get("content").getAsString() : "";
+                String location = jsonObj.has("location") ? jsonObj.get("location").getAsString() : 
+                                 currentGame.getCurrentLocation();
+                Map<String, Object> metadata = new HashMap<>();
+                if (location != null) metadata.put("location", location);
+                structuredMessage = new StructuredMessage(MessageType.SITUATION_CONTINUATION, content, character.getName(), metadata);
+            }
         }
         
         // Валидируем тип сообщения
@@ -582,8 +699,8 @@ public class DungeonMasterAI {
         // Сохраняем продолжение истории в историю
         currentGame.addGameEvent(eventType, continuation, character.getName());
         
-        // Сохраняем продолжение истории в БД
-        if (messageService != null) {
+        // Продолжение истории запишется вместе с ходом
+        if (turn != null) {
             try {
                 List<Long> locationIds = null;
                 if (newLocation != null) {
@@ -630,46 +747,22 @@ public class DungeonMasterAI {
                             questIds = messageService.findQuestIdsByTitles(currentGame.getSessionId(), questTitles);
                         }
                     }
-                    
-                    // Сохраняем событие и обрабатываем анализ
-                    com.dnd.entity.GameEvent savedEvent = messageService.saveDMMessage(
-                        currentGame.getSessionId(),
-                        eventType,
-                        continuation,
-                        continuation,
-                        character.getName(),
-                        newLocation,
-                        npcIds,
-                        questIds,
-                        locationIds
-                    );
-                    
-                    // Обрабатываем анализ с привязкой к событию
-                    if (analysisProcessor != null && !analysis.isEmpty()) {
-                        try {
-                            System.out.println("📊 [DungeonMasterAI] Обработка анализа продолжения истории...");
-                            if (savedEvent != null && savedEvent.getId() != null) {
-                                analysisProcessor.processAnalysis(currentGame.getSessionId(), analysis, savedEvent.getId());
-                            }
-                        } catch (Exception e) {
-                            System.err.println("⚠️ Ошибка обработки анализа продолжения истории: " + e.getMessage());
-                            e.printStackTrace();
-                        }
-                    }
-                } else {
-                    // Сохраняем без анализа
-                    messageService.saveDMMessage(
-                        currentGame.getSessionId(),
-                        eventType,
-                        continuation,
-                        continuation,
-                        character.getName(),
-                        newLocation,
-                        npcIds,
-                        questIds,
-                        locationIds
-                    );
                 }
+                
+                // Анализ продолжения (новые сущности и упоминания) применится при записи хода
+                Map<String, Object> analysis = analysisProcessor != null
+                    ? (Map<String, Object>) structuredMessage.getMetadata().get("analysis") : null;
+                turn.addEvent(
+                    eventType,
+                    continuation,
+                    continuation,
+                    character.getName(),
+                    newLocation,
+                    npcIds,
+                    questIds,
+                    locationIds,
+                    analysis != null && !analysis.isEmpty() ? analysis : null
+                );
             } catch (Exception e) {
                 System.err.println("Ошибка сохранения продолжения истории: " + e.getMessage());
                 e.printStackTrace();
@@ -724,11 +817,18 @@ public class DungeonMasterAI {
         com.dnd.game_state.SessionDuration sessionDuration = currentGame != null ? currentGame.getSessionDuration() : com.dnd.game_state.SessionDuration.MEDIUM;
         messages.add(Map.of("role", "user", "content", DMPrompts.getWorldBuildingPrompt(sessionDuration)));
         
-        String response = llmClient.generateResponse(messages, systemPrompt);
+        String response = llmClient.generateStructuredResponse(messages, systemPrompt, StructuredOutput.Schema.WORLD,
+            LLMScheduler.Priority.WORLD_GENERATION);
         long generationTime = System.currentTimeMillis() - startTime;
         System.out.println("✅ Генерация мира завершена за " + (generationTime / 1000.0) + " секунд");
         
-        Map<String, Object> parsedData = extractWorldFromResponse(response);
+        Map<String, Object> parsedData;
+        try {
+            parsedData = StructuredOutput.bind(response, StructuredOutput.WorldOutline.class).toMap();
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Мир не связан со схемой, разбираем вручную: " + e.getMessage());
+            parsedData = extractWorldFromResponse(response);
+        }
         
         if (!parsedData.containsKey("world_description")) {
             throw new RuntimeException("Не удалось распарсить ответ LLM для генерации мира. Ответ: " + response);
@@ -746,11 +846,18 @@ public class DungeonMasterAI {
         String prompt = DMPrompts.getInitialSceneQuestAndSituationPrompt(world, sessionDuration);
         messages.add(Map.of("role", "user", "content", prompt));
         
-        String response = llmClient.generateResponse(messages, systemPrompt);
+        String response = llmClient.generateStructuredResponse(messages, systemPrompt, StructuredOutput.Schema.QUEST_SITUATION,
+            LLMScheduler.Priority.WORLD_GENERATION);
         long generationTime = System.currentTimeMillis() - startTime;
         System.out.println("✅ Генерация начальной сцены, квеста и ситуации завершена за " + (generationTime / 1000.0) + " секунд");
         
-        Map<String, Object> parsedData = extractJsonFromResponseWithSituation(response);
+        Map<String, Object> parsedData;
+        try {
+            parsedData = StructuredOutput.bind(response, StructuredOutput.QuestSituation.class).toMap();
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Квест и ситуация не связаны со схемой, разбираем вручную: " + e.getMessage());
+            parsedData = extractJsonFromResponseWithSituation(response);
+        }
         
         // Проверяем наличие квеста и ситуации (поддерживаем оба формата: "situation" и "initial_situation")
         if (!parsedData.containsKey("quest") || 
@@ -761,7 +868,7 @@ public class DungeonMasterAI {
         return parsedData;
     }
 
-    private boolean checkAndAdvanceQuest() {
+    private boolean checkAndAdvanceQuest(TurnCommitService.Turn turn) {
         if (currentGame == null || currentGame.getMainQuest() == null) {
             return false;
         }
@@ -775,6 +882,7 @@ public class DungeonMasterAI {
         
         if (successCount >= 2) {
             String oldStage = currentGame.getCurrentQuestStage();
+            Object oldStageIndex = currentGame.getMainQuest().get("current_stage_index");
             currentGame.advanceQuestStage();
             String newStage = currentGame.getCurrentQuestStage();
             
@@ -782,8 +890,8 @@ public class DungeonMasterAI {
                 String progressMessage = "Прогресс квеста: " + oldStage + " → " + newStage;
                 currentGame.addGameEvent("quest_progress", progressMessage, "");
                 
-                // Сохраняем прогресс квеста в БД
-                if (messageService != null) {
+                // Прогресс квеста запишется вместе с ходом
+                if (turn != null) {
                     try {
                         List<Long> questIds = messageService.getActiveQuestIds(currentGame.getSessionId());
                         List<Long> locationIds = null;
@@ -794,8 +902,7 @@ public class DungeonMasterAI {
                             );
                         }
                         
-                        messageService.saveDMMessage(
-                            currentGame.getSessionId(),
+                        turn.addEvent(
                             "quest_progress",
                             progressMessage,
                             progressMessage,
@@ -803,13 +910,28 @@ public class DungeonMasterAI {
                             currentGame.getCurrentLocation(),
                             null, // npcIds
                             questIds,
-                            locationIds
+                            locationIds,
+                            null
                         );
                     } catch (Exception e) {
                         System.err.println("Ошибка сохранения прогресса квеста: " + e.getMessage());
                     }
                 }
                 
+                // Сводка завершенного этапа создается в фоне после записи хода: в нее попадают события этого хода,
+                // граница этапа - последнее событие хода, а не то, что окажется последним к моменту сводки
+                if (campaignMemoryService != null) {
+                    String sessionId = currentGame.getSessionId();
+                    String questTitle = (String) currentGame.getMainQuest().getOrDefault("title", "");
+                    int stageIndex = oldStageIndex instanceof Number ? ((Number) oldStageIndex).intValue() : 0;
+                    if (turn != null) {
+                        turn.afterCommit(() -> campaignMemoryService.onStageCompleted(
+                            sessionId, questTitle, stageIndex, oldStage, turn.getLastEventId(), llmClient));
+                    } else {
+                        campaignMemoryService.onStageCompleted(sessionId, questTitle, stageIndex, oldStage, null, llmClient);
+                    }
+                }
+                
                 return true;
             }
         }
@@ -829,13 +951,26 @@ public class DungeonMasterAI {
         int maxTokens = llmClient.getConfig().getMaxTokens();
         String systemPrompt = DMPrompts.getSystemPrompt(maxTokens);
         
+        // История кампании для подведения итогов - в бюджете токенов финальной сцены
+        String relevantContextText = "";
+        if (relevantContextBuilder != null) {
+            try {
+                RelevantContextBuilder.RelevantContext relevantContext =
+                    relevantContextBuilder.buildRelevantContext(currentGame, currentGame.getSessionId());
+                relevantContextText = relevantContextBuilder.format(relevantContext, RelevantContextBuilder.CALL_FINAL_SCENE);
+            } catch (Exception e) {
+                System.err.println("Ошибка при построении релевантного контекста для финальной сцены: " + e.getMessage());
+            }
+        }
+        
         List<Map<String, String>> messages = new ArrayList<>();
         messages.add(Map.of("role", "user", "content", DMPrompts.getFinalScenePrompt(
             (String) quest.getOrDefault("title", "Квест"),
-            (String) quest.getOrDefault("goal", "")
+            (String) quest.getOrDefault("goal", ""),
+            relevantContextText
         )));
         
-        String finalScene = llmClient.generateResponse(messages, systemPrompt);
+        String finalScene = llmClient.generateResponse(messages, systemPrompt, LLMScheduler.Priority.CONTINUATION);
         
         if (finalScene == null || finalScene.trim().isEmpty()) {
             throw new RuntimeException("LLM вернул пустой ответ при генерации финальной сцены");
@@ -881,12 +1016,8 @@ public class DungeonMasterAI {
      * Очищает JSON строку от распространенных ошибок, которые может генерировать LLM
      */
     private String cleanJsonString(String json) {
-        json = json.replaceAll(",\\s*}", "}");
-        json = json.replaceAll(",\\s*]", "]");
-        
-        json = json.replaceAll(",\\s*\\n\\s*}", "\n}");
-        json = json.replaceAll(",\\s*\\n\\s*]", "\n]");
-        
+        json = TRAILING_COMMA_OBJECT.matcher(json).replaceAll("}");
+        json = TRAILING_COMMA_ARRAY.matcher(json).replaceAll("]");
         return json;
     }
     
@@ -4,6 +4,7 @@ import com.dnd.game_state.Character;
 import com.dnd.game_rules.*;
 import com.dnd.prompts.DMPrompts;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Координатор игровых компонентов
@@ -11,27 +12,51 @@ import java.util.*;
 public class GameOrchestrator {
     private final RuleEngine ruleEngine;
     private final ActionParser actionParser;
+    private final LocalLLMClient parserClient;
     private final LocalLLMClient dmClient;
 
     public GameOrchestrator(LocalLLMClient dmClient) {
+        this(dmClient, new SRDSnapshotStore());
+    }
+
+    public GameOrchestrator(LocalLLMClient dmClient, SRDSnapshotStore srdStore) {
+        this(dmClient, srdStore, true, null, null);
+    }
+
+    /**
+     * @param singlePassParse   однопроходный парсинг действий (один запрос к LLM вместо двух)
+     * @param trivialClassifier локальный классификатор тривиальных действий (null - без быстрого пути)
+     * @param parseCache        кэш результатов парсинга действий (null - без кэша)
+     */
+    public GameOrchestrator(LocalLLMClient dmClient, SRDSnapshotStore srdStore, boolean singlePassParse,
+                            TrivialActionClassifier trivialClassifier, ParsedActionCache parseCache) {
         this.dmClient = dmClient;
-        this.ruleEngine = new RuleEngine();
+        this.ruleEngine = new RuleEngine(srdStore.getLoader());
         
         // Создаем ActionParser с отдельным клиентом (использует тот же Ollama URL)
         LocalLLMClient.LocalLLMConfig parserConfig = new LocalLLMClient.LocalLLMConfig(
             "mistral:7b", 0.0, 400
         );
-        // Используем тот же базовый URL, что и у dmClient
-        String ollamaUrl = System.getenv("OLLAMA_BASE_URL");
-        if (ollamaUrl == null || ollamaUrl.isEmpty()) {
-            ollamaUrl = System.getProperty("ollama.base.url");
-        }
-        LocalLLMClient parserClient = new LocalLLMClient(parserConfig, ollamaUrl);
-        this.actionParser = new ActionParser(parserClient, ruleEngine.getSrdLoader());
+        parserConfig.setChatApi(dmClient.getConfig().isChatApi());
+        parserConfig.setKeepAlive(dmClient.getConfig().getKeepAlive());
+        // Используем тот же базовый URL, монитор Ollama, HTTP клиент и планировщик, что и у dmClient
+        this.parserClient = new LocalLLMClient(parserConfig, dmClient.getOllamaBaseUrl(),
+            dmClient.getHealthMonitor(), dmClient.getHttpClient(), dmClient.getScheduler());
+        this.actionParser = new ActionParser(parserClient, srdStore, singlePassParse, trivialClassifier, parseCache);
     }
 
     public Map<String, Object> processPlayerAction(String actionText, Character character, 
                                                    Map<String, Object> gameContext) {
+        return processPlayerAction(actionText, character, gameContext, null);
+    }
+
+    /**
+     * Обрабатывает действие игрока; если передан narrativeDeltaCallback,
+     * текст нарратива отдается в него по частям по мере генерации
+     */
+    public Map<String, Object> processPlayerAction(String actionText, Character character, 
+                                                   Map<String, Object> gameContext,
+                                                   Consumer<String> narrativeDeltaCallback) {
         // Шаг 1: Парсим действие
         Map<String, Object> parsedAction = actionParser.parseAction(actionText, gameContext);
         
@@ -98,7 +123,7 @@ public class GameOrchestrator {
         }
         
         // Шаг 3: Генерируем нарратив
-        String dmNarrative = generateNarrative(actionText, parsedAction, ruleResult, character, gameContext);
+        String dmNarrative = generateNarrative(actionText, parsedAction, ruleResult, character, gameContext, narrativeDeltaCallback);
         
         Map<String, Object> result = new HashMap<>();
         result.put("parsed_action", parsedAction);
@@ -117,7 +142,8 @@ public class GameOrchestrator {
 
     private String generateNarrative(String actionText, Map<String, Object> parsedAction,
                                     Map<String, Object> ruleResult, Character character,
-                                    Map<String, Object> gameContext) {
+                                    Map<String, Object> gameContext,
+                                    Consumer<String> narrativeDeltaCallback) {
         String currentLocation = (String) gameContext.getOrDefault("current_location", "Неизвестно");
         String situation = (String) gameContext.getOrDefault("current_situation", "");
         
@@ -136,7 +162,13 @@ public class GameOrchestrator {
         
         String systemPrompt = DMPrompts.getActionNarrativeSystemPrompt();
         
-        return dmClient.generateResponse(messages, systemPrompt);
+        if (narrativeDeltaCallback != null) {
+            // Нарратив приходит в JSON, игрокам отдаем только текст поля content
+            return dmClient.generateStructuredResponseStreaming(messages, systemPrompt, StructuredOutput.Schema.NARRATIVE,
+                new StreamingContentExtractor("content", narrativeDeltaCallback), LLMScheduler.Priority.NARRATIVE);
+        }
+        return dmClient.generateStructuredResponse(messages, systemPrompt, StructuredOutput.Schema.NARRATIVE,
+            LLMScheduler.Priority.NARRATIVE);
     }
 }
 
@@ -0,0 +1,438 @@
+package com.dnd.ai_engine;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Планировщик запросов к LLM для всех кампаний.
+ * Через него проходят все вызовы LocalLLMClient:
+ * - не больше llm.scheduler.max-concurrent запросов одновременно (по числу слотов Ollama);
+ * - свободный слот получает запрос с наивысшим приоритетом (разбор действия > нарратив >
+ *   продолжение истории > генерация мира > фоновые задачи);
+ * - внутри одного приоритета кампании обслуживаются по очереди (round-robin),
+ *   поэтому генерация мира одной кампании не занимает все слоты надолго;
+ * - ожидающий запрос стареет: каждые llm.scheduler.aging-ms ожидания он поднимается на один класс,
+ *   поэтому генерация мира и фоновые задачи (сводки этапов) выполняются и при непрерывном потоке
+ *   действий игроков. 0 - строгие приоритеты без старения.
+ * Для каждого запроса записываются время в очереди, время генерации и время обработки промпта.
+ * Позицию в очереди получают наблюдатели потока (watchQueue) и оценка для нового запроса (estimatePosition).
+ */
+@Component
+public class LLMScheduler {
+
+    /**
+     * Классы приоритета, от высшего к низшему
+     */
+    public enum Priority {
+        INTERACTIVE_PARSE,
+        NARRATIVE,
+        CONTINUATION,
+        WORLD_GENERATION,
+        BACKGROUND
+    }
+
+    private static final String NO_CAMPAIGN = "-";
+    private static final ThreadLocal<String> currentCampaign = new ThreadLocal<>();
+    private static final ThreadLocal<IntConsumer> queueListener = new ThreadLocal<>();
+
+    private final int maxConcurrent;
+    private final long agingNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Ожидающие запросы: приоритет -> кампания -> очередь; порядок кампаний задает round-robin
+    private final Map<Priority, LinkedHashMap<String, Deque<Ticket>>> waiting = new EnumMap<>(Priority.class);
+    private int running = 0;
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Priority, Timer> queueTimers = new EnumMap<>(Priority.class);
+    private final Map<Priority, Timer> generationTimers = new EnumMap<>(Priority.class);
+    private final Map<Priority, Timer> prefillTimers = new EnumMap<>(Priority.class);
+    private final Map<Priority, DistributionSummary> promptEvalSummaries = new EnumMap<>(Priority.class);
+    private final Map<Priority, DistributionSummary> promptSizeSummaries = new EnumMap<>(Priority.class);
+
+    public LLMScheduler(@Value("${llm.scheduler.max-concurrent:${ollama.num-parallel:4}}") int maxConcurrent,
+                        @Value("${llm.scheduler.aging-ms:30000}") long agingMs,
+                        ObjectProvider<MeterRegistry> meterRegistryProvider) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, agingMs));
+        this.meterRegistry = meterRegistryProvider.getIfAvailable();
+        for (Priority priority : Priority.values()) {
+            waiting.put(priority, new LinkedHashMap<>());
+            if (meterRegistry != null) {
+                String tag = priority.name().toLowerCase();
+                queueTimers.put(priority, Timer.builder("llm.request.queue_time")
+                    .description("Время ожидания запроса к LLM в очереди планировщика")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+                generationTimers.put(priority, Timer.builder("llm.request.generation_time")
+                    .description("Время генерации ответа LLM после получения слота")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+                prefillTimers.put(priority, Timer.builder("llm.request.prefill_time")
+                    .description("Время обработки промпта моделью (prompt_eval_duration Ollama)")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+                promptEvalSummaries.put(priority, DistributionSummary.builder("llm.request.prompt_eval_tokens")
+                    .description("Токены промпта, обработанные заново (без кэша префикса)")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+                promptSizeSummaries.put(priority, DistributionSummary.builder("llm.request.prompt_size")
+                    .description("Оценка размера отправленного промпта в токенах")
+                    .baseUnit("tokens")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+                Gauge.builder("llm.scheduler.waiting", this, scheduler -> scheduler.getWaitingCount(priority))
+                    .description("Запросы к LLM в очереди")
+                    .tag("priority", tag)
+                    .register(meterRegistry);
+            }
+        }
+        if (meterRegistry != null) {
+            Gauge.builder("llm.scheduler.running", this, LLMScheduler::getRunningCount)
+                .description("Запросы к LLM в работе")
+                .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Привязывает LLM запросы текущего потока к кампании (для справедливой очереди между кампаниями)
+     */
+    public static CampaignScope enterCampaign(String campaignId) {
+        String previous = currentCampaign.get();
+        currentCampaign.set(campaignId);
+        return () -> {
+            if (previous == null) {
+                currentCampaign.remove();
+            } else {
+                currentCampaign.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Сообщает позицию в очереди LLM запросов текущего потока: при постановке в очередь и при каждом ее изменении.
+     * Вызывается из потока запроса вне блокировки планировщика
+     */
+    public static CampaignScope watchQueue(IntConsumer listener) {
+        IntConsumer previous = queueListener.get();
+        queueListener.set(listener);
+        return () -> {
+            if (previous == null) {
+                queueListener.remove();
+            } else {
+                queueListener.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Кампания, к которой привязаны LLM запросы текущего потока (null - без кампании)
+     */
+    public static String currentCampaignId() {
+        return currentCampaign.get();
+    }
+
+    /**
+     * Записывает размер и время обработки промпта по ответу Ollama
+     */
+    public void recordPromptEval(Priority priority, long evaluatedTokens, long promptEvalNanos) {
+        Timer timer = prefillTimers.get(priority);
+        if (timer != null) {
+            timer.record(promptEvalNanos, TimeUnit.NANOSECONDS);
+            promptEvalSummaries.get(priority).record(evaluatedTokens);
+        }
+    }
+
+    /**
+     * Записывает оценку размера промпта перед отправкой запроса
+     */
+    public void recordPromptSize(Priority priority, int estimatedTokens) {
+        DistributionSummary summary = promptSizeSummaries.get(priority);
+        if (summary != null) {
+            summary.record(estimatedTokens);
+        }
+    }
+
+    /**
+     * Выполняет запрос к LLM, когда для него освободится слот
+     */
+    public <T> T execute(Priority priority, String description, Supplier<T> request) {
+        String campaignId = currentCampaign.get() != null ? currentCampaign.get() : NO_CAMPAIGN;
+        Ticket ticket = acquire(priority, campaignId, description);
+        long startedAt = System.nanoTime();
+        try {
+            return request.get();
+        } finally {
+            long generationNanos = System.nanoTime() - startedAt;
+            release();
+            Timer timer = generationTimers.get(priority);
+            if (timer != null) {
+                timer.record(generationNanos, TimeUnit.NANOSECONDS);
+            }
+            if (ticket.queueNanos > TimeUnit.MILLISECONDS.toNanos(100)) {
+                System.out.println("⏱️ [LLMScheduler] " + description + " (" + priority + ", кампания " + campaignId +
+                    "): в очереди " + TimeUnit.NANOSECONDS.toMillis(ticket.queueNanos) + " мс, генерация " +
+                    TimeUnit.NANOSECONDS.toMillis(generationNanos) + " мс");
+            }
+        }
+    }
+
+    public int getWaitingCount(Priority priority) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Deque<Ticket> queue : waiting.get(priority).values()) {
+                count += queue.size();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Позиция, которую получил бы новый запрос с этим приоритетом (0 - слот свободен, запрос выполнится сразу)
+     */
+    public int estimatePosition(Priority priority) {
+        lock.lock();
+        try {
+            int ahead = 0;
+            for (Priority other : Priority.values()) {
+                if (other.ordinal() > priority.ordinal()) {
+                    break;
+                }
+                for (Deque<Ticket> queue : waiting.get(other).values()) {
+                    ahead += queue.size();
+                }
+            }
+            return ahead == 0 && running < maxConcurrent ? 0 : ahead + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Ticket acquire(Priority priority, String campaignId, String description) {
+        lock.lock();
+        try {
+            Ticket ticket = new Ticket(priority, campaignId);
+            waiting.get(priority).computeIfAbsent(campaignId, k -> new ArrayDeque<>()).addLast(ticket);
+            dispatch();
+
+            IntConsumer listener = queueListener.get();
+            int reported = 0;
+            if (!ticket.granted) {
+                reported = positionOf(ticket);
+                System.out.println("⏳ [LLMScheduler] " + description + " (" + priority + ", кампания " + campaignId +
+                    ") в очереди, позиция " + reported + ", в работе " + running + "/" + maxConcurrent);
+                notifyQueued(listener, reported);
+            }
+            while (!ticket.granted) {
+                try {
+                    changed.await();
+                    if (!ticket.granted && listener != null) {
+                        int position = positionOf(ticket);
+                        if (position != reported) {
+                            reported = position;
+                            notifyQueued(listener, position);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    if (!ticket.granted) {
+                        removeWaiting(ticket);
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Прервано ожидание очереди LLM", e);
+                    }
+                    // Слот уже выдан - выполняем запрос, прерывание восстановим
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            ticket.queueNanos = System.nanoTime() - ticket.enqueuedAt;
+            Timer timer = queueTimers.get(priority);
+            if (timer != null) {
+                timer.record(ticket.queueNanos, TimeUnit.NANOSECONDS);
+            }
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Вызывает наблюдателя очереди вне блокировки: он может отправлять сообщения клиенту
+     */
+    private void notifyQueued(IntConsumer listener, int position) {
+        if (listener == null) {
+            return;
+        }
+        lock.unlock();
+        try {
+            listener.accept(position);
+        } catch (Exception e) {
+            System.err.println("⚠️ [LLMScheduler] Ошибка наблюдателя очереди: " + e.getMessage());
+        } finally {
+            lock.lock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            running--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Выдает свободные слоты: наивысший приоритет с учетом старения, внутри приоритета - следующая по кругу кампания
+     */
+    private void dispatch() {
+        boolean grantedAny = false;
+        while (running < maxConcurrent) {
+            Ticket next = pollNext();
+            if (next == null) {
+                break;
+            }
+            next.granted = true;
+            running++;
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            changed.signalAll();
+        }
+    }
+
+    private Ticket pollNext() {
+        // Класс выбирается по самому старому ожидающему запросу: при равенстве побеждает более высокий приоритет
+        long now = System.nanoTime();
+        Priority highest = null;
+        Priority selected = null;
+        long selectedRank = Long.MAX_VALUE;
+        for (Priority priority : Priority.values()) {
+            LinkedHashMap<String, Deque<Ticket>> byCampaign = waiting.get(priority);
+            if (byCampaign.isEmpty()) {
+                continue;
+            }
+            if (highest == null) {
+                highest = priority;
+            }
+            long oldest = Long.MAX_VALUE;
+            for (Deque<Ticket> queue : byCampaign.values()) {
+                oldest = Math.min(oldest, now - queue.peekFirst().enqueuedAt);
+            }
+            long rank = priority.ordinal() - (agingNanos > 0 ? oldest / agingNanos : 0);
+            if (rank < selectedRank) {
+                selected = priority;
+                selectedRank = rank;
+            }
+            if (agingNanos == 0) {
+                break;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+
+        LinkedHashMap<String, Deque<Ticket>> byCampaign = waiting.get(selected);
+        Iterator<Map.Entry<String, Deque<Ticket>>> iterator = byCampaign.entrySet().iterator();
+        Map.Entry<String, Deque<Ticket>> entry = iterator.next();
+        Ticket ticket = entry.getValue().pollFirst();
+        // Кампания уходит в конец круга; пустая очередь удаляется
+        iterator.remove();
+        if (!entry.getValue().isEmpty()) {
+            byCampaign.put(entry.getKey(), entry.getValue());
+        }
+        if (selected != highest) {
+            System.out.println("⏫ [LLMScheduler] " + selected + " (кампания " + entry.getKey() + ") получает слот раньше " +
+                highest + " после " + TimeUnit.NANOSECONDS.toMillis(now - ticket.enqueuedAt) + " мс ожидания");
+        }
+        return ticket;
+    }
+
+    private void removeWaiting(Ticket ticket) {
+        LinkedHashMap<String, Deque<Ticket>> byCampaign = waiting.get(ticket.priority);
+        Deque<Ticket> queue = byCampaign.get(ticket.campaignId);
+        if (queue != null) {
+            queue.remove(ticket);
+            if (queue.isEmpty()) {
+                byCampaign.remove(ticket.campaignId);
+            }
+        }
+    }
+
+    /**
+     * Позиция в очереди с учетом приоритетов и round-robin (1 - следующий на выполнение).
+     * Старение не учитывается: это оценка сверху для запросов высокого приоритета
+     */
+    private int positionOf(Ticket target) {
+        int position = 0;
+        for (Priority priority : Priority.values()) {
+            if (priority.ordinal() < target.priority.ordinal()) {
+                for (Deque<Ticket> queue : waiting.get(priority).values()) {
+                    position += queue.size();
+                }
+            } else if (priority == target.priority) {
+                // Перед целевым запросом успеют выполниться запросы других кампаний из предыдущих кругов
+                Deque<Ticket> own = waiting.get(priority).get(target.campaignId);
+                int round = 0;
+                for (Ticket ticket : own) {
+                    if (ticket == target) break;
+                    round++;
+                }
+                for (Map.Entry<String, Deque<Ticket>> entry : waiting.get(priority).entrySet()) {
+                    if (entry.getKey().equals(target.campaignId)) {
+                        position += round;
+                    } else {
+                        position += Math.min(entry.getValue().size(), round + 1);
+                    }
+                }
+                break;
+            }
+        }
+        return position + 1;
+    }
+
+    /**
+     * Область привязки запросов потока к кампании или наблюдателю очереди
+     */
+    public interface CampaignScope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static class Ticket {
+        final Priority priority;
+        final String campaignId;
+        final long enqueuedAt = System.nanoTime();
+        boolean granted = false;
+        long queueNanos;
+
+        Ticket(Priority priority, String campaignId) {
+            this.priority = priority;
+            this.campaignId = campaignId;
+        }
+    }
+}
@@ -1,17 +1,27 @@
 package com.dnd.ai_engine;
 
+import com.dnd.messages.PromptBudget;
+import com.dnd.service.OllamaHealthMonitor;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonReader;
 import okhttp3.*;
+import okio.BufferedSource;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
- * Клиент для работы с локальными языковыми моделями через Ollama
+ * Клиент для работы с локальными языковыми моделями через Ollama.
+ * По умолчанию использует /api/chat: неизменное системное сообщение канала идет первым, а keep_alive
+ * держит модель в памяти. Ollama сам переиспользует KV cache слота, если запрос начинается с уже
+ * обработанных токенов; закрепить префикс за кампанией через API нельзя, поэтому клиент только
+ * сохраняет стабильный порядок частей запроса и записывает, сколько токенов обработано заново.
  */
 public class LocalLLMClient {
     private static final String DEFAULT_OLLAMA_BASE_URL = "http://localhost:11434";
@@ -19,15 +29,45 @@ public class LocalLLMClient {
     private final OkHttpClient httpClient;
     private final LocalLLMConfig config;
     private final String ollamaBaseUrl;
+    private final OllamaHealthMonitor healthMonitor;
+    private final LLMScheduler scheduler;
 
     public LocalLLMClient(LocalLLMConfig config) {
         this(config, getOllamaBaseUrlFromEnv());
     }
     
     public LocalLLMClient(LocalLLMConfig config, String ollamaBaseUrl) {
+        this(config, ollamaBaseUrl, null);
+    }
+    
+    /**
+     * @param healthMonitor общий монитор Ollama; клиент сообщает ему о результатах запросов.
+     *                      Если null, доступность проверяется собственным запросом к /api/tags
+     */
+    public LocalLLMClient(LocalLLMConfig config, String ollamaBaseUrl, OllamaHealthMonitor healthMonitor) {
+        this(config, ollamaBaseUrl, healthMonitor, null);
+    }
+    
+    /**
+     * @param httpClient общий HTTP клиент профиля генерации (HttpClientProfiles.generation());
+     *                   если null, клиент создает собственный
+     */
+    public LocalLLMClient(LocalLLMConfig config, String ollamaBaseUrl, OllamaHealthMonitor healthMonitor,
+                          OkHttpClient httpClient) {
+        this(config, ollamaBaseUrl, healthMonitor, httpClient, null);
+    }
+    
+    /**
+     * @param scheduler общий планировщик запросов к LLM (приоритеты, очередь между кампаниями);
+     *                  если null, запросы выполняются сразу
+     */
+    public LocalLLMClient(LocalLLMConfig config, String ollamaBaseUrl, OllamaHealthMonitor healthMonitor,
+                          OkHttpClient httpClient, LLMScheduler scheduler) {
         this.config = config;
         this.ollamaBaseUrl = ollamaBaseUrl != null ? ollamaBaseUrl : DEFAULT_OLLAMA_BASE_URL;
-        this.httpClient = new OkHttpClient.Builder()
+        this.healthMonitor = healthMonitor;
+        this.scheduler = scheduler;
+        this.httpClient = httpClient != null ? httpClient : new OkHttpClient.Builder()
             .connectTimeout(30, TimeUnit.SECONDS)
             .readTimeout(300, TimeUnit.SECONDS) // 5 минут для больших промптов (генерация мира, квестов)
             .writeTimeout(60, TimeUnit.SECONDS)
@@ -36,7 +76,7 @@ public class LocalLLMClient {
         initializeModel();
     }
     
-    private static String getOllamaBaseUrlFromEnv() {
+    static String getOllamaBaseUrlFromEnv() {
         String url = System.getenv("OLLAMA_BASE_URL");
         if (url == null || url.isEmpty()) {
             url = System.getProperty("ollama.base.url");
@@ -45,6 +85,18 @@ public class LocalLLMClient {
     }
 
     private void initializeModel() {
+        if (healthMonitor != null) {
+            healthMonitor.requireModel(config.getModelName());
+            if (!healthMonitor.isReachable()) {
+                throw new RuntimeException("Ollama недоступен. Убедитесь, что Ollama запущен.");
+            }
+            if (healthMonitor.isAvailable(config.getModelName())) {
+                System.out.println("✅ Ollama модель " + config.getModelName() + " готова к использованию");
+            } else {
+                System.out.println("⏳ Ollama модель " + config.getModelName() + " еще не загружена");
+            }
+            return;
+        }
             try {
                 // Проверяем доступные модели
                 Request request = new Request.Builder()
@@ -66,34 +118,55 @@ public class LocalLLMClient {
     }
 
     public String generateResponse(List<Map<String, String>> messages, String systemPrompt) {
+        return generateResponse(messages, systemPrompt, LLMScheduler.Priority.NARRATIVE);
+    }
+
+    /**
+     * Генерирует ответ; при заданном планировщике запрос ждет слот с учетом приоритета
+     */
+    public String generateResponse(List<Map<String, String>> messages, String systemPrompt,
+                                   LLMScheduler.Priority priority) {
+        if (scheduler == null) {
+            return doGenerateResponse(messages, systemPrompt, null, priority);
+        }
+        return scheduler.execute(priority, "generate " + config.getModelName(),
+            () -> doGenerateResponse(messages, systemPrompt, null, priority));
+    }
+
+    /**
+     * Генерирует ответ по JSON schema типа вызова: Ollama ограничивает вывод формой схемы,
+     * ответ связывается с записью через StructuredOutput.bind без извлечения и очистки JSON
+     */
+    public String generateStructuredResponse(List<Map<String, String>> messages, String systemPrompt,
+                                             StructuredOutput.Schema schema, LLMScheduler.Priority priority) {
+        JsonObject format = schema.toJson();
+        if (scheduler == null) {
+            return doGenerateResponse(messages, systemPrompt, format, priority);
+        }
+        return scheduler.execute(priority, "generate " + schema + " " + config.getModelName(),
+            () -> doGenerateResponse(messages, systemPrompt, format, priority));
+    }
+
+    /**
+     * Streaming вариант generateStructuredResponse; фрагменты JSON передаются в onToken по мере генерации
+     */
+    public String generateStructuredResponseStreaming(List<Map<String, String>> messages, String systemPrompt,
+                                                      StructuredOutput.Schema schema, Consumer<String> onToken,
+                                                      LLMScheduler.Priority priority) {
+        JsonObject format = schema.toJson();
+        if (scheduler == null) {
+            return doGenerateResponseStreaming(messages, systemPrompt, onToken, format, priority);
+        }
+        return scheduler.execute(priority, "stream " + schema + " " + config.getModelName(),
+            () -> doGenerateResponseStreaming(messages, systemPrompt, onToken, format, priority));
+    }
+
+    private String doGenerateResponse(List<Map<String, String>> messages, String systemPrompt, JsonElement format,
+                                      LLMScheduler.Priority priority) {
         try {
-            // Формируем промпт
-            StringBuilder promptBuilder = new StringBuilder();
-            if (systemPrompt != null && !systemPrompt.isEmpty()) {
-                promptBuilder.append("System: ").append(systemPrompt).append("\n\n");
-            }
-            
-            for (Map<String, String> message : messages) {
-                String role = message.getOrDefault("role", "user");
-                String content = message.getOrDefault("content", "");
-                promptBuilder.append(role.substring(0, 1).toUpperCase())
-                           .append(role.substring(1))
-                           .append(": ")
-                           .append(content)
-                           .append("\n\n");
-            }
-            promptBuilder.append("Assistant:");
-            
-            // Отправляем запрос в Ollama
-            JsonObject requestBody = new JsonObject();
-            requestBody.addProperty("model", config.getModelName());
-            requestBody.addProperty("prompt", promptBuilder.toString());
-            requestBody.addProperty("stream", false); // Отключаем streaming для получения полного ответа
-            
-            JsonObject options = new JsonObject();
-            options.addProperty("temperature", config.getTemperature());
-            options.addProperty("num_predict", config.getMaxTokens());
-            requestBody.add("options", options);
+            // Отключаем streaming для получения полного ответа
+            JsonObject requestBody = buildRequest(messages, systemPrompt, false, format);
+            recordPromptSize(priority, requestBody);
             
             RequestBody body = RequestBody.create(
                 requestBody.toString(),
@@ -101,7 +174,7 @@ public class LocalLLMClient {
             );
             
                 Request request = new Request.Builder()
-                    .url(ollamaBaseUrl + "/api/generate")
+                    .url(ollamaBaseUrl + endpoint())
                     .post(body)
                     .build();
             
@@ -117,20 +190,23 @@ public class LocalLLMClient {
                     
                     long requestTime = System.currentTimeMillis() - requestStartTime;
                     JsonObject obj = parseJsonLenient(json);
-                    if (obj.has("response")) {
-                        String llmResponse = obj.get("response").getAsString().trim();
+                    String fragment = extractFragment(obj);
+                    if (fragment != null) {
+                        String llmResponse = fragment.trim();
                         if (llmResponse.isEmpty()) {
                             throw new RuntimeException("LLM вернул пустой ответ. Полный ответ от Ollama: " + json);
                         }
                         if (llmResponse.length() < 10) {
                             System.err.println("⚠️ Подозрительно короткий ответ от LLM: '" + llmResponse + "'. Полный ответ от Ollama: " + json);
                         }
+                        reportSuccess(requestTime);
+                        recordPromptEval(obj, priority, requestBody);
                         System.out.println("📊 Запрос к Ollama (" + config.getModelName() + ") выполнен за " + (requestTime / 1000.0) + " сек, токенов: ~" + llmResponse.length() / 4);
                         System.out.println("📥 [LLM] Полный ответ (" + config.getModelName() + "):");
                         System.out.println("   " + llmResponse);
                         return llmResponse;
                     } else {
-                        throw new RuntimeException("Ответ от Ollama не содержит поле 'response'. Полный ответ: " + json);
+                        throw new RuntimeException("Ответ от Ollama не содержит текст ответа. Полный ответ: " + json);
                     }
                 } else {
                     String errorBody = response.body() != null ? response.body().string() : "нет тела ответа";
@@ -138,15 +214,280 @@ public class LocalLLMClient {
                 }
             }
         } catch (java.net.SocketTimeoutException e) {
+            reportFailure(e);
             System.err.println("⏱️ Таймаут при генерации ответа: " + e.getMessage());
             throw new RuntimeException("Таймаут при генерации ответа от Ollama. Попробуйте увеличить таймауты или использовать более быструю модель.", e);
         } catch (IOException e) {
+            reportFailure(e);
             System.err.println("❌ Ошибка при генерации ответа: " + e.getMessage());
             e.printStackTrace();
             throw new RuntimeException("Ошибка при генерации ответа от Ollama: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Генерирует ответ в режиме streaming: Ollama отдает NDJSON-чанки по мере генерации,
+     * каждый фрагмент текста сразу передается в onToken.
+     * Возвращает полный текст ответа (как generateResponse).
+     * Если onToken == null, работает как обычный generateResponse.
+     */
+    public String generateResponseStreaming(List<Map<String, String>> messages, String systemPrompt,
+                                            Consumer<String> onToken) {
+        return generateResponseStreaming(messages, systemPrompt, onToken, LLMScheduler.Priority.NARRATIVE);
+    }
+
+    public String generateResponseStreaming(List<Map<String, String>> messages, String systemPrompt,
+                                            Consumer<String> onToken, LLMScheduler.Priority priority) {
+        if (scheduler == null) {
+            return doGenerateResponseStreaming(messages, systemPrompt, onToken, null, priority);
+        }
+        // Слот удерживается до конца потока
+        return scheduler.execute(priority, "stream " + config.getModelName(),
+            () -> doGenerateResponseStreaming(messages, systemPrompt, onToken, null, priority));
+    }
+
+    private String doGenerateResponseStreaming(List<Map<String, String>> messages, String systemPrompt,
+                                               Consumer<String> onToken, JsonElement format,
+                                               LLMScheduler.Priority priority) {
+        if (onToken == null) {
+            return doGenerateResponse(messages, systemPrompt, format, priority);
+        }
+        
+        try {
+            JsonObject requestBody = buildRequest(messages, systemPrompt, true, format);
+            recordPromptSize(priority, requestBody);
+            
+            RequestBody body = RequestBody.create(
+                requestBody.toString(),
+                MediaType.parse("application/json")
+            );
+            
+            Request request = new Request.Builder()
+                .url(ollamaBaseUrl + endpoint())
+                .post(body)
+                .build();
+            
+            long requestStartTime = System.currentTimeMillis();
+            long firstTokenTime = -1;
+            StringBuilder fullResponse = new StringBuilder();
+            JsonObject finalChunk = null;
+            
+            try (Response response = httpClient.newCall(request).execute()) {
+                if (!response.isSuccessful() || response.body() == null) {
+                    String errorBody = response.body() != null ? response.body().string() : "нет тела ответа";
+                    throw new RuntimeException("Ошибка HTTP запроса к Ollama: " + response.code() + " " + response.message() + ". Тело: " + errorBody);
+                }
+                
+                // Каждая строка - отдельный JSON объект: {"response": "...", "done": false} для /api/generate,
+                // {"message": {"content": "..."}, "done": false} для /api/chat
+                BufferedSource source = response.body().source();
+                String line;
+                while ((line = source.readUtf8Line()) != null) {
+                    if (line.isBlank()) continue;
+                    
+                    JsonObject chunk = parseJsonLenient(line);
+                    if (chunk.has("error")) {
+                        throw new RuntimeException("Ollama вернул ошибку при streaming генерации: " + chunk.get("error").getAsString());
+                    }
+                    String fragment = extractFragment(chunk);
+                    if (fragment != null && !fragment.isEmpty()) {
+                        if (firstTokenTime < 0) {
+                            firstTokenTime = System.currentTimeMillis() - requestStartTime;
+                        }
+                        fullResponse.append(fragment);
+                        try {
+                            onToken.accept(fragment);
+                        } catch (Exception e) {
+                            // Ошибка доставки фрагмента не должна прерывать генерацию
+                            System.err.println("⚠️ Ошибка обработки фрагмента ответа: " + e.getMessage());
+                        }
+                    }
+                    if (chunk.has("done") && chunk.get("done").getAsBoolean()) {
+                        // Последний чанк содержит статистику (prompt_eval_count и т.д.)
+                        finalChunk = chunk;
+                        break;
+                    }
+                }
+            }
+            
+            long requestTime = System.currentTimeMillis() - requestStartTime;
+            reportSuccess(requestTime);
+            if (finalChunk != null) {
+                recordPromptEval(finalChunk, priority, requestBody);
+            }
+            String llmResponse = fullResponse.toString().trim();
+            if (llmResponse.isEmpty()) {
+                throw new RuntimeException("LLM вернул пустой ответ в режиме streaming");
+            }
+            System.out.println("📊 Streaming запрос к Ollama (" + config.getModelName() + ") выполнен за " + (requestTime / 1000.0) + 
+                             " сек, первый токен через " + (firstTokenTime / 1000.0) + " сек, токенов: ~" + llmResponse.length() / 4);
+            System.out.println("📥 [LLM] Полный ответ (" + config.getModelName() + "):");
+            System.out.println("   " + llmResponse);
+            return llmResponse;
+        } catch (java.net.SocketTimeoutException e) {
+            reportFailure(e);
+            System.err.println("⏱️ Таймаут при streaming генерации ответа: " + e.getMessage());
+            throw new RuntimeException("Таймаут при генерации ответа от Ollama. Попробуйте увеличить таймауты или использовать более быструю модель.", e);
+        } catch (IOException e) {
+            reportFailure(e);
+            System.err.println("❌ Ошибка при streaming генерации ответа: " + e.getMessage());
+            e.printStackTrace();
+            throw new RuntimeException("Ошибка при генерации ответа от Ollama: " + e.getMessage(), e);
+        }
+    }
+
+    private String endpoint() {
+        return config.isChatApi() ? "/api/chat" : "/api/generate";
+    }
+
+    /**
+     * Текст ответа или фрагмента: message.content для /api/chat, response для /api/generate
+     */
+    private String extractFragment(JsonObject obj) {
+        if (obj.has("message") && obj.get("message").isJsonObject()) {
+            JsonObject message = obj.getAsJsonObject("message");
+            return message.has("content") ? message.get("content").getAsString() : "";
+        }
+        return obj.has("response") ? obj.get("response").getAsString() : null;
+    }
+
+    /**
+     * Учитывает, сколько токенов промпта модель обработала заново: при переиспользованном префиксе
+     * prompt_eval_count Ollama меньше размера промпта
+     */
+    private void recordPromptEval(JsonObject stats, LLMScheduler.Priority priority, JsonObject requestBody) {
+        if (!stats.has("prompt_eval_count")) {
+            return;
+        }
+        long evaluatedTokens = stats.get("prompt_eval_count").getAsLong();
+        long promptEvalNanos = stats.has("prompt_eval_duration") ? stats.get("prompt_eval_duration").getAsLong() : 0;
+        if (scheduler != null) {
+            scheduler.recordPromptEval(priority, evaluatedTokens, promptEvalNanos);
+        }
+        String campaignId = LLMScheduler.currentCampaignId();
+        if (campaignId != null) {
+            double reused = estimateReusedShare(promptLength(requestBody), evaluatedTokens);
+            System.out.println(String.format(Locale.ROOT,
+                "♻️ [LLM] Prefill %s/%s: обработано %d токенов за %d мс, из кэша префикса ~%.0f%%",
+                campaignId, priority.name().toLowerCase(Locale.ROOT), evaluatedTokens,
+                promptEvalNanos / 1_000_000, reused * 100));
+        }
+    }
+
+    /**
+     * Оценка доли промпта, взятой из кэша префикса
+     * @param promptChars     длина всего промпта в символах (~4 символа на токен)
+     * @param evaluatedTokens prompt_eval_count: токены, которые модель обработала заново
+     * @return 0..1
+     */
+    private static double estimateReusedShare(int promptChars, long evaluatedTokens) {
+        long estimated = Math.max(1, promptChars / 4);
+        return Math.max(0.0, 1.0 - (double) evaluatedTokens / estimated);
+    }
+
+    private int promptLength(JsonObject requestBody) {
+        return promptText(requestBody).length();
+    }
+    
+    /**
+     * Фактический размер промпта (оценка в токенах) - метрика llm.request.prompt_size
+     */
+    private void recordPromptSize(LLMScheduler.Priority priority, JsonObject requestBody) {
+        if (scheduler != null) {
+            scheduler.recordPromptSize(priority, PromptBudget.estimateTokens(promptText(requestBody)));
+        }
+    }
+    
+    private String promptText(JsonObject requestBody) {
+        if (requestBody.has("prompt")) {
+            return requestBody.get("prompt").getAsString();
+        }
+        StringBuilder text = new StringBuilder();
+        for (JsonElement message : requestBody.getAsJsonArray("messages")) {
+            text.append(message.getAsJsonObject().get("content").getAsString());
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Формирует тело запроса к Ollama.
+     * Порядок частей стабилен: системное сообщение (неизменное для канала), затем сообщения хода,
+     * поэтому префикс запроса побайтно совпадает между ходами и Ollama переиспользует его обработку.
+     * @param format ограничение формата вывода Ollama ("json" или JSON schema), null - свободный текст
+     */
+    private JsonObject buildRequest(List<Map<String, String>> messages, String systemPrompt, boolean stream,
+                                    JsonElement format) {
+        JsonObject requestBody = new JsonObject();
+        requestBody.addProperty("model", config.getModelName());
+        if (config.isChatApi()) {
+            JsonArray chatMessages = new JsonArray();
+            if (systemPrompt != null && !systemPrompt.isEmpty()) {
+                chatMessages.add(chatMessage("system", systemPrompt));
+            }
+            for (Map<String, String> message : messages) {
+                chatMessages.add(chatMessage(message.getOrDefault("role", "user"), message.getOrDefault("content", "")));
+            }
+            requestBody.add("messages", chatMessages);
+        } else {
+            requestBody.addProperty("prompt", buildFlatPrompt(messages, systemPrompt));
+        }
+        requestBody.addProperty("stream", stream);
+        if (format != null) {
+            requestBody.add("format", format);
+        }
+        if (config.getKeepAlive() != null && !config.getKeepAlive().isEmpty()) {
+            // Модель и ее кэш префиксов остаются в памяти между ходами
+            requestBody.addProperty("keep_alive", config.getKeepAlive());
+        }
+        
+        JsonObject options = new JsonObject();
+        options.addProperty("temperature", config.getTemperature());
+        options.addProperty("num_predict", config.getMaxTokens());
+        requestBody.add("options", options);
+        return requestBody;
+    }
+
+    private static JsonObject chatMessage(String role, String content) {
+        JsonObject message = new JsonObject();
+        message.addProperty("role", role);
+        message.addProperty("content", content);
+        return message;
+    }
+
+    /**
+     * Промпт /api/generate: все сообщения одной строкой
+     */
+    private static String buildFlatPrompt(List<Map<String, String>> messages, String systemPrompt) {
+        StringBuilder promptBuilder = new StringBuilder();
+        if (systemPrompt != null && !systemPrompt.isEmpty()) {
+            promptBuilder.append("System: ").append(systemPrompt).append("\n\n");
+        }
+        
+        for (Map<String, String> message : messages) {
+            String role = message.getOrDefault("role", "user");
+            String content = message.getOrDefault("content", "");
+            promptBuilder.append(role.substring(0, 1).toUpperCase())
+                       .append(role.substring(1))
+                       .append(": ")
+                       .append(content)
+                       .append("\n\n");
+        }
+        promptBuilder.append("Assistant:");
+        return promptBuilder.toString();
+    }
+
+    private void reportSuccess(long latencyMs) {
+        if (healthMonitor != null) {
+            healthMonitor.reportSuccess(config.getModelName(), latencyMs);
+        }
+    }
+    
+    private void reportFailure(Exception e) {
+        if (healthMonitor != null) {
+            healthMonitor.reportFailure(config.getModelName(), e);
+        }
+    }
+
     private JsonObject parseJsonLenient(String json) {
         try {
             // Пытаемся парсить как обычно
@@ -176,6 +517,10 @@ public class LocalLLMClient {
         private String modelName = "mistral:7b";
         private double temperature = 0.7;
         private int maxTokens = 1000;
+        // /api/chat с системным сообщением вместо /api/generate с одной строкой промпта
+        private boolean chatApi = true;
+        // Сколько Ollama держит модель (и кэш префиксов) в памяти после запроса
+        private String keepAlive = "30m";
 
         public LocalLLMConfig() {
         }
@@ -194,10 +539,32 @@ public class LocalLLMClient {
 
         public int getMaxTokens() { return maxTokens; }
         public void setMaxTokens(int maxTokens) { this.maxTokens = maxTokens; }
+
+        public boolean isChatApi() { return chatApi; }
+        public void setChatApi(boolean chatApi) { this.chatApi = chatApi; }
+
+        public String getKeepAlive() { return keepAlive; }
+        public void setKeepAlive(String keepAlive) { this.keepAlive = keepAlive; }
     }
     
     public LocalLLMConfig getConfig() {
         return config;
     }
+    
+    public String getOllamaBaseUrl() {
+        return ollamaBaseUrl;
+    }
+    
+    public OllamaHealthMonitor getHealthMonitor() {
+        return healthMonitor;
+    }
+    
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public LLMScheduler getScheduler() {
+        return scheduler;
+    }
 }
 
@@ -0,0 +1,106 @@
+package com.dnd.ai_engine;
+
+import java.util.function.Consumer;
+
+/**
+ * Инкрементальный извлекатель значения строкового поля из JSON, который приходит от LLM по частям.
+ * Ответы DM имеют вид {"message_type": "...", "content": "...", ...}, игрокам нужно показывать
+ * только текст поля "content" по мере генерации, а не сырой JSON.
+ */
+class StreamingContentExtractor implements Consumer<String> {
+    private final String fieldMarker;
+    private final Consumer<String> downstream;
+    private final StringBuilder buffer = new StringBuilder();
+    private int position = 0;
+    private boolean insideValue = false;
+    private boolean finished = false;
+
+    StreamingContentExtractor(String fieldName, Consumer<String> downstream) {
+        this.fieldMarker = "\"" + fieldName + "\"";
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void accept(String fragment) {
+        if (finished || fragment == null || fragment.isEmpty()) {
+            return;
+        }
+        buffer.append(fragment);
+
+        if (!insideValue && !findValueStart()) {
+            return;
+        }
+
+        StringBuilder decoded = new StringBuilder();
+        while (position < buffer.length()) {
+            char c = buffer.charAt(position);
+            if (c == '"') {
+                finished = true;
+                break;
+            }
+            if (c != '\\') {
+                decoded.append(c);
+                position++;
+                continue;
+            }
+            // Escape-последовательность может быть разрезана между чанками - ждем продолжения
+            if (position + 1 >= buffer.length()) {
+                break;
+            }
+            char escaped = buffer.charAt(position + 1);
+            if (escaped == 'u') {
+                if (position + 6 > buffer.length()) {
+                    break;
+                }
+                try {
+                    decoded.append((char) Integer.parseInt(buffer.substring(position + 2, position + 6), 16));
+                } catch (NumberFormatException e) {
+                    decoded.append(buffer, position, position + 6);
+                }
+                position += 6;
+                continue;
+            }
+            switch (escaped) {
+                case 'n': decoded.append('\n'); break;
+                case 't': decoded.append('\t'); break;
+                case 'r': break;
+                case 'b': case 'f': break;
+                default: decoded.append(escaped); // \" \\ \/
+            }
+            position += 2;
+        }
+
+        if (decoded.length() > 0) {
+            downstream.accept(decoded.toString());
+        }
+    }
+
+    /**
+     * Ищет начало значения поля: "content" : "
+     */
+    private boolean findValueStart() {
+        int markerIdx = buffer.indexOf(fieldMarker);
+        if (markerIdx < 0) {
+            return false;
+        }
+        int i = markerIdx + fieldMarker.length();
+        while (i < buffer.length() && Character.isWhitespace(buffer.charAt(i))) i++;
+        if (i >= buffer.length()) return false;
+        if (buffer.charAt(i) != ':') {
+            // Это не ключ, а упоминание в тексте - ищем дальше
+            buffer.delete(0, markerIdx + fieldMarker.length());
+            return findValueStart();
+        }
+        i++;
+        while (i < buffer.length() && Character.isWhitespace(buffer.charAt(i))) i++;
+        if (i >= buffer.length()) return false;
+        if (buffer.charAt(i) != '"') {
+            // Значение не строковое - извлекать нечего
+            finished = true;
+            return false;
+        }
+        position = i + 1;
+        insideValue = true;
+        return true;
+    }
+}
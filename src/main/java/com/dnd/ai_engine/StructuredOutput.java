@@ -0,0 +1,386 @@
+package com.dnd.ai_engine;
+
+import com.dnd.messages.MessageParser;
+import com.dnd.messages.StructuredMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.*;
+
+/**
+ * Structured output для запросов к LLM.
+ * Для каждого типа вызова задана JSON schema, которая передается в Ollama параметром format:
+ * модель генерирует только JSON этой формы, поэтому ответ сразу связывается с типизированной записью
+ * без поиска JSON в тексте и исправления его регулярными выражениями.
+ * Толерантные разборщики (MessageParser, extractJsonObject) остаются запасным путем.
+ */
+public final class StructuredOutput {
+    private static final Gson gson = new Gson();
+
+    private StructuredOutput() {
+    }
+
+    /**
+     * Типы вызовов и их JSON schema
+     */
+    public enum Schema {
+        ACTION_PARSE(actionParseSchema()),
+        NARRATIVE(dmMessageSchema(new String[]{"action_result"}, narrativeMetadataSchema())),
+        CONTINUATION(dmMessageSchema(new String[]{"situation_continuation", "npc_encounter", "random_event",
+            "quest_progression", "exploration_event", "location_description"}, continuationMetadataSchema())),
+        WORLD(worldSchema()),
+        QUEST_SITUATION(questSituationSchema());
+
+        private final JsonObject schema;
+
+        Schema(JsonObject schema) {
+            this.schema = schema;
+        }
+
+        /**
+         * Копия схемы для тела запроса
+         */
+        public JsonObject toJson() {
+            return schema.deepCopy();
+        }
+    }
+
+    /**
+     * Связывает JSON ответа с записью. Ответ в режиме structured output - ровно один JSON объект,
+     * поэтому никакого извлечения и очистки не требуется.
+     * @throws IllegalArgumentException если ответ пустой или не соответствует записи
+     */
+    public static <T> T bind(String response, Class<T> type) {
+        if (response == null || response.isBlank()) {
+            throw new IllegalArgumentException("Пустой ответ от LLM");
+        }
+        T result;
+        try {
+            result = gson.fromJson(response, type);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Ответ не соответствует схеме " + type.getSimpleName() + ": " + e.getMessage(), e);
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("Пустой JSON в ответе для " + type.getSimpleName());
+        }
+        return result;
+    }
+
+    // ===== Записи ответов =====
+
+    /**
+     * Результат парсинга действия (однопроходный режим и финальный этап двухэтапного)
+     */
+    public record ParsedAction(
+        @SerializedName("requires_check") Boolean requiresCheck,
+        @SerializedName("is_possible") Boolean isPossible,
+        @SerializedName("requires_dice_roll") Boolean requiresDiceRoll,
+        String intent,
+        String ability,
+        String skill,
+        @SerializedName("estimated_dc") Integer estimatedDc,
+        @SerializedName("estimated_difficulty") String estimatedDifficulty,
+        List<String> modifiers,
+        @SerializedName("required_items") List<String> requiredItems,
+        String reason
+    ) {
+        /**
+         * Карта в формате ActionParser (как после разбора JSON вручную)
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> result = new HashMap<>();
+            result.put("requires_check", requiresCheck != null ? requiresCheck : true);
+            result.put("is_possible", isPossible != null ? isPossible : true);
+            if (requiresDiceRoll != null) {
+                result.put("requires_dice_roll", requiresDiceRoll);
+            }
+            result.put("intent", intent);
+            result.put("ability", ability);
+            result.put("skill", skill);
+            result.put("estimated_dc", estimatedDc);
+            result.put("estimated_difficulty", estimatedDifficulty);
+            result.put("modifiers", modifiers != null ? new ArrayList<>(modifiers) : new ArrayList<>());
+            result.put("required_items", requiredItems != null ? new ArrayList<>(requiredItems) : new ArrayList<>());
+            result.put("reason", reason != null ? reason : "");
+            return result;
+        }
+    }
+
+    /**
+     * Сообщение DM: нарратив действия или продолжение истории
+     */
+    public record DMMessage(
+        @SerializedName("message_type") String messageType,
+        String content,
+        String location,
+        Map<String, Object> metadata,
+        Map<String, Object> analysis
+    ) {
+        public StructuredMessage toStructuredMessage(String characterName) {
+            if (content == null || content.isBlank()) {
+                throw new IllegalArgumentException("Не найден контент сообщения в JSON");
+            }
+            return MessageParser.buildMessage(messageType, content, location, metadata, analysis, characterName);
+        }
+    }
+
+    /**
+     * Описание мира
+     */
+    public record WorldOutline(
+        @SerializedName("world_description") String worldDescription,
+        @SerializedName("main_location") MainLocation mainLocation,
+        String atmosphere,
+        String history
+    ) {
+        /**
+         * Карта мира в формате GameState
+         */
+        public Map<String, Object> toMap() {
+            if (worldDescription == null || worldDescription.isBlank()) {
+                throw new IllegalArgumentException("В ответе нет world_description");
+            }
+            Map<String, Object> map = new HashMap<>();
+            map.put("world_description", worldDescription);
+            if (mainLocation != null) {
+                map.put("main_location", mainLocation.toMap());
+            }
+            if (atmosphere != null) {
+                map.put("atmosphere", atmosphere);
+            }
+            if (history != null) {
+                map.put("history", history);
+            }
+            return map;
+        }
+    }
+
+    public record MainLocation(
+        String name,
+        String description,
+        @SerializedName("important_npcs") List<String> importantNpcs,
+        List<String> problems,
+        @SerializedName("points_of_interest") List<String> pointsOfInterest
+    ) {
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", name);
+            map.put("description", description);
+            map.put("important_npcs", importantNpcs != null ? new ArrayList<>(importantNpcs) : new ArrayList<>());
+            map.put("problems", problems != null ? new ArrayList<>(problems) : new ArrayList<>());
+            map.put("points_of_interest", pointsOfInterest != null ? new ArrayList<>(pointsOfInterest) : new ArrayList<>());
+            return map;
+        }
+    }
+
+    /**
+     * Начальная ситуация, основной квест и начальная локация
+     */
+    public record QuestSituation(
+        String situation,
+        QuestOutline quest,
+        @SerializedName("initial_location") String initialLocation
+    ) {
+        /**
+         * Карта в формате DungeonMasterAI (quest, situation, initial_location)
+         */
+        public Map<String, Object> toMap() {
+            if (quest == null || quest.title() == null || quest.goal() == null || quest.stages() == null) {
+                throw new IllegalArgumentException("В ответе нет квеста с title, goal и stages");
+            }
+            if (situation == null || situation.isBlank()) {
+                throw new IllegalArgumentException("В ответе нет situation");
+            }
+            Map<String, Object> questMap = new HashMap<>();
+            questMap.put("title", quest.title());
+            questMap.put("goal", quest.goal());
+            if (quest.description() != null) {
+                questMap.put("description", quest.description());
+            }
+            if (quest.questSummary() != null) {
+                questMap.put("quest_summary", quest.questSummary());
+            }
+            questMap.put("stages", new ArrayList<>(quest.stages()));
+
+            Map<String, Object> result = new HashMap<>();
+            result.put("quest", questMap);
+            result.put("situation", situation);
+            if (initialLocation != null) {
+                result.put("initial_location", initialLocation);
+            }
+            return result;
+        }
+    }
+
+    public record QuestOutline(
+        String title,
+        String goal,
+        List<String> stages,
+        String description,
+        @SerializedName("quest_summary") String questSummary
+    ) {
+    }
+
+    // ===== JSON schema =====
+
+    private static JsonObject actionParseSchema() {
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("requires_check", type("boolean"));
+        properties.put("is_possible", type("boolean"));
+        // Финальный промпт двухэтапного режима спрашивает requires_dice_roll вместо requires_check
+        properties.put("requires_dice_roll", type("boolean"));
+        properties.put("intent", type("string"));
+        properties.put("ability", nullable(enumOf("strength", "dexterity", "constitution", "intelligence", "wisdom", "charisma")));
+        properties.put("skill", nullable(type("string")));
+        properties.put("estimated_dc", nullable(type("integer")));
+        properties.put("estimated_difficulty", nullable(type("string")));
+        properties.put("modifiers", arrayOf(type("string")));
+        properties.put("required_items", arrayOf(type("string")));
+        properties.put("reason", type("string"));
+        return object(properties, "requires_check", "is_possible", "intent", "ability", "skill", "estimated_dc", "reason");
+    }
+
+    /**
+     * Общая форма сообщения DM; content идет сразу после message_type, чтобы streaming быстрее отдавал текст игрокам
+     */
+    private static JsonObject dmMessageSchema(String[] messageTypes, JsonObject metadata) {
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("message_type", enumOf(messageTypes));
+        properties.put("content", type("string"));
+        properties.put("location", type("string"));
+        properties.put("metadata", metadata);
+        properties.put("analysis", analysisSchema());
+        return object(properties, "message_type", "content", "location");
+    }
+
+    private static JsonObject narrativeMetadataSchema() {
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("action", type("string"));
+        properties.put("success", type("boolean"));
+        properties.put("skill_used", nullable(type("string")));
+        properties.put("dc", nullable(type("string")));
+        return object(properties);
+    }
+
+    private static JsonObject continuationMetadataSchema() {
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("quest_stage", nullable(type("string")));
+        properties.put("event_type", nullable(type("string")));
+        return object(properties);
+    }
+
+    private static JsonObject analysisSchema() {
+        Map<String, JsonObject> npc = new LinkedHashMap<>();
+        npc.put("name", type("string"));
+        npc.put("description", type("string"));
+        npc.put("location", type("string"));
+        npc.put("home_location", type("string"));
+
+        Map<String, JsonObject> location = new LinkedHashMap<>();
+        location.put("name", type("string"));
+        location.put("description", type("string"));
+
+        Map<String, JsonObject> quest = new LinkedHashMap<>();
+        quest.put("title", type("string"));
+        quest.put("description", type("string"));
+        quest.put("type", enumOf("main", "side"));
+
+        Map<String, JsonObject> newInformation = new LinkedHashMap<>();
+        newInformation.put("npcs", arrayOf(object(npc, "name")));
+        newInformation.put("locations", arrayOf(object(location, "name")));
+        newInformation.put("quests", arrayOf(object(quest, "title")));
+
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("npcs_mentioned", arrayOf(type("string")));
+        properties.put("locations_mentioned", arrayOf(type("string")));
+        properties.put("quests_mentioned", arrayOf(type("string")));
+        properties.put("key_events", arrayOf(type("string")));
+        properties.put("connections", arrayOf(type("string")));
+        properties.put("new_information", object(newInformation));
+        return object(properties);
+    }
+
+    private static JsonObject worldSchema() {
+        Map<String, JsonObject> mainLocation = new LinkedHashMap<>();
+        mainLocation.put("name", type("string"));
+        mainLocation.put("description", type("string"));
+        mainLocation.put("important_npcs", arrayOf(type("string")));
+        mainLocation.put("problems", arrayOf(type("string")));
+        mainLocation.put("points_of_interest", arrayOf(type("string")));
+
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("world_description", type("string"));
+        properties.put("main_location", object(mainLocation, "name", "description"));
+        properties.put("atmosphere", type("string"));
+        properties.put("history", type("string"));
+        return object(properties, "world_description", "main_location", "atmosphere", "history");
+    }
+
+    private static JsonObject questSituationSchema() {
+        Map<String, JsonObject> quest = new LinkedHashMap<>();
+        quest.put("title", type("string"));
+        quest.put("goal", type("string"));
+        quest.put("stages", arrayOf(type("string")));
+        quest.put("description", type("string"));
+        quest.put("quest_summary", type("string"));
+
+        Map<String, JsonObject> properties = new LinkedHashMap<>();
+        properties.put("situation", type("string"));
+        properties.put("quest", object(quest, "title", "goal", "stages", "description", "quest_summary"));
+        properties.put("initial_location", type("string"));
+        return object(properties, "situation", "quest", "initial_location");
+    }
+
+    private static JsonObject type(String type) {
+        JsonObject schema = new JsonObject();
+        schema.addProperty("type", type);
+        return schema;
+    }
+
+    private static JsonObject nullable(JsonObject schema) {
+        JsonObject copy = schema.deepCopy();
+        JsonArray types = new JsonArray();
+        types.add(schema.get("type").getAsString());
+        types.add("null");
+        copy.add("type", types);
+        if (copy.has("enum")) {
+            copy.getAsJsonArray("enum").add(JsonNull.INSTANCE);
+        }
+        return copy;
+    }
+
+    private static JsonObject enumOf(String... values) {
+        JsonObject schema = type("string");
+        JsonArray array = new JsonArray();
+        for (String value : values) {
+            array.add(value);
+        }
+        schema.add("enum", array);
+        return schema;
+    }
+
+    private static JsonObject arrayOf(JsonObject items) {
+        JsonObject schema = type("array");
+        schema.add("items", items);
+        return schema;
+    }
+
+    private static JsonObject object(Map<String, JsonObject> properties, String... required) {
+        JsonObject schema = type("object");
+        JsonObject props = new JsonObject();
+        properties.forEach(props::add);
+        schema.add("properties", props);
+        if (required.length > 0) {
+            JsonArray requiredArray = new JsonArray();
+            for (String name : required) {
+                requiredArray.add(name);
+            }
+            schema.add("required", requiredArray);
+        }
+        return schema;
+    }
+}
@@ -1,11 +1,13 @@
 package com.dnd.api;
 
+import com.dnd.ai_engine.CampaignRuntimeRegistry;
 import com.dnd.ai_engine.DungeonMasterAI;
 import com.dnd.entity.*;
 import com.dnd.game_state.Character;
-import com.dnd.game_state.GameManager;
 import com.dnd.game_state.GameState;
 import com.dnd.repository.CampaignRepository;
+import com.dnd.service.GameStateService;
+import com.dnd.service.MessageService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -19,24 +21,25 @@ import java.util.function.Consumer;
 public class CampaignService {
     
     @Autowired
-    private DungeonMasterAI dungeonMasterAI;
+    private CampaignRuntimeRegistry runtimeRegistry;
     
     @Autowired
-    private GameManager gameManager;
+    private CampaignRepository campaignRepository;
     
     @Autowired
-    private CampaignRepository campaignRepository;
+    private GameStateService gameStateService;
+    
+    @Autowired
+    private MessageService messageService;
     
     /**
      * Создать новую кампанию (только структура, без генерации сцены)
      */
     public Map<String, Object> createCampaign(String sessionId) {
         // Если сессия уже существует, загружаем ее
-        if (sessionId != null && gameManager.gameExists(sessionId)) {
-            GameState existingGame = gameManager.loadGame(sessionId);
+        if (sessionId != null && campaignExists(sessionId)) {
+            GameState existingGame = runtimeRegistry.getRuntime(sessionId).getCurrentGame();
             if (existingGame != null) {
-                gameManager.setCurrentGame(existingGame);
-                dungeonMasterAI.setCurrentGame(existingGame);
                 Map<String, Object> result = new HashMap<>();
                 result.put("session_id", existingGame.getSessionId());
                 result.put("current_location", existingGame.getCurrentLocation());
@@ -46,10 +49,9 @@ public class CampaignService {
         }
         
         // Создаем новую игру без генерации сцены
-        GameState newGame = gameManager.startNewGame(sessionId);
-        gameManager.setCurrentGame(newGame);
-        dungeonMasterAI.setCurrentGame(newGame);
-        gameManager.saveGame();
+        DungeonMasterAI runtime = runtimeRegistry.createRuntime(sessionId);
+        GameState newGame = runtime.getCurrentGame();
+        runtime.getGameManager().commitTurn();
         
         Map<String, Object> result = new HashMap<>();
         result.put("session_id", newGame.getSessionId());
@@ -61,103 +63,125 @@ public class CampaignService {
      * Начать кампанию (генерирует начальную сцену и квест)
      */
     public Map<String, Object> startCampaign(String sessionId, com.dnd.game_state.SessionDuration sessionDuration, Consumer<String> progressCallback) {
-        GameState game = gameManager.loadGame(sessionId);
-        if (game == null) {
-            throw new IllegalArgumentException("Кампания не найдена: " + sessionId);
+        // Пока ход идет, движок кампании не выгружается
+        runtimeRegistry.beginTurn(sessionId);
+        try {
+            DungeonMasterAI runtime = runtimeRegistry.getRuntime(sessionId);
+            
+            // Ходы одной кампании выполняются последовательно, разные кампании - параллельно
+            synchronized (runtime) {
+                // Устанавливаем длительность сессии
+                runtime.getCurrentGame().setSessionDuration(sessionDuration);
+                runtime.getGameManager().saveGame();
+                
+                // Генерируем начальную сцену и квест
+                Map<String, Object> result = runtime.startNewCampaign(sessionId, sessionDuration, progressCallback);
+                runtime.getGameManager().commitTurn();
+                return result;
+            }
+        } finally {
+            runtimeRegistry.endTurn(sessionId);
         }
-        
-        gameManager.setCurrentGame(game);
-        dungeonMasterAI.setCurrentGame(game);
-        
-        // Устанавливаем длительность сессии
-        game.setSessionDuration(sessionDuration);
-        gameManager.saveGame();
-        
-        // Генерируем начальную сцену и квест
-        return dungeonMasterAI.startNewCampaign(sessionId, sessionDuration, progressCallback);
     }
     
     /**
      * Добавить персонажа в кампанию
      */
     public void addCharacter(String campaignId, Character character) {
-        GameState game = gameManager.loadGame(campaignId);
-        if (game == null) {
-            throw new IllegalArgumentException("Кампания не найдена: " + campaignId);
+        runtimeRegistry.beginTurn(campaignId);
+        try {
+            DungeonMasterAI runtime = runtimeRegistry.getRuntime(campaignId);
+            synchronized (runtime) {
+                runtime.addCharacter(character);
+                runtime.getGameManager().commitTurn();
+            }
+        } finally {
+            runtimeRegistry.endTurn(campaignId);
         }
-        gameManager.setCurrentGame(game);
-        dungeonMasterAI.setCurrentGame(game);
-        dungeonMasterAI.addCharacter(character);
-        gameManager.saveGame();
     }
     
     /**
      * Обработать действие игрока
      */
     public Map<String, Object> processAction(String campaignId, String action, String characterName) {
-        GameState game = gameManager.loadGame(campaignId);
-        if (game == null) {
-            throw new IllegalArgumentException("Кампания не найдена: " + campaignId);
+        return processAction(campaignId, action, characterName, null);
+    }
+    
+    /**
+     * Обработать действие игрока с потоковой выдачей текста ответа DM
+     */
+    public Map<String, Object> processAction(String campaignId, String action, String characterName,
+                                             Consumer<String> responseDeltaCallback) {
+        runtimeRegistry.beginTurn(campaignId);
+        try {
+            DungeonMasterAI runtime = runtimeRegistry.getRuntime(campaignId);
+            synchronized (runtime) {
+                Map<String, Object> result = runtime.processAction(action, characterName, responseDeltaCallback);
+                runtime.getGameManager().commitTurn();
+                return result;
+            }
+        } finally {
+            runtimeRegistry.endTurn(campaignId);
         }
-        gameManager.setCurrentGame(game);
-        dungeonMasterAI.setCurrentGame(game);
-        Map<String, Object> result = dungeonMasterAI.processAction(action, characterName);
-        gameManager.saveGame();
-        return result;
     }
     
     /**
      * Получить статус игры
      */
     public Map<String, Object> getGameStatus(String campaignId) {
-        GameState game = gameManager.loadGame(campaignId);
-        if (game == null) {
-            throw new IllegalArgumentException("Кампания не найдена: " + campaignId);
-        }
-        dungeonMasterAI.setCurrentGame(game);
-        return dungeonMasterAI.getGameStatus();
+        return runtimeRegistry.getRuntime(campaignId).getGameStatus();
     }
     
     /**
-     * Убедиться, что кампания загружена в DungeonMasterAI
+     * Убедиться, что кампания загружена в реестр движков
      */
-    public void ensureCampaignLoaded(String campaignId) {
-        if (campaignId == null || campaignId.isEmpty()) {
-            throw new IllegalArgumentException("Campaign ID не может быть пустым");
-        }
-        
-        // Загружаем игру в GameManager
-        GameState currentGame = gameManager.getCurrentGame();
-        if (currentGame == null || !campaignId.equals(currentGame.getSessionId())) {
-            GameState loadedGame = gameManager.loadGame(campaignId);
-            if (loadedGame == null) {
-                throw new IllegalArgumentException("Кампания не найдена: " + campaignId);
-            }
-        }
-        
-        GameState loadedGame = gameManager.getCurrentGame();
-        if (loadedGame == null) {
-            loadedGame = gameManager.loadGame(campaignId);
-            if (loadedGame == null) {
-                throw new IllegalArgumentException("Кампания не найдена: " + campaignId);
-            }
-        }
-        dungeonMasterAI.setCurrentGame(loadedGame);
+    public DungeonMasterAI ensureCampaignLoaded(String campaignId) {
+        return runtimeRegistry.getRuntime(campaignId);
+    }
+    
+    /**
+     * Выгрузить движок кампании, когда в ней не осталось подключенных игроков
+     */
+    public void releaseCampaign(String campaignId) {
+        runtimeRegistry.release(campaignId);
+    }
+    
+    /**
+     * Обновить локальный снимок данных SRD из 5e-srd-api
+     */
+    public void reloadSrd() {
+        runtimeRegistry.reloadSrd();
+    }
+    
+    /**
+     * Страница истории сообщений кампании (курсоры before_id / after_id)
+     */
+    public Map<String, Object> getMessageHistory(String campaignId, String beforeId, String afterId, Integer limit) {
+        return messageService.getMessageHistoryPage(campaignId, beforeId, afterId, limit);
+    }
+    
+    /**
+     * Отчет точности и полноты быстрого классификатора тривиальных действий
+     */
+    public Map<String, Object> getActionClassifierReport() {
+        return runtimeRegistry.evaluateActionClassifier();
     }
     
     /**
      * Проверить существование кампании
      */
     public boolean campaignExists(String campaignId) {
-        return gameManager.gameExists(campaignId);
+        if (runtimeRegistry.isLoaded(campaignId)) {
+            return true;
+        }
+        return gameStateService.gameExists(campaignId);
     }
     
     /**
      * Получить GameState для кампании
      */
     public GameState getGameState(String campaignId) {
-        ensureCampaignLoaded(campaignId);
-        return gameManager.getCurrentGame();
+        return ensureCampaignLoaded(campaignId).getCurrentGame();
     }
     
     /**
@@ -166,6 +190,8 @@ public class CampaignService {
     public Map<String, Object> getFullCampaignInfo(String campaignId) {
         // Загружаем GameState
         GameState gameState = getGameState(campaignId);
+        // Campaign читается напрямую из БД - сначала дописываем отложенные изменения
+        gameStateService.flushNow(campaignId);
         
         // Загружаем Campaign из БД
         Campaign campaign = campaignRepository.findBySessionId(campaignId)
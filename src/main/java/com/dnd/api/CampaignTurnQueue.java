@@ -0,0 +1,102 @@
+package com.dnd.api;
+
+import com.dnd.ai_engine.CampaignRuntimeRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Очередь ходов по кампаниям.
+ * Ходы одной кампании выполняются строго по порядку поступления, ходы разных кампаний - параллельно
+ * на выделенном пуле потоков. Потоки WebSocket контейнера только принимают запрос и сразу освобождаются.
+ * Пока у кампании есть ходы в очереди, реестр движков не выгружает ее движок.
+ */
+@Component
+public class CampaignTurnQueue {
+
+    private final ExecutorService executor;
+    // Хвост очереди каждой кампании: следующий ход запускается после завершения предыдущего
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    // Ходы кампании в очереди и в работе; запись удаляется, когда ходов не осталось
+    private final Map<String, Integer> pendingCounts = new ConcurrentHashMap<>();
+
+    @Autowired
+    private CampaignRuntimeRegistry runtimeRegistry;
+
+    public CampaignTurnQueue(@Value("${turn.executor.threads:4}") int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "campaign-turn-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Поставить ход в очередь кампании
+     * @param onAccepted вызывается с id хода и позицией в очереди до запуска хода: подтверждение
+     *                   уходит клиенту раньше любых сообщений самого хода
+     * @return принятый ход с его id и позицией в очереди (0 - выполняется сразу)
+     */
+    public AcceptedTurn submit(String campaignId, Consumer<AcceptedTurn> onAccepted, Runnable turn) {
+        String turnId = UUID.randomUUID().toString();
+        int queuePosition = pendingCounts.merge(campaignId, 1, Integer::sum) - 1;
+        runtimeRegistry.beginTurn(campaignId);
+        AcceptedTurn accepted = new AcceptedTurn(turnId, queuePosition);
+        try {
+            onAccepted.accept(accepted);
+        } catch (Exception e) {
+            System.err.println("⚠️ Не удалось подтвердить ход " + turnId + " кампании " + campaignId + ": " + e.getMessage());
+        }
+
+        Runnable task = () -> {
+            try {
+                turn.run();
+            } catch (Exception e) {
+                System.err.println("❌ Ошибка выполнения хода " + turnId + " кампании " + campaignId + ": " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                pendingCounts.computeIfPresent(campaignId, (id, count) -> count > 1 ? count - 1 : null);
+                runtimeRegistry.endTurn(campaignId);
+            }
+        };
+
+        CompletableFuture<Void> next = tails.compute(campaignId, (id, tail) ->
+            tail == null ? CompletableFuture.runAsync(task, executor) : tail.thenRunAsync(task, executor));
+        // Пустую очередь убираем, чтобы не держать записи для неактивных кампаний
+        next.whenComplete((ignored, error) -> tails.remove(campaignId, next));
+
+        return accepted;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Принятый в очередь ход
+     */
+    public static class AcceptedTurn {
+        private final String turnId;
+        private final int queuePosition;
+
+        public AcceptedTurn(String turnId, int queuePosition) {
+            this.turnId = turnId;
+            this.queuePosition = queuePosition;
+        }
+
+        public String getTurnId() { return turnId; }
+        public int getQueuePosition() { return queuePosition; }
+    }
+}
@@ -1,6 +1,5 @@
 package com.dnd.api;
 
-import com.dnd.ai_engine.DungeonMasterAI;
 import com.dnd.game_state.Character;
 import com.dnd.game_state.CharacterClass;
 import com.dnd.game_state.CharacterRace;
@@ -35,9 +34,6 @@ public class GameApiController {
     
     private static final Gson gson = new GsonBuilder().setLenient().create();
     
-    @Autowired
-    private DungeonMasterAI dm;
-    
     @Autowired
     private CampaignService campaignService;
     
@@ -124,7 +120,7 @@ public class GameApiController {
             }
 
             Character character = parseCharacterFromJson(body);
-            dm.addCharacter(character);
+            campaignService.addCharacter(campaignId, character);
 
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
@@ -151,9 +147,7 @@ public class GameApiController {
             @PathVariable String campaignId,
             @PathVariable String name) {
         try {
-            campaignService.ensureCampaignLoaded(campaignId);
-            
-            var gameStatus = dm.getGameStatus();
+            var gameStatus = campaignService.getGameStatus(campaignId);
             @SuppressWarnings("unchecked")
             List<Character> characters = (List<Character>) gameStatus.get("characters");
             
@@ -225,7 +219,7 @@ public class GameApiController {
             String action = (String) body.get("action");
             String characterName = (String) body.get("character_name");
 
-            Map<String, Object> result = dm.processAction(action, characterName);
+            Map<String, Object> result = campaignService.processAction(campaignId, action, characterName);
             
             if (result.containsKey("error")) {
                 Map<String, Object> error = new HashMap<>();
@@ -257,9 +251,7 @@ public class GameApiController {
     @GetMapping("/campaigns/{campaignId}/status")
     public ResponseEntity<Map<String, Object>> getGameStatus(@PathVariable String campaignId) {
         try {
-            campaignService.ensureCampaignLoaded(campaignId);
-            
-            Map<String, Object> status = dm.getGameStatus();
+            Map<String, Object> status = campaignService.getGameStatus(campaignId);
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("status", status);
@@ -294,9 +286,7 @@ public class GameApiController {
     @GetMapping("/campaigns/{campaignId}")
     public ResponseEntity<Map<String, Object>> getCampaign(@PathVariable String campaignId) {
         try {
-            campaignService.ensureCampaignLoaded(campaignId);
-            
-            Map<String, Object> status = dm.getGameStatus();
+            Map<String, Object> status = campaignService.getGameStatus(campaignId);
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("campaign", status);
@@ -348,6 +338,83 @@ public class GameApiController {
         }
     }
     
+    /**
+     * GET /api/campaigns/{campaignId}/messages - Страница истории сообщений
+     * Без курсоров - последняя страница; before_id - более старые сообщения; after_id - новые после курсора
+     */
+    @Operation(summary = "Получить историю сообщений", 
+               description = "Возвращает страницу сообщений игроков и DM от старых к новым. Курсоры before_id/after_id - cursor_id сообщений (p:<id> или e:<id>)")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Страница истории получена"),
+        @ApiResponse(responseCode = "400", description = "Неверный курсор или кампания не найдена"),
+        @ApiResponse(responseCode = "500", description = "Ошибка получения истории")
+    })
+    @GetMapping("/campaigns/{campaignId}/messages")
+    public ResponseEntity<Map<String, Object>> getMessageHistory(@PathVariable String campaignId,
+                                                                 @RequestParam(name = "before_id", required = false) String beforeId,
+                                                                 @RequestParam(name = "after_id", required = false) String afterId,
+                                                                 @RequestParam(name = "limit", required = false) Integer limit) {
+        try {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.putAll(campaignService.getMessageHistory(campaignId, beforeId, afterId, limit));
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+    
+    /**
+     * POST /api/srd/reload - Перезагрузить локальные данные SRD
+     */
+    @Operation(summary = "Перезагрузить данные SRD", description = "Заново загружает снимок SRD из 5e-srd-api и перезаписывает файл снимка; при недоступном API или неполных данных прежний снимок остается")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Данные SRD перезагружены"),
+        @ApiResponse(responseCode = "500", description = "5e-srd-api недоступен или вернул неполные данные")
+    })
+    @PostMapping("/srd/reload")
+    public ResponseEntity<Map<String, Object>> reloadSrd() {
+        try {
+            campaignService.reloadSrd();
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+    
+    /**
+     * GET /api/classifier/report - Точность и полнота быстрого классификатора тривиальных действий
+     */
+    @Operation(summary = "Отчет классификатора действий", description = "Прогоняет локальный классификатор тривиальных действий по размеченному корпусу и возвращает точность, полноту и ошибки")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Отчет сформирован"),
+        @ApiResponse(responseCode = "500", description = "Классификатор отключен или ошибка оценки")
+    })
+    @GetMapping("/classifier/report")
+    public ResponseEntity<Map<String, Object>> actionClassifierReport() {
+        try {
+            return ResponseEntity.ok(campaignService.getActionClassifierReport());
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+    
     private Character parseCharacterFromJson(Map<String, Object> json) {
         String name = (String) json.get("name");
         String className = (String) json.getOrDefault("class", "FIGHTER");
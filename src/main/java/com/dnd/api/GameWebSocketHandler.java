@@ -1,5 +1,6 @@
 package com.dnd.api;
 
+import com.dnd.ai_engine.LLMScheduler;
 import com.dnd.game_state.Character;
 import com.dnd.game_state.GameState;
 import com.dnd.identity.IdentityService;
@@ -40,6 +41,12 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
     @Autowired(required = false)
     private MessageService messageService;
     
+    @Autowired
+    private CampaignTurnQueue turnQueue;
+    
+    @Autowired(required = false)
+    private LLMScheduler llmScheduler;
+    
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         // Извлекаем campaignId из URI (он уже проверен в HandshakeInterceptor)
@@ -120,20 +127,8 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
                 
                 sendMessage(session, welcomeMessage);
                 
-                // Загружаем и отправляем историю сообщений
-                if (messageService != null) {
-                    try {
-                        List<Map<String, Object>> messageHistory = messageService.getMessageHistory(campaignId);
-                        if (!messageHistory.isEmpty()) {
-                            Map<String, Object> historyMessage = new HashMap<>();
-                            historyMessage.put("type", "message_history");
-                            historyMessage.put("messages", messageHistory);
-                            sendMessage(session, historyMessage);
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Ошибка загрузки истории сообщений: " + e.getMessage());
-                    }
-                }
+                // Отправляем последнюю страницу истории или, при переподключении, сообщения после last_seen_id
+                sendMessageHistory(session, campaignId, extractQueryParam(uri, "last_seen_id"));
                 
                 if (isStarted) {
                     // Кампания уже начата - игроки могут отправлять действия
@@ -215,20 +210,8 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
                 
                 sendMessage(session, welcomeMessage);
                 
-                // Загружаем и отправляем историю сообщений
-                if (messageService != null) {
-                    try {
-                        List<Map<String, Object>> messageHistory = messageService.getMessageHistory(campaignId);
-                        if (!messageHistory.isEmpty()) {
-                            Map<String, Object> historyMessage = new HashMap<>();
-                            historyMessage.put("type", "message_history");
-                            historyMessage.put("messages", messageHistory);
-                            sendMessage(session, historyMessage);
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Ошибка загрузки истории сообщений: " + e.getMessage());
-                    }
-                }
+                // Отправляем последнюю страницу истории или, при переподключении, сообщения после last_seen_id
+                sendMessageHistory(session, campaignId, extractQueryParam(uri, "last_seen_id"));
                 
                 
                 // Отправляем список подключенных игроков
@@ -283,6 +266,13 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
      * Формат URI: ws://host:port/ws/campaign/{campaignId}?token=...
      */
     private String extractTokenFromUri(String uriString) {
+        return extractQueryParam(uriString, "token");
+    }
+    
+    /**
+     * Извлекает query параметр URI (token, last_seen_id)
+     */
+    private String extractQueryParam(String uriString, String name) {
         if (uriString == null) {
             return null;
         }
@@ -298,12 +288,12 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
             String[] params = query.split("&");
             for (String param : params) {
                 String[] keyValue = param.split("=", 2);
-                if (keyValue.length == 2 && "token".equals(keyValue[0])) {
+                if (keyValue.length == 2 && name.equals(keyValue[0])) {
                     return java.net.URLDecoder.decode(keyValue[1], "UTF-8");
                 }
             }
         } catch (Exception e) {
-            System.err.println("Ошибка извлечения токена из URI: " + e.getMessage());
+            System.err.println("Ошибка извлечения параметра " + name + " из URI: " + e.getMessage());
         }
         
         return null;
@@ -336,6 +326,9 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
                 case "action":
                     handlePlayerAction(session, json, campaignSession);
                     break;
+                case "load_history":
+                    handleLoadHistory(session, json, campaignId);
+                    break;
                 default:
                     sendError(session, "Неизвестный тип сообщения: " + type);
             }
@@ -347,6 +340,61 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
         }
     }
     
+    /**
+     * Отправляет историю сообщений при подключении: последнюю страницу или, если клиент передал
+     * last_seen_id, только сообщения после него (sync = "incremental")
+     */
+    private void sendMessageHistory(WebSocketSession session, String campaignId, String lastSeenId) {
+        if (messageService == null) {
+            return;
+        }
+        try {
+            Map<String, Object> page;
+            String sync;
+            try {
+                page = messageService.getMessageHistoryPage(campaignId, null, lastSeenId, null);
+                sync = lastSeenId != null ? "incremental" : "latest";
+            } catch (IllegalArgumentException e) {
+                // Неверный курсор - отдаем последнюю страницу целиком
+                System.err.println("⚠️ Неверный last_seen_id " + lastSeenId + ": " + e.getMessage());
+                page = messageService.getMessageHistoryPage(campaignId, null, null, null);
+                sync = "latest";
+            }
+            List<?> messages = (List<?>) page.get("messages");
+            if (messages.isEmpty() && lastSeenId == null) {
+                return;
+            }
+            Map<String, Object> historyMessage = new HashMap<>(page);
+            historyMessage.put("type", "message_history");
+            historyMessage.put("sync", sync);
+            sendMessage(session, historyMessage);
+        } catch (Exception e) {
+            System.err.println("Ошибка загрузки истории сообщений: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Страница истории по запросу клиента: {"type": "load_history", "before_id": "...", "limit": 50}
+     * или {"type": "load_history", "after_id": "..."}
+     */
+    private void handleLoadHistory(WebSocketSession session, JsonObject json, String campaignId) {
+        if (messageService == null) {
+            sendError(session, "История сообщений недоступна");
+            return;
+        }
+        String beforeId = json.has("before_id") && !json.get("before_id").isJsonNull() ? json.get("before_id").getAsString() : null;
+        String afterId = json.has("after_id") && !json.get("after_id").isJsonNull() ? json.get("after_id").getAsString() : null;
+        Integer limit = json.has("limit") && !json.get("limit").isJsonNull() ? json.get("limit").getAsInt() : null;
+        try {
+            Map<String, Object> historyMessage = new HashMap<>(messageService.getMessageHistoryPage(campaignId, beforeId, afterId, limit));
+            historyMessage.put("type", "message_history");
+            historyMessage.put("sync", beforeId != null ? "older" : afterId != null ? "incremental" : "latest");
+            sendMessage(session, historyMessage);
+        } catch (IllegalArgumentException e) {
+            sendError(session, e.getMessage());
+        }
+    }
+    
     private CampaignSession getCampaignSession(WebSocketSession session) {
         for (CampaignSession campaignSession : campaigns.values()) {
             for (WebSocketSession s : campaignSession.getSessions()) {
@@ -404,6 +452,22 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
         
         // СРАЗУ меняем статус на STARTED, чтобы блокировать новые подключения
         campaignSession.setStatus(CampaignSession.CampaignStatus.STARTED);
+        
+        // Генерация мира занимает минуты - выполняем ее в очереди кампании, а запрос подтверждаем сразу
+        turnQueue.submit(campaignId, turn ->
+            sendActionAccepted(session, turn, "start_campaign", null, null, LLMScheduler.Priority.WORLD_GENERATION), () -> {
+            try {
+                runStartCampaign(campaignId, sessionDuration);
+            } catch (Exception e) {
+                System.err.println("❌ Ошибка начала кампании: " + e.getMessage());
+                e.printStackTrace();
+                campaignSession.setStatus(CampaignSession.CampaignStatus.WAITING);
+                sendError(session, "Не удалось начать кампанию: " + e.getMessage());
+            }
+        });
+    }
+    
+    private void runStartCampaign(String campaignId, com.dnd.game_state.SessionDuration sessionDuration) {
         // Генерируем начальную сцену и квест
         List<String> progressMessages = new ArrayList<>();
         Map<String, Object> campaign = campaignService.startCampaign(
@@ -425,7 +489,7 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
         }
         
         // Обновляем статус игры для получения информации о мире (после генерации)
-        gameStatus = campaignService.getGameStatus(campaignId);
+        Map<String, Object> gameStatus = campaignService.getGameStatus(campaignId);
         
         // Отправляем информацию о мире отдельным сообщением для вывода в чат
         @SuppressWarnings("unchecked")
@@ -574,10 +638,41 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
             return;
         }
         
-        // Обрабатываем действие
-        Map<String, Object> result = campaignService.processAction(campaignId, action, characterName);
-        
-        // Отправляем ответ DM всем игрокам
+        // Ход обрабатывается в очереди кампании, отправителю сразу уходит подтверждение с id хода
+        // (до запуска хода, поэтому llm_queue и dm_response_delta приходят после него)
+        turnQueue.submit(campaignId, turn ->
+            sendActionAccepted(session, turn, "action", characterName, action, LLMScheduler.Priority.INTERACTIVE_PARSE), () -> {
+            // Пока запросы хода ждут слота LLM, отправитель получает их позицию в общей очереди
+            LLMScheduler.CampaignScope queueWatch = LLMScheduler.watchQueue(position -> {
+                Map<String, Object> queued = new HashMap<>();
+                queued.put("type", "llm_queue");
+                queued.put("character_name", characterName);
+                queued.put("llm_queue_position", position);
+                sendMessage(session, queued);
+            });
+            try {
+                runPlayerAction(campaignId, action, characterName);
+            } catch (Exception e) {
+                System.err.println("❌ Ошибка обработки действия: " + e.getMessage());
+                e.printStackTrace();
+                sendError(session, "Ошибка обработки действия: " + e.getMessage());
+            } finally {
+                queueWatch.close();
+            }
+        });
+    }
+    
+    private void runPlayerAction(String campaignId, String action, String characterName) {
+        // Обрабатываем действие, по мере генерации рассылаем фрагменты ответа DM
+        Map<String, Object> result = campaignService.processAction(campaignId, action, characterName, delta -> {
+            Map<String, Object> deltaMessage = new HashMap<>();
+            deltaMessage.put("type", "dm_response_delta");
+            deltaMessage.put("character_name", characterName);
+            deltaMessage.put("delta", delta);
+            broadcastToCampaign(campaignId, deltaMessage, null);
+        });
+        
+        // Отправляем полный ответ DM всем игрокам (завершает серию dm_response_delta)
         Map<String, Object> response = new HashMap<>();
         response.put("type", "dm_response");
         response.put("character_name", characterName);
@@ -598,6 +693,30 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
         
     }
     
+    /**
+     * Подтверждение, что запрос принят в очередь кампании.
+     * llm_queue_position - оценка позиции первого LLM запроса хода в общей очереди (0 - слот свободен)
+     */
+    private void sendActionAccepted(WebSocketSession session, CampaignTurnQueue.AcceptedTurn turn,
+                                    String requestType, String characterName, String action,
+                                    LLMScheduler.Priority firstRequestPriority) {
+        Map<String, Object> accepted = new HashMap<>();
+        accepted.put("type", "action_accepted");
+        accepted.put("turn_id", turn.getTurnId());
+        accepted.put("request_type", requestType);
+        accepted.put("queue_position", turn.getQueuePosition());
+        if (llmScheduler != null) {
+            accepted.put("llm_queue_position", llmScheduler.estimatePosition(firstRequestPriority));
+        }
+        if (characterName != null) {
+            accepted.put("character_name", characterName);
+        }
+        if (action != null) {
+            accepted.put("action", action);
+        }
+        sendMessage(session, accepted);
+    }
+    
     /**
      * Отправляет сообщение всем подключенным к кампании игрокам
      * @param campaignId ID кампании
@@ -619,8 +738,11 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
             }
             
             try {
-                if (session.isOpen()) {
-                    session.sendMessage(new TextMessage(json));
+                // Сообщения идут и из потоков очереди ходов - отправка в одну сессию должна быть последовательной
+                synchronized (session) {
+                    if (session.isOpen()) {
+                        session.sendMessage(new TextMessage(json));
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("❌ Ошибка отправки сообщения сессии " + session.getId() + ": " + e.getMessage());
@@ -671,13 +793,20 @@ public class GameWebSocketHandler extends TextWebSocketHandler {
                 // НЕ удаляем сессию - сохраняем информацию о хосте и участниках
                 // Сессия останется в памяти для проверки при переподключении
             }
+
+            // Никого не осталось - выгружаем движок кампании, состояние уже в БД
+            if (campaignSession.getSessions().isEmpty()) {
+                campaignService.releaseCampaign(campaignId);
+            }
         }
     }
     
     private void sendMessage(WebSocketSession session, Map<String, Object> message) {
         try {
             String json = gson.toJson(message);
-            session.sendMessage(new TextMessage(json));
+            synchronized (session) {
+                session.sendMessage(new TextMessage(json));
+            }
         } catch (IOException e) {
             System.err.println("❌ Ошибка отправки сообщения: " + e.getMessage());
             e.printStackTrace();
@@ -0,0 +1,41 @@
+package com.dnd.api;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Конфигурация общего HTTP клиента для Ollama и 5e-srd-api.
+ * Все компоненты используют один пул соединений; профили с таймаутами под тип вызова строятся
+ * из него через newBuilder() (см. HttpClientProfiles) и разделяют пул.
+ * Лимиты Dispatcher здесь не задаются: все вызовы синхронные (execute()), а Dispatcher ограничивает
+ * только enqueue(). Параллелизм генераций ограничивает LLMScheduler, эмбеддингов - семафор
+ * профиля embedding в HttpClientProfiles.
+ */
+@Configuration
+public class HttpClientConfig {
+
+    @Bean
+    public OkHttpClient sharedHttpClient(
+            @Value("${ollama.num-parallel:4}") int numParallel,
+            @Value("${http.client.keep-alive-ms:300000}") long keepAliveMs,
+            @Value("${http.client.connect-timeout-ms:30000}") long connectTimeoutMs) {
+        int parallel = Math.max(1, numParallel);
+
+        // Держим открытыми соединения на каждый слот Ollama и запас под эмбеддинги, проверки и SRD
+        ConnectionPool connectionPool = new ConnectionPool(parallel * 2 + 2, keepAliveMs, TimeUnit.MILLISECONDS);
+
+        System.out.println("🌐 [HttpClientConfig] Общий HTTP клиент: пул " + (parallel * 2 + 2) +
+            " соединений, keep-alive " + keepAliveMs + " мс");
+
+        return new OkHttpClient.Builder()
+            .connectionPool(connectionPool)
+            .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+            .retryOnConnectionFailure(true)
+            .build();
+    }
+}
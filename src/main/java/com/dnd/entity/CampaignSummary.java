@@ -0,0 +1,147 @@
+package com.dnd.entity;
+
+import jakarta.persistence.*;
+import org.springframework.data.jpa.domain.support.AuditingEntityListener;
+
+import java.time.LocalDateTime;
+
+/**
+ * Сжатая память кампании: сводка пройденного этапа квеста (stage) или синопсис всей кампании (synopsis).
+ * Сводка этапа покрывает события до lastEventId включительно.
+ */
+@EntityListeners(AuditingEntityListener.class)
+@Entity
+@Table(name = "campaign_summaries", indexes = {
+    @Index(name = "campaign_summaries_campaign_type_idx", columnList = "campaign_id, summary_type")
+})
+public class CampaignSummary {
+    public static final String TYPE_STAGE = "stage";
+    public static final String TYPE_SYNOPSIS = "synopsis";
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "campaign_id", nullable = false)
+    private Campaign campaign;
+    
+    @Column(name = "summary_type", nullable = false, length = 20)
+    private String summaryType;
+    
+    @Column(name = "stage_index")
+    private Integer stageIndex;
+    
+    @Column(name = "stage_title", columnDefinition = "TEXT")
+    private String stageTitle;
+    
+    @Column(name = "content", columnDefinition = "TEXT", nullable = false)
+    private String content;
+    
+    @Column(name = "last_event_id")
+    private Long lastEventId; // Последнее событие, вошедшее в сводку
+    
+    @Column(name = "event_count")
+    private Integer eventCount;
+    
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+    
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+        updatedAt = LocalDateTime.now();
+    }
+    
+    @PreUpdate
+    protected void onUpdate() {
+        updatedAt = LocalDateTime.now();
+    }
+    
+    public CampaignSummary() {
+    }
+    
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+    
+    public void setId(Long id) {
+        this.id = id;
+    }
+    
+    public Campaign getCampaign() {
+        return campaign;
+    }
+    
+    public void setCampaign(Campaign campaign) {
+        this.campaign = campaign;
+    }
+    
+    public String getSummaryType() {
+        return summaryType;
+    }
+    
+    public void setSummaryType(String summaryType) {
+        this.summaryType = summaryType;
+    }
+    
+    public Integer getStageIndex() {
+        return stageIndex;
+    }
+    
+    public void setStageIndex(Integer stageIndex) {
+        this.stageIndex = stageIndex;
+    }
+    
+    public String getStageTitle() {
+        return stageTitle;
+    }
+    
+    public void setStageTitle(String stageTitle) {
+        this.stageTitle = stageTitle;
+    }
+    
+    public String getContent() {
+        return content;
+    }
+    
+    public void setContent(String content) {
+        this.content = content;
+    }
+    
+    public Long getLastEventId() {
+        return lastEventId;
+    }
+    
+    public void setLastEventId(Long lastEventId) {
+        this.lastEventId = lastEventId;
+    }
+    
+    public Integer getEventCount() {
+        return eventCount;
+    }
+    
+    public void setEventCount(Integer eventCount) {
+        this.eventCount = eventCount;
+    }
+    
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+    
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+    
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+    
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -9,7 +9,10 @@ import java.util.List;
 
 @EntityListeners(AuditingEntityListener.class)
 @Entity
-@Table(name = "game_events")
+@Table(name = "game_events", indexes = {
+    // Курсорная пагинация истории сообщений: (created_at, id) внутри кампании
+    @Index(name = "game_events_campaign_created_idx", columnList = "campaign_id, created_at, id")
+})
 public class GameEvent {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -67,6 +70,15 @@ public class GameEvent {
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
     
+    @Column(name = "index_pending")
+    private Boolean indexPending; // Событие ждет индексации в векторную БД (переживает перезапуск и недоступность Ollama)
+    
+    @Column(name = "index_attempts")
+    private Integer indexAttempts; // Неудачные попытки индексации; после rag.indexing.max-attempts пометка снимается
+    
+    @Column(name = "index_error", columnDefinition = "TEXT")
+    private String indexError; // Последняя ошибка индексации
+    
     @PrePersist
     protected void onCreate() {
         if (timestamp == null) {
@@ -159,6 +171,30 @@ public class GameEvent {
         this.createdAt = createdAt;
     }
     
+    public Boolean getIndexPending() {
+        return indexPending;
+    }
+    
+    public void setIndexPending(Boolean indexPending) {
+        this.indexPending = indexPending;
+    }
+    
+    public Integer getIndexAttempts() {
+        return indexAttempts;
+    }
+    
+    public void setIndexAttempts(Integer indexAttempts) {
+        this.indexAttempts = indexAttempts;
+    }
+    
+    public String getIndexError() {
+        return indexError;
+    }
+    
+    public void setIndexError(String indexError) {
+        this.indexError = indexError;
+    }
+    
     // Getters and Setters для множественных связей
     public List<NPC> getNpcs() {
         return npcs;
@@ -10,7 +10,10 @@ import java.time.LocalDateTime;
  */
 @EntityListeners(AuditingEntityListener.class)
 @Entity
-@Table(name = "player_messages")
+@Table(name = "player_messages", indexes = {
+    // Курсорная пагинация истории сообщений: (created_at, id) внутри кампании
+    @Index(name = "player_messages_campaign_created_idx", columnList = "campaign_id, created_at, id")
+})
 public class PlayerMessage {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
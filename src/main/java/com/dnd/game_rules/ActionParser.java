@@ -1,6 +1,8 @@
 package com.dnd.game_rules;
 
+import com.dnd.ai_engine.LLMScheduler;
 import com.dnd.ai_engine.LocalLLMClient;
+import com.dnd.ai_engine.StructuredOutput;
 import com.dnd.prompts.DMPrompts;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -9,24 +11,140 @@ import java.util.*;
 
 /**
  * Парсер действий игрока в структурированный формат с использованием SRD данных
- * Использует двухэтапный процесс:
- * 1. Модель выбирает нужные эндпоинты из SRD API
- * 2. Загружаются данные из выбранных эндпоинтов и передаются модели для финального парсинга
+ * Однопроходный режим (по умолчанию): один запрос structured output с компактной сводкой навыков SRD
+ * из SRDSnapshotStore возвращает requires_check, ability, skill и DC сразу.
+ * Двухэтапный режим (и запасной путь, если однопроходный ответ не разобран):
+ * 1. Модель выбирает нужные эндпоинты из SRD
+ * 2. Данные выбранных эндпоинтов берутся из локального SRDSnapshotStore и передаются модели для финального парсинга
  */
 public class ActionParser {
     private static final Gson gson = new GsonBuilder().setLenient().create();
     private final LocalLLMClient llmClient;
-    private final SRDDataLoader srdLoader;
-    private Map<String, Object> skillsData = new HashMap<>();
-    private Map<String, Integer> dcTable = new HashMap<>();
+    private final SRDSnapshotStore srdStore;
+    private final Map<String, Integer> dcTable;
+    private final boolean singlePass;
+    private final TrivialActionClassifier trivialClassifier;
+    private final ParsedActionCache resultCache;
 
-    public ActionParser(LocalLLMClient llmClient, SRDDataLoader srdLoader) {
+    public ActionParser(LocalLLMClient llmClient, SRDSnapshotStore srdStore) {
+        this(llmClient, srdStore, true, null, null);
+    }
+
+    /**
+     * @param trivialClassifier локальный классификатор тривиальных действий; null - все действия разбирает LLM
+     * @param resultCache       кэш результатов парсинга через LLM; null - без кэша
+     */
+    public ActionParser(LocalLLMClient llmClient, SRDSnapshotStore srdStore, boolean singlePass,
+                        TrivialActionClassifier trivialClassifier, ParsedActionCache resultCache) {
         this.llmClient = llmClient;
-        this.srdLoader = srdLoader;
-        this.dcTable = srdLoader.getDifficultyTable();
+        this.srdStore = srdStore;
+        this.dcTable = srdStore.getDifficultyTable();
+        this.singlePass = singlePass;
+        this.trivialClassifier = trivialClassifier;
+        this.resultCache = resultCache;
     }
 
     public Map<String, Object> parseAction(String actionText, Map<String, Object> gameContext) {
+        // Уверенно тривиальные действия (перемещение, разговор, наблюдение) не требуют запроса к LLM
+        if (trivialClassifier != null) {
+            TrivialActionClassifier.Classification classification = trivialClassifier.classify(actionText);
+            if (classification.isTrivial()) {
+                System.out.println("⚡ [ActionParser] Тривиальное действие определено без LLM (" +
+                    classification.getSource() + ": " + classification.getReason() + ")");
+                Map<String, Object> result = trivialActionResult();
+                result.put("classified_by", classification.getSource());
+                return result;
+            }
+        }
+        
+        // Повторяющиеся действия в том же контексте берутся из кэша (парсер детерминирован, temperature 0.0)
+        ParsedActionCache.Lookup cached = null;
+        if (resultCache != null) {
+            cached = resultCache.lookup(actionText, gameContext);
+            if (cached.isHit()) {
+                System.out.println("⚡ [ActionParser] Результат парсинга из кэша (" + cached.getTier() +
+                    String.format(Locale.ROOT, ", сходство %.3f", cached.getSimilarity()) + ")");
+                return cached.getResult();
+            }
+        }
+        
+        long parseStartTime = System.currentTimeMillis();
+        Map<String, Object> parsed = parseWithLlm(actionText, gameContext);
+        if (resultCache != null) {
+            resultCache.put(cached, parsed, System.currentTimeMillis() - parseStartTime);
+        }
+        return parsed;
+    }
+
+    private Map<String, Object> parseWithLlm(String actionText, Map<String, Object> gameContext) {
+        if (singlePass) {
+            try {
+                return parseActionSinglePass(actionText, gameContext);
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ [ActionParser] Однопроходный парсинг не удался, переходим к двухэтапному: " + e.getMessage());
+            }
+        }
+        return parseActionTwoStage(actionText, gameContext);
+    }
+
+    /**
+     * Один запрос к LLM: сводка навыков SRD всегда в системном промпте, выбор эндпоинтов не нужен
+     */
+    private Map<String, Object> parseActionSinglePass(String actionText, Map<String, Object> gameContext) {
+        String systemPrompt = DMPrompts.getSinglePassParserSystemPrompt(srdStore.getCompactRulesSummary(), formatDcTable());
+        String userPrompt = DMPrompts.getSinglePassParserPrompt(actionText, gameContext);
+        
+        List<Map<String, String>> messages = new ArrayList<>();
+        messages.add(Map.of("role", "user", "content", userPrompt));
+        
+        System.out.println("🤖 [ActionParser] Однопроходный парсинг действия: " + actionText);
+        
+        String response = llmClient.generateStructuredResponse(messages, systemPrompt,
+            StructuredOutput.Schema.ACTION_PARSE, LLMScheduler.Priority.INTERACTIVE_PARSE);
+        
+        System.out.println("📥 [ActionParser] Полный ответ LLM для однопроходного парсинга:");
+        System.out.println("   " + response);
+        
+        // Ответ ограничен схемой - связываем напрямую; ручной разбор только если модель все же отступила от схемы
+        Map<String, Object> parsed;
+        try {
+            parsed = StructuredOutput.bind(response, StructuredOutput.ParsedAction.class).toMap();
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ [ActionParser] Ответ не связан со схемой, разбираем вручную: " + e.getMessage());
+            parsed = extractJsonFromResponse(response, actionText);
+        }
+        if (parsed.containsKey("error")) {
+            throw new RuntimeException("Ошибка в результате парсинга: " + parsed.get("error"));
+        }
+        
+        boolean requiresCheck = !Boolean.FALSE.equals(parsed.get("requires_check"));
+        boolean isPossible = !Boolean.FALSE.equals(parsed.get("is_possible"));
+        if (!requiresCheck && isPossible) {
+            System.out.println("✅ [ActionParser] Действие не требует проверки");
+            return trivialActionResult();
+        }
+        
+        parsed.putIfAbsent("requires_dice_roll", requiresCheck && isPossible);
+        
+        // Характеристику берем из SRD по выбранному навыку, если модель ее не указала
+        Object skill = parsed.get("skill");
+        if (parsed.get("ability") == null && skill != null) {
+            Map<String, Object> skillData = srdStore.getSkillsByName().get(SRDSnapshotStore.normalizeSkillName(skill.toString()));
+            if (skillData == null) {
+                skillData = srdStore.findByIndex("skills", skill.toString());
+            }
+            if (skillData != null && skillData.get("ability_score") instanceof Map) {
+                Object abilityIndex = ((Map<?, ?>) skillData.get("ability_score")).get("index");
+                if (abilityIndex != null) {
+                    parsed.put("ability", srdStore.getAbilityFullName(abilityIndex.toString()));
+                }
+            }
+        }
+        
+        return validateAndEnrichResult(parsed, actionText);
+    }
+
+    private Map<String, Object> parseActionTwoStage(String actionText, Map<String, Object> gameContext) {
         // Этап 1: Проверяем, требует ли действие проверки
         Map<String, Object> endpointSelection = selectRequiredEndpoints(actionText);
         
@@ -36,18 +154,7 @@ public class ActionParser {
         // Если действие не требует проверки, возвращаем результат без парсинга через SRD
         if (!requiresCheck) {
             System.out.println("✅ [ActionParser] Действие не требует проверки, пропускаем парсинг через SRD");
-            Map<String, Object> result = new HashMap<>();
-            result.put("is_possible", true);
-            result.put("requires_dice_roll", false);
-            result.put("intent", "trivial");
-            result.put("ability", null);
-            result.put("skill", null);
-            result.put("estimated_dc", null);
-            result.put("estimated_difficulty", null);
-            result.put("modifiers", new ArrayList<>());
-            result.put("required_items", new ArrayList<>());
-            result.put("reason", "Тривиальное действие, не требует проверки навыка или характеристики");
-            return result;
+            return trivialActionResult();
         }
         
         // Этап 2: Загрузка данных из выбранных эндпоинтов
@@ -57,20 +164,7 @@ public class ActionParser {
             throw new RuntimeException("Действие требует проверки, но не указаны эндпоинты");
         }
         
-        Map<String, List<Map<String, Object>>> srdData = srdLoader.loadMultipleEndpoints(requiredEndpoints);
-        
-        // Обновляем кэш навыков для валидации
-        if (srdData.containsKey("skills")) {
-            List<Map<String, Object>> skills = srdData.get("skills");
-            skillsData.clear();
-            for (Map<String, Object> skill : skills) {
-                String name = (String) skill.getOrDefault("name", "");
-                if (!name.isEmpty()) {
-                    String normalized = name.toLowerCase().replace("-", "_");
-                    skillsData.put(normalized, skill);
-                }
-            }
-        }
+        Map<String, List<Map<String, Object>>> srdData = srdStore.getEndpointsData(requiredEndpoints);
         
         // Этап 3: Финальный парсинг с данными из SRD
         String systemPrompt = getParserSystemPrompt();
@@ -82,12 +176,19 @@ public class ActionParser {
         System.out.println("🤖 [ActionParser] Финальный парсинг действия: " + actionText);
         System.out.println("📤 [ActionParser] User prompt (первые 400 символов): " + userPrompt);
         
-        String response = llmClient.generateResponse(messages, systemPrompt);
+        String response = llmClient.generateStructuredResponse(messages, systemPrompt,
+            StructuredOutput.Schema.ACTION_PARSE, LLMScheduler.Priority.INTERACTIVE_PARSE);
         
         System.out.println("📥 [ActionParser] Полный ответ LLM для парсинга действия:");
         System.out.println("   " + response);
         
-        Map<String, Object> parsed = extractJsonFromResponse(response, actionText);
+        Map<String, Object> parsed;
+        try {
+            parsed = StructuredOutput.bind(response, StructuredOutput.ParsedAction.class).toMap();
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ [ActionParser] Ответ не связан со схемой, разбираем вручную: " + e.getMessage());
+            parsed = extractJsonFromResponse(response, actionText);
+        }
         
         // Валидируем и дополняем результат
         parsed = validateAndEnrichResult(parsed, actionText);
@@ -95,6 +196,21 @@ public class ActionParser {
         return parsed;
     }
     
+    private Map<String, Object> trivialActionResult() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("is_possible", true);
+        result.put("requires_dice_roll", false);
+        result.put("intent", "trivial");
+        result.put("ability", null);
+        result.put("skill", null);
+        result.put("estimated_dc", null);
+        result.put("estimated_difficulty", null);
+        result.put("modifiers", new ArrayList<>());
+        result.put("required_items", new ArrayList<>());
+        result.put("reason", "Тривиальное действие, не требует проверки навыка или характеристики");
+        return result;
+    }
+    
     private Map<String, Object> convertSRDData(Map<String, List<Map<String, Object>>> srdData) {
         Map<String, Object> result = new HashMap<>();
         for (Map.Entry<String, List<Map<String, Object>>> entry : srdData.entrySet()) {
@@ -105,7 +221,7 @@ public class ActionParser {
 
     private Map<String, Object> selectRequiredEndpoints(String actionText) {
         // Получаем список доступных эндпоинтов
-        Map<String, String> availableEndpoints = srdLoader.getAvailableEndpoints();
+        Map<String, String> availableEndpoints = srdStore.getAvailableEndpoints();
         
         // Используем промпты из ActionPrompts
         String systemPrompt = DMPrompts.getEndpointSelectionSystemPrompt();
@@ -115,7 +231,7 @@ public class ActionParser {
         
         System.out.println("🤖 [ActionParser] Запрос выбора эндпоинтов для действия: " + actionText);
         
-        String response = llmClient.generateResponse(messages, systemPrompt);
+        String response = llmClient.generateResponse(messages, systemPrompt, LLMScheduler.Priority.INTERACTIVE_PARSE);
         
         System.out.println("📥 [ActionParser] Полный ответ LLM для выбора эндпоинтов:");
         System.out.println("   " + response);
@@ -183,17 +299,21 @@ public class ActionParser {
     }
     
     private String getParserSystemPrompt() {
-        // Формируем таблицу сложности (всегда нужна)
-        if (dcTable.isEmpty()) {
-            dcTable = srdLoader.getDifficultyTable();
-        }
+        // Используем промпт из DMPrompts (навыки будут в данных из эндпоинтов)
+        return DMPrompts.getActionParserSystemPrompt("", formatDcTable());
+    }
+    
+    /**
+     * Таблица сложности (всегда нужна), по возрастанию DC - порядок строк не зависит от порядка Map
+     */
+    private String formatDcTable() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(dcTable.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
         StringBuilder dcInfo = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : dcTable.entrySet()) {
+        for (Map.Entry<String, Integer> entry : entries) {
             dcInfo.append(String.format("- %s: DC %d\n", entry.getKey(), entry.getValue()));
         }
-        
-        // Используем промпт из DMPrompts (навыки будут в данных из эндпоинтов)
-        return DMPrompts.getActionParserSystemPrompt("", dcInfo.toString());
+        return dcInfo.toString();
     }
 
     private Map<String, Object> validateAndEnrichResult(Map<String, Object> parsed, String actionText) {
@@ -225,9 +345,10 @@ public class ActionParser {
         // Валидируем навык - должен быть из SRD
         if (result.get("skill") != null) {
             String skill = (String) result.get("skill");
-            String skillNormalized = skill.toLowerCase().replace("-", "_");
+            String skillNormalized = SRDSnapshotStore.normalizeSkillName(skill);
+            Map<String, Map<String, Object>> skillsData = srdStore.getSkillsByName();
             
-            // Проверяем в кэше навыков
+            // Проверяем в индексе навыков
             boolean skillFound = false;
             if (skillsData.containsKey(skillNormalized)) {
                 skillFound = true;
@@ -0,0 +1,273 @@
+package com.dnd.game_rules;
+
+import com.dnd.prompts.ActionPrompts;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.*;
+
+/**
+ * Кэш результатов ActionParser.
+ * Парсер работает с temperature 0.0, поэтому одинаковые и почти одинаковые действия в похожем
+ * контексте разбираются одинаково. Ключ - нормализованный текст действия и сигнатура контекста
+ * (ключи ActionPrompts.PARSER_CONTEXT_KEYS - то, что парсер видит в промпте). Два уровня:
+ * 1. Точное совпадение нормализованного текста
+ * 2. Семантическое: косинусное сходство эмбеддинга действия с записями той же сигнатуры не ниже порога.
+ *    Переиспользуются только записи без полей, привязанных к формулировке (модификаторы, нужные предметы,
+ *    причина невозможности); intent заменяется текстом нового действия, reason очищается
+ * Записи живут не дольше TTL, размер ограничен (LRU).
+ * Метрики: action_parser.cache.requests{result=exact|semantic|miss}, action_parser.cache.latency_saved, размер.
+ */
+public class ParsedActionCache {
+    private final TextEmbedder embedder;
+    private final int maxSize;
+    private final long ttlMs;
+    private final double similarityThreshold;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final Counter exactHits;
+    private final Counter semanticHits;
+    private final Counter misses;
+    private final Counter latencySaved;
+
+    /**
+     * @param embedder            источник эмбеддингов; null - только точное совпадение
+     * @param similarityThreshold минимальное косинусное сходство для семантического попадания
+     * @param meterRegistry       реестр метрик; null - без метрик
+     */
+    public ParsedActionCache(TextEmbedder embedder, int maxSize, long ttlMs, double similarityThreshold,
+                             MeterRegistry meterRegistry) {
+        this.embedder = embedder;
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMs = ttlMs;
+        this.similarityThreshold = similarityThreshold;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ParsedActionCache.this.maxSize;
+            }
+        };
+
+        if (meterRegistry != null) {
+            this.exactHits = Counter.builder("action_parser.cache.requests").tag("result", "exact")
+                .description("Обращения к кэшу результатов парсинга действий").register(meterRegistry);
+            this.semanticHits = Counter.builder("action_parser.cache.requests").tag("result", "semantic")
+                .description("Обращения к кэшу результатов парсинга действий").register(meterRegistry);
+            this.misses = Counter.builder("action_parser.cache.requests").tag("result", "miss")
+                .description("Обращения к кэшу результатов парсинга действий").register(meterRegistry);
+            this.latencySaved = Counter.builder("action_parser.cache.latency_saved")
+                .description("Сэкономленное время парсинга (время исходных запросов к LLM для попаданий)")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+            Gauge.builder("action_parser.cache.size", this, ParsedActionCache::size)
+                .description("Записей в кэше результатов парсинга действий")
+                .register(meterRegistry);
+        } else {
+            this.exactHits = null;
+            this.semanticHits = null;
+            this.misses = null;
+            this.latencySaved = null;
+        }
+    }
+
+    /**
+     * Ищет результат парсинга. Возвращенный Lookup передается в put() при промахе,
+     * чтобы не считать эмбеддинг действия повторно.
+     */
+    public Lookup lookup(String actionText, Map<String, Object> gameContext) {
+        String signature = contextSignature(gameContext);
+        String normalized = normalizeText(actionText);
+        String key = signature + "\u0000" + normalized;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && !isExpired(entry, now)) {
+                record(exactHits, entry);
+                return new Lookup(key, signature, null, copyResult(entry.result, actionText), "exact", 1.0);
+            }
+        }
+
+        float[] vector = null;
+        if (embedder != null && !normalized.isEmpty()) {
+            try {
+                // Исходный текст: его эмбеддинг уже посчитан классификатором и лежит в кэше эмбеддингов
+                vector = TextEmbedder.normalize(embedder.embed(List.of(actionText)).get(0));
+            } catch (Exception e) {
+                // Без эмбеддинга работает только точный уровень
+                vector = null;
+            }
+        }
+
+        if (vector != null) {
+            synchronized (this) {
+                Entry best = null;
+                double bestSimilarity = similarityThreshold;
+                Iterator<Entry> iterator = entries.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (isExpired(entry, now)) {
+                        iterator.remove();
+                        continue;
+                    }
+                    if (entry.vector == null || !entry.semanticReusable || !entry.signature.equals(signature)) {
+                        continue;
+                    }
+                    double similarity = TextEmbedder.dot(vector, entry.vector);
+                    if (similarity >= bestSimilarity) {
+                        best = entry;
+                        bestSimilarity = similarity;
+                    }
+                }
+                if (best != null) {
+                    record(semanticHits, best);
+                    Map<String, Object> result = copyResult(best.result, actionText);
+                    // Поля, которые LLM пишет по тексту исходного действия, к новой формулировке не относятся
+                    result.put("intent", actionText);
+                    result.put("reason", "");
+                    return new Lookup(key, signature, vector, result, "semantic", bestSimilarity);
+                }
+            }
+        }
+
+        if (misses != null) {
+            misses.increment();
+        }
+        return new Lookup(key, signature, vector, null, null, 0.0);
+    }
+
+    /**
+     * Сохраняет результат парсинга после промаха
+     * @param parseLatencyMs время парсинга через LLM - столько экономит каждое следующее попадание
+     */
+    public void put(Lookup lookup, Map<String, Object> result, long parseLatencyMs) {
+        if (lookup == null || lookup.isHit() || result == null) {
+            return;
+        }
+        Entry entry = new Entry(lookup.signature, lookup.vector, copyResult(result, null),
+            System.currentTimeMillis(), parseLatencyMs);
+        synchronized (this) {
+            entries.put(lookup.key, entry);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Сигнатура контекста, от которого зависит результат парсинга
+     */
+    static String contextSignature(Map<String, Object> gameContext) {
+        if (gameContext == null) {
+            return "";
+        }
+        StringJoiner signature = new StringJoiner("|");
+        for (String key : ActionPrompts.PARSER_CONTEXT_KEYS) {
+            Object value = gameContext.get(key);
+            signature.add(value == null ? "" : normalizeText(String.valueOf(value)));
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Можно ли отдать результат для другой формулировки: в нем нет полей, зависящих от текста действия
+     */
+    private static boolean isSemanticReusable(Map<String, Object> result) {
+        return !Boolean.FALSE.equals(result.get("is_possible")) &&
+            isEmptyValue(result.get("modifiers")) && isEmptyValue(result.get("required_items"));
+    }
+
+    private static boolean isEmptyValue(Object value) {
+        return value == null || (value instanceof Collection && ((Collection<?>) value).isEmpty()) ||
+            (value instanceof Map && ((Map<?, ?>) value).isEmpty()) || value.toString().isBlank();
+    }
+
+    /**
+     * Нижний регистр, ё -> е, без пунктуации и лишних пробелов
+     */
+    static String normalizeText(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.toLowerCase(Locale.ROOT)
+            .replace('ё', 'е')
+            .replaceAll("[^\\p{L}\\p{N}]+", " ")
+            .trim();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlMs > 0 && now - entry.createdAt > ttlMs;
+    }
+
+    private void record(Counter hits, Entry entry) {
+        if (hits != null) {
+            hits.increment();
+            latencySaved.increment(entry.parseLatencyMs);
+        }
+    }
+
+    /**
+     * Копия результата: вызывающий код может менять карту, не затрагивая кэш
+     */
+    private static Map<String, Object> copyResult(Map<String, Object> result, String actionText) {
+        Map<String, Object> copy = new HashMap<>();
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            Object value = entry.getValue();
+            copy.put(entry.getKey(), value instanceof List ? new ArrayList<>((List<?>) value) : value);
+        }
+        if (actionText != null && copy.containsKey("action_text")) {
+            copy.put("action_text", actionText);
+        }
+        return copy;
+    }
+
+    /**
+     * Результат поиска в кэше
+     */
+    public static class Lookup {
+        private final String key;
+        private final String signature;
+        private final float[] vector;
+        private final Map<String, Object> result;
+        private final String tier;
+        private final double similarity;
+
+        Lookup(String key, String signature, float[] vector, Map<String, Object> result, String tier, double similarity) {
+            this.key = key;
+            this.signature = signature;
+            this.vector = vector;
+            this.result = result;
+            this.tier = tier;
+            this.similarity = similarity;
+        }
+
+        public boolean isHit() { return result != null; }
+        public Map<String, Object> getResult() { return result; }
+        public String getTier() { return tier; }
+        public double getSimilarity() { return similarity; }
+    }
+
+    private static class Entry {
+        final String signature;
+        final float[] vector;
+        final Map<String, Object> result;
+        final long createdAt;
+        final long parseLatencyMs;
+        final boolean semanticReusable;
+
+        Entry(String signature, float[] vector, Map<String, Object> result, long createdAt, long parseLatencyMs) {
+            this.signature = signature;
+            this.vector = vector;
+            this.result = result;
+            this.createdAt = createdAt;
+            this.parseLatencyMs = parseLatencyMs;
+            this.semanticReusable = isSemanticReusable(result);
+        }
+    }
+}
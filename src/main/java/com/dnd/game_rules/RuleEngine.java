@@ -11,7 +11,11 @@ public class RuleEngine {
     private final Map<String, Integer> dcTable;
 
     public RuleEngine() {
-        this.srdLoader = new SRDDataLoader();
+        this(new SRDDataLoader());
+    }
+
+    public RuleEngine(SRDDataLoader srdLoader) {
+        this.srdLoader = srdLoader;
         this.dcTable = srdLoader.getDifficultyTable();
     }
 
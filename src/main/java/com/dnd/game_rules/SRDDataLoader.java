@@ -26,11 +26,22 @@ public class SRDDataLoader {
         this(version, getSrdApiBaseFromEnv());
     }
     
+    /**
+     * @param httpClient общий HTTP клиент (профиль SRD)
+     */
+    public SRDDataLoader(OkHttpClient httpClient) {
+        this("2014", getSrdApiBaseFromEnv(), httpClient);
+    }
+    
     public SRDDataLoader(String version, String srdApiBase) {
+        this(version, srdApiBase, null);
+    }
+    
+    public SRDDataLoader(String version, String srdApiBase, OkHttpClient httpClient) {
         this.version = version;
         String baseUrl = srdApiBase != null ? srdApiBase : DEFAULT_SRD_API_BASE;
         this.apiUrl = baseUrl + "/" + version;
-        this.httpClient = new OkHttpClient();
+        this.httpClient = httpClient != null ? httpClient : new OkHttpClient();
     }
     
     private static String getSrdApiBaseFromEnv() {
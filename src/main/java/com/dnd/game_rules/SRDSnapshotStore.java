@@ -0,0 +1,443 @@
+package com.dnd.game_rules;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Локальное хранилище данных SRD.
+ * Все эндпоинты загружаются один раз (из файла-снимка или из 5e-srd-api) и хранятся в неизменяемых
+ * индексированных структурах, поэтому ActionParser обслуживается из памяти без HTTP запросов на каждый ход.
+ *
+ * Источник данных при загрузке (load) по приоритету:
+ * 1. Файл снимка SRD_SNAPSHOT_PATH / srd.snapshot.path, если он существует
+ * 2. Встроенный ресурс classpath srd-snapshot-{version}.json
+ * 3. 5e-srd-api (после загрузки снимок сохраняется в SRD_SNAPSHOT_PATH, если путь задан)
+ * Явное обновление (reloadFromApi) всегда идет в 5e-srd-api и перезаписывает файл снимка.
+ * Неполный ответ API (пустой эндпоинт, навыки без описаний) в файл не пишется: иначе он
+ * предпочитался бы при каждом запуске.
+ */
+public class SRDSnapshotStore {
+    private static final Gson gson = new GsonBuilder().setLenient().create();
+    private static final long RETRY_INTERVAL_MS = 60_000;
+    private static final Map<String, String> ABILITY_NAMES = Map.of(
+        "str", "strength", "dex", "dexterity", "con", "constitution",
+        "int", "intelligence", "wis", "wisdom", "cha", "charisma");
+    private static final List<String> ABILITY_ORDER = List.of("str", "dex", "con", "int", "wis", "cha");
+
+    private final SRDDataLoader loader;
+    private final String version;
+    private final Path snapshotPath;
+    private volatile Snapshot snapshot;
+    private volatile long lastFailedLoadAt = 0;
+
+    public SRDSnapshotStore() {
+        this(new SRDDataLoader());
+    }
+
+    public SRDSnapshotStore(SRDDataLoader loader) {
+        this(loader, "2014", getSnapshotPathFromEnv());
+    }
+
+    public SRDSnapshotStore(SRDDataLoader loader, String version, String snapshotPath) {
+        this.loader = loader;
+        this.version = version;
+        this.snapshotPath = snapshotPath != null && !snapshotPath.isEmpty() ? Paths.get(snapshotPath) : null;
+    }
+
+    private static String getSnapshotPathFromEnv() {
+        String path = System.getenv("SRD_SNAPSHOT_PATH");
+        if (path == null || path.isEmpty()) {
+            path = System.getProperty("srd.snapshot.path");
+        }
+        return path;
+    }
+
+    /**
+     * Загрузка данных SRD из первого доступного источника. Новый снимок подменяет старый атомарно,
+     * ходы, которые уже работают со старым снимком, дорабатывают на нем.
+     */
+    public synchronized void load() {
+        long startTime = System.currentTimeMillis();
+        Snapshot loaded = loadFromFile();
+        String source = "файла " + snapshotPath;
+        Snapshot partialFile = null;
+        if (loaded != null && !incompleteEndpoints(loaded).isEmpty()) {
+            // Неполный снимок, записанный до проверки полноты, не должен предпочитаться API
+            System.err.println("⚠️ [SRDSnapshotStore] Снимок " + snapshotPath + " неполный " +
+                incompleteEndpoints(loaded) + ", загружаем заново");
+            partialFile = loaded;
+            partialFile.complete = false;
+            loaded = null;
+        }
+        if (loaded == null) {
+            loaded = loadFromClasspath();
+            source = "встроенного снимка";
+        }
+        if (loaded == null) {
+            loaded = loadFromApi();
+            source = "5e-srd-api";
+            List<String> incomplete = incompleteEndpoints(loaded);
+            if (incomplete.isEmpty()) {
+                saveToFile(loaded);
+            } else if (!loaded.isEmpty()) {
+                // Неполный снимок используется до следующей попытки, но в файл не пишется
+                loaded.complete = false;
+                lastFailedLoadAt = System.currentTimeMillis();
+                System.err.println("⚠️ [SRDSnapshotStore] Неполные данные 5e-srd-api " + incomplete +
+                    ", снимок не сохранен, повторная попытка позже");
+            } else if (partialFile != null) {
+                // API недоступен - до следующей попытки работаем на неполном файле
+                loaded = partialFile;
+                source = "неполного файла " + snapshotPath;
+                lastFailedLoadAt = System.currentTimeMillis();
+            }
+        }
+
+        if (loaded.isEmpty()) {
+            lastFailedLoadAt = System.currentTimeMillis();
+            System.err.println("⚠️ [SRDSnapshotStore] Данные SRD недоступны, повторная попытка при следующем обращении");
+            if (snapshot != null && !snapshot.isEmpty()) {
+                // Не теряем рабочий снимок из-за временной недоступности API
+                return;
+            }
+        } else {
+            System.out.println("✅ [SRDSnapshotStore] SRD загружен из " + source + ": " + loaded.endpoints.size() +
+                " эндпоинтов, " + loaded.skillsByIndex.size() + " навыков за " +
+                (System.currentTimeMillis() - startTime) + " мс");
+        }
+        snapshot = loaded;
+    }
+
+    /**
+     * Явное обновление из 5e-srd-api: полный ответ подменяет текущий снимок и перезаписывает файл снимка.
+     * При неполном ответе текущий снимок и файл остаются прежними.
+     * @throws IllegalStateException API недоступен или вернул неполные данные
+     */
+    public synchronized void reloadFromApi() {
+        long startTime = System.currentTimeMillis();
+        Snapshot loaded = loadFromApi();
+        if (loaded.isEmpty()) {
+            throw new IllegalStateException("5e-srd-api недоступен, данные SRD не обновлены");
+        }
+        List<String> incomplete = incompleteEndpoints(loaded);
+        if (!incomplete.isEmpty()) {
+            throw new IllegalStateException("5e-srd-api вернул неполные данные " + incomplete + ", данные SRD не обновлены");
+        }
+        saveToFile(loaded);
+        snapshot = loaded;
+        System.out.println("✅ [SRDSnapshotStore] SRD обновлен из 5e-srd-api: " + loaded.endpoints.size() +
+            " эндпоинтов, " + loaded.skillsByIndex.size() + " навыков за " +
+            (System.currentTimeMillis() - startTime) + " мс");
+    }
+
+    /**
+     * Текущий снимок; при первом обращении (или после неудачной либо неполной загрузки) загружает данные
+     */
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null || (!current.isUsable() && System.currentTimeMillis() - lastFailedLoadAt > RETRY_INTERVAL_MS)) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null || (!current.isUsable() && System.currentTimeMillis() - lastFailedLoadAt > RETRY_INTERVAL_MS)) {
+                    load();
+                    current = snapshot;
+                }
+            }
+        }
+        return current;
+    }
+
+    public Map<String, String> getAvailableEndpoints() {
+        return current().endpoints;
+    }
+
+    public List<Map<String, Object>> getEndpointData(String endpoint) {
+        return current().data.getOrDefault(endpoint, List.of());
+    }
+
+    public Map<String, List<Map<String, Object>>> getEndpointsData(List<String> endpoints) {
+        Snapshot current = current();
+        Map<String, List<Map<String, Object>>> result = new HashMap<>();
+        for (String endpoint : endpoints) {
+            result.put(endpoint, current.data.getOrDefault(endpoint, List.of()));
+        }
+        return result;
+    }
+
+    /**
+     * Элемент эндпоинта по его index (например, skills/acrobatics)
+     */
+    public Map<String, Object> findByIndex(String endpoint, String index) {
+        Map<String, Map<String, Object>> byIndex = current().byIndex.get(endpoint);
+        return byIndex != null ? byIndex.get(index) : null;
+    }
+
+    /**
+     * Навыки по нормализованному имени: "sleight_of_hand" -> данные навыка
+     */
+    public Map<String, Map<String, Object>> getSkillsByName() {
+        return current().skillsByName;
+    }
+
+    /**
+     * Навыки, привязанные к характеристике (index характеристики: "dex", "str", ...)
+     */
+    public List<Map<String, Object>> getSkillsByAbility(String abilityIndex) {
+        return current().skillsByAbility.getOrDefault(abilityIndex, List.of());
+    }
+
+    /**
+     * Компактная сводка правил для однопроходного парсинга действий: характеристики и навыки,
+     * сгруппированные по характеристикам. Строится один раз на снимок.
+     */
+    public String getCompactRulesSummary() {
+        return current().compactSummary;
+    }
+
+    /**
+     * Полное название характеристики по ее index: "dex" -> "dexterity"
+     */
+    public String getAbilityFullName(String abilityIndex) {
+        return current().abilityNames.getOrDefault(abilityIndex, ABILITY_NAMES.get(abilityIndex));
+    }
+
+    public Map<String, Integer> getDifficultyTable() {
+        return loader.getDifficultyTable();
+    }
+
+    public SRDDataLoader getLoader() {
+        return loader;
+    }
+
+    public static String normalizeSkillName(String name) {
+        return name.toLowerCase().replace("-", "_").replace(" ", "_");
+    }
+
+    private Snapshot loadFromFile() {
+        if (snapshotPath == null || !Files.exists(snapshotPath)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
+            return parseSnapshotFile(reader);
+        } catch (Exception e) {
+            System.err.println("⚠️ [SRDSnapshotStore] Не удалось прочитать снимок " + snapshotPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Snapshot loadFromClasspath() {
+        String resource = "srd-snapshot-" + version + ".json";
+        try (InputStream in = SRDSnapshotStore.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                return null;
+            }
+            return parseSnapshotFile(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            System.err.println("⚠️ [SRDSnapshotStore] Не удалось прочитать встроенный снимок " + resource + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Snapshot loadFromApi() {
+        Map<String, String> endpoints = loader.getAvailableEndpoints();
+        // loadMultipleEndpoints для skills дополнительно загружает полные описания навыков
+        Map<String, List<Map<String, Object>>> data = loader.loadMultipleEndpoints(new ArrayList<>(endpoints.keySet()));
+        return new Snapshot(endpoints, data);
+    }
+
+    /**
+     * Эндпоинты без данных (ошибка загрузки в SRDDataLoader возвращается пустым списком)
+     * и навыки, для которых не загрузилось полное описание
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> incompleteEndpoints(Snapshot loaded) {
+        List<String> incomplete = new ArrayList<>();
+        if (loaded.endpoints.isEmpty()) {
+            incomplete.add("список эндпоинтов");
+            return incomplete;
+        }
+        for (String endpoint : new TreeSet<>(loaded.endpoints.keySet())) {
+            if (loaded.data.getOrDefault(endpoint, List.of()).isEmpty()) {
+                incomplete.add(endpoint);
+            }
+        }
+        for (Map<String, Object> skill : loaded.data.getOrDefault("skills", List.of())) {
+            if (!(skill.get("ability_score") instanceof Map)) {
+                incomplete.add("skills/" + skill.get("index"));
+            }
+        }
+        return incomplete;
+    }
+
+    private void saveToFile(Snapshot loaded) {
+        if (snapshotPath == null) {
+            return;
+        }
+        try {
+            if (snapshotPath.getParent() != null) {
+                Files.createDirectories(snapshotPath.getParent());
+            }
+            Map<String, Object> file = new LinkedHashMap<>();
+            file.put("version", version);
+            file.put("endpoints", loaded.endpoints);
+            file.put("data", loaded.data);
+            try (Writer writer = Files.newBufferedWriter(snapshotPath, StandardCharsets.UTF_8)) {
+                gson.toJson(file, writer);
+            }
+            System.out.println("💾 [SRDSnapshotStore] Снимок SRD сохранен в " + snapshotPath);
+        } catch (Exception e) {
+            System.err.println("⚠️ [SRDSnapshotStore] Не удалось сохранить снимок SRD: " + e.getMessage());
+        }
+    }
+
+    private Snapshot parseSnapshotFile(Reader reader) {
+        SnapshotFile file = gson.fromJson(reader, new TypeToken<SnapshotFile>(){}.getType());
+        if (file == null || file.endpoints == null || file.data == null) {
+            return null;
+        }
+        return new Snapshot(file.endpoints, file.data);
+    }
+
+    /**
+     * Формат файла снимка
+     */
+    private static class SnapshotFile {
+        String version;
+        Map<String, String> endpoints;
+        Map<String, List<Map<String, Object>>> data;
+    }
+
+    /**
+     * Неизменяемый снимок данных SRD с индексами
+     */
+    private static class Snapshot {
+        final Map<String, String> endpoints;
+        final Map<String, List<Map<String, Object>>> data;
+        final Map<String, Map<String, Map<String, Object>>> byIndex;
+        final Map<String, Map<String, Object>> skillsByIndex;
+        final Map<String, Map<String, Object>> skillsByName;
+        final Map<String, List<Map<String, Object>>> skillsByAbility;
+        final Map<String, String> abilityNames;
+        final String compactSummary;
+        // false - неполный ответ API: используется, пока не удастся загрузить полный
+        volatile boolean complete = true;
+
+        @SuppressWarnings("unchecked")
+        Snapshot(Map<String, String> endpoints, Map<String, List<Map<String, Object>>> rawData) {
+            this.endpoints = Map.copyOf(endpoints);
+
+            Map<String, List<Map<String, Object>>> data = new HashMap<>();
+            Map<String, Map<String, Map<String, Object>>> byIndex = new HashMap<>();
+            for (Map.Entry<String, List<Map<String, Object>>> entry : rawData.entrySet()) {
+                List<Map<String, Object>> items = (List<Map<String, Object>>) freeze(entry.getValue());
+                data.put(entry.getKey(), items);
+
+                Map<String, Map<String, Object>> endpointIndex = new HashMap<>();
+                for (Map<String, Object> item : items) {
+                    Object index = item.get("index");
+                    if (index != null) {
+                        endpointIndex.put(index.toString(), item);
+                    }
+                }
+                byIndex.put(entry.getKey(), Map.copyOf(endpointIndex));
+            }
+            this.data = Map.copyOf(data);
+            this.byIndex = Map.copyOf(byIndex);
+            this.skillsByIndex = byIndex.getOrDefault("skills", Map.of());
+
+            Map<String, Map<String, Object>> skillsByName = new HashMap<>();
+            Map<String, List<Map<String, Object>>> skillsByAbility = new HashMap<>();
+            for (Map<String, Object> skill : data.getOrDefault("skills", List.of())) {
+                Object name = skill.get("name");
+                if (name != null && !name.toString().isEmpty()) {
+                    skillsByName.put(normalizeSkillName(name.toString()), skill);
+                }
+                Object abilityScore = skill.get("ability_score");
+                if (abilityScore instanceof Map && ((Map<String, Object>) abilityScore).get("index") != null) {
+                    String ability = ((Map<String, Object>) abilityScore).get("index").toString();
+                    skillsByAbility.computeIfAbsent(ability, k -> new ArrayList<>()).add(skill);
+                }
+            }
+            this.skillsByName = Map.copyOf(skillsByName);
+            Map<String, List<Map<String, Object>>> frozenByAbility = new HashMap<>();
+            skillsByAbility.forEach((ability, skills) -> frozenByAbility.put(ability, List.copyOf(skills)));
+            this.skillsByAbility = Map.copyOf(frozenByAbility);
+
+            // Полные названия характеристик из ability-scores (full_name), иначе стандартные
+            Map<String, String> abilityNames = new HashMap<>(ABILITY_NAMES);
+            for (Map<String, Object> ability : data.getOrDefault("ability-scores", List.of())) {
+                Object index = ability.get("index");
+                Object fullName = ability.get("full_name");
+                if (index != null && fullName != null) {
+                    abilityNames.put(index.toString(), fullName.toString().toLowerCase());
+                }
+            }
+            this.abilityNames = Map.copyOf(abilityNames);
+            this.compactSummary = buildCompactSummary();
+        }
+
+        /**
+         * Строки вида "- dex (dexterity): acrobatics, sleight-of-hand, stealth"
+         */
+        private String buildCompactSummary() {
+            StringBuilder summary = new StringBuilder();
+            Set<String> abilities = new LinkedHashSet<>(ABILITY_ORDER);
+            abilities.addAll(new TreeSet<>(skillsByAbility.keySet()));
+            for (String ability : abilities) {
+                summary.append("- ").append(ability).append(" (")
+                       .append(abilityNames.getOrDefault(ability, ability)).append(")");
+                List<String> skills = new ArrayList<>();
+                for (Map<String, Object> skill : skillsByAbility.getOrDefault(ability, List.of())) {
+                    Object index = skill.get("index");
+                    if (index != null) {
+                        skills.add(index.toString());
+                    }
+                }
+                Collections.sort(skills);
+                summary.append(": ").append(skills.isEmpty() ? "без навыков" : String.join(", ", skills)).append("\n");
+            }
+            return summary.toString();
+        }
+
+        boolean isEmpty() {
+            return endpoints.isEmpty() && data.isEmpty();
+        }
+
+        boolean isUsable() {
+            return complete && !isEmpty();
+        }
+
+        /**
+         * Рекурсивно делает вложенные Map/List неизменяемыми (значения null сохраняются)
+         */
+        @SuppressWarnings("unchecked")
+        private static Object freeze(Object value) {
+            if (value instanceof Map) {
+                Map<String, Object> copy = new LinkedHashMap<>();
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    copy.put(entry.getKey(), freeze(entry.getValue()));
+                }
+                return Collections.unmodifiableMap(copy);
+            }
+            if (value instanceof List) {
+                List<Object> copy = new ArrayList<>();
+                for (Object item : (List<Object>) value) {
+                    copy.add(freeze(item));
+                }
+                return Collections.unmodifiableList(copy);
+            }
+            return value;
+        }
+    }
+}
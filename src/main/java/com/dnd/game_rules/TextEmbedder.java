@@ -0,0 +1,40 @@
+package com.dnd.game_rules;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Источник эмбеддингов для локальных компонентов парсинга действий
+ * (классификатор тривиальных действий, семантический кэш результатов парсинга)
+ */
+@FunctionalInterface
+public interface TextEmbedder {
+    List<float[]> embed(List<String> texts) throws IOException;
+
+    /**
+     * Вектор единичной длины: косинусное сходство нормализованных векторов - их скалярное произведение
+     */
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] result = new float[vector.length];
+        if (norm == 0) {
+            return result;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (float) (vector[i] / norm);
+        }
+        return result;
+    }
+
+    static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,666 @@
+package com.dnd.game_rules;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Детерминированный классификатор тривиальных действий, работающий до запроса к LLM.
+ * Сочетает два сигнала:
+ * 1. Словарь и правила (RU/EN): глаголы перемещения, речи и наблюдения против маркеров проверки
+ *    (скрытность, взлом, убеждение, атака, прыжки, магия, поиск и т.д.). TRIVIAL - только одно действие,
+ *    сказуемое которого есть в словаре: второе действие ("иду к гоблину и убиваю его"), незнакомый глагол,
+ *    опасный объект ("иду в огонь") или неизвестное питье ("пью яд") передаются LLM. Речь с признаком обмана
+ *    ("говорю стражнику, что я посол") - проверка; речь или "беру" с персонажем в роли объекта
+ *    словарь не решает - их разбирают соседи.
+ * 2. Ближайших соседей: эмбеддинг действия сравнивается с размеченными примерами (classifier/action-examples.tsv)
+ * Когда эмбеддинги доступны, вердикт словаря TRIVIAL действует только при согласии соседей.
+ * Уверенный вердикт TRIVIAL позволяет пропустить LLM и сразу перейти к ветке без броска кубиков;
+ * остальные случаи (CHECK, UNCERTAIN) разбирает LLM.
+ */
+public class TrivialActionClassifier {
+    public static final String EXAMPLES_RESOURCE = "classifier/action-examples.tsv";
+    public static final String CORPUS_RESOURCE = "classifier/action-corpus.tsv";
+
+    private static final int MAX_TRIVIAL_WORDS = 12;
+
+    // Перемещение, речь, наблюдение и бытовые действия
+    private static final Set<String> TRIVIAL_STEMS = Set.of(
+        // RU
+        "иду", "идти", "пойти", "пойду", "подхож", "подойти", "подойду", "вхож", "войти", "войду",
+        "захож", "зайти", "зайду", "выхож", "выйти", "выйду", "возвращ", "вернуться", "вернусь",
+        "поднима", "поднимусь", "спуска", "направля", "отправля", "осматр", "осмотр", "огляд", "смотр",
+        "посмотр", "разгляд", "читаю", "прочит", "говор", "сказ", "скажу", "спрос", "спраш", "поздорова",
+        "здорова", "привет", "здравств", "благодар", "спасибо", "прощаюсь", "попрощ", "сажусь", "сесть",
+        "присаж", "встаю", "встать", "ложусь", "лечь", "отдыха", "отдохн", "сплю", "спать", "ем", "поесть",
+        "пью", "выпить", "выпива", "беру", "взять", "открыва", "открыть", "открою", "закрыва", "закрыть",
+        "закрою", "жду", "ждать", "подожд", "киваю", "кивн", "улыба", "слуша", "послуша", "заказ", "покупа",
+        "купить", "куплю", "плачу", "заплат", "представля",
+        // EN
+        "go", "walk", "head", "move", "enter", "leave", "exit", "return", "look", "glance", "watch", "read",
+        "say", "tell", "ask", "greet", "hello", "hi", "thank", "sit", "stand", "rest", "sleep", "eat", "drink",
+        "take", "open", "close", "wait", "nod", "smile", "listen", "order", "buy", "pay", "introduce"
+    );
+
+    // Признаки действия с неопределенным исходом - такие действия всегда разбирает LLM
+    private static final Set<String> CHECK_STEMS = Set.of(
+        // RU
+        "скрыт", "тайк", "незамет", "крад", "подкрад", "прокрад", "украсть", "укра", "ворова", "взлом", "отмычк",
+        "запер", "замок", "убед", "уговор", "обман", "солг", "лгу", "блеф", "запуг", "угрож", "атак", "удар",
+        "бью", "бить", "напада", "напад", "стреля", "выстрел", "метн", "прыг", "перепрыг", "лез", "залез",
+        "пролез", "взбир", "забир", "карабк", "плыв", "переплы", "колду", "заклин", "магич", "ритуал", "свиток",
+        "артефакт", "ловуш", "тайник", "поиск", "обыск", "ищу", "искать", "найти", "след", "выслежива",
+        "прячусь", "спрята", "тяжел", "сломать", "слома", "выбить", "выломать", "толкн", "уклоня", "блокир",
+        "парир", "вылечить", "лечу", "перевяз", "приручить", "успоко", "торгу", "сторгова", "тихо", "осторожно",
+        // EN
+        "sneak", "stealth", "hide", "steal", "pickpocket", "lock", "locked", "lockpick", "persuade", "convince",
+        "deceive", "lie", "bluff", "intimidate", "threaten", "attack", "strike", "hit", "shoot", "stab", "jump",
+        "leap", "climb", "swim", "cast", "spell", "ritual", "scroll", "artifact", "trap", "search", "investigate",
+        "track", "heavy", "break", "force", "dodge", "block", "parry", "heal", "tame", "haggle", "disarm",
+        "quietly", "secretly", "carefully"
+    );
+
+    // Речь и взятие: тривиальны, только пока в них не вовлечен другой персонаж
+    private static final Set<String> SPEECH_STEMS = Set.of(
+        "говор", "сказ", "скажу", "спрос", "спраш", "представля",
+        "say", "tell", "ask", "introduce"
+    );
+    private static final Set<String> TAKE_STEMS = Set.of(
+        "беру", "взять",
+        "take"
+    );
+
+    // Персонажи и местоимения в роли объекта речи или взятия
+    private static final Set<String> PERSON_STEMS = Set.of(
+        // RU
+        "страж", "охранн", "торговц", "торговк", "торговец", "купц", "купец", "бармен", "трактирщ", "хозяин",
+        "хозяйк", "жрец", "жриц", "мэр", "мэра", "мэру", "старост", "капитан", "солдат", "дворян", "вельмож",
+        "крестьян", "нищи", "нище", "корол", "принц", "девушк", "женщин", "мужчин", "человек", "ребен", "мальчик",
+        "девочк", "пленник", "разбойник", "бандит", "вор", "вора", "вору", "незнаком", "его", "ее", "ему",
+        "ей", "него", "нее", "нему", "ней", "ним",
+        // EN
+        "guard", "merchant", "shopkeeper", "innkeeper", "bartender", "barkeep", "priest", "mayor", "captain",
+        "soldier", "noble", "king", "queen", "prince", "princess", "man", "woman", "boy", "girl", "child",
+        "stranger", "thug", "bandit", "prisoner", "lord", "lady", "clerk", "him", "her", "them"
+    );
+
+    // Признаки обмана и давления в речи: слова и пары слов ("говорю, что я...", "I'm the envoy")
+    private static final Set<String> DECEPTION_STEMS = Set.of(
+        "будто", "якобы", "притвор", "выдаю", "выдава", "прошу", "упрашива", "обеща", "клянусь",
+        "pretend", "claim", "pose", "posing", "please", "promise", "swear"
+    );
+    private static final Set<String> DECEPTION_PAIRS = Set.of(
+        "что я", "что мы", "i m", "i am", "that i", "we re", "we are", "that we"
+    );
+
+    // Перемещение и питье: тривиальны, только пока объект не опасен или известен
+    private static final Set<String> CONSUME_STEMS = Set.of(
+        "пью", "выпить", "выпива", "ем", "поесть",
+        "eat", "drink"
+    );
+    private static final Set<String> SAFE_CONSUMABLE_STEMS = Set.of(
+        "вода", "воду", "воды", "водой", "эль", "эля", "пиво", "пива", "вино", "вина", "чай", "чая", "кофе",
+        "молок", "квас", "мед", "меда", "хлеб", "еду", "еда", "похлебк", "суп", "мясо", "мяса", "сыр", "яблок",
+        "ужин", "завтрак", "обед", "фляг", "кружк",
+        "water", "ale", "beer", "wine", "tea", "milk", "mead", "bread", "meal", "food", "stew", "soup", "cheese",
+        "apple", "dinner", "breakfast", "lunch", "supper", "flask", "mug", "waterskin"
+    );
+
+    // Опасные и незнакомые объекты: "иду в огонь", "пью яд", "выхожу на тонкий лед"
+    private static final Set<String> HAZARD_STEMS = Set.of(
+        // RU
+        "яд", "яда", "ядом", "отрав", "огонь", "огн", "пламя", "плам", "пожар", "лава", "лаву", "лавы", "кисл",
+        "лед", "льду", "льда", "тонк", "канат", "пропаст", "обрыв", "бездн", "трясин", "болот", "зыбуч",
+        "неизвест", "странн", "подозрит", "зелье", "зелья", "снадоб",
+        // EN
+        "poison", "poisoned", "venom", "fire", "flame", "flames", "burning", "lava", "acid", "ice", "thin",
+        "tightrope", "chasm", "cliff", "ledge", "abyss", "pit", "swamp", "quicksand", "unknown",
+        "strange", "suspicious", "potion", "elixir", "vial"
+    );
+
+    // Границы действий: союз или знак препинания, за которым может начаться второе действие
+    private static final Set<String> CLAUSE_CONJUNCTIONS = Set.of(
+        "и", "а", "но", "затем", "потом", "после", "чтобы",
+        "and", "then", "but", "after", "before"
+    );
+    // Подлежащее и связки перед сказуемым: "я иду", "then I go"
+    private static final Set<String> SUBJECT_WORDS = Set.of(
+        "я", "мы", "сам", "сначала", "сейчас", "теперь", "i", "we", "now", "first", "just"
+    );
+    // Служебные слова, после которых в английском идет объект, а не глагол: "and a lantern", "to the inn"
+    private static final Set<String> ENGLISH_DETERMINERS = Set.of(
+        "the", "a", "an", "my", "our", "his", "her", "their", "its", "this", "that", "these", "those",
+        "some", "any", "one", "two", "three", "me", "us", "him", "them", "it", "you", "back", "bed", "sleep"
+    );
+    // Окончания русских глаголов 1-го лица и инфинитива: "убиваю", "режу", "прохожу", "идти"
+    private static final List<String> RUSSIAN_VERB_ENDINGS = List.of(
+        "аю", "яю", "ею", "юсь", "усь", "жу", "шу", "чу", "щу", "ть", "ться", "тись", "чь"
+    );
+
+    // Окончания, с которыми английская основа считается тем же словом: "rest" не совпадает с "restrain"
+    private static final Set<String> ENGLISH_SUFFIXES = Set.of("s", "es", "ed", "ing", "ly", "ily");
+
+    public enum Verdict { TRIVIAL, CHECK, UNCERTAIN }
+
+    /**
+     * Результат классификации
+     */
+    public static class Classification {
+        private final Verdict verdict;
+        private final String source;
+        private final double confidence;
+        private final String reason;
+        // UNCERTAIN словаря, который вправе разрешить соседи (речь или взятие с персонажем)
+        private final boolean deferToNeighbours;
+
+        Classification(Verdict verdict, String source, double confidence, String reason) {
+            this(verdict, source, confidence, reason, false);
+        }
+
+        Classification(Verdict verdict, String source, double confidence, String reason, boolean deferToNeighbours) {
+            this.verdict = verdict;
+            this.source = source;
+            this.confidence = confidence;
+            this.reason = reason;
+            this.deferToNeighbours = deferToNeighbours;
+        }
+
+        public Verdict getVerdict() { return verdict; }
+        public String getSource() { return source; }
+        public double getConfidence() { return confidence; }
+        public String getReason() { return reason; }
+        public boolean isTrivial() { return verdict == Verdict.TRIVIAL; }
+    }
+
+    /**
+     * Размеченное действие (для примеров соседей и оценочного корпуса)
+     */
+    public static class LabeledAction {
+        final String text;
+        final boolean trivial;
+
+        public LabeledAction(String text, boolean trivial) {
+            this.text = text;
+            this.trivial = trivial;
+        }
+    }
+
+    private final TextEmbedder embedder;
+    private final int k;
+    private final double minSimilarity;
+    private final List<LabeledAction> examples;
+    private volatile float[][] exampleVectors;
+    private volatile long lastEmbedFailureAt = 0;
+
+    private final AtomicLong classified = new AtomicLong();
+    private final AtomicLong fastPathHits = new AtomicLong();
+    private final AtomicLong llmFallbacks = new AtomicLong();
+
+    /**
+     * @param embedder      источник эмбеддингов; null - только словарь и правила
+     * @param k             число ближайших примеров
+     * @param minSimilarity минимальное косинусное сходство ближайшего примера для уверенного вердикта
+     */
+    public TrivialActionClassifier(TextEmbedder embedder, int k, double minSimilarity) {
+        this.embedder = embedder;
+        this.k = Math.max(1, k);
+        this.minSimilarity = minSimilarity;
+        this.examples = loadLabeled(EXAMPLES_RESOURCE);
+    }
+
+    /**
+     * Классифицирует действие; TRIVIAL - LLM не нужен
+     */
+    public Classification classify(String actionText) {
+        Classification result = classify(actionText, null);
+        classified.incrementAndGet();
+        if (result.isTrivial()) {
+            fastPathHits.incrementAndGet();
+        } else {
+            llmFallbacks.incrementAndGet();
+        }
+        return result;
+    }
+
+    private Classification classify(String actionText, float[] precomputedVector) {
+        Classification lexical = classifyLexical(actionText);
+        if (lexical.getVerdict() == Verdict.CHECK
+            || (lexical.getVerdict() == Verdict.UNCERTAIN && !lexical.deferToNeighbours)) {
+            return lexical;
+        }
+
+        Classification neighbours = classifyNeighbours(actionText, precomputedVector);
+        if (lexical.getVerdict() == Verdict.TRIVIAL) {
+            if (exampleVectors == null) {
+                // Эмбеддинги недоступны - остается только словарь
+                return lexical;
+            }
+            // Эмбеддинги доступны - LLM пропускается, только если соседи согласны со словарем
+            if (neighbours.getVerdict() != Verdict.TRIVIAL) {
+                return new Classification(Verdict.UNCERTAIN, "lexicon+knn", neighbours.getConfidence(),
+                    "словарь: " + lexical.getReason() + "; соседи: " + neighbours.getReason());
+            }
+            return new Classification(Verdict.TRIVIAL, "lexicon+knn", neighbours.getConfidence(),
+                "словарь: " + lexical.getReason() + "; соседи: " + neighbours.getReason());
+        }
+        return neighbours.getVerdict() == Verdict.TRIVIAL ? neighbours
+            : new Classification(Verdict.UNCERTAIN, neighbours.getSource(), neighbours.getConfidence(), neighbours.getReason());
+    }
+
+    /**
+     * Словарь и правила: маркер проверки -> CHECK; одно действие, сказуемое которого есть в словаре, -> TRIVIAL;
+     * второе действие, незнакомый глагол или опасный объект -> UNCERTAIN без права соседей отменить его
+     */
+    Classification classifyLexical(String actionText) {
+        List<String> tokens = tokenize(actionText);
+        for (String token : tokens) {
+            String stem = matchStem(token, CHECK_STEMS);
+            if (stem != null) {
+                return new Classification(Verdict.CHECK, "lexicon", 0.9, "маркер проверки '" + token + "'");
+            }
+        }
+        if (tokens.isEmpty() || tokens.size() > MAX_TRIVIAL_WORDS) {
+            return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0, "длина фразы " + tokens.size() + " слов");
+        }
+        String speech = firstMatch(tokens, SPEECH_STEMS);
+        String take = firstMatch(tokens, TAKE_STEMS);
+        if (speech != null) {
+            String cue = deceptionCue(tokens);
+            if (cue != null) {
+                return new Classification(Verdict.CHECK, "lexicon", 0.8,
+                    "речь '" + speech + "' с признаком обмана '" + cue + "'");
+            }
+        }
+        String hazard = firstMatch(tokens, HAZARD_STEMS);
+        if (hazard != null) {
+            return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0, "опасный или незнакомый объект '" + hazard + "'");
+        }
+
+        List<List<String>> clauses = clauses(actionText);
+        if (clauses.size() > 1) {
+            return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0,
+                "второе действие '" + String.join(" ", clauses.get(1)) + "'");
+        }
+        List<String> clause = clauses.isEmpty() ? tokens : clauses.get(0);
+        int predicateIndex = predicateIndex(clause);
+        String predicate = predicateIndex < clause.size() ? clause.get(predicateIndex) : null;
+        if (predicate == null || matchStem(predicate, TRIVIAL_STEMS) == null) {
+            return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0,
+                predicate == null ? "нет сказуемого" : "глагол '" + predicate + "' не из словаря");
+        }
+        for (int i = predicateIndex + 1; i < clause.size(); i++) {
+            String token = clause.get(i);
+            if (matchStem(token, TRIVIAL_STEMS) == null && looksLikeVerb(clause, i)) {
+                return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0, "незнакомый глагол '" + token + "'");
+            }
+        }
+
+        if (matchStem(predicate, CONSUME_STEMS) != null && firstMatch(clause, SAFE_CONSUMABLE_STEMS) == null) {
+            return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0, "'" + predicate + "' без известной еды или питья");
+        }
+        if (speech != null || take != null) {
+            String person = firstMatch(tokens, PERSON_STEMS);
+            if (person != null) {
+                // "Спрашиваю бармена" и "обманываю бармена" словарь не различит - решают соседи или LLM
+                return new Classification(Verdict.UNCERTAIN, "lexicon", 0.0,
+                    "'" + (speech != null ? speech : take) + "' с участием персонажа '" + person + "'", true);
+            }
+        }
+        return new Classification(Verdict.TRIVIAL, "lexicon", 0.9, "глагол '" + predicate + "'");
+    }
+
+    /**
+     * Делит фразу на действия по знакам препинания и союзам. Часть после границы считается отдельным действием,
+     * если начинается с глагола: "иду к гоблину | убиваю его", но "покупаю веревку и фонарь" - одно действие
+     */
+    static List<List<String>> clauses(String text) {
+        List<List<String>> clauses = new ArrayList<>();
+        if (text == null) {
+            return clauses;
+        }
+        List<String> current = new ArrayList<>();
+        for (String segment : text.split("[,;.!?:]+")) {
+            List<String> segmentTokens = tokenize(segment);
+            int start = 0;
+            for (int i = 0; i <= segmentTokens.size(); i++) {
+                boolean boundary = i == segmentTokens.size() || CLAUSE_CONJUNCTIONS.contains(segmentTokens.get(i));
+                if (!boundary) {
+                    continue;
+                }
+                List<String> part = segmentTokens.subList(start, i);
+                if (!part.isEmpty()) {
+                    int predicate = predicateIndex(part);
+                    boolean startsAction = current.isEmpty() || (predicate < part.size() &&
+                        (matchStem(part.get(predicate), TRIVIAL_STEMS) != null || looksLikeVerb(part, predicate)));
+                    if (startsAction && !current.isEmpty()) {
+                        clauses.add(current);
+                        current = new ArrayList<>();
+                    }
+                    current.addAll(part);
+                }
+                start = i + 1;
+            }
+        }
+        if (!current.isEmpty()) {
+            clauses.add(current);
+        }
+        return clauses;
+    }
+
+    /**
+     * Позиция сказуемого: первое слово после подлежащего и наречий-связок ("я", "I", "then")
+     */
+    private static int predicateIndex(List<String> clause) {
+        int i = 0;
+        while (i < clause.size() && SUBJECT_WORDS.contains(clause.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Похоже ли слово на глагол: русское - по окончанию 1-го лица или инфинитива,
+     * английское - в начале действия или после "to" ("I walk over to kill it"), если это не артикль или местоимение
+     */
+    private static boolean looksLikeVerb(List<String> clause, int index) {
+        String token = clause.get(index);
+        if (!isLatin(token)) {
+            if (token.length() < 3) {
+                return false;
+            }
+            for (String ending : RUSSIAN_VERB_ENDINGS) {
+                if (token.endsWith(ending)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ENGLISH_DETERMINERS.contains(token)) {
+            return false;
+        }
+        boolean actionStart = index == predicateIndex(clause);
+        boolean afterTo = index > 0 && clause.get(index - 1).equals("to");
+        return actionStart || afterTo;
+    }
+
+    /**
+     * Взвешенное голосование k ближайших размеченных примеров
+     */
+    private Classification classifyNeighbours(String actionText, float[] precomputedVector) {
+        float[][] vectors = exampleVectors();
+        if (vectors == null) {
+            return new Classification(Verdict.UNCERTAIN, "knn", 0.0, "эмбеддинги недоступны");
+        }
+        float[] query = precomputedVector;
+        if (query == null) {
+            try {
+                query = TextEmbedder.normalize(embedder.embed(List.of(actionText)).get(0));
+            } catch (Exception e) {
+                return new Classification(Verdict.UNCERTAIN, "knn", 0.0, "ошибка эмбеддинга: " + e.getMessage());
+            }
+        }
+
+        // Индексы примеров по убыванию сходства
+        double[] similarities = new double[vectors.length];
+        Integer[] order = new Integer[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            similarities[i] = TextEmbedder.dot(query, vectors[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(similarities[b], similarities[a]));
+
+        double best = similarities[order[0]];
+        if (best < minSimilarity) {
+            return new Classification(Verdict.UNCERTAIN, "knn", best,
+                String.format(Locale.ROOT, "ближайший пример слишком далек (%.2f)", best));
+        }
+        double trivialWeight = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < Math.min(k, order.length); i++) {
+            double weight = Math.max(0, similarities[order[i]]);
+            totalWeight += weight;
+            if (examples.get(order[i]).trivial) {
+                trivialWeight += weight;
+            }
+        }
+        double trivialShare = totalWeight > 0 ? trivialWeight / totalWeight : 0;
+        String reason = String.format(Locale.ROOT, "доля тривиальных соседей %.2f, ближайший '%s' (%.2f)",
+            trivialShare, examples.get(order[0]).text, best);
+        if (trivialShare >= 0.8) {
+            return new Classification(Verdict.TRIVIAL, "knn", trivialShare, reason);
+        }
+        if (trivialShare <= 0.2) {
+            return new Classification(Verdict.CHECK, "knn", 1 - trivialShare, reason);
+        }
+        return new Classification(Verdict.UNCERTAIN, "knn", trivialShare, reason);
+    }
+
+    /**
+     * Отчет точности и полноты вердикта TRIVIAL на размеченном корпусе (classifier/action-corpus.tsv).
+     * Положительный класс - "тривиальное действие": ошибка FP означает пропущенную проверку, FN - лишний запрос к LLM.
+     */
+    public Map<String, Object> evaluate() {
+        return evaluate(loadLabeled(CORPUS_RESOURCE));
+    }
+
+    public Map<String, Object> evaluate(List<LabeledAction> corpus) {
+        float[][] corpusVectors = null;
+        if (exampleVectors() != null && !corpus.isEmpty()) {
+            try {
+                List<String> texts = new ArrayList<>();
+                for (LabeledAction action : corpus) {
+                    texts.add(action.text);
+                }
+                List<float[]> embedded = embedder.embed(texts);
+                corpusVectors = new float[embedded.size()][];
+                for (int i = 0; i < embedded.size(); i++) {
+                    corpusVectors[i] = TextEmbedder.normalize(embedded.get(i));
+                }
+            } catch (Exception e) {
+                System.err.println("⚠️ [TrivialActionClassifier] Эмбеддинги корпуса недоступны, оценка только по словарю: " + e.getMessage());
+            }
+        }
+
+        int truePositive = 0, falsePositive = 0, falseNegative = 0, trueNegative = 0;
+        Map<String, Integer> bySource = new TreeMap<>();
+        List<Map<String, Object>> errors = new ArrayList<>();
+        for (int i = 0; i < corpus.size(); i++) {
+            LabeledAction action = corpus.get(i);
+            float[] vector = corpusVectors != null ? corpusVectors[i] : null;
+            Classification result = classify(action.text, vector);
+            boolean predictedTrivial = result.isTrivial();
+            if (predictedTrivial) {
+                bySource.merge(result.getSource(), 1, Integer::sum);
+            }
+            if (predictedTrivial && action.trivial) truePositive++;
+            else if (predictedTrivial) falsePositive++;
+            else if (action.trivial) falseNegative++;
+            else trueNegative++;
+
+            if (predictedTrivial != action.trivial) {
+                Map<String, Object> error = new LinkedHashMap<>();
+                error.put("text", action.text);
+                error.put("label", action.trivial ? "trivial" : "check");
+                error.put("verdict", result.getVerdict().name());
+                error.put("source", result.getSource());
+                error.put("reason", result.getReason());
+                errors.add(error);
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("corpus_size", corpus.size());
+        report.put("examples", examples.size());
+        report.put("knn_enabled", corpusVectors != null);
+        report.put("true_positive", truePositive);
+        report.put("false_positive", falsePositive);
+        report.put("false_negative", falseNegative);
+        report.put("true_negative", trueNegative);
+        report.put("precision", ratio(truePositive, truePositive + falsePositive));
+        report.put("recall", ratio(truePositive, truePositive + falseNegative));
+        // Доля всех действий, которые обходятся без LLM
+        report.put("fast_path_share", ratio(truePositive + falsePositive, corpus.size()));
+        report.put("fast_path_by_source", bySource);
+        report.put("errors", errors);
+        report.put("runtime", getStats());
+        return report;
+    }
+
+    /**
+     * Счетчики с момента запуска: всего классификаций, обработано без LLM, передано LLM
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("classified", classified.get());
+        stats.put("fast_path_hits", fastPathHits.get());
+        stats.put("llm_fallbacks", llmFallbacks.get());
+        return stats;
+    }
+
+    /**
+     * Нормализованные эмбеддинги примеров; считаются один раз, после ошибки - не чаще раза в минуту
+     */
+    private float[][] exampleVectors() {
+        float[][] vectors = exampleVectors;
+        if (vectors != null || embedder == null || examples.isEmpty()) {
+            return vectors;
+        }
+        synchronized (this) {
+            if (exampleVectors != null || System.currentTimeMillis() - lastEmbedFailureAt < 60_000) {
+                return exampleVectors;
+            }
+            try {
+                List<String> texts = new ArrayList<>();
+                for (LabeledAction example : examples) {
+                    texts.add(example.text);
+                }
+                List<float[]> embedded = embedder.embed(texts);
+                if (embedded == null || embedded.size() != examples.size()) {
+                    throw new IOException("получено " + (embedded == null ? 0 : embedded.size()) + " эмбеддингов");
+                }
+                float[][] computed = new float[embedded.size()][];
+                for (int i = 0; i < embedded.size(); i++) {
+                    computed[i] = TextEmbedder.normalize(embedded.get(i));
+                }
+                exampleVectors = computed;
+                System.out.println("✅ [TrivialActionClassifier] Эмбеддинги " + computed.length + " примеров готовы");
+            } catch (Exception e) {
+                lastEmbedFailureAt = System.currentTimeMillis();
+                System.err.println("⚠️ [TrivialActionClassifier] Не удалось получить эмбеддинги примеров, работает только словарь: " + e.getMessage());
+            }
+            return exampleVectors;
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        String normalized = text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        for (String token : normalized.split("[^\\p{L}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static String firstMatch(List<String> tokens, Set<String> stems) {
+        for (String token : tokens) {
+            if (matchStem(token, stems) != null) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private static String deceptionCue(List<String> tokens) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (matchStem(tokens.get(i), DECEPTION_STEMS) != null) {
+                return tokens.get(i);
+            }
+            if (i + 1 < tokens.size() && DECEPTION_PAIRS.contains(tokens.get(i) + " " + tokens.get(i + 1))) {
+                return tokens.get(i) + " " + tokens.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Русские основы совпадают по префиксу, короткие (до 3 букв) - только целиком: "ем", "лгу".
+     * Английские - только как целое слово или с окончанием: "rest"/"rests"/"resting", но не "restrain"
+     */
+    static String matchStem(String token, Set<String> stems) {
+        if (stems.contains(token)) {
+            return token;
+        }
+        for (String stem : stems) {
+            if (isLatin(stem) ? isEnglishForm(token, stem) : stem.length() >= 4 && token.startsWith(stem)) {
+                return stem;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isEnglishForm(String token, String stem) {
+        if (token.length() <= stem.length()) {
+            return false;
+        }
+        if (stem.length() <= 2) {
+            // "goes", "going", но не "god" или "his"
+            return token.equals(stem + "es") || token.equals(stem + "ing");
+        }
+        if (token.startsWith(stem)) {
+            String suffix = token.substring(stem.length());
+            if (ENGLISH_SUFFIXES.contains(suffix) || (stem.endsWith("e") && suffix.equals("d"))) {
+                return true;
+            }
+            // Удвоенная согласная: "stabbing", "swimming"
+            char last = stem.charAt(stem.length() - 1);
+            return suffix.length() > 1 && suffix.charAt(0) == last &&
+                (suffix.equals(last + "ing") || suffix.equals(last + "ed"));
+        }
+        // Выпадающая "e": "taking", "hiding"
+        String base = stem.substring(0, stem.length() - 1);
+        return stem.endsWith("e") && (token.equals(base + "ing") || token.equals(base + "ed"));
+    }
+
+    private static boolean isLatin(String stem) {
+        return stem.charAt(0) >= 'a' && stem.charAt(0) <= 'z';
+    }
+
+    private static List<LabeledAction> loadLabeled(String resource) {
+        List<LabeledAction> result = new ArrayList<>();
+        try (InputStream in = TrivialActionClassifier.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                System.err.println("⚠️ [TrivialActionClassifier] Ресурс " + resource + " не найден");
+                return result;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                String label = line.substring(0, tab).trim();
+                result.add(new LabeledAction(line.substring(tab + 1).trim(), "trivial".equals(label)));
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ [TrivialActionClassifier] Не удалось прочитать " + resource + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    private static double ratio(int numerator, int denominator) {
+        return denominator == 0 ? 0.0 : Math.round(numerator * 1000.0 / denominator) / 1000.0;
+    }
+}
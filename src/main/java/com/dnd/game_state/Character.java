@@ -109,6 +109,24 @@ public class Character {
     }
 
     // Getters and Setters
+    /**
+     * Независимая копия персонажа (для снимка состояния, который пишется в БД в другом потоке)
+     */
+    public Character copy() {
+        AbilityScores scores = abilityScores == null ? null : new AbilityScores(
+            abilityScores.getStrength(), abilityScores.getDexterity(), abilityScores.getConstitution(),
+            abilityScores.getIntelligence(), abilityScores.getWisdom(), abilityScores.getCharisma());
+        Character copy = new Character(name, characterClass, race, level, scores, background, alignment);
+        copy.hitPoints = hitPoints;
+        copy.maxHitPoints = maxHitPoints;
+        copy.armorClass = armorClass;
+        copy.speed = speed;
+        copy.skills = skills != null ? new HashMap<>(skills) : null;
+        copy.spells = spells != null ? new ArrayList<>(spells) : null;
+        copy.equipment = equipment != null ? new ArrayList<>(equipment) : null;
+        return copy;
+    }
+
     public String getName() { return name; }
     public void setName(String name) { this.name = name; }
 
@@ -2,15 +2,14 @@ package com.dnd.game_state;
 
 import com.dnd.service.GameStateService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.util.*;
 
 /**
- * Менеджер для управления состоянием игры (работает через JPA/PostgreSQL)
+ * Менеджер для управления состоянием игры (работает через JPA/PostgreSQL).
+ * Экземпляр принадлежит одной кампании и создается CampaignRuntimeRegistry.
  */
-@Component
 public class GameManager {
     private GameState currentGame;
     
@@ -19,6 +18,10 @@ public class GameManager {
 
     public GameManager() {
     }
+    
+    public GameManager(GameStateService gameStateService) {
+        this.gameStateService = gameStateService;
+    }
 
     public GameState startNewGame(String sessionId) {
         currentGame = gameStateService.createNewGame(sessionId);
@@ -75,6 +78,15 @@ public class GameManager {
         if (currentGame == null) return;
         gameStateService.saveGameState(currentGame);
     }
+    
+    /**
+     * Завершить ход: изменения за ход записываются в БД одной фоновой записью
+     */
+    public void commitTurn() {
+        if (currentGame == null) return;
+        gameStateService.saveGameState(currentGame);
+        gameStateService.flushAfterTurn(currentGame.getSessionId());
+    }
 
     public GameState getCurrentGame() {
         return currentGame;
@@ -3,15 +3,25 @@ package com.dnd.game_state;
 import com.dnd.messages.GameContext;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Состояние текущей игры
  */
 public class GameState {
+    // Агрегаты состояния для записи в БД: GameStateService пишет только измененные с прошлой записи
+    public static final String DIRTY_CAMPAIGN = "campaign";             // локация, ситуация, сцена, режим, прогресс сюжета
+    public static final String DIRTY_QUEST = "quest";                   // основной квест целиком
+    public static final String DIRTY_QUEST_PROGRESS = "quest_progress"; // только индекс этапа и завершение квеста
+    public static final String DIRTY_WORLD = "world";
+    public static final String DIRTY_CHARACTERS = "characters";         // состав персонажей
+
     private List<Character> characters = new ArrayList<>();
     private String currentScene = "";
     private String currentLocation = "Неизвестная локация";
     private List<GameEvent> gameHistory = new ArrayList<>();
+    // Сколько последних событий держать в памяти (0 - без ограничения); более ранние покрывает память кампании
+    private transient int historyLimit = 0;
     private String currentSituation = "";
     private List<Map<String, Object>> npcs = new ArrayList<>();
     private List<Map<String, Object>> quests = new ArrayList<>();
@@ -40,9 +50,11 @@ public class GameState {
     private Map<String, Map<String, Object>> sideQuests = new HashMap<>(); // Побочные квесты
     private Map<String, LocalDateTime> lastEventTimes = new HashMap<>(); // Время последних событий по типам
     private GameContext gameContext; // Контекст игры для валидации сообщений
+    private final transient Set<String> dirtyAggregates = ConcurrentHashMap.newKeySet();
 
     public void addCharacter(Character character) {
         characters.add(character);
+        markDirty(DIRTY_CHARACTERS);
     }
 
     public Character getCharacter(String name) {
@@ -54,6 +66,36 @@ public class GameState {
 
     public void addGameEvent(String eventType, String description, String characterName) {
         gameHistory.add(new GameEvent(LocalDateTime.now(), eventType, description, characterName));
+        if (historyLimit > 0 && gameHistory.size() > historyLimit) {
+            trimHistory();
+        }
+    }
+
+    /**
+     * ID строки game_events для последнего события истории с этим типом и текстом, у которого ID еще нет
+     */
+    public void assignEventId(String eventType, String description, Long id) {
+        for (int i = gameHistory.size() - 1; i >= 0; i--) {
+            GameEvent event = gameHistory.get(i);
+            if (event.getId() == null && Objects.equals(event.getType(), eventType) &&
+                Objects.equals(event.getDescription(), description)) {
+                event.id = id;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Удаляет самые старые события сверх historyLimit (по времени: загруженная история идет от новых к старым,
+     * новые события добавляются в конец)
+     */
+    private void trimHistory() {
+        int excess = gameHistory.size() - historyLimit;
+        List<GameEvent> byTime = new ArrayList<>(gameHistory);
+        byTime.sort(Comparator.comparing(GameEvent::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder())));
+        Set<GameEvent> oldest = Collections.newSetFromMap(new IdentityHashMap<>());
+        oldest.addAll(byTime.subList(0, excess));
+        gameHistory.removeIf(oldest::contains);
     }
 
     public String getRecentContext(int limit) {
@@ -92,6 +134,24 @@ public class GameState {
             storyProgress = 100;
             storyCompleted = true;
         }
+        markDirty(DIRTY_QUEST_PROGRESS);
+        markDirty(DIRTY_CAMPAIGN);
+    }
+    
+    /**
+     * Отмечает агрегат измененным (см. константы DIRTY_*)
+     */
+    public void markDirty(String aggregate) {
+        dirtyAggregates.add(aggregate);
+    }
+    
+    /**
+     * Возвращает измененные с прошлого вызова агрегаты и сбрасывает отметки
+     */
+    public Set<String> drainDirtyAggregates() {
+        Set<String> drained = new HashSet<>(dirtyAggregates);
+        dirtyAggregates.removeAll(drained);
+        return drained;
     }
     
     /**
@@ -116,22 +176,40 @@ public class GameState {
 
     // Getters and Setters
     public List<Character> getCharacters() { return characters; }
-    public void setCharacters(List<Character> characters) { this.characters = characters; }
+    public void setCharacters(List<Character> characters) {
+        this.characters = characters;
+        markDirty(DIRTY_CHARACTERS);
+    }
 
     public String getCurrentScene() { return currentScene; }
-    public void setCurrentScene(String currentScene) { this.currentScene = currentScene; }
+    public void setCurrentScene(String currentScene) {
+        if (!Objects.equals(this.currentScene, currentScene)) markDirty(DIRTY_CAMPAIGN);
+        this.currentScene = currentScene;
+    }
 
     public String getCurrentLocation() { return currentLocation; }
-    public void setCurrentLocation(String currentLocation) { this.currentLocation = currentLocation; }
+    public void setCurrentLocation(String currentLocation) {
+        if (!Objects.equals(this.currentLocation, currentLocation)) markDirty(DIRTY_CAMPAIGN);
+        this.currentLocation = currentLocation;
+    }
 
     public List<GameEvent> getGameHistory() { return gameHistory; }
     public void setGameHistory(List<GameEvent> gameHistory) { this.gameHistory = gameHistory; }
 
+    public int getHistoryLimit() { return historyLimit; }
+    public void setHistoryLimit(int historyLimit) { this.historyLimit = historyLimit; }
+
     public String getCurrentSituation() { return currentSituation; }
-    public void setCurrentSituation(String currentSituation) { this.currentSituation = currentSituation; }
+    public void setCurrentSituation(String currentSituation) {
+        if (!Objects.equals(this.currentSituation, currentSituation)) markDirty(DIRTY_CAMPAIGN);
+        this.currentSituation = currentSituation;
+    }
 
     public String getGameMode() { return gameMode; }
-    public void setGameMode(String gameMode) { this.gameMode = gameMode; }
+    public void setGameMode(String gameMode) {
+        if (!Objects.equals(this.gameMode, gameMode)) markDirty(DIRTY_CAMPAIGN);
+        this.gameMode = gameMode;
+    }
 
     public String getSessionId() { return sessionId; }
     public void setSessionId(String sessionId) { this.sessionId = sessionId; }
@@ -142,6 +220,7 @@ public class GameState {
     public Map<String, Object> getMainQuest() { return mainQuest; }
     public void setMainQuest(Map<String, Object> mainQuest) { 
         this.mainQuest = mainQuest;
+        markDirty(DIRTY_QUEST);
         if (mainQuest != null && !mainQuest.containsKey("current_stage_index")) {
             mainQuest.put("current_stage_index", 0);
         }
@@ -156,6 +235,7 @@ public class GameState {
         if (this.storyProgress >= 100) {
             storyCompleted = true;
         }
+        markDirty(DIRTY_CAMPAIGN);
     }
 
     public boolean isStoryCompleted() {
@@ -175,11 +255,16 @@ public class GameState {
         this.storyCompleted = storyCompleted;
         if (mainQuest != null) {
             mainQuest.put("completed", storyCompleted);
+            markDirty(DIRTY_QUEST_PROGRESS);
         }
+        markDirty(DIRTY_CAMPAIGN);
     }
 
     public Map<String, Object> getWorld() { return world; }
-    public void setWorld(Map<String, Object> world) { this.world = world; }
+    public void setWorld(Map<String, Object> world) {
+        this.world = world;
+        markDirty(DIRTY_WORLD);
+    }
     
     public SessionDuration getSessionDuration() { return sessionDuration; }
     public void setSessionDuration(SessionDuration sessionDuration) { 
@@ -282,18 +367,26 @@ public class GameState {
     }
 
     public static class GameEvent {
+        // ID строки game_events; null у событий текущего хода, еще не прочитанных из БД
+        private Long id;
         private LocalDateTime timestamp;
         private String type;
         private String description;
         private String character;
 
         public GameEvent(LocalDateTime timestamp, String type, String description, String character) {
+            this(null, timestamp, type, description, character);
+        }
+
+        public GameEvent(Long id, LocalDateTime timestamp, String type, String description, String character) {
+            this.id = id;
             this.timestamp = timestamp;
             this.type = type;
             this.description = description;
             this.character = character;
         }
 
+        public Long getId() { return id; }
         public LocalDateTime getTimestamp() { return timestamp; }
         public String getType() { return type; }
         public String getDescription() { return description; }
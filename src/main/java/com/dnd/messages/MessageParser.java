@@ -7,11 +7,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * Утилита для парсинга структурированных сообщений из JSON ответов LLM
  */
 public class MessageParser {
+    // Висячие запятые перед } и ] (\s включает перевод строки)
+    private static final Pattern TRAILING_COMMA_OBJECT = Pattern.compile(",\\s*}");
+    private static final Pattern TRAILING_COMMA_ARRAY = Pattern.compile(",\\s*]");
     
     /**
      * Парсит JSON ответ от LLM в StructuredMessage
@@ -34,8 +38,6 @@ public class MessageParser {
             messageTypeCode = inferMessageType(jsonObj);
         }
         
-        MessageType messageType = parseMessageType(messageTypeCode);
-        
         // Извлекаем контент
         String content = getStringValue(jsonObj, "content", null);
         if (content == null) {
@@ -50,34 +52,54 @@ public class MessageParser {
         }
         
         // Извлекаем метаданные
-        Map<String, Object> metadata = new HashMap<>();
+        Map<String, Object> metadata = null;
         if (jsonObj.has("metadata") && jsonObj.get("metadata").isJsonObject()) {
+            metadata = new HashMap<>();
             JsonObject metadataObj = jsonObj.getAsJsonObject("metadata");
             for (Map.Entry<String, JsonElement> entry : metadataObj.entrySet()) {
                 metadata.put(entry.getKey(), extractValue(entry.getValue()));
             }
         }
         
-        // Добавляем локацию в метаданные, если есть
-        String location = getStringValue(jsonObj, "location", null);
-        if (location != null && !location.isEmpty()) {
-            metadata.put("location", location);
-        }
-        
         // Извлекаем анализ, если есть
+        Map<String, Object> analysis = null;
         if (jsonObj.has("analysis") && jsonObj.get("analysis").isJsonObject()) {
+            analysis = new HashMap<>();
             JsonObject analysisObj = jsonObj.getAsJsonObject("analysis");
-            Map<String, Object> analysis = new HashMap<>();
             for (Map.Entry<String, JsonElement> entry : analysisObj.entrySet()) {
                 analysis.put(entry.getKey(), extractValue(entry.getValue()));
             }
-            metadata.put("analysis", analysis);
         }
         
-        // Создаем структурированное сообщение
-        StructuredMessage message = new StructuredMessage(messageType, content, characterName, metadata);
+        return buildMessage(messageTypeCode, content, getStringValue(jsonObj, "location", null),
+                metadata, analysis, characterName);
+    }
+    
+    /**
+     * Собирает StructuredMessage из уже разобранных полей
+     * (используется и для ответов structured output, связанных с записью напрямую)
+     */
+    public static StructuredMessage buildMessage(String messageTypeCode, String content, String location,
+                                                 Map<String, Object> metadata, Map<String, Object> analysis,
+                                                 String characterName) {
+        MessageType messageType = parseMessageType(messageTypeCode);
+        
+        Map<String, Object> allMetadata = new HashMap<>();
+        if (metadata != null) {
+            allMetadata.putAll(metadata);
+        }
+        
+        // Добавляем локацию в метаданные, если есть
+        if (location != null && !location.isEmpty()) {
+            allMetadata.put("location", location);
+        }
         
-        return message;
+        if (analysis != null) {
+            allMetadata.put("analysis", analysis);
+        }
+        
+        // Создаем структурированное сообщение
+        return new StructuredMessage(messageType, content, characterName, allMetadata);
     }
     
     /**
@@ -103,10 +125,8 @@ public class MessageParser {
      * Очищает JSON строку от распространенных ошибок
      */
     private static String cleanJsonString(String json) {
-        json = json.replaceAll(",\\s*}", "}");
-        json = json.replaceAll(",\\s*]", "]");
-        json = json.replaceAll(",\\s*\\n\\s*}", "\n}");
-        json = json.replaceAll(",\\s*\\n\\s*]", "\n]");
+        json = TRAILING_COMMA_OBJECT.matcher(json).replaceAll("}");
+        json = TRAILING_COMMA_ARRAY.matcher(json).replaceAll("]");
         return json;
     }
     
@@ -0,0 +1,105 @@
+package com.dnd.messages;
+
+import java.util.*;
+
+/**
+ * Бюджет токенов для сборки контекста промпта.
+ * Оценивает размер текста в токенах без токенизатора модели: кириллица ~2.5 символа на токен,
+ * остальной текст ~4 символа на токен (оценка с запасом для mistral).
+ * Секции заполняются по порядку: неиспользованный остаток секции переходит к следующей.
+ */
+public class PromptBudget {
+    private int remaining;
+    private final Map<String, Integer> usedBySection = new LinkedHashMap<>();
+    private final Map<String, Integer> droppedBySection = new LinkedHashMap<>();
+
+    public PromptBudget(int tokens) {
+        this.remaining = Math.max(0, tokens);
+    }
+
+    /**
+     * Оценка числа токенов текста
+     */
+    public static int estimateTokens(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int cyrillic = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.UnicodeBlock.of(text.charAt(i)) == Character.UnicodeBlock.CYRILLIC) {
+                cyrillic++;
+            }
+        }
+        int other = text.length() - cyrillic;
+        return (int) Math.ceil(cyrillic / 2.5 + other / 4.0);
+    }
+
+    /**
+     * Обрезает текст до maxTokens: по границе предложения, если она есть во второй половине, иначе по слову
+     */
+    public static String truncate(String text, int maxTokens) {
+        if (text == null || estimateTokens(text) <= maxTokens) {
+            return text;
+        }
+        if (maxTokens <= 0) {
+            return "";
+        }
+        // Бинарный поиск длины префикса, укладывающегося в бюджет
+        int low = 0;
+        int high = text.length();
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            if (estimateTokens(text.substring(0, mid)) + 1 <= maxTokens) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        String prefix = text.substring(0, low);
+        int sentenceEnd = Math.max(prefix.lastIndexOf(". "), Math.max(prefix.lastIndexOf("! "), prefix.lastIndexOf("? ")));
+        if (sentenceEnd >= prefix.length() / 2) {
+            return prefix.substring(0, sentenceEnd + 1);
+        }
+        int wordEnd = prefix.lastIndexOf(' ');
+        if (wordEnd > 0) {
+            prefix = prefix.substring(0, wordEnd);
+        }
+        return prefix + "…";
+    }
+
+    /**
+     * Остаток бюджета для секции: ее доля от текущего остатка
+     */
+    public int sectionBudget(double share) {
+        return (int) (remaining * Math.max(0.0, Math.min(1.0, share)));
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Списывает использованные секцией токены
+     */
+    public void spend(String section, int tokens, int droppedItems) {
+        remaining = Math.max(0, remaining - tokens);
+        usedBySection.merge(section, tokens, Integer::sum);
+        if (droppedItems > 0) {
+            droppedBySection.merge(section, droppedItems, Integer::sum);
+        }
+    }
+
+    /**
+     * Использованные токены по секциям
+     */
+    public Map<String, Integer> getUsedBySection() {
+        return Collections.unmodifiableMap(usedBySection);
+    }
+
+    /**
+     * Элементы, не вошедшие в бюджет, по секциям
+     */
+    public Map<String, Integer> getDroppedBySection() {
+        return Collections.unmodifiableMap(droppedBySection);
+    }
+}
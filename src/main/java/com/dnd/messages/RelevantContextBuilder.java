@@ -3,10 +3,16 @@ package com.dnd.messages;
 import com.dnd.game_state.GameState;
 import com.dnd.entity.*;
 import com.dnd.repository.CampaignRepository;
+import com.dnd.repository.GameEventRepository;
+import com.dnd.service.CampaignMemoryService;
 import com.dnd.service.EmbeddingService;
 import com.dnd.service.VectorDBService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -23,15 +29,42 @@ public class RelevantContextBuilder {
     @Autowired
     private CampaignRepository campaignRepository;
     
+    @Autowired
+    private GameEventRepository gameEventRepository;
+    
     @Autowired(required = false)
     private EmbeddingService embeddingService;
     
     @Autowired(required = false)
     private VectorDBService vectorDBService;
     
+    @Autowired(required = false)
+    private CampaignMemoryService campaignMemoryService;
+    
     // Минимальная похожесть для семантического поиска (0.0 - 1.0)
     private static final double MIN_SIMILARITY = 0.6;
     
+    // Типы вызовов LLM, для которых собирается контекст
+    public static final String CALL_CONTINUATION = "continuation";
+    public static final String CALL_FINAL_SCENE = "final_scene";
+    
+    // Сколько ближайших событий запрашивать у векторного поиска
+    @Value("${rag.top-k:10}")
+    private int ragTopK;
+    
+    // Бюджет токенов контекста по типу вызова
+    @Value("${context.budget.continuation-tokens:1500}")
+    private int continuationTokens;
+    
+    @Value("${context.budget.final-scene-tokens:2000}")
+    private int finalSceneTokens;
+    
+    @Value("${context.budget.default-tokens:2000}")
+    private int defaultTokens;
+    
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+    
     /**
      * Строит релевантный контекст для генерации сообщения
      * Использует RAG для семантического поиска релевантных событий
@@ -64,7 +97,8 @@ public class RelevantContextBuilder {
                 mainQuest,
                 currentQuestStage,
                 gameState.getCurrentLocation(),
-                campaignId
+                campaignId,
+                context.getEventSimilarity()
             );
             context.setRelevantEvents(relevantEvents);
         } else {
@@ -92,6 +126,13 @@ public class RelevantContextBuilder {
         context.setCurrentLocation(gameState.getCurrentLocation());
         context.setCurrentSituation(gameState.getCurrentSituation());
         
+        // Более ранняя история - из сжатой памяти кампании (синопсис и сводки этапов), а не из сырых событий
+        if (campaignMemoryService != null) {
+            CampaignMemoryService.CampaignMemory memory = campaignMemoryService.getMemory(campaignId);
+            context.setCampaignSynopsis(memory.getSynopsis());
+            context.setStageSummaries(memory.getStageSummaries());
+        }
+        
         return context;
     }
     
@@ -104,7 +145,8 @@ public class RelevantContextBuilder {
         Map<String, Object> quest,
         String currentQuestStage,
         String currentLocation,
-        String campaignId
+        String campaignId,
+        Map<String, Double> similarityOut
     ) {
         // Если RAG недоступен, выбрасываем ошибку
         if (embeddingService == null || vectorDBService == null) {
@@ -145,13 +187,13 @@ public class RelevantContextBuilder {
         System.out.println("📊 [RAG] Минимальная похожесть (MIN_SIMILARITY): " + MIN_SIMILARITY);
         System.out.println("📊 [RAG] Запрос для RAG: " + queryText.substring(0, Math.min(100, queryText.length())) + "...");
         
-        // Ищем похожие события через RAG (без ограничения по количеству)
+        // Ищем K ближайших событий через RAG (порог похожести применяется к найденным K)
         List<VectorDBService.SimilarEvent> ragEvents;
         try {
             ragEvents = vectorDBService.searchSimilar(
                 queryEmbedding,
                 campaign.getId(),
-                null, // null означает получить все релевантные события без ограничения
+                ragTopK,
                 MIN_SIMILARITY
             );
             System.out.println("📥 [RAG] Событий найдено векторным поиском: " + ragEvents.size());
@@ -169,26 +211,39 @@ public class RelevantContextBuilder {
                              ", средняя=" + String.format("%.3f", avgSimilarity));
         }
         
-        // Создаем Map для быстрого поиска событий по описанию
-        Map<String, GameState.GameEvent> eventsByDescription = allEvents.stream()
-            .collect(Collectors.toMap(
-                GameState.GameEvent::getDescription,
-                e -> e,
-                (e1, e2) -> e1 // При дубликатах берем первое
-            ));
+        // Загружаем найденные события одним запросом по их id (история кампании в памяти не нужна)
+        List<Long> ragEventIds = ragEvents.stream()
+            .filter(ragEvent -> ragEvent.getSimilarity() >= MIN_SIMILARITY)
+            .map(VectorDBService.SimilarEvent::getEventId)
+            .collect(Collectors.toList());
+        Map<Long, GameEvent> eventsById = ragEventIds.isEmpty()
+            ? Map.of()
+            : gameEventRepository.findByCampaignIdAndIdIn(campaign.getId(), ragEventIds).stream()
+                .collect(Collectors.toMap(GameEvent::getId, e -> e));
         
         // Собираем релевантные события из RAG результатов (фильтруем по похожести >= MIN_SIMILARITY)
         List<GameState.GameEvent> relevantEvents = new ArrayList<>();
+        Set<String> addedKeys = new HashSet<>();
         int filteredBySimilarity = 0;
         int notFoundInHistory = 0;
         int addedFromRAG = 0;
         
         for (VectorDBService.SimilarEvent ragEvent : ragEvents) {
             if (ragEvent.getSimilarity() >= MIN_SIMILARITY) {
-                GameState.GameEvent matchingEvent = eventsByDescription.get(ragEvent.getDescription());
-                if (matchingEvent != null) {
-                    relevantEvents.add(matchingEvent);
-                    addedFromRAG++;
+                GameEvent dbEvent = eventsById.get(ragEvent.getEventId());
+                if (dbEvent != null) {
+                    GameState.GameEvent matchingEvent = new GameState.GameEvent(
+                        dbEvent.getId(),
+                        dbEvent.getTimestamp(),
+                        dbEvent.getEventType(),
+                        dbEvent.getDescription(),
+                        dbEvent.getCharacterName()
+                    );
+                    if (addedKeys.add(RelevantContext.eventKey(matchingEvent))) {
+                        relevantEvents.add(matchingEvent);
+                        similarityOut.put(RelevantContext.eventKey(matchingEvent), ragEvent.getSimilarity());
+                        addedFromRAG++;
+                    }
                 } else {
                     notFoundInHistory++;
                 }
@@ -199,7 +254,7 @@ public class RelevantContextBuilder {
         
         System.out.println("✅ [RAG] Событий прошло фильтрацию по похожести (>= " + MIN_SIMILARITY + "): " + addedFromRAG);
         System.out.println("❌ [RAG] Событий отсеяно по похожести (< " + MIN_SIMILARITY + "): " + filteredBySimilarity);
-        System.out.println("⚠️ [RAG] Событий не найдено в истории (по описанию): " + notFoundInHistory);
+        System.out.println("⚠️ [RAG] Событий не найдено в БД (по id): " + notFoundInHistory);
         
         // Всегда добавляем последние 3 события для контекста
         int recentCount = Math.min(3, allEvents.size());
@@ -210,7 +265,10 @@ public class RelevantContextBuilder {
                 allEvents.size()
             );
             for (GameState.GameEvent recent : recentEvents) {
-                if (!relevantEvents.contains(recent)) {
+                // У событий текущего хода еще нет ID: такое же событие из RAG узнается по тексту и времени
+                boolean foundByRag = recent.getId() == null && relevantEvents.stream()
+                    .anyMatch(found -> RelevantContext.sameEvent(found, recent));
+                if (!foundByRag && addedKeys.add(RelevantContext.eventKey(recent))) {
                     relevantEvents.add(recent);
                     addedRecent++;
                 }
@@ -233,13 +291,63 @@ public class RelevantContextBuilder {
         System.out.println("📊 [RAG] ИТОГО релевантных событий: " + relevantEvents.size());
         System.out.println("📊 [RAG] Из них из RAG: " + addedFromRAG + ", из последних событий: " + addedRecent);
         System.out.println("📊 [RAG] Всего отсеяно: " + (filteredBySimilarity + notFoundInHistory) + 
-                         " (по похожести: " + filteredBySimilarity + ", не найдено в истории: " + notFoundInHistory + ")");
+                         " (по похожести: " + filteredBySimilarity + ", не найдено в БД: " + notFoundInHistory + ")");
         System.out.println("✅ [RAG] Поиск завершён");
         
         // Возвращаем все релевантные события в историческом порядке
         return relevantEvents;
     }
     
+    /**
+     * Бюджет токенов контекста для типа вызова (CALL_CONTINUATION, CALL_FINAL_SCENE)
+     */
+    public int getTokenBudget(String callType) {
+        if (CALL_CONTINUATION.equals(callType)) {
+            return continuationTokens;
+        }
+        if (CALL_FINAL_SCENE.equals(callType)) {
+            return finalSceneTokens;
+        }
+        return defaultTokens;
+    }
+    
+    /**
+     * Форматирует контекст в бюджете токенов типа вызова и записывает метрики:
+     * llm.context.tokens{section} - токены секции, llm.context.items_dropped{section} - не вошедшие элементы
+     */
+    public String format(RelevantContext context, String callType) {
+        if (callType == null || callType.isBlank()) {
+            throw new IllegalArgumentException("Не указан тип вызова для бюджета контекста");
+        }
+        int tokenBudget = getTokenBudget(callType);
+        String text = context.formatForPrompt(tokenBudget);
+        PromptBudget budget = context.getLastBudget();
+        
+        int used = tokenBudget - budget.getRemaining();
+        System.out.println("📏 [RelevantContextBuilder] Контекст " + callType + ": ~" + used + "/" + tokenBudget +
+            " токенов, по секциям " + budget.getUsedBySection() +
+            (budget.getDroppedBySection().isEmpty() ? "" : ", опущено " + budget.getDroppedBySection()));
+        
+        if (meterRegistry != null) {
+            for (Map.Entry<String, Integer> entry : budget.getUsedBySection().entrySet()) {
+                DistributionSummary.builder("llm.context.tokens")
+                    .tag("section", entry.getKey())
+                    .description("Оценка токенов секции релевантного контекста в промпте")
+                    .baseUnit("tokens")
+                    .register(meterRegistry)
+                    .record(entry.getValue());
+            }
+            for (Map.Entry<String, Integer> entry : budget.getDroppedBySection().entrySet()) {
+                Counter.builder("llm.context.items_dropped")
+                    .tag("section", entry.getKey())
+                    .description("Элементы контекста, не вошедшие в бюджет токенов")
+                    .register(meterRegistry)
+                    .increment(entry.getValue());
+            }
+        }
+        return text;
+    }
+    
     /**
      * Находит события после последнего события квеста
      * История загружается в порядке DESC (новые первыми), поэтому ищем с начала
@@ -353,6 +461,16 @@ public class RelevantContextBuilder {
      * Класс для хранения релевантного контекста
      */
     public static class RelevantContext {
+        // Предельные размеры одного элемента при сборке с бюджетом токенов
+        private static final int MAX_QUEST_FIELD_TOKENS = 120;
+        private static final int MAX_EVENT_TOKENS = 150;
+        private static final int MAX_NPC_TOKENS = 80;
+        private static final int MAX_LOCATION_TOKENS = 60;
+        // Вес похожести из RAG против новизны при ранжировании событий
+        private static final double EVENT_SIMILARITY_WEIGHT = 0.6;
+        // Доля бюджета после квеста на сжатую историю кампании
+        private static final double MEMORY_SHARE = 0.3;
+        
         private Map<String, Object> activeQuest;
         private String currentQuestStage;
         private List<GameState.GameEvent> relevantEvents;
@@ -360,6 +478,12 @@ public class RelevantContextBuilder {
         private List<Map<String, Object>> relevantLocations;
         private String currentLocation;
         private String currentSituation;
+        private String campaignSynopsis;
+        private List<CampaignMemoryService.StageSummary> stageSummaries = new ArrayList<>();
+        // Похожесть событий из RAG по ключу события (type|description)
+        private Map<String, Double> eventSimilarity = new HashMap<>();
+        // Распределение бюджета при последнем formatForPrompt(tokenBudget)
+        private PromptBudget lastBudget;
         
         // Getters and Setters
         public Map<String, Object> getActiveQuest() { return activeQuest; }
@@ -383,62 +507,266 @@ public class RelevantContextBuilder {
         public String getCurrentSituation() { return currentSituation; }
         public void setCurrentSituation(String currentSituation) { this.currentSituation = currentSituation; }
         
+        public String getCampaignSynopsis() { return campaignSynopsis; }
+        public void setCampaignSynopsis(String campaignSynopsis) { this.campaignSynopsis = campaignSynopsis; }
+        
+        public List<CampaignMemoryService.StageSummary> getStageSummaries() { return stageSummaries; }
+        public void setStageSummaries(List<CampaignMemoryService.StageSummary> stageSummaries) { this.stageSummaries = stageSummaries; }
+        
+        public Map<String, Double> getEventSimilarity() { return eventSimilarity; }
+        public void setEventSimilarity(Map<String, Double> eventSimilarity) { this.eventSimilarity = eventSimilarity; }
+        
+        public PromptBudget getLastBudget() { return lastBudget; }
+        
+        // Допустимое расхождение времени одного события в памяти и в БД (время ставится при добавлении в каждом месте)
+        private static final long SAME_EVENT_WINDOW_SECONDS = 5;
+        
+        /**
+         * Ключ события для исключения дублей и привязки похожести из RAG: ID строки game_events,
+         * для событий без ID - тип, время и текст (одинаковые действия в разные ходы - разные события)
+         */
+        public static String eventKey(GameState.GameEvent event) {
+            if (event.getId() != null) {
+                return "#" + event.getId();
+            }
+            return event.getType() + "|" + event.getTimestamp() + "|" + event.getDescription();
+        }
+        
+        /**
+         * Одно и то же событие из разных источников: совпадают ID, а если ID есть не у обоих -
+         * тип и текст при времени в пределах SAME_EVENT_WINDOW_SECONDS
+         */
+        static boolean sameEvent(GameState.GameEvent a, GameState.GameEvent b) {
+            if (a.getId() != null && b.getId() != null) {
+                return a.getId().equals(b.getId());
+            }
+            if (!Objects.equals(a.getType(), b.getType()) || !Objects.equals(a.getDescription(), b.getDescription())) {
+                return false;
+            }
+            if (a.getTimestamp() == null || b.getTimestamp() == null) {
+                return false;
+            }
+            return Math.abs(java.time.Duration.between(a.getTimestamp(), b.getTimestamp()).getSeconds()) <= SAME_EVENT_WINDOW_SECONDS;
+        }
+        
         /**
-         * Форматирует релевантный контекст в текст для промпта
+         * Форматирует контекст с ограничением по токенам.
+         * Квест включается всегда; затем история кампании (30% остатка), события (50% остатка),
+         * NPC (половина оставшегося) и локации (все, что осталось).
+         * Внутри секции элементы ранжируются: события - по похожести из RAG и новизне,
+         * NPC и локации - текущая локация и упомянутые в событиях или ситуации первыми.
+         * Длинные описания обрезаются, не вошедшие элементы сводятся к строке-итогу.
+         * Вызывается через RelevantContextBuilder.format с типом вызова
          */
-        public String formatForPrompt() {
+        private String formatForPrompt(int tokenBudget) {
+            PromptBudget budget = new PromptBudget(tokenBudget);
             StringBuilder context = new StringBuilder();
             
-            // Активный квест
             if (activeQuest != null) {
-                context.append("=== АКТИВНЫЙ КВЕСТ ===\n");
-                context.append("Название: ").append(activeQuest.getOrDefault("title", "Неизвестно")).append("\n");
-                context.append("Цель: ").append(activeQuest.getOrDefault("goal", "Неизвестно")).append("\n");
+                StringBuilder quest = new StringBuilder("=== АКТИВНЫЙ КВЕСТ ===\n");
+                quest.append("Название: ").append(activeQuest.getOrDefault("title", "Неизвестно")).append("\n");
+                quest.append("Цель: ").append(PromptBudget.truncate(String.valueOf(activeQuest.getOrDefault("goal", "Неизвестно")), MAX_QUEST_FIELD_TOKENS)).append("\n");
                 if (currentQuestStage != null) {
-                    context.append("Текущий этап: ").append(currentQuestStage).append("\n");
+                    quest.append("Текущий этап: ").append(PromptBudget.truncate(currentQuestStage, MAX_QUEST_FIELD_TOKENS)).append("\n");
                 }
-                context.append("\n");
+                quest.append("\n");
+                context.append(quest);
+                budget.spend("quest", PromptBudget.estimateTokens(quest.toString()), 0);
             }
             
-            // Релевантные события (найденные через RAG)
+            context.append(formatMemory(budget, budget.sectionBudget(MEMORY_SHARE)));
+            
+            List<GameState.GameEvent> selectedEvents = new ArrayList<>();
             if (relevantEvents != null && !relevantEvents.isEmpty()) {
-                context.append("=== РЕЛЕВАНТНЫЕ СОБЫТИЯ ===\n");
-                for (GameState.GameEvent event : relevantEvents) {
-                    context.append("- [").append(event.getType()).append("] ")
-                           .append(event.getDescription()).append("\n");
-                }
-                context.append("\n");
+                context.append(formatEvents(budget, budget.sectionBudget(0.5), selectedEvents));
+            }
+            
+            // Имена, упомянутые в выбранных событиях и текущей ситуации, поднимают NPC и локации в ранжировании
+            StringBuilder mentionsText = new StringBuilder(currentSituation != null ? currentSituation : "");
+            for (GameState.GameEvent event : selectedEvents) {
+                mentionsText.append(' ').append(event.getDescription());
             }
+            String mentions = mentionsText.toString().toLowerCase(Locale.ROOT);
             
-            // NPC в текущей локации
             if (relevantNPCs != null && !relevantNPCs.isEmpty()) {
-                context.append("=== NPC В ТЕКУЩЕЙ ЛОКАЦИИ ===\n");
-                for (Map<String, Object> npc : relevantNPCs) {
-                    context.append("- ").append(npc.get("name"));
-                    if (npc.get("description") != null) {
-                        String desc = (String) npc.get("description");
-                        context.append(": ").append(desc);
+                context.append(formatEntities(budget, "npcs", "=== NPC В ТЕКУЩЕЙ ЛОКАЦИИ ===\n", "Также здесь: ",
+                    relevantNPCs, mentions, budget.sectionBudget(0.5), MAX_NPC_TOKENS));
+            }
+            
+            if (relevantLocations != null && !relevantLocations.isEmpty()) {
+                context.append(formatEntities(budget, "locations", "=== ДОСТУПНЫЕ ЛОКАЦИИ ===\n", "Также открыты: ",
+                    relevantLocations, mentions, budget.getRemaining(), MAX_LOCATION_TOKENS));
+            }
+            
+            lastBudget = budget;
+            return context.toString();
+        }
+        
+        /**
+         * Синопсис (обрезается по бюджету) и сводки этапов от последнего к более ранним, пока помещаются
+         */
+        private String formatMemory(PromptBudget budget, int sectionTokens) {
+            StringBuilder section = new StringBuilder();
+            int used = 0;
+            if (campaignSynopsis != null && !campaignSynopsis.isEmpty()) {
+                String header = "=== ИСТОРИЯ КАМПАНИИ ===\n";
+                int available = sectionTokens / 2 - PromptBudget.estimateTokens(header) - 1;
+                if (available > 0) {
+                    section.append(header).append(PromptBudget.truncate(campaignSynopsis, available)).append("\n\n");
+                    used = PromptBudget.estimateTokens(section.toString());
+                }
+            }
+            
+            int dropped = 0;
+            if (stageSummaries != null && !stageSummaries.isEmpty()) {
+                String header = "=== ПРОЙДЕННЫЕ ЭТАПЫ ===\n";
+                used += PromptBudget.estimateTokens(header) + 1;
+                LinkedList<String> lines = new LinkedList<>();
+                for (int i = stageSummaries.size() - 1; i >= 0; i--) {
+                    CampaignMemoryService.StageSummary stage = stageSummaries.get(i);
+                    String line = "- " + stage.getStageTitle() + ": " + stage.getContent() + "\n";
+                    int tokens = PromptBudget.estimateTokens(line);
+                    if (used + tokens > sectionTokens) {
+                        dropped = i + 1;
+                        break;
                     }
-                    context.append("\n");
+                    used += tokens;
+                    lines.addFirst(line);
+                }
+                if (!lines.isEmpty()) {
+                    section.append(header);
+                    lines.forEach(section::append);
+                    section.append("\n");
                 }
-                context.append("\n");
             }
             
-            // Локации
-            if (relevantLocations != null && !relevantLocations.isEmpty()) {
-                context.append("=== ДОСТУПНЫЕ ЛОКАЦИИ ===\n");
-                for (Map<String, Object> loc : relevantLocations) {
-                    context.append("- ").append(loc.get("name"));
-                    if (loc.get("description") != null) {
-                        String desc = (String) loc.get("description");
-                        context.append(": ").append(desc);
+            budget.spend("memory", PromptBudget.estimateTokens(section.toString()), dropped);
+            return section.toString();
+        }
+        
+        /**
+         * События: отбор по убыванию ранга, вывод в исходном (хронологическом) порядке
+         */
+        private String formatEvents(PromptBudget budget, int sectionTokens, List<GameState.GameEvent> selected) {
+            String header = "=== РЕЛЕВАНТНЫЕ СОБЫТИЯ ===\n";
+            int used = PromptBudget.estimateTokens(header) + 1;
+            
+            // Новизна по времени события: 0 - самое старое, 1 - самое новое
+            List<GameState.GameEvent> byTime = new ArrayList<>(relevantEvents);
+            byTime.sort(Comparator.comparing(GameState.GameEvent::getTimestamp,
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+            Map<GameState.GameEvent, Double> rank = new IdentityHashMap<>();
+            for (int i = 0; i < byTime.size(); i++) {
+                double recency = byTime.size() > 1 ? (double) i / (byTime.size() - 1) : 1.0;
+                Double similarity = eventSimilarity.get(eventKey(byTime.get(i)));
+                rank.put(byTime.get(i), EVENT_SIMILARITY_WEIGHT * (similarity != null ? similarity : 0.0)
+                    + (1.0 - EVENT_SIMILARITY_WEIGHT) * recency);
+            }
+            List<GameState.GameEvent> byRank = new ArrayList<>(relevantEvents);
+            byRank.sort((a, b) -> Double.compare(rank.get(b), rank.get(a)));
+            
+            Map<GameState.GameEvent, String> lines = new IdentityHashMap<>();
+            for (GameState.GameEvent event : byRank) {
+                String line = "- [" + event.getType() + "] " +
+                    PromptBudget.truncate(event.getDescription(), MAX_EVENT_TOKENS) + "\n";
+                int tokens = PromptBudget.estimateTokens(line);
+                if (used + tokens > sectionTokens) {
+                    continue;
+                }
+                used += tokens;
+                lines.put(event, line);
+            }
+            
+            int dropped = relevantEvents.size() - lines.size();
+            if (lines.isEmpty()) {
+                budget.spend("events", 0, dropped);
+                return "";
+            }
+            StringBuilder section = new StringBuilder(header);
+            for (GameState.GameEvent event : relevantEvents) {
+                String line = lines.get(event);
+                if (line != null) {
+                    section.append(line);
+                    selected.add(event);
+                }
+            }
+            if (dropped > 0) {
+                section.append("(еще событий опущено: ").append(dropped).append(")\n");
+            }
+            section.append("\n");
+            budget.spend("events", PromptBudget.estimateTokens(section.toString()), dropped);
+            return section.toString();
+        }
+        
+        /**
+         * NPC или локации: текущая локация и упомянутые первыми, описания обрезаются,
+         * не вошедшие перечисляются только по именам, пока хватает бюджета
+         */
+        private String formatEntities(PromptBudget budget, String sectionName, String header, String restPrefix,
+                                      List<Map<String, Object>> items, String mentions,
+                                      int sectionTokens, int maxItemTokens) {
+            List<Map<String, Object>> ranked = new ArrayList<>(items);
+            ranked.sort(Comparator.comparingInt(item -> entityRank(item, mentions)));
+            
+            StringBuilder section = new StringBuilder(header);
+            int used = PromptBudget.estimateTokens(header) + 1;
+            List<String> restNames = new ArrayList<>();
+            for (Map<String, Object> item : ranked) {
+                StringBuilder line = new StringBuilder("- ").append(item.get("name"));
+                if (item.get("description") != null) {
+                    line.append(": ").append(PromptBudget.truncate((String) item.get("description"), maxItemTokens));
+                }
+                line.append("\n");
+                int tokens = PromptBudget.estimateTokens(line.toString());
+                if (restNames.isEmpty() && used + tokens <= sectionTokens) {
+                    section.append(line);
+                    used += tokens;
+                } else {
+                    restNames.add(String.valueOf(item.get("name")));
+                }
+            }
+            
+            int included = items.size() - restNames.size();
+            int dropped = 0;
+            if (!restNames.isEmpty()) {
+                // Итог по не вошедшим: только имена, сколько поместится
+                StringBuilder rest = new StringBuilder(restPrefix);
+                int listed = 0;
+                for (String name : restNames) {
+                    String part = (listed > 0 ? ", " : "") + name;
+                    if (used + PromptBudget.estimateTokens(rest + part) > sectionTokens) {
+                        break;
                     }
-                    context.append("\n");
+                    rest.append(part);
+                    listed++;
+                }
+                dropped = restNames.size() - listed;
+                if (listed > 0) {
+                    section.append(rest).append("\n");
                 }
-                context.append("\n");
             }
             
-            return context.toString();
+            if (included == 0 && dropped == items.size()) {
+                budget.spend(sectionName, 0, dropped);
+                return "";
+            }
+            section.append("\n");
+            budget.spend(sectionName, PromptBudget.estimateTokens(section.toString()), dropped);
+            return section.toString();
+        }
+        
+        /**
+         * 0 - текущая локация, 1 - упомянут в событиях или ситуации, 2 - остальные
+         */
+        private int entityRank(Map<String, Object> item, String mentions) {
+            String name = item.get("name") != null ? item.get("name").toString() : "";
+            if (currentLocation != null && name.equalsIgnoreCase(currentLocation)) {
+                return 0;
+            }
+            if (!name.isEmpty() && mentions.contains(name.toLowerCase(Locale.ROOT))) {
+                return 1;
+            }
+            return 2;
         }
     }
 }
@@ -8,6 +8,12 @@ import java.util.Map;
  */
 public class ActionPrompts {
     
+    /**
+     * Ключи игрового контекста, которые попадают в промпты парсера действий
+     */
+    public static final List<String> PARSER_CONTEXT_KEYS = List.of("current_location", "current_situation", "environment");
+    private static final List<String> PARSER_CONTEXT_LABELS = List.of("Локация", "Ситуация", "Окружение");
+    
     /**
      * Промпт для генерации нарратива действия игрока
      */
@@ -34,8 +40,6 @@ public class ActionPrompts {
         }
         
         return String.format("""
-            Ты — опытный Dungeon Master для D&D 5e. Создай детальное, атмосферное описание действия игрока.
-            
             Персонаж: %s (%s, %s)
             Действие: "%s"
             
@@ -48,6 +52,26 @@ public class ActionPrompts {
             Контекст:
             - Локация: %s
             %s
+            Опиши действие и его результат по инструкции и верни ответ ТОЛЬКО в формате JSON.
+            """, 
+            characterName, characterClass, characterRace, actionText,
+            ruleResult.getOrDefault("skill", "N/A"),
+            ruleResult.getOrDefault("ability", "N/A"),
+            ruleResult.getOrDefault("dc", "N/A"),
+            diceRollInfo,
+            isSuccess ? "УСПЕХ" : "НЕУДАЧА",
+            currentLocation,
+            situationContext);
+    }
+    
+    /**
+     * Инструкция нарратива действия. Не зависит от хода, поэтому передается в системном сообщении
+     * и побайтно совпадает во всех запросах: Ollama переиспользует ее обработанный префикс.
+     */
+    public static String getActionNarrativeInstructions() {
+        return """
+            Ты — опытный Dungeon Master для D&D 5e. Создай детальное, атмосферное описание действия игрока.
+            
             Создай ДЕТАЛЬНОЕ описание того, что происходит:
             1. Опиши, как персонаж выполняет действие
             2. Опиши, что он видит/чувствует/слышит
@@ -110,15 +134,7 @@ public class ActionPrompts {
             - Уточняю: не нужно писать всё подряд, пишем только важных npc, продумывай их историю и значимость. Например не нужно писать рандомного стражника, если мы просто спросили у него дорогу (пиши только если он будет связан с сюжетом).
             - Если локация находится в другой локации. Например: город Лордран, страна Ильбум; или таверна "дикий крот", город Лордран
             - Если ничего нового не произошло, можешь опустить поле analysis или оставить его пустым
-            """, 
-            characterName, characterClass, characterRace, actionText,
-            ruleResult.getOrDefault("skill", "N/A"),
-            ruleResult.getOrDefault("ability", "N/A"),
-            ruleResult.getOrDefault("dc", "N/A"),
-            diceRollInfo,
-            isSuccess ? "УСПЕХ" : "НЕУДАЧА",
-            currentLocation,
-            situationContext);
+            """;
     }
     
     /**
@@ -298,29 +314,7 @@ public class ActionPrompts {
         StringBuilder prompt = new StringBuilder();
         prompt.append(String.format("Действие игрока: \"%s\"\n\n", actionText));
         
-        if (gameContext != null) {
-            if (gameContext.containsKey("current_location")) {
-                prompt.append(String.format("Локация: %s\n", gameContext.get("current_location")));
-            }
-            if (gameContext.containsKey("environment")) {
-                Object env = gameContext.get("environment");
-                if (env instanceof List) {
-                    prompt.append(String.format("Окружение: %s\n", String.join(", ", 
-                        ((List<?>) env).stream().map(Object::toString).toArray(String[]::new))));
-                } else {
-                    prompt.append(String.format("Окружение: %s\n", env));
-                }
-            }
-            if (gameContext.containsKey("equipment")) {
-                Object equip = gameContext.get("equipment");
-                if (equip instanceof List) {
-                    prompt.append(String.format("Снаряжение: %s\n", String.join(", ", 
-                        ((List<?>) equip).stream().map(Object::toString).toArray(String[]::new))));
-                } else {
-                    prompt.append(String.format("Снаряжение: %s\n", equip));
-                }
-            }
-        }
+        appendParserContext(prompt, gameContext);
         
         prompt.append("""
 Проанализируй это действие по правилам D&D 5e:
@@ -341,30 +335,7 @@ public class ActionPrompts {
                                                     Map<String, Object> gameContext) {
         StringBuilder prompt = new StringBuilder();
         prompt.append(String.format("Действие игрока: \"%s\"\n\n", actionText));
-        
-        if (gameContext != null) {
-            if (gameContext.containsKey("current_location")) {
-                prompt.append(String.format("Локация: %s\n", gameContext.get("current_location")));
-            }
-            if (gameContext.containsKey("environment")) {
-                Object env = gameContext.get("environment");
-                if (env instanceof List) {
-                    prompt.append(String.format("Окружение: %s\n", String.join(", ", 
-                        ((List<?>) env).stream().map(Object::toString).toArray(String[]::new))));
-                } else {
-                    prompt.append(String.format("Окружение: %s\n", env));
-                }
-            }
-            if (gameContext.containsKey("equipment")) {
-                Object equip = gameContext.get("equipment");
-                if (equip instanceof List) {
-                    prompt.append(String.format("Снаряжение: %s\n", String.join(", ", 
-                        ((List<?>) equip).stream().map(Object::toString).toArray(String[]::new))));
-                } else {
-                    prompt.append(String.format("Снаряжение: %s\n", equip));
-                }
-            }
-        }
+        appendParserContext(prompt, gameContext);
         
         // Добавляем данные из SRD
         prompt.append("\nДанные из SRD API:\n");
@@ -444,5 +415,86 @@ public class ActionPrompts {
         
         return prompt.toString();
     }
-}
+    
+    /**
+     * Системный промпт однопроходного парсинга: проверка нужна ли и какая - в одном ответе.
+     * Сводка навыков SRD всегда включена, поэтому выбор эндпоинтов не требуется.
+     * Не зависит от действия - префикс промпта одинаков для всех ходов.
+     */
+    public static String getSinglePassParserSystemPrompt(String srdSummary, String dcInfo) {
+        String template = """
+Ты — эксперт по правилам D&D 5e, который интерпретирует действия игроков.
 
+За один ответ определи:
+1. Требует ли действие проверки навыка/характеристики (броска кубиков)
+2. Если требует - характеристику (ability), навык (skill) и сложность (DC)
+
+Характеристики и навыки SRD (index характеристики (полное название): index навыков):
+%s
+Таблица сложности (DC):
+%s
+ТРИВИАЛЬНЫЕ ДЕЙСТВИЯ (requires_check: false):
+- Простое перемещение, базовые действия (открыть незапертую дверь, взять предмет, сесть на стул)
+- Простой разговор, наблюдение без скрытности
+
+ДЕЙСТВИЯ С ПРОВЕРКОЙ (requires_check: true):
+- Физические вызовы, скрытность и ловкость рук, убеждение/обман/запугивание,
+  магические и боевые действия, любые действия с неопределенным исходом
+
+Правила:
+- "skill" - index навыка ТОЛЬКО из списка выше или null
+- "ability" - полное название характеристики навыка (strength, dexterity, constitution, intelligence, wisdom, charisma)
+- Если действие невозможно (нарушает законы физики/магии/правила): "is_possible": false, "requires_check": false
+- Если requires_check: false, поля ability, skill, estimated_dc = null
+
+Формат ответа (ТОЛЬКО валидный JSON, без дополнительного текста):
+{
+    "requires_check": true,
+    "is_possible": true,
+    "intent": "jump",
+    "ability": "strength",
+    "skill": "athletics",
+    "estimated_dc": 15,
+    "estimated_difficulty": "medium",
+    "modifiers": [],
+    "required_items": [],
+    "reason": "Краткое объяснение"
+}""";
+        return String.format(template, srdSummary, dcInfo);
+    }
+    
+    /**
+     * Пользовательский промпт однопроходного парсинга: только действие и контекст сцены
+     */
+    public static String getSinglePassParserPrompt(String actionText, Map<String, Object> gameContext) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append(String.format("Действие игрока: \"%s\"\n", actionText));
+        appendParserContext(prompt, gameContext);
+        prompt.append("\nОтвечай ТОЛЬКО валидным JSON согласно формату.");
+        return prompt.toString();
+    }
+    
+    /**
+     * Контекст сцены для промптов парсера: только ключи PARSER_CONTEXT_KEYS, по ним же ParsedActionCache
+     * строит сигнатуру контекста
+     */
+    private static void appendParserContext(StringBuilder prompt, Map<String, Object> gameContext) {
+        if (gameContext == null) {
+            return;
+        }
+        for (int i = 0; i < PARSER_CONTEXT_KEYS.size(); i++) {
+            Object value = gameContext.get(PARSER_CONTEXT_KEYS.get(i));
+            if (value == null || (value instanceof List && ((List<?>) value).isEmpty())) {
+                continue;
+            }
+            prompt.append(String.format("%s: %s\n", PARSER_CONTEXT_LABELS.get(i), joinValues(value)));
+        }
+    }
+    
+    private static String joinValues(Object value) {
+        if (value instanceof List) {
+            return String.join(", ", ((List<?>) value).stream().map(Object::toString).toArray(String[]::new));
+        }
+        return String.valueOf(value);
+    }
+}
@@ -18,10 +18,18 @@ public class DMPrompts {
     }
     
     /**
-     * Системный промпт для генерации нарратива действий
+     * Системный промпт для генерации нарратива действий вместе с неизменной инструкцией и форматом ответа.
+     * Все, что не зависит от хода, идет в системное сообщение, поэтому префикс запроса одинаков побайтно.
      */
     public static String getActionNarrativeSystemPrompt() {
-        return SystemPrompts.getActionNarrativeSystemPrompt();
+        return SystemPrompts.getActionNarrativeSystemPrompt() + "\n" + ActionPrompts.getActionNarrativeInstructions();
+    }
+    
+    /**
+     * Системный промпт для продолжения истории вместе с неизменной инструкцией и форматом ответа
+     */
+    public static String getStoryContinuationSystemPrompt(int maxTokens) {
+        return SystemPrompts.getSystemPrompt(maxTokens) + "\n" + StoryContinuationPrompts.getStoryContinuationInstructions();
     }
     
     // ========== Промпты для генерации мира и квестов ==========
@@ -43,8 +51,8 @@ public class DMPrompts {
     /**
      * Промпт для генерации финальной сцены при завершении квеста
      */
-    public static String getFinalScenePrompt(String questTitle, String questGoal) {
-        return WorldPrompts.getFinalScenePrompt(questTitle, questGoal);
+    public static String getFinalScenePrompt(String questTitle, String questGoal, String relevantContext) {
+        return WorldPrompts.getFinalScenePrompt(questTitle, questGoal, relevantContext);
     }
     
     // ========== Промпты для генерации ситуаций ==========
@@ -118,4 +126,18 @@ public class DMPrompts {
                                                     Map<String, Object> gameContext) {
         return ActionPrompts.getActionParserFinalPrompt(actionText, srdData, gameContext);
                     }
+    
+    /**
+     * Системный промпт однопроходного парсинга действия (сводка SRD и таблица DC)
+     */
+    public static String getSinglePassParserSystemPrompt(String srdSummary, String dcInfo) {
+        return ActionPrompts.getSinglePassParserSystemPrompt(srdSummary, dcInfo);
+    }
+    
+    /**
+     * Промпт однопроходного парсинга действия
+     */
+    public static String getSinglePassParserPrompt(String actionText, Map<String, Object> gameContext) {
+        return ActionPrompts.getSinglePassParserPrompt(actionText, gameContext);
+    }
 }
@@ -0,0 +1,70 @@
+package com.dnd.prompts;
+
+/**
+ * Промпты для сжатия истории кампании: сводка этапа квеста и синопсис кампании
+ */
+public class MemoryPrompts {
+    
+    /**
+     * Системный промпт летописца: пересказ без художественных подробностей
+     */
+    public static String getChroniclerSystemPrompt() {
+        return """
+        Ты летописец кампании D&D 5e. Ты сжимаешь журнал событий в краткий пересказ для ведущего.
+        
+        Правила:
+        - Пиши на русском, простым повествовательным текстом без списков и заголовков
+        - Сохраняй имена персонажей, NPC, локаций и предметов в точности как в журнале
+        - Сохраняй факты, важные для сюжета: решения игроков, договоренности, найденное, врагов и союзников
+        - Опускай описания атмосферы, повторы и броски кубиков
+        - Ничего не придумывай
+        """;
+    }
+    
+    /**
+     * Сводка завершенного этапа квеста по журналу его событий
+     */
+    public static String getStageSummaryPrompt(String questTitle, String stageTitle, String eventsText) {
+        return String.format("""
+        Квест: %s
+        Завершенный этап: %s
+        
+        Журнал событий этапа (от старых к новым):
+        %s
+        
+        Перескажи, что произошло на этом этапе, в 3-5 предложениях.
+        """, questTitle, stageTitle, eventsText);
+    }
+    
+    /**
+     * Сводка длинного этапа из пересказов его частей (журнал не поместился в один запрос)
+     */
+    public static String getStageMergePrompt(String questTitle, String stageTitle, String partSummaries) {
+        return String.format("""
+        Квест: %s
+        Завершенный этап: %s
+        
+        Пересказы частей этапа (от старых к новым):
+        %s
+        
+        Объедини их в пересказ всего этапа в 3-5 предложениях.
+        """, questTitle, stageTitle, partSummaries);
+    }
+    
+    /**
+     * Обновление синопсиса кампании новой сводкой этапа
+     */
+    public static String getSynopsisPrompt(String previousSynopsis, String stageTitle, String stageSummary) {
+        return String.format("""
+        Синопсис кампании до этого момента:
+        %s
+        
+        Новый завершенный этап "%s":
+        %s
+        
+        Обнови синопсис: объедини его с новым этапом в связный пересказ всей кампании не длиннее 8 предложений.
+        Старые подробности сокращай сильнее, последние события - слабее.
+        """, previousSynopsis != null && !previousSynopsis.isBlank() ? previousSynopsis : "(кампания только началась)",
+            stageTitle, stageSummary);
+    }
+}
@@ -57,14 +57,24 @@ public class StoryContinuationPrompts {
             """, characterName, characterClass, characterRace, raceDescription);
         
         return String.format("""
-            Ты — опытный Dungeon Master для D&D 5e. Твоя задача — продолжить историю после действия игрока.
-            
             Действие игрока: "%s"
             Ответ DM на действие: "%s"
             
             %s
             %s
             %s
+            %s
+            Создай продолжение истории по инструкции и верни ответ ТОЛЬКО в формате JSON.
+            """, playerAction, dmResponse, characterInfo, locationContext, questContext, contextSection);
+    }
+    
+    /**
+     * Инструкция продолжения истории. Не зависит от хода, поэтому передается в системном сообщении
+     * и побайтно совпадает во всех запросах кампании.
+     */
+    public static String getStoryContinuationInstructions() {
+        return """
+            Ты — опытный Dungeon Master для D&D 5e. Твоя задача — продолжить историю после действия игрока.
             
             Создай ПРОДОЛЖЕНИЕ ИСТОРИИ, которое развивает сюжет. Это может быть:
             
@@ -141,8 +151,7 @@ public class StoryContinuationPrompts {
               * Дварфы могут быть связаны с подземельями и ремеслом
               * Тифлинги могут вызывать особые реакции у NPC из-за их демонического происхождения
               * Класс персонажа влияет на то, как он воспринимается в мире (маги, воины, жрецы и т.д.)
-            %s
-            """, playerAction, dmResponse, characterInfo, locationContext, questContext, contextSection);
+            """;
     }
     
     /**
@@ -239,11 +239,15 @@ public class WorldPrompts {
     /**
      * Промпт для генерации финальной сцены при завершении квеста
      */
-    public static String getFinalScenePrompt(String questTitle, String questGoal) {
+    public static String getFinalScenePrompt(String questTitle, String questGoal, String relevantContext) {
+        String history = "";
+        if (relevantContext != null && !relevantContext.isEmpty()) {
+            history = "\nХод приключения:\n" + relevantContext + "\n";
+        }
         return String.format("""
         Квест "%s" завершен!
         Цель квеста: %s
-        
+        %s
         Создай эпическую финальную сцену, которая:
         1. Показывает последствия выполнения квеста
         2. Подводит итоги приключения
@@ -266,7 +270,7 @@ public class WorldPrompts {
         - message_type должен быть "final_scene"
         - content - детальное описание финальной сцены
         - metadata - информация о завершенном квесте
-        """, questTitle, questGoal, questTitle, questGoal);
+        """, questTitle, questGoal, history, questTitle, questGoal);
     }
 }
 
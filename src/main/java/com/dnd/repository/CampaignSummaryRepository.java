@@ -0,0 +1,16 @@
+package com.dnd.repository;
+
+import com.dnd.entity.CampaignSummary;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface CampaignSummaryRepository extends JpaRepository<CampaignSummary, Long> {
+    Optional<CampaignSummary> findFirstByCampaignIdAndSummaryTypeOrderByIdDesc(Long campaignId, String summaryType);
+    
+    List<CampaignSummary> findByCampaignIdAndSummaryTypeOrderByIdDesc(Long campaignId, String summaryType, Pageable pageable);
+}
@@ -2,9 +2,13 @@ package com.dnd.repository;
 
 import com.dnd.entity.GameEvent;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -15,5 +19,20 @@ public interface GameEventRepository extends JpaRepository<GameEvent, Long> {
     List<GameEvent> findRecentByCampaignId(Long campaignId, org.springframework.data.domain.Pageable pageable);
     
     List<GameEvent> findByCampaignIdAndEventTypeOrderByTimestampDesc(Long campaignId, String eventType);
+    
+    @Query("SELECT e FROM GameEvent e WHERE e.campaign.id = :campaignId AND e.id > :afterId AND e.id <= :upToId ORDER BY e.id ASC")
+    List<GameEvent> findAfterId(@Param("campaignId") Long campaignId, @Param("afterId") Long afterId,
+                                @Param("upToId") Long upToId, org.springframework.data.domain.Pageable pageable);
+    
+    @Query("SELECT MAX(e.id) FROM GameEvent e WHERE e.campaign.id = :campaignId")
+    Long findMaxId(@Param("campaignId") Long campaignId);
+    
+    @Query("SELECT e FROM GameEvent e WHERE e.campaign.id = :campaignId AND e.id IN :ids")
+    List<GameEvent> findByCampaignIdAndIdIn(@Param("campaignId") Long campaignId, @Param("ids") Collection<Long> ids);
+    
+    @Modifying
+    @Transactional
+    @Query("UPDATE GameEvent e SET e.indexPending = false WHERE e.id IN :ids")
+    int markIndexed(@Param("ids") List<Long> ids);
 }
 
@@ -8,12 +8,14 @@ import com.dnd.repository.NPCRepository;
 import com.dnd.repository.QuestRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.*;
 
 /**
  * Обработчик анализа от LLM для сохранения информации о NPC, локациях, квестах
+ * Сущности ищутся по имени через CampaignEntityIndex; созданные и измененные попадают в индекс после коммита.
  */
 @Service
 public class AnalysisProcessor {
@@ -33,6 +35,9 @@ public class AnalysisProcessor {
     @Autowired
     private GameEventRepository gameEventRepository;
     
+    @Autowired
+    private CampaignEntityIndex entityIndex;
+    
     /**
      * Обрабатывает анализ из сообщения и сохраняет информацию о NPC, локациях, квестах
      */
@@ -49,25 +54,52 @@ public class AnalysisProcessor {
             return;
         }
         
-        // Обрабатываем новые NPC
-        if (analysis.containsKey("new_information")) {
-            @SuppressWarnings("unchecked")
-            Map<String, Object> newInfo = (Map<String, Object>) analysis.get("new_information");
-            // Обрабатываем NPC
-            if (newInfo.containsKey("npcs")) processNPCs(campaign, newInfo.get("npcs"));
-            // Обрабатываем локации
-            if (newInfo.containsKey("locations")) processLocations(campaign, newInfo.get("locations"));
-            // Обрабатываем квесты
-            if (newInfo.containsKey("quests")) processQuests(campaign, newInfo.get("quests"));
-        }
+        // Сущности, сохраненные в этой транзакции: индекс увидит их только после коммита
+        Map<String, Long> saved = new HashMap<>();
+        processNewInformation(campaign, campaignId, analysis, saved);
         
         // Обрабатываем упоминания для обновления связей с последним событием
-        processMentions(campaign, analysis, lastEventId);
+        processMentions(campaignId, analysis, lastEventId, saved);
+    }
+    
+    /**
+     * Применяет анализ внутри транзакции хода (TurnCommitService): сохраняет новые и обновленные сущности
+     * и возвращает ID упомянутых, чтобы связи записались вместе с событием
+     * @param campaign Кампания (достаточно ссылки без загрузки)
+     * @param saved    Сущности, уже сохраненные в этой транзакции, по ключу "вид:имя"
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Mentions applyToTurn(Campaign campaign, String sessionId, Map<String, Object> analysis, Map<String, Long> saved) {
+        if (analysis == null || analysis.isEmpty()) {
+            return new Mentions();
+        }
+        processNewInformation(campaign, sessionId, analysis, saved);
+        return resolveMentions(sessionId, analysis, saved);
+    }
+    
+    /**
+     * Обрабатывает новые и обновленные NPC, локации и квесты из new_information
+     */
+    private void processNewInformation(Campaign campaign, String sessionId, Map<String, Object> analysis, Map<String, Long> saved) {
+        if (!analysis.containsKey("new_information")) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> newInfo = (Map<String, Object>) analysis.get("new_information");
+        if (newInfo == null) {
+            return;
+        }
+        // Обрабатываем NPC
+        if (newInfo.containsKey("npcs")) processNPCs(campaign, sessionId, newInfo.get("npcs"), saved);
+        // Обрабатываем локации
+        if (newInfo.containsKey("locations")) processLocations(campaign, sessionId, newInfo.get("locations"), saved);
+        // Обрабатываем квесты
+        if (newInfo.containsKey("quests")) processQuests(campaign, sessionId, newInfo.get("quests"), saved);
     }
     /**
      * Обрабатывает новых или обновленных NPC
      */
-    private void processNPCs(Campaign campaign, Object npcsObj) {
+    private void processNPCs(Campaign campaign, String sessionId, Object npcsObj, Map<String, Long> saved) {
         if (!(npcsObj instanceof List)) return;
         
         @SuppressWarnings("unchecked")
@@ -78,7 +110,8 @@ public class AnalysisProcessor {
             if (name == null || name.trim().isEmpty()) continue;
             
             // Ищем существующего NPC
-            Optional<NPC> existingNPCOpt = npcRepository.findByCampaignIdAndName(campaign.getId(), name);
+            Long existingId = resolve(sessionId, CampaignEntityIndex.NPC, name, saved);
+            Optional<NPC> existingNPCOpt = existingId != null ? npcRepository.findById(existingId) : Optional.empty();
             NPC npc;
             
             if (existingNPCOpt.isEmpty()) {
@@ -108,36 +141,30 @@ public class AnalysisProcessor {
             // Обновляем текущую локацию, если указана
             String locationName = (String) npcData.get("location");
             if (locationName != null && !locationName.trim().isEmpty()) {
-                List<Location> locations = locationRepository.findByCampaignIdAndName(campaign.getId(), locationName);
-                if (!locations.isEmpty()) {
+                Long locationId = resolve(sessionId, CampaignEntityIndex.LOCATION, locationName, saved);
+                if (locationId != null) {
                     // Устанавливаем текущую локацию NPC
-                    npc.setLocation(locations.get(0));
+                    npc.setLocation(locationRepository.getReferenceById(locationId));
                 }
             }
             
             // Обновляем домашнюю локацию отдельно, если указана
             String homeLocationName = (String) npcData.get("home_location");
             if (homeLocationName != null && !homeLocationName.trim().isEmpty()) {
-                // Проверяем, существует ли локация (может быть просто строка)
-                List<Location> homeLocations = locationRepository.findByCampaignIdAndName(campaign.getId(), homeLocationName);
-                if (!homeLocations.isEmpty()) {
-                    // Устанавливаем домашнюю локацию
-                    npc.setHomeLocation(homeLocationName);
-                } else {
-                    // Если локация не найдена в БД, все равно сохраняем как строку
-                    // (возможно, локация будет создана позже)
-                    npc.setHomeLocation(homeLocationName);
-                }
+                // Сохраняем как строку, даже если локации еще нет в БД (возможно, она будет создана позже)
+                npc.setHomeLocation(homeLocationName);
             }
             
             npcRepository.save(npc);
+            saved.put(CampaignEntityIndex.NPC + ":" + CampaignEntityIndex.fold(name), npc.getId());
+            entityIndex.recordEntity(sessionId, CampaignEntityIndex.NPC, npc.getId(), npc.getName());
         }
     }
     
     /**
      * Обрабатывает новые или обновленные локации
      */
-    private void processLocations(Campaign campaign, Object locationsObj) {
+    private void processLocations(Campaign campaign, String sessionId, Object locationsObj, Map<String, Long> saved) {
         if (!(locationsObj instanceof List)) return;
         
         @SuppressWarnings("unchecked")
@@ -148,10 +175,11 @@ public class AnalysisProcessor {
             if (name == null || name.trim().isEmpty()) continue;
             
             // Ищем существующую локацию
-            List<Location> existingLocations = locationRepository.findByCampaignIdAndName(campaign.getId(), name);
+            Long existingId = resolve(sessionId, CampaignEntityIndex.LOCATION, name, saved);
+            Optional<Location> existingLocation = existingId != null ? locationRepository.findById(existingId) : Optional.empty();
             Location location;
             
-            if (existingLocations.isEmpty()) {
+            if (existingLocation.isEmpty()) {
                 // Создаем новую локацию
                 location = new Location();
                 location.setCampaign(campaign);
@@ -160,7 +188,7 @@ public class AnalysisProcessor {
                 System.out.println("✅ [AnalysisProcessor] Создана новая локация: " + name);
             } else {
                 // Обновляем существующую локацию
-                location = existingLocations.get(0);
+                location = existingLocation.get();
                 System.out.println("🔄 [AnalysisProcessor] Обновлена локация: " + name);
             }
             
@@ -176,13 +204,15 @@ public class AnalysisProcessor {
             }
             
             locationRepository.save(location);
+            saved.put(CampaignEntityIndex.LOCATION + ":" + CampaignEntityIndex.fold(name), location.getId());
+            entityIndex.recordEntity(sessionId, CampaignEntityIndex.LOCATION, location.getId(), location.getName());
         }
     }
     
     /**
      * Обрабатывает новые или обновленные квесты
      */
-    private void processQuests(Campaign campaign, Object questsObj) {
+    private void processQuests(Campaign campaign, String sessionId, Object questsObj, Map<String, Long> saved) {
         if (!(questsObj instanceof List)) {
             return;
         }
@@ -197,9 +227,8 @@ public class AnalysisProcessor {
             }
             
             // Ищем существующий квест
-            Optional<Quest> existingQuestOpt = campaign.getQuests().stream()
-                .filter(q -> title.equals(q.getTitle()))
-                .findFirst();
+            Long existingId = resolve(sessionId, CampaignEntityIndex.QUEST, title, saved);
+            Optional<Quest> existingQuestOpt = existingId != null ? questRepository.findById(existingId) : Optional.empty();
             
             Quest quest;
             
@@ -236,6 +265,8 @@ public class AnalysisProcessor {
             }
             
             questRepository.save(quest);
+            saved.put(CampaignEntityIndex.QUEST + ":" + CampaignEntityIndex.fold(title), quest.getId());
+            entityIndex.recordQuest(sessionId, quest.getId(), quest.getTitle(), quest.getQuestType(), quest.getCompleted());
         }
     }
     
@@ -243,7 +274,7 @@ public class AnalysisProcessor {
      * Обрабатывает упоминания для обновления связей с последним GameEvent
      * Связывает упомянутые NPC, локации и квесты с последним событием в истории
      */
-    private void processMentions(Campaign campaign, Map<String, Object> analysis, Long lastEventId) {
+    private void processMentions(String sessionId, Map<String, Object> analysis, Long lastEventId, Map<String, Long> saved) {
         Optional<GameEvent> eventOpt = gameEventRepository.findById(lastEventId);
         if (eventOpt.isEmpty()) {
             System.out.println("⚠️ [AnalysisProcessor] Событие не найдено: " + lastEventId);
@@ -251,58 +282,28 @@ public class AnalysisProcessor {
         }
         
         GameEvent event = eventOpt.get();
+        Mentions mentions = resolveMentions(sessionId, analysis, saved);
         boolean updated = false;
         
-        // Обрабатываем упоминания NPC
-        if (analysis.containsKey("npcs_mentioned")) {
-            @SuppressWarnings("unchecked")
-            List<String> npcNames = (List<String>) analysis.get("npcs_mentioned");
-            if (npcNames != null && !npcNames.isEmpty()) {
-                for (String npcName : npcNames) {
-                    Optional<NPC> npcOpt = npcRepository.findByCampaignIdAndName(campaign.getId(), npcName);
-                    if (npcOpt.isPresent() && !event.getNpcs().contains(npcOpt.get())) {
-                        event.addNpc(npcOpt.get());
-                        updated = true;
-                        System.out.println("📝 [AnalysisProcessor] Привязан NPC к событию: " + npcName);
-                    }
-                }
+        for (Long npcId : mentions.getNpcIds()) {
+            NPC npc = npcRepository.getReferenceById(npcId);
+            if (!event.getNpcs().contains(npc)) {
+                event.addNpc(npc);
+                updated = true;
             }
         }
-        
-        // Обрабатываем упоминания локаций
-        if (analysis.containsKey("locations_mentioned")) {
-            @SuppressWarnings("unchecked")
-            List<String> locationNames = (List<String>) analysis.get("locations_mentioned");
-            if (locationNames != null && !locationNames.isEmpty()) {
-                for (String locationName : locationNames) {
-                    List<Location> locations = locationRepository.findByCampaignIdAndName(campaign.getId(), locationName);
-                    if (!locations.isEmpty()) {
-                        Location location = locations.get(0);
-                        if (!event.getLocations().contains(location)) {
-                            event.addLocation(location);
-                            updated = true;
-                            System.out.println("📝 [AnalysisProcessor] Привязана локация к событию: " + locationName);
-                        }
-                    }
-                }
+        for (Long locationId : mentions.getLocationIds()) {
+            Location location = locationRepository.getReferenceById(locationId);
+            if (!event.getLocations().contains(location)) {
+                event.addLocation(location);
+                updated = true;
             }
         }
-        
-        // Обрабатываем упоминания квестов
-        if (analysis.containsKey("quests_mentioned")) {
-            @SuppressWarnings("unchecked")
-            List<String> questTitles = (List<String>) analysis.get("quests_mentioned");
-            if (questTitles != null && !questTitles.isEmpty()) {
-                for (String questTitle : questTitles) {
-                    Optional<Quest> questOpt = campaign.getQuests().stream()
-                        .filter(q -> questTitle.equals(q.getTitle()))
-                        .findFirst();
-                    if (questOpt.isPresent() && !event.getQuests().contains(questOpt.get())) {
-                        event.addQuest(questOpt.get());
-                        updated = true;
-                        System.out.println("📝 [AnalysisProcessor] Привязан квест к событию: " + questTitle);
-                    }
-                }
+        for (Long questId : mentions.getQuestIds()) {
+            Quest quest = questRepository.getReferenceById(questId);
+            if (!event.getQuests().contains(quest)) {
+                event.addQuest(quest);
+                updated = true;
             }
         }
         
@@ -311,4 +312,52 @@ public class AnalysisProcessor {
             System.out.println("✅ [AnalysisProcessor] Событие обновлено с новыми связями");
         }
     }
+    
+    /**
+     * ID упомянутых в анализе NPC, локаций и квестов (npcs_mentioned, locations_mentioned, quests_mentioned)
+     */
+    private Mentions resolveMentions(String sessionId, Map<String, Object> analysis, Map<String, Long> saved) {
+        Mentions mentions = new Mentions();
+        resolveAll(sessionId, CampaignEntityIndex.NPC, analysis.get("npcs_mentioned"), saved, mentions.npcIds);
+        resolveAll(sessionId, CampaignEntityIndex.LOCATION, analysis.get("locations_mentioned"), saved, mentions.locationIds);
+        resolveAll(sessionId, CampaignEntityIndex.QUEST, analysis.get("quests_mentioned"), saved, mentions.questIds);
+        return mentions;
+    }
+    
+    private void resolveAll(String sessionId, String kind, Object namesObj, Map<String, Long> saved, List<Long> ids) {
+        if (!(namesObj instanceof List)) {
+            return;
+        }
+        for (Object name : (List<?>) namesObj) {
+            Long id = name instanceof String ? resolve(sessionId, kind, (String) name, saved) : null;
+            if (id != null && !ids.contains(id)) {
+                ids.add(id);
+                System.out.println("📝 [AnalysisProcessor] Упоминание " + kind + " привязано к событию: " + name);
+            }
+        }
+    }
+    
+    /**
+     * ID сущности по имени: сначала сохраненные в этой транзакции, затем индекс кампании
+     */
+    private Long resolve(String sessionId, String kind, String name, Map<String, Long> saved) {
+        if (name == null) {
+            return null;
+        }
+        Long id = saved.get(kind + ":" + CampaignEntityIndex.fold(name));
+        return id != null ? id : entityIndex.findId(sessionId, kind, name);
+    }
+    
+    /**
+     * ID сущностей, упомянутых в анализе
+     */
+    public static class Mentions {
+        private final List<Long> npcIds = new ArrayList<>();
+        private final List<Long> locationIds = new ArrayList<>();
+        private final List<Long> questIds = new ArrayList<>();
+        
+        public List<Long> getNpcIds() { return npcIds; }
+        public List<Long> getLocationIds() { return locationIds; }
+        public List<Long> getQuestIds() { return questIds; }
+    }
 }
@@ -0,0 +1,300 @@
+package com.dnd.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Индекс имен сущностей кампании: NPC, локации и квесты по нормализованному имени (нижний регистр, ё -> е).
+ * Строится одним запросом при первом обращении к кампании, дальше поиск id по имени - обращение к хэш-таблице.
+ * Изменения (создание, переименование, завершение квеста) применяются после коммита транзакции, в которой
+ * записана сущность; invalidate сбрасывает индекс кампании целиком.
+ */
+@Service
+public class CampaignEntityIndex {
+    public static final String NPC = "npc";
+    public static final String LOCATION = "location";
+    public static final String QUEST = "quest";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${game-state.cache.max-size:100}")
+    private int cacheMaxSize;
+
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            if (size() > Math.max(1, cacheMaxSize)) {
+                generations.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    // Поколение кампании растет при каждом изменении: загрузка, начатая до изменения, не попадает в кэш.
+    // Счетчик есть только у кампаний с индексом в кэше или идущей загрузкой; удаление счетчика загрузка
+    // тоже считает изменением, поэтому его можно убрать в любой момент
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    /**
+     * ID сущностей вида kind с указанными именами (регистр не учитывается)
+     */
+    public List<Long> findIds(String sessionId, String kind, Collection<String> names) {
+        if (names == null || names.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Snapshot snapshot = snapshot(sessionId);
+        List<Long> ids = new ArrayList<>();
+        synchronized (snapshot) {
+            Map<String, List<Long>> byName = snapshot.byKind(kind);
+            for (String name : new LinkedHashSet<>(names)) {
+                List<Long> matches = byName.get(fold(name));
+                if (matches != null) {
+                    for (Long id : matches) {
+                        if (!ids.contains(id)) {
+                            ids.add(id);
+                        }
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * ID первой сущности вида kind с указанным именем или null
+     */
+    public Long findId(String sessionId, String kind, String name) {
+        if (name == null) {
+            return null;
+        }
+        List<Long> ids = findIds(sessionId, kind, List.of(name));
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    /**
+     * ID незавершенных квестов кампании
+     */
+    public List<Long> getActiveQuestIds(String sessionId) {
+        Snapshot snapshot = snapshot(sessionId);
+        synchronized (snapshot) {
+            List<Long> ids = new ArrayList<>();
+            for (QuestInfo quest : snapshot.quests.values()) {
+                if (!quest.completed) {
+                    ids.add(quest.id);
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * ID основного квеста кампании или null
+     */
+    public Long getMainQuestId(String sessionId) {
+        Snapshot snapshot = snapshot(sessionId);
+        synchronized (snapshot) {
+            for (QuestInfo quest : snapshot.quests.values()) {
+                if ("main".equals(quest.type)) {
+                    return quest.id;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Учитывает созданную или переименованную сущность (после коммита текущей транзакции)
+     */
+    public void recordEntity(String sessionId, String kind, Long id, String name) {
+        if (sessionId == null || id == null || name == null) {
+            return;
+        }
+        afterCommit(sessionId, snapshot -> {
+            Map<String, List<Long>> byName = snapshot.byKind(kind);
+            removeId(byName, id);
+            byName.computeIfAbsent(fold(name), key -> new ArrayList<>()).add(id);
+        });
+    }
+
+    /**
+     * Учитывает созданный или измененный квест (после коммита текущей транзакции)
+     */
+    public void recordQuest(String sessionId, Long id, String title, String type, Boolean completed) {
+        if (sessionId == null || id == null || title == null) {
+            return;
+        }
+        afterCommit(sessionId, snapshot -> {
+            removeId(snapshot.questsByTitle, id);
+            snapshot.questsByTitle.computeIfAbsent(fold(title), key -> new ArrayList<>()).add(id);
+            snapshot.quests.put(id, new QuestInfo(id, type, completed != null && completed));
+        });
+    }
+
+    /**
+     * Учитывает удаленный квест (после коммита текущей транзакции)
+     */
+    public void removeQuest(String sessionId, Long id) {
+        if (sessionId == null || id == null) {
+            return;
+        }
+        afterCommit(sessionId, snapshot -> {
+            removeId(snapshot.questsByTitle, id);
+            snapshot.quests.remove(id);
+        });
+    }
+
+    /**
+     * Сбрасывает индекс кампании: следующий поиск перечитает имена из БД
+     */
+    public void invalidate(String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        synchronized (snapshots) {
+            generations.remove(sessionId);
+            snapshots.remove(sessionId);
+        }
+    }
+
+    /**
+     * Нормализованное имя: без крайних пробелов, нижний регистр, ё -> е
+     */
+    static String fold(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT).replace('ё', 'е');
+    }
+
+    private Snapshot snapshot(String sessionId) {
+        synchronized (snapshots) {
+            Snapshot cached = snapshots.get(sessionId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        AtomicLong counter = generations.computeIfAbsent(sessionId, key -> new AtomicLong());
+        long generation = counter.get();
+        Snapshot loaded = load(sessionId);
+        synchronized (snapshots) {
+            Snapshot cached = snapshots.get(sessionId);
+            if (cached != null) {
+                return cached;
+            }
+            if (generations.get(sessionId) == counter && counter.get() == generation) {
+                snapshots.put(sessionId, loaded);
+            } else {
+                // Индекс изменился во время загрузки и в кэш не попал - счетчик больше не нужен
+                generations.remove(sessionId, counter);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Имена всех NPC, локаций и квестов кампании одним запросом
+     */
+    private Snapshot load(String sessionId) {
+        Snapshot snapshot = new Snapshot();
+        String sql = """
+            SELECT 'npc' AS kind, n.id, n.name, NULL AS quest_type, NULL AS completed
+              FROM npcs n JOIN campaigns c ON c.id = n.campaign_id WHERE c.session_id = ?
+            UNION ALL
+            SELECT 'location', l.id, l.name, NULL, NULL
+              FROM locations l JOIN campaigns c ON c.id = l.campaign_id WHERE c.session_id = ?
+            UNION ALL
+            SELECT 'quest', q.id, q.title, q.quest_type, q.completed
+              FROM quests q JOIN campaigns c ON c.id = q.campaign_id WHERE c.session_id = ?
+            ORDER BY 2
+            """;
+        jdbcTemplate.query(sql, rs -> {
+            String kind = rs.getString("kind");
+            long id = rs.getLong("id");
+            String name = rs.getString("name");
+            snapshot.byKind(kind).computeIfAbsent(fold(name), key -> new ArrayList<>()).add(id);
+            if (QUEST.equals(kind)) {
+                snapshot.quests.put(id, new QuestInfo(id, rs.getString("quest_type"), rs.getBoolean("completed")));
+            }
+        }, sessionId, sessionId, sessionId);
+        return snapshot;
+    }
+
+    private void afterCommit(String sessionId, java.util.function.Consumer<Snapshot> change) {
+        Runnable apply = () -> {
+            // Нет счетчика - нет ни индекса, ни загрузки, которую нужно остановить
+            AtomicLong counter = generations.get(sessionId);
+            if (counter != null) {
+                counter.incrementAndGet();
+            }
+            Snapshot snapshot;
+            synchronized (snapshots) {
+                snapshot = snapshots.get(sessionId);
+            }
+            // Индекс кампании еще не загружен - изменение прочитается из БД при загрузке
+            if (snapshot != null) {
+                synchronized (snapshot) {
+                    change.accept(snapshot);
+                }
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    private static void removeId(Map<String, List<Long>> byName, Long id) {
+        Iterator<List<Long>> iterator = byName.values().iterator();
+        while (iterator.hasNext()) {
+            List<Long> ids = iterator.next();
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Snapshot {
+        final Map<String, List<Long>> npcs = new HashMap<>();
+        final Map<String, List<Long>> locations = new HashMap<>();
+        final Map<String, List<Long>> questsByTitle = new HashMap<>();
+        final Map<Long, QuestInfo> quests = new LinkedHashMap<>();
+
+        Map<String, List<Long>> byKind(String kind) {
+            switch (kind) {
+                case NPC:
+                    return npcs;
+                case LOCATION:
+                    return locations;
+                case QUEST:
+                    return questsByTitle;
+                default:
+                    throw new IllegalArgumentException("Неизвестный вид сущности: " + kind);
+            }
+        }
+    }
+
+    private static class QuestInfo {
+        final long id;
+        final String type;
+        final boolean completed;
+
+        QuestInfo(long id, String type, boolean completed) {
+            this.id = id;
+            this.type = type;
+            this.completed = completed;
+        }
+    }
+}
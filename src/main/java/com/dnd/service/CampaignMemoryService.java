@@ -0,0 +1,515 @@
+package com.dnd.service;
+
+import com.dnd.ai_engine.LLMScheduler;
+import com.dnd.ai_engine.LocalLLMClient;
+import com.dnd.entity.Campaign;
+import com.dnd.entity.CampaignSummary;
+import com.dnd.entity.GameEvent;
+import com.dnd.messages.PromptBudget;
+import com.dnd.prompts.MemoryPrompts;
+import com.dnd.repository.CampaignRepository;
+import com.dnd.repository.CampaignSummaryRepository;
+import com.dnd.repository.GameEventRepository;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Иерархическая память кампании.
+ * Вместо всей истории событий контекст строится из трех уровней:
+ * 1. Последние N событий (GameState держит и загружает только их, см. memory.recent-events)
+ * 2. Сводки пройденных этапов квеста - создаются в фоне при переходе к следующему этапу;
+ *    неудачная сводка повторяется с растущей паузой, следующие этапы кампании ждут ее
+ * 3. Синопсис кампании - обновляется после каждой новой сводки этапа
+ * Размер промпта и стоимость загрузки кампании не растут с числом ходов.
+ */
+@Service
+public class CampaignMemoryService {
+
+    @Autowired
+    private CampaignRepository campaignRepository;
+
+    @Autowired
+    private GameEventRepository gameEventRepository;
+
+    @Autowired
+    private CampaignSummaryRepository campaignSummaryRepository;
+
+    @Value("${memory.enabled:true}")
+    private boolean enabled;
+
+    // Сколько сводок последних этапов отдавать в контекст (более ранние покрывает синопсис)
+    @Value("${memory.stage-summaries:3}")
+    private int stageSummaries;
+
+    // Сколько событий этапа читать из БД за раз
+    @Value("${memory.stage-max-events:300}")
+    private int stageMaxEvents;
+
+    // Бюджет журнала событий в промпте сводки одной части; длинный этап делится на части по этому бюджету
+    @Value("${memory.summary-source-tokens:2500}")
+    private int summarySourceTokens;
+
+    // Повторы неудачной сводки этапа: первая пауза, удваивается до максимума
+    @Value("${memory.summary-retry.initial-ms:30000}")
+    private long retryInitialMs;
+
+    @Value("${memory.summary-retry.max-ms:600000}")
+    private long retryMaxMs;
+
+    // После стольких неудачных попыток этап закрывается кратким журналом событий без LLM
+    @Value("${memory.summary-retry.max-attempts:6}")
+    private int retryMaxAttempts;
+
+    @Value("${game-state.cache.max-size:100}")
+    private int cacheMaxSize;
+
+    // Память горячих кампаний; обновляется после записи новой сводки
+    private final Map<String, CampaignMemory> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CampaignMemory> eldest) {
+            return size() > Math.max(1, cacheMaxSize);
+        }
+    };
+    // Один поток: сводки кампании создаются строго по порядку этапов
+    private final ScheduledThreadPoolExecutor summarizer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "campaign-memory-summarizer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Этапы, ожидающие сводки, по кампаниям; первый в очереди выполняется или ждет повтора
+    private final Map<String, Deque<StageJob>> pendingStages = new HashMap<>();
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public CampaignMemoryService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.summarizer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Сжатая память кампании: синопсис и сводки последних этапов
+     */
+    public CampaignMemory getMemory(String sessionId) {
+        if (!enabled || sessionId == null) {
+            return CampaignMemory.EMPTY;
+        }
+        synchronized (cache) {
+            CampaignMemory cached = cache.get(sessionId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        CampaignMemory loaded;
+        try {
+            loaded = transactionTemplate.execute(status -> loadMemory(sessionId));
+        } catch (Exception e) {
+            System.err.println("⚠️ [Memory] Не удалось загрузить память кампании " + sessionId + ": " + e.getMessage());
+            return CampaignMemory.EMPTY;
+        }
+        synchronized (cache) {
+            cache.put(sessionId, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Ставит в очередь сводку завершенного этапа квеста и обновление синопсиса.
+     * В сводку попадают события после предыдущей сводки этапа и до lastEventId - последнего события
+     * на момент завершения этапа; null - граница берется сейчас, до постановки в очередь.
+     * Сводка создается позже, и события следующих ходов в нее уже не попадут.
+     * Этапы одной кампании сводятся по порядку: пока сводка этапа не записана (в том числе ждет повтора
+     * после ошибки), следующий этап не начинается и не забирает его события.
+     */
+    public void onStageCompleted(String sessionId, String questTitle, int stageIndex, String stageTitle,
+                                 Long lastEventId, LocalLLMClient llmClient) {
+        if (!enabled || sessionId == null || llmClient == null) {
+            return;
+        }
+        Long upToId = lastEventId;
+        if (upToId == null) {
+            try {
+                upToId = transactionTemplate.execute(status -> campaignRepository.findBySessionId(sessionId)
+                    .map(campaign -> gameEventRepository.findMaxId(campaign.getId()))
+                    .orElse(null));
+            } catch (Exception e) {
+                System.err.println("⚠️ [Memory] Не удалось определить границу этапа кампании " + sessionId + ": " + e.getMessage());
+                return;
+            }
+            if (upToId == null) {
+                System.out.println("ℹ️ [Memory] Нет событий для сводки этапа кампании " + sessionId);
+                return;
+            }
+        }
+        StageJob job = new StageJob(sessionId, questTitle, stageIndex, stageTitle, upToId, llmClient);
+        synchronized (pendingStages) {
+            Deque<StageJob> queue = pendingStages.computeIfAbsent(sessionId, k -> new ArrayDeque<>());
+            queue.addLast(job);
+            if (queue.size() == 1) {
+                summarizer.execute(() -> runNextStage(sessionId));
+            }
+        }
+        System.out.println("🗜️ [Memory] Сводка этапа \"" + stageTitle + "\" кампании " + sessionId + " поставлена в очередь");
+    }
+
+    /**
+     * Сводит первый ожидающий этап кампании. При ошибке этап остается первым и повторяется
+     * с удвоением паузы; после memory.summary-retry.max-attempts попыток закрывается кратким журналом
+     */
+    private void runNextStage(String sessionId) {
+        StageJob job;
+        synchronized (pendingStages) {
+            Deque<StageJob> queue = pendingStages.get(sessionId);
+            if (queue == null || queue.isEmpty()) {
+                return;
+            }
+            job = queue.peekFirst();
+        }
+
+        boolean done = false;
+        LLMScheduler.CampaignScope scope = LLMScheduler.enterCampaign(sessionId);
+        try {
+            summarizeStage(job, false);
+            done = true;
+        } catch (Exception e) {
+            job.attempts++;
+            System.err.println("❌ [Memory] Ошибка сводки этапа " + job.stageIndex + " кампании " + sessionId +
+                " (попытка " + job.attempts + " из " + Math.max(1, retryMaxAttempts) + "): " + e.getMessage());
+            if (job.attempts >= Math.max(1, retryMaxAttempts)) {
+                try {
+                    summarizeStage(job, true);
+                    done = true;
+                } catch (Exception fallbackError) {
+                    System.err.println("❌ [Memory] Не удалось закрыть этап " + job.stageIndex + " кампании " + sessionId +
+                        " журналом событий: " + fallbackError.getMessage());
+                }
+            }
+        } finally {
+            scope.close();
+        }
+
+        synchronized (pendingStages) {
+            Deque<StageJob> queue = pendingStages.get(sessionId);
+            if (queue == null) {
+                return;
+            }
+            if (!done) {
+                long delay = retryDelayMs(job.attempts);
+                System.out.println("🔁 [Memory] Повтор сводки этапа \"" + job.stageTitle + "\" кампании " + sessionId +
+                    " через " + delay + " мс, этапов в очереди: " + queue.size());
+                summarizer.schedule(() -> runNextStage(sessionId), delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            queue.pollFirst();
+            if (queue.isEmpty()) {
+                pendingStages.remove(sessionId);
+            } else {
+                summarizer.execute(() -> runNextStage(sessionId));
+            }
+        }
+    }
+
+    private long retryDelayMs(int attempts) {
+        long delay = Math.max(1, retryInitialMs);
+        for (int i = 1; i < attempts && delay < retryMaxMs; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, Math.max(retryInitialMs, retryMaxMs));
+    }
+
+    /**
+     * Создает и записывает сводку этапа. fallback - без LLM: этап закрывается началом журнала его событий
+     * и синопсис не меняется, чтобы граница этапа сохранилась и следующий этап не забрал его события
+     */
+    private void summarizeStage(StageJob job, boolean fallback) {
+        String sessionId = job.sessionId;
+        String questTitle = job.questTitle;
+        int stageIndex = job.stageIndex;
+        String stageTitle = job.stageTitle;
+        LocalLLMClient llmClient = job.llmClient;
+        long startTime = System.currentTimeMillis();
+        StageSource source = transactionTemplate.execute(status -> loadStageSource(sessionId, job.upToId));
+        if (source == null || source.upToId <= source.afterId) {
+            System.out.println("ℹ️ [Memory] Нет новых событий для сводки этапа кампании " + sessionId);
+            return;
+        }
+
+        // События этапа читаются страницами до границы этапа и делятся на части по бюджету токенов:
+        // каждое событие попадает в одну из частей. Части, кроме единственной, сводятся отдельно,
+        // затем пересказы частей объединяются
+        List<String> parts = new ArrayList<>();
+        List<String> part = new ArrayList<>();
+        int partTokens = 0;
+        long cursor = source.afterId;
+        int eventCount = 0;
+        while (true) {
+            long afterId = cursor;
+            List<GameEvent> page = transactionTemplate.execute(status -> gameEventRepository.findAfterId(
+                source.campaignId, afterId, source.upToId, PageRequest.of(0, Math.max(1, stageMaxEvents))));
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            for (GameEvent event : page) {
+                String line = formatEvent(event);
+                int tokens = PromptBudget.estimateTokens(line) + 1;
+                if (partTokens + tokens > summarySourceTokens && !part.isEmpty()) {
+                    parts.add(String.join("\n", part));
+                    part = new ArrayList<>();
+                    partTokens = 0;
+                }
+                part.add(line);
+                partTokens += tokens;
+            }
+            eventCount += page.size();
+            cursor = page.get(page.size() - 1).getId();
+        }
+        if (!part.isEmpty()) {
+            parts.add(String.join("\n", part));
+        }
+        if (parts.isEmpty()) {
+            System.out.println("ℹ️ [Memory] Нет новых событий для сводки этапа кампании " + sessionId);
+            return;
+        }
+
+        String summary;
+        if (fallback) {
+            summary = "Сводка этапа не создана, начало журнала событий:\n" + PromptBudget.truncate(parts.get(0), 300);
+        } else if (parts.size() == 1) {
+            summary = summarize(llmClient, MemoryPrompts.getStageSummaryPrompt(questTitle, stageTitle, parts.get(0)));
+        } else {
+            StringBuilder partSummaries = new StringBuilder();
+            for (int i = 0; i < parts.size(); i++) {
+                String partTitle = stageTitle + " (часть " + (i + 1) + " из " + parts.size() + ")";
+                partSummaries.append(i + 1).append(". ")
+                    .append(summarize(llmClient, MemoryPrompts.getStageSummaryPrompt(questTitle, partTitle, parts.get(i))))
+                    .append("\n");
+            }
+            summary = summarize(llmClient, MemoryPrompts.getStageMergePrompt(questTitle, stageTitle, partSummaries.toString()));
+        }
+
+        String synopsis = fallback ? null : llmClient.generateResponse(
+            List.of(Map.of("role", "user", "content", MemoryPrompts.getSynopsisPrompt(source.synopsis, stageTitle, summary))),
+            MemoryPrompts.getChroniclerSystemPrompt(),
+            LLMScheduler.Priority.BACKGROUND
+        );
+        String newSynopsis = synopsis != null && !synopsis.trim().isEmpty() ? synopsis.trim() : source.synopsis;
+
+        String stageSummary = summary;
+        long lastEventId = source.upToId;
+        int stageEventCount = eventCount;
+        CampaignMemory updated = transactionTemplate.execute(status -> {
+            Campaign campaign = campaignRepository.findBySessionId(sessionId).orElse(null);
+            if (campaign == null) {
+                return null;
+            }
+            CampaignSummary stage = new CampaignSummary();
+            stage.setCampaign(campaign);
+            stage.setSummaryType(CampaignSummary.TYPE_STAGE);
+            stage.setStageIndex(stageIndex);
+            stage.setStageTitle(stageTitle);
+            stage.setContent(stageSummary);
+            stage.setLastEventId(lastEventId);
+            stage.setEventCount(stageEventCount);
+            campaignSummaryRepository.save(stage);
+
+            if (newSynopsis != null) {
+                CampaignSummary synopsisRow = campaignSummaryRepository
+                    .findFirstByCampaignIdAndSummaryTypeOrderByIdDesc(campaign.getId(), CampaignSummary.TYPE_SYNOPSIS)
+                    .orElseGet(() -> {
+                        CampaignSummary created = new CampaignSummary();
+                        created.setCampaign(campaign);
+                        created.setSummaryType(CampaignSummary.TYPE_SYNOPSIS);
+                        return created;
+                    });
+                synopsisRow.setContent(newSynopsis);
+                synopsisRow.setLastEventId(lastEventId);
+                campaignSummaryRepository.save(synopsisRow);
+            }
+            return loadMemory(sessionId);
+        });
+
+        if (updated != null) {
+            synchronized (cache) {
+                cache.put(sessionId, updated);
+            }
+        }
+        System.out.println((fallback ? "⚠️ [Memory] Этап \"" + stageTitle + "\" закрыт журналом без сводки (" :
+            "✅ [Memory] Сводка этапа \"" + stageTitle + "\" (") + eventCount + " событий, частей " +
+            parts.size() + ") кампании " +
+            sessionId + " готова за " + (System.currentTimeMillis() - startTime) + " мс");
+    }
+
+    /**
+     * Запрос сводки к LLM летописца
+     */
+    private String summarize(LocalLLMClient llmClient, String prompt) {
+        String summary = llmClient.generateResponse(
+            List.of(Map.of("role", "user", "content", prompt)),
+            MemoryPrompts.getChroniclerSystemPrompt(),
+            LLMScheduler.Priority.BACKGROUND
+        );
+        if (summary == null || summary.trim().isEmpty()) {
+            throw new RuntimeException("LLM вернул пустую сводку этапа");
+        }
+        return summary.trim();
+    }
+
+    /**
+     * Границы событий этапа (после последней сводки и до upToId, зафиксированного при завершении этапа)
+     * и текущий синопсис (вызывается внутри транзакции)
+     */
+    private StageSource loadStageSource(String sessionId, long upToId) {
+        Campaign campaign = campaignRepository.findBySessionId(sessionId).orElse(null);
+        if (campaign == null) {
+            return null;
+        }
+        Long afterId = campaignSummaryRepository
+            .findFirstByCampaignIdAndSummaryTypeOrderByIdDesc(campaign.getId(), CampaignSummary.TYPE_STAGE)
+            .map(CampaignSummary::getLastEventId)
+            .orElse(0L);
+        String synopsis = campaignSummaryRepository
+            .findFirstByCampaignIdAndSummaryTypeOrderByIdDesc(campaign.getId(), CampaignSummary.TYPE_SYNOPSIS)
+            .map(CampaignSummary::getContent)
+            .orElse(null);
+        return new StageSource(campaign.getId(), afterId, upToId, synopsis);
+    }
+
+    /**
+     * Синопсис и сводки последних этапов (вызывается внутри транзакции)
+     */
+    private CampaignMemory loadMemory(String sessionId) {
+        Campaign campaign = campaignRepository.findBySessionId(sessionId).orElse(null);
+        if (campaign == null) {
+            return CampaignMemory.EMPTY;
+        }
+        String synopsis = campaignSummaryRepository
+            .findFirstByCampaignIdAndSummaryTypeOrderByIdDesc(campaign.getId(), CampaignSummary.TYPE_SYNOPSIS)
+            .map(CampaignSummary::getContent)
+            .orElse(null);
+        List<CampaignSummary> stages = campaignSummaryRepository.findByCampaignIdAndSummaryTypeOrderByIdDesc(
+            campaign.getId(), CampaignSummary.TYPE_STAGE, PageRequest.of(0, Math.max(1, stageSummaries)));
+        List<StageSummary> result = new ArrayList<>();
+        // Из БД новые первыми, в контекст - в хронологическом порядке
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            CampaignSummary stage = stages.get(i);
+            result.add(new StageSummary(stage.getStageIndex(), stage.getStageTitle(), stage.getContent()));
+        }
+        return new CampaignMemory(synopsis, result);
+    }
+
+    /**
+     * Строка журнала событий этапа; событие больше бюджета части обрезается до него
+     */
+    private String formatEvent(GameEvent event) {
+        String line = "[" + event.getEventType() + "] " +
+            (event.getCharacterName() != null && !event.getCharacterName().isEmpty() ? event.getCharacterName() + ": " : "") +
+            PromptBudget.truncate(event.getDescription(), 200);
+        return PromptBudget.truncate(line, Math.max(1, summarySourceTokens - 1));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        summarizer.shutdown();
+        try {
+            summarizer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Этап, ожидающий сводки; attempts - число неудачных попыток
+     */
+    private static class StageJob {
+        final String sessionId;
+        final String questTitle;
+        final int stageIndex;
+        final String stageTitle;
+        final long upToId;
+        final LocalLLMClient llmClient;
+        int attempts;
+
+        StageJob(String sessionId, String questTitle, int stageIndex, String stageTitle, long upToId,
+                 LocalLLMClient llmClient) {
+            this.sessionId = sessionId;
+            this.questTitle = questTitle;
+            this.stageIndex = stageIndex;
+            this.stageTitle = stageTitle;
+            this.upToId = upToId;
+            this.llmClient = llmClient;
+        }
+    }
+
+    private static class StageSource {
+        final Long campaignId;
+        final long afterId;
+        final long upToId;
+        final String synopsis;
+
+        StageSource(Long campaignId, long afterId, long upToId, String synopsis) {
+            this.campaignId = campaignId;
+            this.afterId = afterId;
+            this.upToId = upToId;
+            this.synopsis = synopsis;
+        }
+    }
+
+    /**
+     * Сжатая память кампании
+     */
+    public static class CampaignMemory {
+        static final CampaignMemory EMPTY = new CampaignMemory(null, List.of());
+
+        private final String synopsis;
+        private final List<StageSummary> stageSummaries;
+
+        public CampaignMemory(String synopsis, List<StageSummary> stageSummaries) {
+            this.synopsis = synopsis;
+            this.stageSummaries = Collections.unmodifiableList(stageSummaries);
+        }
+
+        public String getSynopsis() { return synopsis; }
+        public List<StageSummary> getStageSummaries() { return stageSummaries; }
+
+        public boolean isEmpty() {
+            return (synopsis == null || synopsis.isEmpty()) && stageSummaries.isEmpty();
+        }
+    }
+
+    /**
+     * Сводка пройденного этапа квеста
+     */
+    public static class StageSummary {
+        private final Integer stageIndex;
+        private final String stageTitle;
+        private final String content;
+
+        public StageSummary(Integer stageIndex, String stageTitle, String content) {
+            this.stageIndex = stageIndex;
+            this.stageTitle = stageTitle;
+            this.content = content;
+        }
+
+        public Integer getStageIndex() { return stageIndex; }
+        public String getStageTitle() { return stageTitle; }
+        public String getContent() { return content; }
+    }
+}
@@ -0,0 +1,286 @@
+package com.dnd.service;
+
+import com.pgvector.PGvector;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш эмбеддингов по содержимому текста.
+ * Ключ - модель + SHA-256 текста. Первый уровень - LRU в памяти, второй (опционально) -
+ * таблица embedding_cache в PostgreSQL, которая переживает перезапуск приложения.
+ * Повторные RAG запросы по той же стадии квеста и переиндексация того же текста не идут в Ollama.
+ * Записи таблицы живут ollama.embedding.cache.ttl-days; фоновая очистка удаляет устаревшие
+ * и самые старые сверх ollama.embedding.cache.max-rows. Наружу отдаются копии векторов.
+ */
+@Component
+public class EmbeddingCache {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Value("${ollama.embedding.cache.max-size:2000}")
+    private int maxSize;
+
+    @Value("${ollama.embedding.cache.persistent:true}")
+    private boolean persistent;
+
+    @Value("${ollama.embedding.cache.ttl-days:30}")
+    private int ttlDays;
+
+    @Value("${ollama.embedding.cache.max-rows:200000}")
+    private int maxRows;
+
+    @Value("${ollama.embedding.cache.cleanup-interval-ms:3600000}")
+    private long cleanupIntervalMs;
+
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "embedding-cache-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, float[]> memory = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private Counter memoryHits;
+    private Counter persistentHits;
+    private Counter misses;
+
+    @PostConstruct
+    public void initMetrics() {
+        if (meterRegistry == null) {
+            return;
+        }
+        memoryHits = meterRegistry.counter("embedding.cache.hits", "tier", "memory");
+        persistentHits = meterRegistry.counter("embedding.cache.hits", "tier", "postgres");
+        misses = meterRegistry.counter("embedding.cache.misses");
+        Gauge.builder("embedding.cache.size", this, EmbeddingCache::size)
+            .description("Эмбеддингов в LRU кэше")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Запускает периодическую очистку таблицы кэша (после миграций схемы)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleCleanup() {
+        if (!persistent) {
+            return;
+        }
+        cleaner.scheduleWithFixedDelay(this::cleanup, cleanupIntervalMs, cleanupIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * Удаляет записи старше TTL и самые старые записи сверх лимита строк
+     */
+    public void cleanup() {
+        try {
+            int expired = jdbcTemplate.update(
+                "DELETE FROM public.embedding_cache WHERE created_at < CURRENT_TIMESTAMP - make_interval(days => ?)",
+                ttlDays);
+            int overflow = jdbcTemplate.update(
+                "DELETE FROM public.embedding_cache WHERE (model, text_hash) IN (" +
+                    "SELECT model, text_hash FROM public.embedding_cache ORDER BY created_at DESC OFFSET ?)",
+                maxRows);
+            if (expired + overflow > 0) {
+                System.out.println("🧹 [EmbeddingCache] Удалено записей кэша эмбеддингов: устаревших " + expired +
+                    ", сверх лимита " + overflow);
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ [EmbeddingCache] Ошибка очистки кэша эмбеддингов: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Эмбеддинг текста из кэша
+     *
+     * @return эмбеддинг или null, если текста нет ни в памяти, ни в БД
+     */
+    public float[] get(String model, String text) {
+        return getAll(model, List.of(text)).get(0);
+    }
+
+    /**
+     * Эмбеддинги текстов из кэша одним запросом к БД для всех промахов памяти
+     *
+     * @return список того же размера, что и texts; null на месте промаха
+     */
+    public List<float[]> getAll(String model, List<String> texts) {
+        List<float[]> result = new ArrayList<>(Collections.nCopies(texts.size(), null));
+        Map<String, List<Integer>> missingByHash = new LinkedHashMap<>();
+
+        synchronized (memory) {
+            for (int i = 0; i < texts.size(); i++) {
+                String hash = hash(texts.get(i));
+                float[] cached = memory.get(key(model, hash));
+                if (cached != null) {
+                    result.set(i, cached.clone());
+                    increment(memoryHits);
+                } else {
+                    missingByHash.computeIfAbsent(hash, k -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+
+        if (!missingByHash.isEmpty() && persistent) {
+            Map<String, float[]> loaded = loadPersistent(model, missingByHash.keySet());
+            for (Map.Entry<String, float[]> entry : loaded.entrySet()) {
+                for (Integer index : missingByHash.remove(entry.getKey())) {
+                    result.set(index, entry.getValue().clone());
+                    increment(persistentHits);
+                }
+                synchronized (memory) {
+                    memory.put(key(model, entry.getKey()), entry.getValue());
+                }
+            }
+        }
+
+        for (List<Integer> indexes : missingByHash.values()) {
+            if (misses != null) {
+                misses.increment(indexes.size());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Сохраняет эмбеддинг в кэш
+     */
+    public void put(String model, String text, float[] embedding) {
+        putAll(model, List.of(text), List.of(embedding));
+    }
+
+    /**
+     * Сохраняет эмбеддинги в кэш (в БД - одним многострочным INSERT)
+     */
+    public void putAll(String model, List<String> texts, List<float[]> embeddings) {
+        Map<String, float[]> byHash = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            // Копия: вызывающий код может дальше менять свой массив
+            byHash.put(hash(texts.get(i)), embeddings.get(i).clone());
+        }
+
+        synchronized (memory) {
+            for (Map.Entry<String, float[]> entry : byHash.entrySet()) {
+                memory.put(key(model, entry.getKey()), entry.getValue());
+            }
+        }
+
+        if (persistent && !byHash.isEmpty()) {
+            savePersistent(model, byHash);
+        }
+    }
+
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    private Map<String, float[]> loadPersistent(String model, Collection<String> hashes) {
+        Map<String, float[]> loaded = new HashMap<>();
+        try {
+            String placeholders = String.join(", ", Collections.nCopies(hashes.size(), "?"));
+            List<Object> params = new ArrayList<>();
+            params.add(model);
+            params.addAll(hashes);
+
+            params.add(ttlDays);
+
+            ArgumentPreparedStatementSetter setter = new ArgumentPreparedStatementSetter(params.toArray());
+            jdbcTemplate.query(
+                "SELECT text_hash, embedding FROM public.embedding_cache " +
+                    "WHERE model = ? AND text_hash IN (" + placeholders + ") " +
+                    "AND created_at >= CURRENT_TIMESTAMP - make_interval(days => ?)",
+                ps -> {
+                    PGvector.addVectorType(ps.getConnection());
+                    setter.setValues(ps);
+                },
+                rs -> {
+                    PGvector vector = rs.getObject("embedding", PGvector.class);
+                    if (vector != null) {
+                        loaded.put(rs.getString("text_hash"), vector.toArray());
+                    }
+                });
+        } catch (Exception e) {
+            System.err.println("⚠️ [EmbeddingCache] Ошибка чтения кэша эмбеддингов из БД: " + e.getMessage());
+        }
+        return loaded;
+    }
+
+    private void savePersistent(String model, Map<String, float[]> byHash) {
+        try {
+            StringBuilder sql = new StringBuilder(
+                "INSERT INTO public.embedding_cache (model, text_hash, embedding) VALUES ");
+            List<Object> params = new ArrayList<>();
+            int i = 0;
+            for (Map.Entry<String, float[]> entry : byHash.entrySet()) {
+                if (i++ > 0) sql.append(", ");
+                sql.append("(?, ?, ?)");
+                params.add(model);
+                params.add(entry.getKey());
+                params.add(new PGvector(entry.getValue()));
+            }
+            // Повторная запись после истечения TTL продлевает жизнь строки
+            sql.append(" ON CONFLICT (model, text_hash) DO UPDATE SET embedding = EXCLUDED.embedding, " +
+                "created_at = CURRENT_TIMESTAMP");
+
+            ArgumentPreparedStatementSetter setter = new ArgumentPreparedStatementSetter(params.toArray());
+            jdbcTemplate.update(sql.toString(), ps -> {
+                PGvector.addVectorType(ps.getConnection());
+                setter.setValues(ps);
+            });
+        } catch (Exception e) {
+            System.err.println("⚠️ [EmbeddingCache] Ошибка записи кэша эмбеддингов в БД: " + e.getMessage());
+        }
+    }
+
+    private String key(String model, String hash) {
+        return model + ":" + hash;
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
+    private void increment(Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
@@ -3,18 +3,22 @@ package com.dnd.service;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import jakarta.annotation.PostConstruct;
 import okhttp3.*;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Сервис для работы с эмбеддингами через Ollama API
- * Использует модель BGE-M3 для векторизации текста
+ * Использует модель BGE-M3 для векторизации текста.
+ * Результаты кэшируются по содержимому текста (EmbeddingCache), одинаковый текст векторизуется один раз.
  */
 @Service
 public class EmbeddingService {
@@ -22,20 +26,41 @@ public class EmbeddingService {
     private final OkHttpClient httpClient;
     private final String ollamaBaseUrl;
     private final String embeddingModel;
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private volatile boolean batchEndpointSupported = true;
+    private volatile boolean batchEndpointSeenWorking = false;
+    // Когда /api/embed признан отсутствующим; после BATCH_REPROBE_INTERVAL_MS пробуем его снова (Ollama могли обновить)
+    private volatile long batchEndpointUnsupportedAt = 0;
+    private static final long BATCH_REPROBE_INTERVAL_MS = 10 * 60_000;
+    
+    @Autowired(required = false)
+    private EmbeddingCache embeddingCache;
+    
+    @Autowired(required = false)
+    private OllamaHealthMonitor healthMonitor;
     
     // BGE-M3 возвращает векторы размерностью 1024
     public static final int VECTOR_SIZE = 1024;
     
     public EmbeddingService(
             @Value("${ollama.base.url:http://localhost:11434}") String ollamaBaseUrl,
-            @Value("${ollama.embedding.model:bge-m3}") String embeddingModel) {
+            @Value("${ollama.embedding.model:bge-m3}") String embeddingModel,
+            @Value("${ollama.embedding.batch.max-size:32}") int maxBatchSize,
+            @Value("${ollama.embedding.batch.max-bytes:262144}") long maxBatchBytes,
+            HttpClientProfiles httpClients) {
         this.ollamaBaseUrl = ollamaBaseUrl;
         this.embeddingModel = embeddingModel;
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(120, TimeUnit.SECONDS)
-                .writeTimeout(30, TimeUnit.SECONDS)
-                .build();
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+        this.httpClient = httpClients.embedding();
+    }
+    
+    @PostConstruct
+    public void registerModel() {
+        if (healthMonitor != null) {
+            healthMonitor.requireModel(embeddingModel);
+        }
     }
     
     /**
@@ -50,6 +75,24 @@ public class EmbeddingService {
             throw new IllegalArgumentException("Текст не может быть пустым");
         }
         
+        if (embeddingCache != null) {
+            float[] cached = embeddingCache.get(embeddingModel, text);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        float[] embedding = requestEmbedding(text);
+        if (embeddingCache != null) {
+            embeddingCache.put(embeddingModel, text, embedding);
+        }
+        return embedding;
+    }
+    
+    /**
+     * Один запрос к /api/embeddings без кэша
+     */
+    private float[] requestEmbedding(String text) throws IOException {
         // Формируем запрос к Ollama
         JsonObject requestBody = new JsonObject();
         requestBody.addProperty("model", embeddingModel);
@@ -65,6 +108,7 @@ public class EmbeddingService {
                 .post(body)
                 .build();
         
+        long startTime = System.currentTimeMillis();
         try (Response response = httpClient.newCall(request).execute()) {
             if (!response.isSuccessful()) {
                 String errorBody = response.body() != null ? response.body().string() : "No error body";
@@ -95,27 +139,259 @@ public class EmbeddingService {
                         ") не соответствует ожидаемому (" + VECTOR_SIZE + ")");
             }
             
+            reportSuccess(startTime);
             return embedding;
+        } catch (IOException e) {
+            reportFailure(e);
+            throw e;
         }
     }
     
     /**
-     * Получает эмбеддинги для нескольких текстов (батч)
+     * Получает эмбеддинги для нескольких текстов (батч).
+     * Тексты отправляются в /api/embed пачками, ограниченными по количеству (ollama.embedding.batch.max-size)
+     * и по суммарному размеру (ollama.embedding.batch.max-bytes). Если пачка не прошла, она делится пополам
+     * и отправляется повторно, пока сбойный текст не останется один.
      * 
      * @param texts Список текстов для векторизации
-     * @return Список массивов float
+     * @return Список массивов float в том же порядке, что и texts
      * @throws IOException При ошибке запроса к Ollama
      */
     public List<float[]> embedBatch(List<String> texts) throws IOException {
-        List<float[]> embeddings = new ArrayList<>();
-        
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        if (texts.isEmpty()) {
+            return embeddings;
+        }
         for (String text : texts) {
-            embeddings.add(embed(text));
+            if (text == null || text.trim().isEmpty()) {
+                throw new IllegalArgumentException("Текст не может быть пустым");
+            }
         }
         
+        // Из кэша берем все, что уже векторизовано; в Ollama уходят только промахи
+        List<float[]> cached = embeddingCache != null
+                ? embeddingCache.getAll(embeddingModel, texts)
+                : new ArrayList<>(Collections.nCopies(texts.size(), null));
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            if (cached.get(i) == null) {
+                missing.add(texts.get(i));
+            }
+        }
+        
+        List<float[]> computed = missing.isEmpty() ? List.of() : requestEmbeddings(missing);
+        if (embeddingCache != null && !computed.isEmpty()) {
+            embeddingCache.putAll(embeddingModel, missing, computed);
+        }
+        
+        int next = 0;
+        for (float[] embedding : cached) {
+            embeddings.add(embedding != null ? embedding : computed.get(next++));
+        }
         return embeddings;
     }
     
+    /**
+     * Получает эмбеддинги текстов из Ollama пачками, без кэша
+     */
+    private List<float[]> requestEmbeddings(List<String> texts) throws IOException {
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        if (!batchEndpointSupported &&
+            System.currentTimeMillis() - batchEndpointUnsupportedAt > BATCH_REPROBE_INTERVAL_MS) {
+            batchEndpointSupported = true;
+        }
+        if (!batchEndpointSupported) {
+            for (String text : texts) {
+                embeddings.add(requestEmbedding(text));
+            }
+            return embeddings;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        int requests = 0;
+        int from = 0;
+        while (from < texts.size()) {
+            // Набираем пачку, пока не упремся в лимит количества или размера
+            int to = from;
+            long payloadBytes = 0;
+            while (to < texts.size() && to - from < maxBatchSize) {
+                long textBytes = texts.get(to).getBytes(StandardCharsets.UTF_8).length;
+                if (to > from && payloadBytes + textBytes > maxBatchBytes) {
+                    break;
+                }
+                payloadBytes += textBytes;
+                to++;
+            }
+            
+            List<String> batch = texts.subList(from, to);
+            requests += embedWithSplit(batch, embeddings);
+            from = to;
+        }
+        
+        System.out.println("🧮 Эмбеддинги для " + texts.size() + " текстов получены за " + requests + 
+                " запрос(ов), " + (System.currentTimeMillis() - startTime) + " мс");
+        return embeddings;
+    }
+    
+    /**
+     * Отправляет пачку; при ошибке, вызванной самим запросом (4xx, некорректный ответ на эту пачку),
+     * делит ее пополам и повторяет для каждой половины. Недоступность Ollama, таймауты и отсутствие модели
+     * от размера пачки не зависят - такие ошибки пробрасываются сразу, без лишних запросов.
+     * 
+     * @return количество выполненных HTTP запросов
+     */
+    private int embedWithSplit(List<String> batch, List<float[]> out) throws IOException {
+        try {
+            out.addAll(requestEmbedBatch(batch));
+            return 1;
+        } catch (BatchEndpointUnsupportedException e) {
+            // Старая версия Ollama без /api/embed - переходим на поштучные запросы
+            System.err.println("⚠️ Ollama не поддерживает /api/embed, используем /api/embeddings");
+            batchEndpointSupported = false;
+            batchEndpointUnsupportedAt = System.currentTimeMillis();
+            for (String text : batch) {
+                out.add(requestEmbedding(text));
+            }
+            return 1 + batch.size();
+        } catch (BatchRejectedException e) {
+            if (batch.size() == 1) {
+                // Последняя попытка для одного текста
+                out.add(requestEmbedding(batch.get(0)));
+                return 2;
+            }
+            System.err.println("⚠️ Ошибка батча эмбеддингов из " + batch.size() + " текстов, делим пополам: " + e.getMessage());
+            int middle = batch.size() / 2;
+            int requests = 1;
+            requests += embedWithSplit(batch.subList(0, middle), out);
+            requests += embedWithSplit(batch.subList(middle, batch.size()), out);
+            return requests;
+        }
+    }
+    
+    /**
+     * Один запрос к /api/embed с массивом input
+     */
+    private List<float[]> requestEmbedBatch(List<String> batch) throws IOException {
+        JsonObject requestBody = new JsonObject();
+        requestBody.addProperty("model", embeddingModel);
+        JsonArray input = new JsonArray();
+        for (String text : batch) {
+            input.add(text);
+        }
+        requestBody.add("input", input);
+        
+        RequestBody body = RequestBody.create(
+                requestBody.toString(),
+                MediaType.get("application/json; charset=utf-8")
+        );
+        
+        Request request = new Request.Builder()
+                .url(ollamaBaseUrl + "/api/embed")
+                .post(body)
+                .build();
+        
+        long startTime = System.currentTimeMillis();
+        try (Response response = httpClient.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                String errorBody = response.body() != null ? response.body().string() : "No error body";
+                // Ollama отвечает 404 и на отсутствующую модель ({"error":"model ... not found"}),
+                // а старая версия без маршрута - текстом "404 page not found"
+                if (response.code() == 404 && !batchEndpointSeenWorking && !isModelNotFound(errorBody)) {
+                    throw new BatchEndpointUnsupportedException();
+                }
+                String message = "Ошибка запроса к Ollama: " + response.code() + " - " + errorBody;
+                if (response.code() >= 400 && response.code() < 500 &&
+                    response.code() != 404 && response.code() != 408 && response.code() != 429) {
+                    throw new BatchRejectedException(message);
+                }
+                throw new IOException(message);
+            }
+            
+            if (response.body() == null) {
+                throw new IOException("Пустой ответ от Ollama");
+            }
+            
+            String responseBody = response.body().string();
+            JsonObject jsonResponse;
+            try {
+                jsonResponse = gson.fromJson(responseBody, JsonObject.class);
+            } catch (RuntimeException e) {
+                throw new BatchRejectedException("Некорректный ответ Ollama: " + e.getMessage());
+            }
+            
+            if (jsonResponse == null || !jsonResponse.has("embeddings")) {
+                throw new BatchRejectedException("Ответ от Ollama не содержит embeddings");
+            }
+            
+            JsonArray embeddingsArray = jsonResponse.getAsJsonArray("embeddings");
+            if (embeddingsArray.size() != batch.size()) {
+                throw new BatchRejectedException("Ollama вернул " + embeddingsArray.size() + " эмбеддингов вместо " + batch.size());
+            }
+            batchEndpointSeenWorking = true;
+            
+            List<float[]> result = new ArrayList<>(batch.size());
+            for (int i = 0; i < embeddingsArray.size(); i++) {
+                JsonArray embeddingArray = embeddingsArray.get(i).getAsJsonArray();
+                float[] embedding = new float[embeddingArray.size()];
+                for (int j = 0; j < embeddingArray.size(); j++) {
+                    embedding[j] = embeddingArray.get(j).getAsFloat();
+                }
+                if (embedding.length != VECTOR_SIZE) {
+                    System.err.println("⚠️ Предупреждение: размер вектора (" + embedding.length + 
+                            ") не соответствует ожидаемому (" + VECTOR_SIZE + ")");
+                }
+                result.add(embedding);
+            }
+            reportSuccess(startTime);
+            return result;
+        } catch (BatchEndpointUnsupportedException | BatchRejectedException e) {
+            // Ollama ответил - это ошибка запроса, а не недоступность сервиса
+            throw e;
+        } catch (IOException e) {
+            reportFailure(e);
+            throw e;
+        }
+    }
+    
+    private void reportSuccess(long startTime) {
+        if (healthMonitor != null) {
+            healthMonitor.reportSuccess(embeddingModel, System.currentTimeMillis() - startTime);
+        }
+    }
+    
+    private void reportFailure(Exception e) {
+        if (healthMonitor != null) {
+            healthMonitor.reportFailure(embeddingModel, e);
+        }
+    }
+    
+    private static boolean isModelNotFound(String errorBody) {
+        String lower = errorBody.toLowerCase();
+        return lower.contains("model") && lower.contains("not found");
+    }
+    
+    /**
+     * Ошибка, вызванная содержимым пачки (4xx или некорректный ответ): пачку имеет смысл разделить
+     */
+    private static class BatchRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        BatchRejectedException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * /api/embed отсутствует (Ollama старше 0.3)
+     */
+    private static class BatchEndpointUnsupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        BatchEndpointUnsupportedException() {
+            super("Эндпоинт /api/embed не поддерживается");
+        }
+    }
+    
     /**
      * Создает расширенный текст с контекстом для улучшения качества эмбеддинга
      * 
@@ -146,11 +422,15 @@ public class EmbeddingService {
     }
     
     /**
-     * Проверяет доступность Ollama и модели
+     * Проверяет доступность Ollama и модели.
+     * Состояние берется из OllamaHealthMonitor без HTTP запроса; без монитора выполняется прямой запрос к /api/tags.
      * 
      * @return true если Ollama доступен и модель загружена
      */
     public boolean isAvailable() {
+        if (healthMonitor != null) {
+            return healthMonitor.isAvailable(embeddingModel);
+        }
         try {
             Request request = new Request.Builder()
                     .url(ollamaBaseUrl + "/api/tags")
@@ -1,94 +1,262 @@
 package com.dnd.service;
 
 import com.dnd.entity.GameEvent;
+import com.dnd.repository.GameEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Сервис для автоматической индексации событий в векторную БД
- * Вызывается при создании новых событий для создания эмбеддингов
+ * Вызывается при создании новых событий для создания эмбеддингов.
+ *
+ * События попадают в ограниченную очередь и обрабатываются фиксированным пулом воркеров:
+ * воркер собирает микро-батч, получает эмбеддинги одним вызовом embedBatch и записывает их
+ * одним многострочным INSERT. Событие помечается index_pending при сохранении и снимает пометку
+ * только после записи эмбеддинга, поэтому события, записанные при недоступном Ollama или
+ * переполненной очереди, подхватываются периодической проверкой. Неудачные попытки записываются
+ * в index_attempts/index_error; после rag.indexing.max-attempts пометка снимается, чтобы
+ * "ядовитое" событие не индексировалось бесконечно.
  */
 @Service
 public class EventIndexingService {
-    
+
     @Autowired(required = false)
     private EmbeddingService embeddingService;
-    
+
     @Autowired(required = false)
     private VectorDBService vectorDBService;
-    
+
+    @Autowired
+    private GameEventRepository gameEventRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
     @Value("${rag.enabled:true}")
     private boolean ragEnabled;
-    
+
+    @Value("${rag.indexing.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${rag.indexing.workers:2}")
+    private int workerCount;
+
+    @Value("${rag.indexing.batch-size:16}")
+    private int batchSize;
+
+    @Value("${rag.indexing.batch-linger-ms:50}")
+    private long batchLingerMs;
+
+    @Value("${rag.indexing.max-retries:3}")
+    private int maxRetries;
+
+    @Value("${rag.indexing.retry-backoff-ms:500}")
+    private long retryBackoffMs;
+
+    @Value("${rag.indexing.sweep-interval-ms:60000}")
+    private long sweepIntervalMs;
+
+    @Value("${rag.indexing.max-attempts:5}")
+    private int maxAttempts;
+
+    private BlockingQueue<IndexRequest> queue;
+    private ExecutorService workers;
+    private ScheduledExecutorService sweeper;
+    private volatile boolean running = true;
+
+    // Событие с контекстом квестов и NPC для индексации - без загрузки сущностей
+    private static final String INDEX_REQUEST_SELECT = """
+        SELECT
+            e.id,
+            e.campaign_id,
+            e.description,
+            e.location_name,
+            e.event_type,
+            (SELECT string_agg(CASE WHEN q.goal IS NULL OR q.goal = '' THEN q.title
+                                    ELSE q.title || ': ' || q.goal END, ', ')
+             FROM game_event_quests gq JOIN quests q ON q.id = gq.quest_id
+             WHERE gq.game_event_id = e.id) AS quest_context,
+            (SELECT string_agg(n.name, ', ')
+             FROM game_event_npcs gn JOIN npcs n ON n.id = gn.npc_id
+             WHERE gn.game_event_id = e.id) AS npc_context
+        FROM game_events e
+        """;
+
+    // События в очереди или в обработке: не ставим одно событие дважды
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+
+    private Counter enqueuedCounter;
+    private Counter rejectedCounter;
+    private Counter indexedCounter;
+    private Counter failedCounter;
+    private Counter retryCounter;
+    private Timer batchTimer;
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+
+        if (meterRegistry != null) {
+            Gauge.builder("rag.indexing.queue.size", queue, BlockingQueue::size)
+                .description("События, ожидающие индексации в очереди")
+                .register(meterRegistry);
+            Gauge.builder("rag.indexing.queue.remaining", queue, BlockingQueue::remainingCapacity)
+                .description("Свободное место в очереди индексации")
+                .register(meterRegistry);
+            enqueuedCounter = meterRegistry.counter("rag.indexing.enqueued");
+            rejectedCounter = meterRegistry.counter("rag.indexing.rejected");
+            indexedCounter = meterRegistry.counter("rag.indexing.indexed");
+            failedCounter = meterRegistry.counter("rag.indexing.failed");
+            retryCounter = meterRegistry.counter("rag.indexing.retries");
+            batchTimer = meterRegistry.timer("rag.indexing.batch.latency");
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, workerCount);
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "event-indexer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.submit(this::workerLoop);
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "event-index-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     /**
-     * Индексирует событие в векторную БД (асинхронно)
-     * 
+     * Запускает периодическую доиндексацию событий, оставшихся с пометкой index_pending
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleRecoverySweep() {
+        if (!ragEnabled || embeddingService == null || vectorDBService == null) {
+            return;
+        }
+        sweeper.scheduleWithFixedDelay(this::enqueuePendingEvents, 0, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        sweeper.shutdownNow();
+        workers.shutdownNow();
+        // Неиндексированные события сохранят пометку index_pending и будут обработаны после перезапуска
+    }
+
+    /**
+     * Включена ли индексация (RAG включен и сервисы доступны)
+     */
+    public boolean isEnabled() {
+        return ragEnabled && embeddingService != null && vectorDBService != null;
+    }
+
+    /**
+     * Ставит событие в очередь индексации в векторную БД.
+     * Данные события собираются сразу (пока открыта сессия JPA), а в очередь оно попадает
+     * после коммита транзакции, чтобы воркер не опередил запись события в БД.
+     *
      * @param event Событие для индексации
      */
-    @Async
     public void indexEvent(GameEvent event) {
-        if (!ragEnabled || embeddingService == null || vectorDBService == null) {
+        if (!isEnabled()) {
             return; // RAG отключен или сервисы недоступны
         }
-        
-        if (!embeddingService.isAvailable()) {
-            System.err.println("⚠️ Ollama недоступен, пропускаем индексацию события " + event.getId());
+
+        Long campaignId = event.getCampaign() != null ? event.getCampaign().getId() : null;
+        if (campaignId == null) {
+            System.err.println("⚠️ Campaign ID не найден для события " + event.getId());
+            return;
+        }
+
+        // Получаем контекст для улучшения качества эмбеддинга
+        IndexRequest request = new IndexRequest(
+            event.getId(),
+            campaignId,
+            event.getDescription(),
+            extractQuestContext(event),
+            event.getLocationName(),
+            extractNPCContext(event),
+            event.getEventType()
+        );
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(request);
+                }
+            });
+        } else {
+            enqueue(request);
+        }
+    }
+
+    /**
+     * Ставит в очередь индексации уже закоммиченные события (запись хода, TurnCommitService).
+     * Контекст квестов и NPC читается одним запросом; события, не поместившиеся в очередь,
+     * остаются помеченными index_pending и будут доиндексированы позже.
+     */
+    public void indexEvents(List<Long> eventIds) {
+        if (!isEnabled() || eventIds == null || eventIds.isEmpty()) {
             return;
         }
-        
         try {
-            // Получаем контекст для улучшения качества эмбеддинга
-            String questContext = extractQuestContext(event);
-            String locationContext = event.getLocationName();
-            String npcContext = extractNPCContext(event);
-            
-            // Формируем расширенный текст
-            String enhancedText = embeddingService.buildEnhancedText(
-                event.getDescription(),
-                questContext,
-                locationContext,
-                npcContext
-            );
-            
-            // Получаем эмбеддинг
-            float[] embedding = embeddingService.embed(enhancedText);
-            
-            // Сохраняем в векторную БД
-            Long campaignId = event.getCampaign() != null ? event.getCampaign().getId() : null;
-            if (campaignId == null) {
-                System.err.println("⚠️ Campaign ID не найден для события " + event.getId());
-                return;
+            String placeholders = String.join(", ", Collections.nCopies(eventIds.size(), "?"));
+            List<IndexRequest> requests = jdbcTemplate.query(
+                INDEX_REQUEST_SELECT + " WHERE e.id IN (" + placeholders + ") ORDER BY e.id",
+                this::mapIndexRequest, eventIds.toArray());
+            for (IndexRequest request : requests) {
+                if (!enqueue(request)) {
+                    break;
+                }
             }
-            
-            vectorDBService.saveEmbedding(
-                event.getId(),
-                campaignId,
-                embedding,
-                event.getDescription(),
-                questContext,
-                locationContext,
-                npcContext,
-                event.getEventType()
-            );
-            
-            System.out.println("✅ Событие " + event.getId() + " проиндексировано в векторную БД");
-            
         } catch (Exception e) {
-            System.err.println("⚠️ Ошибка индексации события " + event.getId() + ": " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("⚠️ Ошибка постановки событий хода в очередь индексации: " + e.getMessage());
         }
     }
-    
+
     /**
      * Переиндексирует событие (обновляет эмбеддинг)
      */
-    @Async
     public void reindexEvent(GameEvent event) {
         indexEvent(event); // Используем ту же логику
     }
-    
+
     /**
      * Удаляет событие из векторной БД
      */
@@ -96,7 +264,7 @@ public class EventIndexingService {
         if (!ragEnabled || vectorDBService == null) {
             return;
         }
-        
+
         try {
             vectorDBService.deleteEmbedding(eventId);
             System.out.println("✅ Событие " + eventId + " удалено из векторной БД");
@@ -104,7 +272,250 @@ public class EventIndexingService {
             System.err.println("⚠️ Ошибка удаления события " + eventId + ": " + e.getMessage());
         }
     }
-    
+
+    /**
+     * Неблокирующая постановка в очередь: при переполнении событие остается с пометкой
+     * index_pending и будет проиндексировано периодической проверкой
+     */
+    private boolean enqueue(IndexRequest request) {
+        if (!inFlight.add(request.eventId)) {
+            return true; // Уже в очереди или в обработке
+        }
+        if (queue.offer(request)) {
+            increment(enqueuedCounter);
+            return true;
+        }
+        inFlight.remove(request.eventId);
+        increment(rejectedCounter);
+        System.err.println("⚠️ Очередь индексации заполнена (" + queue.size() + "), событие " + request.eventId +
+            " будет проиндексировано позже");
+        return false;
+    }
+
+    private void workerLoop() {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                IndexRequest first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                List<IndexRequest> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                // Небольшая задержка, чтобы собрать события, пришедшие почти одновременно
+                if (batchLingerMs > 0 && queue.size() < batchSize - 1) {
+                    Thread.sleep(batchLingerMs);
+                }
+                queue.drainTo(batch, Math.max(0, batchSize - 1));
+
+                processBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                System.err.println("❌ Ошибка воркера индексации: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Индексирует батч событий с повторными попытками и экспоненциальной задержкой
+     */
+    private void processBatch(List<IndexRequest> batch) throws InterruptedException {
+        long startTime = System.nanoTime();
+        try {
+            if (!embeddingService.isAvailable()) {
+                // Состояние берется из монитора Ollama без запроса; события подхватит периодическая проверка
+                increment(failedCounter, batch.size());
+                System.err.println("⚠️ Ollama недоступен, " + batch.size() + " событий останутся в ожидании индексации");
+                return;
+            }
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    writeBatch(batch);
+                    increment(indexedCounter, batch.size());
+                    System.out.println("✅ Проиндексировано событий в векторную БД: " + batch.size() +
+                        (attempt > 0 ? " (попытка " + (attempt + 1) + ")" : ""));
+                    return;
+                } catch (Exception e) {
+                    if (attempt >= maxRetries || !running) {
+                        if (batch.size() > 1 && running && embeddingService.isAvailable()) {
+                            // Ollama доступен, значит ошибку, скорее всего, дает одно из событий - ищем его делением
+                            System.err.println("⚠️ Ошибка индексации батча из " + batch.size() + " событий (" +
+                                e.getMessage() + "), индексируем по частям");
+                            writeWithSplit(batch);
+                            return;
+                        }
+                        increment(failedCounter, batch.size());
+                        System.err.println("⚠️ Ошибка индексации батча из " + batch.size() + " событий: " + e.getMessage() +
+                            ". События останутся в ожидании индексации");
+                        recordFailedAttempt(batch, e);
+                        return;
+                    }
+                    increment(retryCounter);
+                    long delay = retryBackoffMs * (1L << Math.min(attempt, 10));
+                    System.err.println("⚠️ Ошибка индексации батча (" + e.getMessage() + "), повтор через " + delay + " мс");
+                    Thread.sleep(delay);
+                }
+            }
+        } finally {
+            for (IndexRequest request : batch) {
+                inFlight.remove(request.eventId);
+            }
+            if (batchTimer != null) {
+                batchTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Делит сбойный батч пополам, пока ошибка не останется за отдельными событиями:
+     * остальные события батча индексируются, попытка записывается только сбойным
+     */
+    private void writeWithSplit(List<IndexRequest> batch) {
+        try {
+            writeBatch(batch);
+            increment(indexedCounter, batch.size());
+        } catch (Exception e) {
+            if (batch.size() == 1 || !running) {
+                increment(failedCounter, batch.size());
+                System.err.println("⚠️ Ошибка индексации события " + batch.get(0).eventId +
+                    (batch.size() > 1 ? " и еще " + (batch.size() - 1) : "") + ": " + e.getMessage());
+                recordFailedAttempt(batch, e);
+                return;
+            }
+            int middle = batch.size() / 2;
+            writeWithSplit(batch.subList(0, middle));
+            writeWithSplit(batch.subList(middle, batch.size()));
+        }
+    }
+
+    private void writeBatch(List<IndexRequest> batch) throws Exception {
+        List<String> texts = new ArrayList<>(batch.size());
+        for (IndexRequest request : batch) {
+            // Формируем расширенный текст
+            texts.add(embeddingService.buildEnhancedText(
+                request.description,
+                request.questContext,
+                request.locationContext,
+                request.npcContext
+            ));
+        }
+
+        List<float[]> embeddings = embeddingService.embedBatch(texts);
+        if (embeddings.size() != batch.size()) {
+            throw new IllegalStateException("Получено " + embeddings.size() + " эмбеддингов для " + batch.size() + " событий");
+        }
+
+        List<VectorDBService.EmbeddingRecord> records = new ArrayList<>(batch.size());
+        List<Long> eventIds = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            IndexRequest request = batch.get(i);
+            records.add(new VectorDBService.EmbeddingRecord(
+                request.eventId,
+                request.campaignId,
+                embeddings.get(i),
+                request.description,
+                request.questContext,
+                request.locationContext,
+                request.npcContext,
+                request.eventType
+            ));
+            eventIds.add(request.eventId);
+        }
+
+        vectorDBService.saveEmbeddings(records);
+        gameEventRepository.markIndexed(eventIds);
+    }
+
+    /**
+     * Записывает неудачную попытку; событие, исчерпавшее rag.indexing.max-attempts, больше не ожидает индексации
+     */
+    private void recordFailedAttempt(List<IndexRequest> batch, Exception error) {
+        try {
+            String message = String.valueOf(error.getMessage());
+            if (message.length() > 1000) {
+                message = message.substring(0, 1000);
+            }
+            List<Object> params = new ArrayList<>();
+            params.add(message);
+            params.add(maxAttempts);
+            for (IndexRequest request : batch) {
+                params.add(request.eventId);
+            }
+            List<Long> exhausted = jdbcTemplate.query(
+                "UPDATE game_events SET index_attempts = COALESCE(index_attempts, 0) + 1, index_error = ?, " +
+                "index_pending = COALESCE(index_attempts, 0) + 1 < ? " +
+                "WHERE id IN (" + String.join(", ", Collections.nCopies(batch.size(), "?")) + ") " +
+                "RETURNING id, index_pending",
+                (rs, rowNum) -> rs.getBoolean("index_pending") ? null : rs.getLong("id"),
+                params.toArray());
+            exhausted.removeIf(id -> id == null);
+            if (!exhausted.isEmpty()) {
+                System.err.println("❌ События " + exhausted + " не проиндексированы за " + maxAttempts +
+                    " попыток и исключены из доиндексации: " + message);
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ Ошибка записи попытки индексации: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ставит в очередь события, ожидающие индексации (после перезапуска или недоступности Ollama).
+     * Контекст квестов и NPC собирается одним запросом, без загрузки сущностей.
+     */
+    private void enqueuePendingEvents() {
+        try {
+            int limit = queue.remainingCapacity();
+            if (limit <= 0) {
+                return;
+            }
+
+            List<IndexRequest> pending = jdbcTemplate.query(
+                INDEX_REQUEST_SELECT + " WHERE e.index_pending = true ORDER BY e.id LIMIT ?",
+                this::mapIndexRequest, limit);
+
+            int enqueued = 0;
+            for (IndexRequest request : pending) {
+                if (inFlight.contains(request.eventId)) {
+                    continue;
+                }
+                if (!enqueue(request)) {
+                    break;
+                }
+                enqueued++;
+            }
+            if (enqueued > 0) {
+                System.out.println("🔄 Поставлено на доиндексацию событий: " + enqueued);
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ Ошибка поиска событий, ожидающих индексации: " + e.getMessage());
+        }
+    }
+
+    private IndexRequest mapIndexRequest(ResultSet rs, int rowNum) throws SQLException {
+        return new IndexRequest(
+            rs.getLong("id"),
+            rs.getLong("campaign_id"),
+            rs.getString("description"),
+            rs.getString("quest_context"),
+            rs.getString("location_name"),
+            rs.getString("npc_context"),
+            rs.getString("event_type")
+        );
+    }
+
+    private void increment(Counter counter) {
+        increment(counter, 1);
+    }
+
+    private void increment(Counter counter, int amount) {
+        if (counter != null) {
+            counter.increment(amount);
+        }
+    }
+
     /**
      * Извлекает контекст квеста из события
      */
@@ -112,7 +523,7 @@ public class EventIndexingService {
         if (event.getQuests() == null || event.getQuests().isEmpty()) {
             return null;
         }
-        
+
         StringBuilder context = new StringBuilder();
         for (var quest : event.getQuests()) {
             if (context.length() > 0) context.append(", ");
@@ -121,10 +532,10 @@ public class EventIndexingService {
                 context.append(": ").append(quest.getGoal());
             }
         }
-        
+
         return context.toString();
     }
-    
+
     /**
      * Извлекает контекст NPC из события
      */
@@ -132,13 +543,37 @@ public class EventIndexingService {
         if (event.getNpcs() == null || event.getNpcs().isEmpty()) {
             return null;
         }
-        
+
         StringBuilder context = new StringBuilder();
         for (var npc : event.getNpcs()) {
             if (context.length() > 0) context.append(", ");
             context.append(npc.getName());
         }
-        
+
         return context.toString();
     }
+
+    /**
+     * Событие, подготовленное к индексации (не зависит от сессии JPA)
+     */
+    private static class IndexRequest {
+        final Long eventId;
+        final Long campaignId;
+        final String description;
+        final String questContext;
+        final String locationContext;
+        final String npcContext;
+        final String eventType;
+
+        IndexRequest(Long eventId, Long campaignId, String description, String questContext,
+                     String locationContext, String npcContext, String eventType) {
+            this.eventId = eventId;
+            this.campaignId = campaignId;
+            this.description = description;
+            this.questContext = questContext;
+            this.locationContext = locationContext;
+            this.npcContext = npcContext;
+            this.eventType = eventType;
+        }
+    }
 }
@@ -14,20 +14,52 @@ import com.dnd.repository.WorldRepository;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
- * Сервис для синхронизации GameState с Campaign через JPA
+ * Сервис для синхронизации GameState с Campaign через JPA.
+ * Горячие GameState держатся в ограниченном LRU кэше: загрузка из БД происходит только при промахе,
+ * а saveGameState лишь помечает состояние измененным. Запись в БД выполняет фоновый flusher -
+ * не чаще одного раза за ход, а также при вытеснении из кэша и при остановке приложения.
+ * Пишутся только измененные агрегаты (GameState.DIRTY_*): строка кампании и прогресс квеста - точечными
+ * UPDATE, HP персонажей - по разнице с последней записью; мир, квест и состав персонажей
+ * синхронизируются через JPA только если изменились.
+ * Кэш - единственный владелец экземпляров GameState: движок кампании (CampaignRuntimeRegistry) работает
+ * с экземпляром из кэша и закрепляет его (pin), пока загружен, поэтому вытеснение не создаст вторую копию.
  */
 @Service
 public class GameStateService {
@@ -47,31 +79,483 @@ public class GameStateService {
     @Autowired
     private QuestRepository questRepository;
     
+    @Autowired
+    private CampaignEntityIndex entityIndex;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
     private static final Gson gson = new GsonBuilder().create();
     
+    @Value("${game-state.cache.max-size:100}")
+    private int cacheMaxSize;
+    
+    // Сколько последних событий загружать в GameState; более ранние представлены сводками CampaignMemoryService
+    @Value("${memory.recent-events:50}")
+    private int recentEvents;
+    
+    // Задержка перед повтором неудачной записи; удваивается с каждой попыткой до flush.retry-max-delay-ms
+    @Value("${game-state.flush.retry-delay-ms:5000}")
+    private long retryDelayMs;
+    
+    @Value("${game-state.flush.retry-max-delay-ms:60000}")
+    private long retryMaxDelayMs;
+    
+    // Порядок доступа: первым идет давно не использовавшееся состояние
+    private final LinkedHashMap<String, GameState> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> dirtySessions = ConcurrentHashMap.newKeySet();
+    // Кампании с загруженным движком: их состояние не вытесняется, даже если кэш превышает лимит
+    private final Set<String> pinnedSessions = ConcurrentHashMap.newKeySet();
+    // Снимки, ожидающие записи; новый снимок той же кампании заменяет старый, измененные агрегаты объединяются
+    private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    // HP персонажей на момент последней записи (имя -> {hp, max hp}): пишутся только отличающиеся
+    private final Map<String, Map<String, int[]>> persistedHitPoints = new ConcurrentHashMap<>();
+    // Записи одной кампании выполняются под ее блокировкой: flusher, flushNow и вытеснение не пишут параллельно.
+    // Блокировка удаляется, когда состояние вытеснено и записывать больше нечего
+    private final Map<String, Object> sessionLocks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = createFlusher();
+    private final TransactionTemplate transactionTemplate;
+    
+    private static ScheduledExecutorService createFlusher() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "game-state-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Отложенные повторы при остановке не ждем - flushAll запишет все оставшееся сам
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+    
+    @Autowired
+    public GameStateService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // Запись может быть вызвана из read-only транзакции (вытеснение при загрузке) - пишем в своей
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+    
     /**
-     * Загружает GameState из Campaign
+     * Загружает GameState из кэша или из Campaign
      */
     @Transactional(readOnly = true)
     public GameState loadGameState(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+        
+        GameState cached;
+        synchronized (cache) {
+            cached = cache.get(sessionId);
+        }
+        if (cached != null) {
+            return cached;
+        }
+        
+        // Недавно вытесненное состояние могло еще не дойти до БД - дописываем его перед чтением
+        writePending(sessionId);
         Optional<Campaign> campaignOpt = campaignRepository.findBySessionId(sessionId);
         if (campaignOpt.isEmpty()) {
             return null;
         }
         
         Campaign campaign = campaignOpt.get();
-        return campaignToGameState(campaign);
+        GameState loaded = campaignToGameState(campaign);
+        // Загруженное состояние совпадает с БД
+        loaded.drainDirtyAggregates();
+        withSessionLock(sessionId, lock -> persistedHitPoints.put(sessionId, hitPointsOf(loaded)));
+        synchronized (cache) {
+            // Другой поток мог успеть загрузить ту же кампанию - используем его экземпляр
+            GameState existing = cache.putIfAbsent(sessionId, loaded);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        evictIfNeeded();
+        return loaded;
     }
     
     /**
-     * Сохраняет GameState в Campaign
+     * Закрепляет состояние кампании в кэше на время работы ее движка
+     */
+    public void pin(String sessionId) {
+        if (sessionId != null) {
+            pinnedSessions.add(sessionId);
+        }
+    }
+    
+    /**
+     * Снимает закрепление; состояние снова может быть вытеснено по LRU
+     */
+    public void unpin(String sessionId) {
+        if (sessionId != null && pinnedSessions.remove(sessionId)) {
+            evictIfNeeded();
+        }
+    }
+    
+    /**
+     * Помечает GameState измененным. В БД состояние попадет при завершении хода (flushAfterTurn),
+     * вытеснении из кэша или остановке приложения.
      */
-    @Transactional
     public void saveGameState(GameState gameState) {
         if (gameState == null || gameState.getSessionId() == null) {
             return;
         }
         
+        synchronized (cache) {
+            cache.put(gameState.getSessionId(), gameState);
+        }
+        dirtySessions.add(gameState.getSessionId());
+        evictIfNeeded();
+    }
+    
+    /**
+     * Завершение хода: если состояние менялось, ставит одну запись в очередь фонового flusher-а.
+     * Снимок делается в потоке хода, поэтому flusher не читает GameState, который уже меняет следующий ход.
+     */
+    public void flushAfterTurn(String sessionId) {
+        if (sessionId == null || !dirtySessions.remove(sessionId)) {
+            return;
+        }
+        GameState gameState;
+        synchronized (cache) {
+            gameState = cache.get(sessionId);
+        }
+        if (gameState == null) {
+            return;
+        }
+        queueWrite(sessionId, gameState);
+        scheduleWrite(sessionId, 0);
+    }
+    
+    /**
+     * Синхронно записывает состояние кампании в БД (для кода, который читает Campaign напрямую из БД)
+     */
+    public void flushNow(String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        if (dirtySessions.remove(sessionId)) {
+            GameState gameState;
+            synchronized (cache) {
+                gameState = cache.get(sessionId);
+            }
+            if (gameState != null) {
+                queueWrite(sessionId, gameState);
+            }
+        }
+        writePending(sessionId);
+    }
+    
+    /**
+     * Записывает все измененные состояния при остановке приложения
+     */
+    @PreDestroy
+    public void flushAll() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        List<String> sessions = new ArrayList<>(dirtySessions);
+        sessions.addAll(pendingWrites.keySet());
+        for (String sessionId : sessions) {
+            flushNow(sessionId);
+        }
+        if (!sessions.isEmpty()) {
+            System.out.println("💾 Сохранено состояний кампаний при остановке: " + sessions.size());
+        }
+    }
+    
+    /**
+     * Вытесняет давно не использовавшиеся состояния сверх лимита, сохраняя измененные.
+     * Закрепленные состояния пропускаются
+     */
+    private void evictIfNeeded() {
+        List<GameState> evicted = new ArrayList<>();
+        synchronized (cache) {
+            Iterator<Map.Entry<String, GameState>> iterator = cache.entrySet().iterator();
+            while (cache.size() > cacheMaxSize && iterator.hasNext()) {
+                Map.Entry<String, GameState> entry = iterator.next();
+                if (pinnedSessions.contains(entry.getKey())) {
+                    continue;
+                }
+                evicted.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+        for (GameState gameState : evicted) {
+            String sessionId = gameState.getSessionId();
+            if (dirtySessions.remove(sessionId)) {
+                queueWrite(sessionId, gameState);
+            }
+            withSessionLock(sessionId, lock -> writePending(sessionId));
+        }
+    }
+    
+    /**
+     * Ставит снимок состояния и измененные агрегаты в ожидание записи
+     */
+    private void queueWrite(String sessionId, GameState gameState) {
+        // Сначала забираем измененные агрегаты, потом делаем снимок: изменение, пришедшее между ними,
+        // попадет в снимок и останется помеченным до следующей записи, а не потеряется
+        Set<String> dirty = gameState.drainDirtyAggregates();
+        PendingWrite write = new PendingWrite(snapshotForPersistence(gameState), dirty, hitPointsOf(gameState));
+        pendingWrites.merge(sessionId, write, (older, newer) -> newer.mergedWith(older));
+    }
+    
+    /**
+     * Ставит запись кампании в фоновый flusher
+     */
+    private void scheduleWrite(String sessionId, long delayMs) {
+        try {
+            flusher.schedule(() -> writePending(sessionId), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Flusher остановлен - оставшиеся записи выполнит flushAll
+        }
+    }
+    
+    /**
+     * Записывает ожидающий снимок кампании. Блокировка кампании держится и на время записи:
+     * снимок, поставленный позже, всегда пишется после более раннего, а не параллельно с ним.
+     */
+    private void writePending(String sessionId) {
+        withSessionLock(sessionId, lock -> {
+            PendingWrite write = pendingWrites.remove(sessionId);
+            if (write == null) {
+                releaseIfEvicted(sessionId, lock);
+                return;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> persistGameState(write));
+                persistedHitPoints.put(sessionId, write.hitPoints);
+                releaseIfEvicted(sessionId, lock);
+            } catch (Exception e) {
+                int attempt = write.attempts + 1;
+                long delay = Math.min(retryMaxDelayMs, retryDelayMs << Math.min(attempt - 1, 16));
+                System.err.println("❌ Ошибка сохранения состояния кампании " + sessionId + " (попытка " + attempt +
+                    "), повтор через " + delay + " мс: " + e.getMessage());
+                // Более новый снимок мог появиться, пока шла запись - его не затираем, но агрегаты не теряем
+                pendingWrites.merge(sessionId, write.retried(), (newer, failed) -> newer.mergedWith(failed));
+                scheduleWrite(sessionId, delay);
+            }
+        });
+    }
+    
+    /**
+     * Выполняет действие под блокировкой записей кампании; под ней же меняется базовая линия HP
+     * (persistedHitPoints), поэтому ее обновляет только последовательный путь записи и загрузки.
+     * Блокировка могла быть удалена, пока поток ее ждал - тогда берется новая
+     */
+    private void withSessionLock(String sessionId, Consumer<Object> action) {
+        while (true) {
+            Object lock = sessionLocks.computeIfAbsent(sessionId, key -> new Object());
+            synchronized (lock) {
+                if (sessionLocks.get(sessionId) == lock) {
+                    action.accept(lock);
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Убирает блокировку и базовую линию HP вытесненной кампании, которой нечего записывать
+     * (вызывается под блокировкой кампании)
+     */
+    private void releaseIfEvicted(String sessionId, Object lock) {
+        boolean cached;
+        synchronized (cache) {
+            cached = cache.containsKey(sessionId);
+        }
+        if (!cached && !pendingWrites.containsKey(sessionId)) {
+            persistedHitPoints.remove(sessionId);
+            sessionLocks.remove(sessionId, lock);
+        }
+    }
+    
+    /**
+     * HP персонажей по имени
+     */
+    private static Map<String, int[]> hitPointsOf(GameState gameState) {
+        Map<String, int[]> hitPoints = new HashMap<>();
+        if (gameState.getCharacters() != null) {
+            for (Character character : gameState.getCharacters()) {
+                hitPoints.put(character.getName(), new int[]{character.getHitPoints(), character.getMaxHitPoints()});
+            }
+        }
+        return hitPoints;
+    }
+    
+    /**
+     * Копия полей GameState, которые синхронизируются в Campaign
+     */
+    private GameState snapshotForPersistence(GameState gameState) {
+        GameState snapshot = new GameState();
+        snapshot.setSessionId(gameState.getSessionId());
+        snapshot.setCurrentLocation(gameState.getCurrentLocation());
+        snapshot.setCurrentSituation(gameState.getCurrentSituation());
+        snapshot.setCurrentScene(gameState.getCurrentScene());
+        snapshot.setGameMode(gameState.getGameMode());
+        List<Character> characters = new ArrayList<>();
+        if (gameState.getCharacters() != null) {
+            for (Character character : gameState.getCharacters()) {
+                characters.add(character.copy());
+            }
+        }
+        snapshot.setCharacters(characters);
+        snapshot.setWorld(gameState.getWorld() != null ? deepCopy(gameState.getWorld()) : null);
+        snapshot.setMainQuest(gameState.getMainQuest() != null ? deepCopy(gameState.getMainQuest()) : null);
+        snapshot.setStoryProgress(gameState.getStoryProgress());
+        snapshot.setStoryCompleted(gameState.isStoryCompleted());
+        return snapshot;
+    }
+    
+    /**
+     * Копия вложенных карт и списков (мир и квест меняются ходом, пока снимок ждет записи)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T deepCopy(T value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return (T) copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                copy.add(deepCopy(item));
+            }
+            return (T) copy;
+        }
+        return value;
+    }
+    
+    /**
+     * Записывает измененные агрегаты состояния (вызывается внутри транзакции)
+     */
+    private void persistGameState(PendingWrite write) {
+        GameState gameState = write.snapshot;
+        Long campaignId;
+        try {
+            campaignId = jdbcTemplate.queryForObject(
+                "SELECT id FROM campaigns WHERE session_id = ?", Long.class, gameState.getSessionId());
+        } catch (EmptyResultDataAccessException e) {
+            // Кампании еще нет в БД - создаем ее со всем состоянием
+            persistFullGameState(gameState);
+            return;
+        }
+        
+        Set<String> dirty = write.dirty;
+        boolean questProgress = dirty.contains(GameState.DIRTY_QUEST_PROGRESS) && !dirty.contains(GameState.DIRTY_QUEST);
+        if (dirty.contains(GameState.DIRTY_CAMPAIGN) || questProgress) {
+            // updated_at - в UTC, как его пишет Hibernate (см. TurnCommitService.utcCalendar)
+            jdbcTemplate.update(
+                "UPDATE campaigns SET current_location = ?, current_situation = ?, current_scene = ?, game_mode = ?, " +
+                "story_progress = ?, story_completed = ?, updated_at = ? WHERE id = ?",
+                statement -> {
+                    statement.setString(1, gameState.getCurrentLocation());
+                    statement.setString(2, gameState.getCurrentSituation());
+                    statement.setString(3, gameState.getCurrentScene());
+                    statement.setString(4, gameState.getGameMode());
+                    statement.setInt(5, gameState.getStoryProgress());
+                    statement.setBoolean(6, gameState.isStoryCompleted());
+                    statement.setTimestamp(7, Timestamp.valueOf(LocalDateTime.now()), TurnCommitService.utcCalendar());
+                    statement.setLong(8, campaignId);
+                });
+        }
+        if (questProgress) {
+            updateQuestProgress(gameState, campaignId);
+        }
+        if (!dirty.contains(GameState.DIRTY_CHARACTERS)) {
+            updateHitPoints(gameState.getSessionId(), campaignId, write.hitPoints);
+        }
+        
+        // Мир, квест и состав персонажей - через JPA и только если они изменились
+        if (dirty.contains(GameState.DIRTY_CHARACTERS) || dirty.contains(GameState.DIRTY_WORLD) ||
+            dirty.contains(GameState.DIRTY_QUEST)) {
+            Campaign campaign = campaignRepository.findById(campaignId)
+                .orElseThrow(() -> new IllegalStateException("Кампания не найдена: " + gameState.getSessionId()));
+            if (dirty.contains(GameState.DIRTY_CHARACTERS)) {
+                syncCharacters(gameState, campaign);
+            }
+            if (dirty.contains(GameState.DIRTY_WORLD)) {
+                syncWorld(gameState, campaign);
+            }
+            if (dirty.contains(GameState.DIRTY_QUEST)) {
+                syncQuest(gameState, campaign);
+            }
+            campaignRepository.save(campaign);
+        }
+    }
+    
+    /**
+     * Индекс этапа и завершение основного квеста одним UPDATE
+     */
+    private void updateQuestProgress(GameState gameState, Long campaignId) {
+        Map<String, Object> mainQuest = gameState.getMainQuest();
+        if (mainQuest == null) {
+            return;
+        }
+        Object stageIndexObj = mainQuest.get("current_stage_index");
+        int stageIndex = stageIndexObj instanceof Number ? ((Number) stageIndexObj).intValue() : 0;
+        boolean completed = gameState.isStoryCompleted();
+        jdbcTemplate.query(
+            "UPDATE quests SET current_stage_index = ?, completed = ?, updated_at = ? " +
+            "WHERE campaign_id = ? AND quest_type = 'main' RETURNING id, title",
+            statement -> {
+                statement.setInt(1, stageIndex);
+                statement.setBoolean(2, completed);
+                statement.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()), TurnCommitService.utcCalendar());
+                statement.setLong(4, campaignId);
+            },
+            rs -> {
+                entityIndex.recordQuest(gameState.getSessionId(), rs.getLong("id"), rs.getString("title"), "main", completed);
+            });
+    }
+    
+    /**
+     * HP персонажей, изменившиеся с последней записи, одним пакетом UPDATE
+     */
+    private void updateHitPoints(String sessionId, Long campaignId, Map<String, int[]> hitPoints) {
+        Map<String, int[]> persisted = persistedHitPoints.getOrDefault(sessionId, Map.of());
+        List<Map.Entry<String, int[]>> rows = new ArrayList<>();
+        for (Map.Entry<String, int[]> entry : hitPoints.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), persisted.get(entry.getKey()))) {
+                rows.add(entry);
+            }
+        }
+        if (!rows.isEmpty()) {
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            Calendar utc = TurnCommitService.utcCalendar();
+            jdbcTemplate.batchUpdate(
+                "UPDATE characters SET hit_points = ?, max_hit_points = ?, updated_at = ? WHERE campaign_id = ? AND name = ?",
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement statement, int i) throws SQLException {
+                        Map.Entry<String, int[]> row = rows.get(i);
+                        statement.setInt(1, row.getValue()[0]);
+                        statement.setInt(2, row.getValue()[1]);
+                        statement.setTimestamp(3, now, utc);
+                        statement.setLong(4, campaignId);
+                        statement.setString(5, row.getKey());
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return rows.size();
+                    }
+                });
+        }
+    }
+    
+    /**
+     * Сохраняет GameState в Campaign целиком (новая кампания)
+     */
+    private void persistFullGameState(GameState gameState) {
         Optional<Campaign> campaignOpt = campaignRepository.findBySessionId(gameState.getSessionId());
         Campaign campaign;
         
@@ -94,6 +578,11 @@ public class GameStateService {
      */
     @Transactional(readOnly = true)
     public boolean gameExists(String sessionId) {
+        synchronized (cache) {
+            if (cache.containsKey(sessionId)) {
+                return true;
+            }
+        }
         return campaignRepository.existsBySessionId(sessionId);
     }
     
@@ -118,6 +607,14 @@ public class GameStateService {
         
         GameState gameState = new GameState();
         gameState.setSessionId(sessionId);
+        gameState.setHistoryLimit(recentEvents);
+        // Пустое состояние уже совпадает с только что созданной кампанией
+        gameState.drainDirtyAggregates();
+        persistedHitPoints.put(sessionId, new HashMap<>());
+        synchronized (cache) {
+            cache.put(sessionId, gameState);
+        }
+        evictIfNeeded();
         return gameState;
     }
     
@@ -135,10 +632,12 @@ public class GameStateService {
         gameState.setStoryProgress(campaign.getStoryProgress() != null ? campaign.getStoryProgress() : 0);
         gameState.setStoryCompleted(campaign.getStoryCompleted() != null && campaign.getStoryCompleted());
         
-        // Загружаем события из БД и преобразуем в GameState.GameEvent
-        List<GameEvent> dbEvents = gameEventRepository.findByCampaignIdOrderByTimestampDesc(campaign.getId());
+        // Загружаем последние события из БД (от новых к старым) и преобразуем в GameState.GameEvent
+        List<GameEvent> dbEvents = gameEventRepository.findRecentByCampaignId(campaign.getId(),
+            org.springframework.data.domain.PageRequest.of(0, Math.max(1, recentEvents)));
         List<GameState.GameEvent> gameEvents = dbEvents.stream()
             .map(dbEvent -> new GameState.GameEvent(
+                dbEvent.getId(),
                 dbEvent.getTimestamp(),
                 dbEvent.getEventType(),
                 dbEvent.getDescription(),
@@ -146,6 +645,7 @@ public class GameStateService {
             ))
             .collect(Collectors.toList());
         gameState.setGameHistory(gameEvents);
+        gameState.setHistoryLimit(recentEvents);
         
         // Загружаем основной квест
         Optional<Quest> mainQuest = campaign.getQuests().stream()
@@ -424,6 +924,7 @@ public class GameStateService {
                 Quest quest = existingMainQuest.get();
                 campaign.getQuests().remove(quest);
                 questRepository.delete(quest);
+                entityIndex.removeQuest(campaign.getSessionId(), quest.getId());
             }
             return;
         }
@@ -484,5 +985,41 @@ public class GameStateService {
         }
         
         questRepository.save(quest);
+        entityIndex.recordQuest(campaign.getSessionId(), quest.getId(), quest.getTitle(), quest.getQuestType(), quest.getCompleted());
+    }
+    
+    /**
+     * Снимок состояния, ожидающий записи, и агрегаты, измененные с прошлой записи
+     */
+    private static class PendingWrite {
+        final GameState snapshot;
+        final Set<String> dirty;
+        final Map<String, int[]> hitPoints;
+        // Число неудачных попыток записи (для задержки повтора)
+        final int attempts;
+        
+        PendingWrite(GameState snapshot, Set<String> dirty, Map<String, int[]> hitPoints) {
+            this(snapshot, dirty, hitPoints, 0);
+        }
+        
+        private PendingWrite(GameState snapshot, Set<String> dirty, Map<String, int[]> hitPoints, int attempts) {
+            this.snapshot = snapshot;
+            this.dirty = dirty;
+            this.hitPoints = hitPoints;
+            this.attempts = attempts;
+        }
+        
+        PendingWrite retried() {
+            return new PendingWrite(snapshot, dirty, hitPoints, attempts + 1);
+        }
+        
+        /**
+         * Этот (более новый) снимок с агрегатами, измененными в обоих
+         */
+        PendingWrite mergedWith(PendingWrite older) {
+            Set<String> merged = new HashSet<>(dirty);
+            merged.addAll(older.dirty);
+            return new PendingWrite(snapshot, merged, hitPoints, Math.max(attempts, older.attempts));
+        }
     }
 }
@@ -0,0 +1,269 @@
+package com.dnd.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.*;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Профили общего HTTP клиента по типам вызовов.
+ * Все профили построены из одного OkHttpClient и разделяют его пул соединений,
+ * отличаются только таймаутами. Число одновременных эмбеддингов ограничено OLLAMA_NUM_PARALLEL:
+ * лишние запросы ждут в приложении, а не в очереди Ollama. Генерации ограничивает LLMScheduler
+ * (llm.scheduler.max-concurrent) с учетом приоритетов, второго лимита здесь нет.
+ * По каждому типу вызова пишутся метрики http.client.calls (время, статус) и ожидание слота.
+ */
+@Component
+public class HttpClientProfiles {
+    public static final String GENERATION = "generation";
+    public static final String EMBEDDING = "embedding";
+    public static final String PROBE = "probe";
+    public static final String MODEL_PULL = "model_pull";
+    public static final String SRD = "srd";
+
+    private final OkHttpClient generation;
+    private final OkHttpClient embedding;
+    private final OkHttpClient probe;
+    private final OkHttpClient modelPull;
+    private final OkHttpClient srd;
+
+    @Autowired
+    public HttpClientProfiles(
+            OkHttpClient sharedHttpClient,
+            ObjectProvider<MeterRegistry> meterRegistryProvider,
+            @Value("${ollama.num-parallel:4}") int numParallel,
+            @Value("${http.timeout.generation.read-ms:300000}") long generationReadMs,
+            @Value("${http.timeout.generation.call-ms:900000}") long generationCallMs,
+            @Value("${http.timeout.embedding.read-ms:120000}") long embeddingReadMs,
+            @Value("${ollama.health.timeout-ms:3000}") long probeMs,
+            @Value("${http.timeout.model-pull.read-ms:300000}") long modelPullReadMs,
+            @Value("${http.timeout.srd.read-ms:10000}") long srdReadMs) {
+        int parallel = Math.max(1, numParallel);
+        MeterRegistry meterRegistry = meterRegistryProvider.getIfAvailable();
+
+        this.generation = sharedHttpClient.newBuilder()
+            .readTimeout(generationReadMs, TimeUnit.MILLISECONDS) // большие промпты (генерация мира, квестов)
+            .writeTimeout(60, TimeUnit.SECONDS)
+            .callTimeout(generationCallMs, TimeUnit.MILLISECONDS)
+            .addInterceptor(new MetricsInterceptor(meterRegistry, GENERATION))
+            .build();
+
+        this.embedding = sharedHttpClient.newBuilder()
+            .readTimeout(embeddingReadMs, TimeUnit.MILLISECONDS)
+            .writeTimeout(30, TimeUnit.SECONDS)
+            .addInterceptor(new MetricsInterceptor(meterRegistry, EMBEDDING))
+            .addInterceptor(new ConcurrencyLimitInterceptor(meterRegistry, EMBEDDING, parallel))
+            .build();
+
+        this.probe = sharedHttpClient.newBuilder()
+            .connectTimeout(probeMs, TimeUnit.MILLISECONDS)
+            .readTimeout(probeMs, TimeUnit.MILLISECONDS)
+            .callTimeout(probeMs * 2, TimeUnit.MILLISECONDS)
+            .retryOnConnectionFailure(false)
+            .addInterceptor(new MetricsInterceptor(meterRegistry, PROBE))
+            .build();
+
+        this.modelPull = sharedHttpClient.newBuilder()
+            .readTimeout(modelPullReadMs, TimeUnit.MILLISECONDS)
+            .writeTimeout(60, TimeUnit.SECONDS)
+            .addInterceptor(new MetricsInterceptor(meterRegistry, MODEL_PULL))
+            .build();
+
+        this.srd = sharedHttpClient.newBuilder()
+            .readTimeout(srdReadMs, TimeUnit.MILLISECONDS)
+            .addInterceptor(new MetricsInterceptor(meterRegistry, SRD))
+            .build();
+    }
+
+    /**
+     * Генерация ответов LLM (/api/generate)
+     */
+    public OkHttpClient generation() {
+        return generation;
+    }
+
+    /**
+     * Эмбеддинги (/api/embed, /api/embeddings)
+     */
+    public OkHttpClient embedding() {
+        return embedding;
+    }
+
+    /**
+     * Короткие проверки состояния Ollama (/api/tags)
+     */
+    public OkHttpClient probe() {
+        return probe;
+    }
+
+    /**
+     * Загрузка моделей (/api/pull)
+     */
+    public OkHttpClient modelPull() {
+        return modelPull;
+    }
+
+    /**
+     * Запросы к 5e-srd-api
+     */
+    public OkHttpClient srd() {
+        return srd;
+    }
+
+    /**
+     * Время и статус каждого вызова с тегами типа вызова и хоста.
+     * Таймеры кэшируются по набору тегов, чтобы не искать их в реестре на каждый запрос
+     */
+    private static class MetricsInterceptor implements Interceptor {
+        private final MeterRegistry meterRegistry;
+        private final String callType;
+        private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+        MetricsInterceptor(MeterRegistry meterRegistry, String callType) {
+            this.meterRegistry = meterRegistry;
+            this.callType = callType;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            if (meterRegistry == null) {
+                return chain.proceed(chain.request());
+            }
+            Request request = chain.request();
+            long startTime = System.nanoTime();
+            String status = "IO_ERROR";
+            try {
+                Response response = chain.proceed(request);
+                status = String.valueOf(response.code());
+                return response;
+            } finally {
+                timer(request.url().host(), request.method(), status)
+                    .record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private Timer timer(String host, String method, String status) {
+            return timers.computeIfAbsent(host + "|" + method + "|" + status, key ->
+                Timer.builder("http.client.calls")
+                    .description("Вызовы Ollama и 5e-srd-api (до получения заголовков ответа)")
+                    .tag("call_type", callType)
+                    .tag("host", host)
+                    .tag("method", method)
+                    .tag("status", status)
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Ограничивает число одновременных запросов. Слот удерживается до закрытия тела ответа,
+     * поэтому streaming генерация занимает слот до конца потока.
+     */
+    private static class ConcurrencyLimitInterceptor implements Interceptor {
+        private final Semaphore permits;
+        private final Timer waitTimer;
+
+        ConcurrencyLimitInterceptor(MeterRegistry meterRegistry, String callType, int limit) {
+            this.permits = new Semaphore(limit, true);
+            if (meterRegistry != null) {
+                this.waitTimer = Timer.builder("http.client.slot.wait")
+                    .description("Ожидание свободного слота Ollama")
+                    .tag("call_type", callType)
+                    .register(meterRegistry);
+                Gauge.builder("http.client.in_flight", permits, p -> limit - p.availablePermits())
+                    .description("Запросы к Ollama в работе")
+                    .tag("call_type", callType)
+                    .register(meterRegistry);
+            } else {
+                this.waitTimer = null;
+            }
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Прервано ожидание слота Ollama");
+            }
+            if (waitTimer != null) {
+                waitTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            }
+
+            AtomicBoolean released = new AtomicBoolean(false);
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            };
+
+            Response response;
+            try {
+                response = chain.proceed(chain.request());
+            } catch (IOException | RuntimeException e) {
+                release.run();
+                throw e;
+            }
+            if (response.body() == null) {
+                release.run();
+                return response;
+            }
+            return response.newBuilder()
+                .body(new ReleasingResponseBody(response.body(), release))
+                .build();
+        }
+    }
+
+    /**
+     * Тело ответа, освобождающее слот при закрытии
+     */
+    private static class ReleasingResponseBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+
+        ReleasingResponseBody(ResponseBody delegate, Runnable onClose) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        onClose.run();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+}
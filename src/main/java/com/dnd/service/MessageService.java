@@ -8,11 +8,15 @@ import com.dnd.repository.LocationRepository;
 import com.dnd.repository.NPCRepository;
 import com.dnd.repository.QuestRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +50,20 @@ public class MessageService {
     @Autowired(required = false)
     private com.dnd.service.EventIndexingService eventIndexingService;
     
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private CampaignEntityIndex entityIndex;
+    
+    // Размер страницы истории сообщений по умолчанию
+    @Value("${messages.history.page-size:50}")
+    private int historyPageSize;
+    
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+    // Таблицы источников истории по номеру источника курсора
+    private static final String[] HISTORY_TABLES = {"player_messages", "game_events"};
+    
     /**
      * Сохраняет сообщение от игрока
      */
@@ -110,12 +128,11 @@ public class MessageService {
             locationsToAdd.addAll(locationsById);
         }
         
-        // Если локация указана по имени, находим её
+        // Если локация указана по имени, находим её через индекс имен кампании
         if (locationName != null) {
-            List<Location> locationsByName = locationRepository.findByCampaignIdAndName(campaign.getId(), locationName);
-            for (Location loc : locationsByName) {
-                if (!locationsToAdd.contains(loc)) {
-                    locationsToAdd.add(loc);
+            for (Long id : entityIndex.findIds(campaignId, CampaignEntityIndex.LOCATION, List.of(locationName))) {
+                if (locationIds == null || !locationIds.contains(id)) {
+                    locationsToAdd.add(locationRepository.getReferenceById(id));
                 }
             }
         }
@@ -124,10 +141,16 @@ public class MessageService {
             event.setLocations(locationsToAdd);
         }
         
+        // Пометка снимается после записи эмбеддинга; если Ollama недоступен, событие проиндексируется позже
+        boolean indexingEnabled = eventIndexingService != null && eventIndexingService.isEnabled();
+        if (indexingEnabled) {
+            event.setIndexPending(true);
+        }
+        
         GameEvent savedEvent = gameEventRepository.save(event);
         
-        // Индексируем событие в векторную БД для RAG
-        if (eventIndexingService != null) {
+        // Ставим событие в очередь индексации в векторную БД для RAG (после коммита транзакции)
+        if (indexingEnabled) {
             eventIndexingService.indexEvent(savedEvent);
         }
         
@@ -147,173 +170,223 @@ public class MessageService {
     /**
      * Определяет ID основного квеста для кампании
      */
-    @Transactional(readOnly = true)
     public Long getMainQuestId(String campaignId) {
-        Campaign campaign = campaignRepository.findBySessionId(campaignId)
-            .orElse(null);
-        
-        if (campaign == null) {
-            return null;
-        }
-        
-        Optional<Quest> mainQuest = campaign.getQuests().stream()
-            .filter(q -> "main".equals(q.getQuestType()))
-            .findFirst();
-        
-        return mainQuest.map(Quest::getId).orElse(null);
+        return entityIndex.getMainQuestId(campaignId);
     }
     
     /**
      * Определяет список ID всех активных квестов для кампании
      */
-    @Transactional(readOnly = true)
     public List<Long> getActiveQuestIds(String campaignId) {
-        Campaign campaign = campaignRepository.findBySessionId(campaignId)
-            .orElse(null);
-        
-        if (campaign == null) {
-            return new ArrayList<>();
-        }
-        
-        return campaign.getQuests().stream()
-            .filter(q -> !q.getCompleted())
-            .map(Quest::getId)
-            .collect(Collectors.toList());
+        return entityIndex.getActiveQuestIds(campaignId);
     }
     
     /**
-     * Находит ID квестов по их названиям (работает внутри транзакции)
+     * Находит ID квестов по их названиям (без учета регистра)
      */
-    @Transactional(readOnly = true)
     public List<Long> findQuestIdsByTitles(String campaignId, List<String> questTitles) {
-        Campaign campaign = campaignRepository.findBySessionId(campaignId)
-            .orElse(null);
-        
-        if (campaign == null || questTitles == null || questTitles.isEmpty()) {
-            return new ArrayList<>();
-        }
-        
-        return campaign.getQuests().stream()
-            .filter(q -> questTitles.contains(q.getTitle()))
-            .map(Quest::getId)
-            .collect(Collectors.toList());
+        return entityIndex.findIds(campaignId, CampaignEntityIndex.QUEST, questTitles);
     }
     
     /**
-     * Находит NPC по имени в кампании
+     * Находит NPC по имени в кампании (без учета регистра)
      */
-    @Transactional(readOnly = true)
     public List<Long> findNpcIdsByName(String campaignId, List<String> npcNames) {
-        if (npcNames == null || npcNames.isEmpty()) {
-            return new ArrayList<>();
+        return entityIndex.findIds(campaignId, CampaignEntityIndex.NPC, npcNames);
+    }
+    
+    /**
+     * Находит локации по имени в кампании (без учета регистра)
+     */
+    public List<Long> findLocationIdsByName(String campaignId, List<String> locationNames) {
+        return entityIndex.findIds(campaignId, CampaignEntityIndex.LOCATION, locationNames);
+    }
+    
+    /**
+     * Страница истории сообщений кампании (сообщения игроков и события DM) одним запросом UNION ALL.
+     * Сообщения упорядочены по (created_at, источник, id); курсор - cursor_id сообщения ("p:<id>" для игрока,
+     * "e:<id>" для DM). Курсорная пагинация не пересчитывает пропущенные строки и работает по индексу
+     * (campaign_id, created_at, id) каждой таблицы.
+     * @param beforeId страница сообщений перед курсором (прокрутка назад)
+     * @param afterId  сообщения после курсора (догрузка при переподключении); без курсоров - последняя страница
+     * @throws IllegalArgumentException если курсор неверен или его сообщение не найдено (удалено, другая кампания):
+     *         пустая страница в этом случае выглядела бы как "новых сообщений нет"
+     * @return messages (от старых к новым), has_more - есть ли еще сообщения в направлении запроса,
+     *         oldest_id и newest_id - курсоры крайних сообщений страницы
+     */
+    @Transactional(readOnly = true)
+    public Map<String, Object> getMessageHistoryPage(String campaignId, String beforeId, String afterId, Integer limit) {
+        if (beforeId != null && afterId != null) {
+            throw new IllegalArgumentException("Укажите только один курсор: before_id или after_id");
         }
-        
         Campaign campaign = campaignRepository.findBySessionId(campaignId)
-            .orElse(null);
+            .orElseThrow(() -> new IllegalArgumentException("Кампания не найдена: " + campaignId));
+        int pageSize = Math.max(1, Math.min(limit != null ? limit : historyPageSize, MAX_HISTORY_PAGE_SIZE));
         
-        if (campaign == null) {
-            return new ArrayList<>();
+        HistoryCursor cursor = afterId != null ? HistoryCursor.parse(afterId) : beforeId != null ? HistoryCursor.parse(beforeId) : null;
+        boolean forward = afterId != null;
+        
+        Timestamp cursorTime = null;
+        if (cursor != null) {
+            List<Timestamp> found = jdbcTemplate.queryForList(
+                "SELECT created_at FROM " + HISTORY_TABLES[cursor.source] + " WHERE id = ? AND campaign_id = ?",
+                Timestamp.class, cursor.id, campaign.getId());
+            if (found.isEmpty() || found.get(0) == null) {
+                throw new IllegalArgumentException("Сообщение курсора истории не найдено: " + (afterId != null ? afterId : beforeId));
+            }
+            cursorTime = found.get(0);
+        }
+        
+        List<Object> params = new ArrayList<>();
+        StringBuilder sql = new StringBuilder();
+        sql.append("(").append(historyBranch(0, cursor, cursorTime, forward, params, campaign.getId(), pageSize)).append(")\n")
+           .append("UNION ALL\n")
+           .append("(").append(historyBranch(1, cursor, cursorTime, forward, params, campaign.getId(), pageSize)).append(")\n")
+           .append(forward ? "ORDER BY created_at ASC, src ASC, id ASC\n" : "ORDER BY created_at DESC, src DESC, id DESC\n")
+           .append("LIMIT ?");
+        // Одна лишняя строка показывает, есть ли следующая страница
+        params.add(pageSize + 1);
+        
+        List<Map<String, Object>> messages = jdbcTemplate.query(sql.toString(), (rs, rowNum) -> {
+            Map<String, Object> messageMap = new HashMap<>();
+            int source = rs.getInt("src");
+            long id = rs.getLong("id");
+            messageMap.put("type", source == 0 ? "player_message" : "dm_message");
+            messageMap.put("id", id);
+            messageMap.put("cursor_id", HistoryCursor.format(source, id));
+            messageMap.put("character_name", rs.getString("character_name"));
+            messageMap.put("text", rs.getString("text"));
+            messageMap.put("timestamp", toLocalDateTime(rs.getTimestamp("event_time")));
+            messageMap.put("created_at", toLocalDateTime(rs.getTimestamp("created_at")));
+            if (source == 1) {
+                messageMap.put("event_type", rs.getString("event_type"));
+                messageMap.put("description", rs.getString("description"));
+                messageMap.put("location_name", rs.getString("location_name"));
+            }
+            return messageMap;
+        }, params.toArray());
+        
+        boolean hasMore = messages.size() > pageSize;
+        if (hasMore) {
+            messages = new ArrayList<>(messages.subList(0, pageSize));
         }
+        if (!forward) {
+            Collections.reverse(messages);
+        }
+        attachEventAssociations(messages);
         
-        return campaign.getNpcs().stream()
-            .filter(npc -> npcNames.contains(npc.getName()))
-            .map(NPC::getId)
-            .collect(Collectors.toList());
+        Map<String, Object> page = new HashMap<>();
+        page.put("messages", messages);
+        page.put("has_more", hasMore);
+        page.put("oldest_id", messages.isEmpty() ? null : messages.get(0).get("cursor_id"));
+        page.put("newest_id", messages.isEmpty() ? null : messages.get(messages.size() - 1).get("cursor_id"));
+        return page;
     }
     
     /**
-     * Находит локации по имени в кампании
+     * Ветка UNION ALL для одной таблицы. Сравнение с курсором (ts, src, id) разворачивается для константного
+     * src ветки в условие по (created_at, id), чтобы оно шло по индексу таблицы.
      */
-    @Transactional(readOnly = true)
-    public List<Long> findLocationIdsByName(String campaignId, List<String> locationNames) {
-        if (locationNames == null || locationNames.isEmpty()) {
-            return new ArrayList<>();
+    private String historyBranch(int source, HistoryCursor cursor, Timestamp cursorTime, boolean forward,
+                                 List<Object> params, Long campaignDbId, int pageSize) {
+        StringBuilder branch = new StringBuilder(source == 0
+            ? "SELECT 0 AS src, m.id, m.created_at, m.created_at AS event_time, m.character_name, m.message_text AS text, " +
+              "NULL AS event_type, NULL AS description, NULL AS location_name FROM player_messages m WHERE m.campaign_id = ?"
+            : "SELECT 1 AS src, e.id, e.created_at, e.timestamp AS event_time, e.character_name, " +
+              "COALESCE(e.full_text, e.description) AS text, e.event_type, e.description, e.location_name " +
+              "FROM game_events e WHERE e.campaign_id = ?");
+        params.add(campaignDbId);
+        String alias = source == 0 ? "m" : "e";
+        if (cursor != null) {
+            if (source == cursor.source) {
+                branch.append(" AND (").append(alias).append(".created_at, ").append(alias).append(".id) ")
+                      .append(forward ? ">" : "<").append(" (?, ?)");
+                params.add(cursorTime);
+                params.add(cursor.id);
+            } else {
+                // Ветка с src больше курсора при равном времени идет после него, с меньшим - перед ним
+                boolean inclusive = forward == (source > cursor.source);
+                branch.append(" AND ").append(alias).append(".created_at ")
+                      .append(forward ? ">" : "<").append(inclusive ? "= ?" : " ?");
+                params.add(cursorTime);
+            }
         }
-        
-        Campaign campaign = campaignRepository.findBySessionId(campaignId)
-            .orElse(null);
-        
-        if (campaign == null) {
-            return new ArrayList<>();
+        String direction = forward ? "ASC" : "DESC";
+        branch.append(" ORDER BY ").append(alias).append(".created_at ").append(direction)
+              .append(", ").append(alias).append(".id ").append(direction).append(" LIMIT ?");
+        params.add(pageSize + 1);
+        return branch.toString();
+    }
+    
+    /**
+     * Идентификаторы NPC, квестов и локаций для событий DM страницы - один запрос на всю страницу
+     */
+    private void attachEventAssociations(List<Map<String, Object>> messages) {
+        // id события -> вид связи -> id связанных сущностей (те же списки лежат в сообщении)
+        Map<Long, Map<String, List<Long>>> events = new HashMap<>();
+        for (Map<String, Object> message : messages) {
+            if ("dm_message".equals(message.get("type"))) {
+                Map<String, List<Long>> links = new HashMap<>();
+                for (String kind : List.of("npc_ids", "quest_ids", "location_ids")) {
+                    List<Long> ids = new ArrayList<>();
+                    links.put(kind, ids);
+                    message.put(kind, ids);
+                }
+                events.put((Long) message.get("id"), links);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
         }
         
-        return campaign.getLocations().stream()
-            .filter(loc -> locationNames.contains(loc.getName()))
-            .map(Location::getId)
-            .collect(Collectors.toList());
+        String placeholders = String.join(", ", Collections.nCopies(events.size(), "?"));
+        String sql = "SELECT 'npc_ids' AS kind, game_event_id, npc_id AS ref_id FROM game_event_npcs WHERE game_event_id IN (" + placeholders + ")\n" +
+            "UNION ALL SELECT 'quest_ids', game_event_id, quest_id FROM game_event_quests WHERE game_event_id IN (" + placeholders + ")\n" +
+            "UNION ALL SELECT 'location_ids', game_event_id, location_id FROM game_event_locations WHERE game_event_id IN (" + placeholders + ")";
+        List<Object> params = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            params.addAll(events.keySet());
+        }
+        jdbcTemplate.query(sql, rs -> {
+            events.get(rs.getLong("game_event_id")).get(rs.getString("kind")).add(rs.getLong("ref_id"));
+        }, params.toArray());
+    }
+    
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toLocalDateTime() : null;
     }
     
     /**
-     * Получает историю сообщений для кампании (объединение сообщений игроков и событий DM)
-     * Возвращает список сообщений, отсортированный по времени создания
+     * Курсор истории сообщений: источник (0 - сообщение игрока, 1 - событие DM) и id строки
      */
-    @Transactional(readOnly = true)
-    public List<Map<String, Object>> getMessageHistory(String campaignId) {
-        Campaign campaign = campaignRepository.findBySessionId(campaignId)
-            .orElse(null);
+    private static class HistoryCursor {
+        final int source;
+        final long id;
         
-        if (campaign == null) {
-            return new ArrayList<>();
+        HistoryCursor(int source, long id) {
+            this.source = source;
+            this.id = id;
         }
         
-        List<Map<String, Object>> messages = new ArrayList<>();
-        
-        // Загружаем сообщения игроков
-        List<PlayerMessage> playerMessages = playerMessageRepository.findByCampaignIdOrderByCreatedAtDesc(campaign.getId());
-        for (PlayerMessage msg : playerMessages) {
-            Map<String, Object> messageMap = new HashMap<>();
-            messageMap.put("type", "player_message");
-            messageMap.put("id", msg.getId());
-            messageMap.put("character_name", msg.getCharacterName());
-            messageMap.put("text", msg.getMessageText());
-            messageMap.put("timestamp", msg.getCreatedAt());
-            messageMap.put("created_at", msg.getCreatedAt());
-            messages.add(messageMap);
+        static String format(int source, long id) {
+            return (source == 0 ? "p:" : "e:") + id;
         }
         
-        // Загружаем события от DM
-        List<GameEvent> dmEvents = gameEventRepository.findByCampaignIdOrderByTimestampDesc(campaign.getId());
-        for (GameEvent event : dmEvents) {
-            Map<String, Object> messageMap = new HashMap<>();
-            messageMap.put("type", "dm_message");
-            messageMap.put("id", event.getId());
-            messageMap.put("event_type", event.getEventType());
-            messageMap.put("text", event.getFullText() != null ? event.getFullText() : event.getDescription());
-            messageMap.put("description", event.getDescription());
-            messageMap.put("character_name", event.getCharacterName());
-            messageMap.put("location_name", event.getLocationName());
-            messageMap.put("timestamp", event.getTimestamp());
-            messageMap.put("created_at", event.getCreatedAt());
-            
-            // Добавляем связанные сущности
-            List<Long> npcIds = event.getNpcs().stream()
-                .map(NPC::getId)
-                .collect(Collectors.toList());
-            messageMap.put("npc_ids", npcIds);
-            
-            List<Long> questIds = event.getQuests().stream()
-                .map(Quest::getId)
-                .collect(Collectors.toList());
-            messageMap.put("quest_ids", questIds);
-            
-            List<Long> locationIds = event.getLocations().stream()
-                .map(Location::getId)
-                .collect(Collectors.toList());
-            messageMap.put("location_ids", locationIds);
-            
-            messages.add(messageMap);
+        static HistoryCursor parse(String value) {
+            if (value != null && value.length() > 2 && value.charAt(1) == ':') {
+                try {
+                    long id = Long.parseLong(value.substring(2));
+                    if (value.charAt(0) == 'p') {
+                        return new HistoryCursor(0, id);
+                    }
+                    if (value.charAt(0) == 'e') {
+                        return new HistoryCursor(1, id);
+                    }
+                } catch (NumberFormatException e) {
+                    // Ниже - общая ошибка формата
+                }
+            }
+            throw new IllegalArgumentException("Неверный курсор истории: " + value + " (ожидается p:<id> или e:<id>)");
         }
-        
-        // Сортируем все сообщения по времени создания (от старых к новым)
-        messages.sort((a, b) -> {
-            LocalDateTime timeA = (LocalDateTime) a.get("created_at");
-            LocalDateTime timeB = (LocalDateTime) b.get("created_at");
-            if (timeA == null && timeB == null) return 0;
-            if (timeA == null) return -1;
-            if (timeB == null) return 1;
-            return timeA.compareTo(timeB);
-        });
-        
-        return messages;
     }
 }
@@ -1,6 +1,5 @@
 package com.dnd.service;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.Gson;
 import okhttp3.*;
@@ -12,7 +11,6 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Сервис для автоматической загрузки необходимых моделей Ollama при старте приложения
@@ -22,6 +20,7 @@ public class ModelInitializationService {
     private static final Gson gson = new Gson();
     private final String ollamaBaseUrl;
     private final OkHttpClient httpClient;
+    private final OllamaHealthMonitor healthMonitor;
     
     // Список необходимых моделей
     private static final List<String> REQUIRED_MODELS = List.of(
@@ -30,13 +29,13 @@ public class ModelInitializationService {
     );
     
     public ModelInitializationService(
-            @Value("${ollama.base.url:http://localhost:11434}") String ollamaBaseUrl) {
+            @Value("${ollama.base.url:http://localhost:11434}") String ollamaBaseUrl,
+            OllamaHealthMonitor healthMonitor,
+            HttpClientProfiles httpClients) {
         this.ollamaBaseUrl = ollamaBaseUrl;
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(300, TimeUnit.SECONDS)
-                .writeTimeout(60, TimeUnit.SECONDS)
-                .build();
+        this.healthMonitor = healthMonitor;
+        REQUIRED_MODELS.forEach(healthMonitor::requireModel);
+        this.httpClient = httpClients.modelPull();
     }
     
     @EventListener(ApplicationReadyEvent.class)
@@ -74,36 +73,14 @@ public class ModelInitializationService {
     }
     
     /**
-     * Получает список установленных моделей из Ollama
+     * Получает список установленных моделей из Ollama (через общий монитор состояния)
      */
     private List<String> getInstalledModels() throws IOException {
-        Request request = new Request.Builder()
-                .url(ollamaBaseUrl + "/api/tags")
-                .get()
-                .build();
-        
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful() || response.body() == null) {
-                throw new IOException("Не удалось получить список моделей: " + response.code());
-            }
-            
-            String responseBody = response.body().string();
-            JsonObject jsonResponse = gson.fromJson(responseBody, JsonObject.class);
-            
-            List<String> models = new ArrayList<>();
-            if (jsonResponse.has("models")) {
-                JsonArray modelsArray = jsonResponse.getAsJsonArray("models");
-                for (int i = 0; i < modelsArray.size(); i++) {
-                    JsonObject model = modelsArray.get(i).getAsJsonObject();
-                    if (model.has("name")) {
-                        String name = model.get("name").getAsString();
-                        models.add(name);
-                    }
-                }
-            }
-            
-            return models;
+        healthMonitor.refreshNow();
+        if (!healthMonitor.isReachable()) {
+            throw new IOException("Не удалось получить список моделей: Ollama недоступен");
         }
+        return new ArrayList<>(healthMonitor.getInstalledModels());
     }
     
     /**
@@ -111,12 +88,7 @@ public class ModelInitializationService {
      */
     private boolean isModelInstalled(String modelName, List<String> installedModels) {
         // Проверяем точное совпадение или совпадение с тегом
-        for (String installed : installedModels) {
-            if (installed.equals(modelName) || installed.startsWith(modelName + ":")) {
-                return true;
-            }
-        }
-        return false;
+        return OllamaHealthMonitor.isInstalled(modelName, installedModels);
     }
     
     /**
@@ -0,0 +1,341 @@
+package com.dnd.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Фоновый монитор состояния Ollama.
+ * Периодически опрашивает /api/tags и хранит доступность и задержку по каждой модели,
+ * поэтому проверка isAvailable(model) не делает HTTP запросов.
+ * Клиенты сообщают об успехах и ошибках своих запросов: ошибка установки соединения сразу помечает
+ * Ollama недоступным, таймаут чтения - занятым (модель долго генерирует), в обоих случаях
+ * запускается внеочередная проверка.
+ * Используется EmbeddingService, LocalLLMClient и ModelInitializationService,
+ * а также как индикатор готовности (readiness) для Actuator.
+ */
+@Component("ollamaHealthIndicator")
+public class OllamaHealthMonitor implements HealthIndicator {
+    private static final Gson gson = new Gson();
+
+    private final String ollamaBaseUrl;
+    private final long intervalMs;
+    private final OkHttpClient probeClient;
+    private final ScheduledExecutorService scheduler;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private volatile boolean reachable = false;
+    // Последний запрос или проверка упали по таймауту чтения: Ollama отвечает, но перегружен
+    private volatile boolean busy = false;
+    private volatile long lastProbeAt = 0;
+    private volatile long lastProbeLatencyMs = -1;
+    private volatile String lastError;
+    private volatile Set<String> installedModels = Set.of();
+    // Модели, без которых приложение не готово обслуживать игроков
+    private final Set<String> requiredModels = ConcurrentHashMap.newKeySet();
+    private final Map<String, ModelState> modelStates = new ConcurrentHashMap<>();
+    private final AtomicBoolean recheckScheduled = new AtomicBoolean(false);
+
+    public OllamaHealthMonitor(
+            @Value("${ollama.base.url:http://localhost:11434}") String ollamaBaseUrl,
+            @Value("${ollama.health.interval-ms:10000}") long intervalMs,
+            HttpClientProfiles httpClients) {
+        this.ollamaBaseUrl = ollamaBaseUrl;
+        this.intervalMs = Math.max(1000, intervalMs);
+        // Короткие таймауты профиля probe (ollama.health.timeout-ms)
+        this.probeClient = httpClients.probe();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ollama-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        // Первая проверка синхронно: клиенты, создаваемые при старте, сразу видят актуальное состояние
+        refreshNow();
+        scheduler.scheduleWithFixedDelay(this::refreshNow, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        if (meterRegistry != null) {
+            Gauge.builder("ollama.reachable", this, monitor -> monitor.reachable ? 1 : 0)
+                .description("Доступен ли Ollama по последней проверке")
+                .register(meterRegistry);
+            Gauge.builder("ollama.busy", this, monitor -> monitor.busy ? 1 : 0)
+                .description("Отвечает ли Ollama медленнее таймаута чтения")
+                .register(meterRegistry);
+            Gauge.builder("ollama.probe.latency", this, monitor -> monitor.lastProbeLatencyMs)
+                .description("Задержка последнего запроса /api/tags, мс")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Отметить модель как обязательную для готовности приложения
+     */
+    public void requireModel(String model) {
+        if (model != null && !model.isEmpty()) {
+            requiredModels.add(model);
+        }
+    }
+
+    /**
+     * Доступен ли Ollama (по последней проверке или последнему запросу клиента)
+     */
+    public boolean isReachable() {
+        return reachable;
+    }
+
+    /**
+     * Ollama доступен, но последний запрос или проверка не дождались ответа (таймаут чтения)
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Доступна ли модель. Не выполняет HTTP запросов.
+     */
+    public boolean isAvailable(String model) {
+        if (!reachable) {
+            return false;
+        }
+        ModelState state = modelStates.get(model);
+        if (state != null && state.failedAt > lastProbeAt) {
+            // Модель отказала после последней проверки (например, удалена) - ждем повторной проверки
+            return false;
+        }
+        return isInstalled(model, installedModels);
+    }
+
+    /**
+     * Список установленных моделей по последней проверке
+     */
+    public Set<String> getInstalledModels() {
+        return installedModels;
+    }
+
+    /**
+     * Последняя задержка успешного запроса к модели, мс (-1 если запросов еще не было)
+     */
+    public long getLatencyMs(String model) {
+        ModelState state = modelStates.get(model);
+        return state != null ? state.latencyMs : -1;
+    }
+
+    /**
+     * Клиент сообщает об успешном запросе к модели
+     */
+    public void reportSuccess(String model, long latencyMs) {
+        reachable = true;
+        busy = false;
+        ModelState state = modelStates.computeIfAbsent(model, k -> new ModelState());
+        state.latencyMs = latencyMs;
+        state.lastSuccessAt = System.currentTimeMillis();
+        state.failedAt = 0;
+    }
+
+    /**
+     * Клиент сообщает об ошибке запроса к модели.
+     * Ошибка установки соединения сразу помечает Ollama недоступным, таймаут чтения - занятым
+     * (доступность подтвердит или опровергнет проверка с короткими таймаутами); в любом случае
+     * назначается внеочередная проверка.
+     */
+    public void reportFailure(String model, Exception error) {
+        if (isConnectFailure(error)) {
+            if (reachable) {
+                System.err.println("⚠️ [OllamaHealthMonitor] Ollama недоступен: " + error.getMessage());
+            }
+            reachable = false;
+            lastError = error.getMessage();
+        } else if (isReadTimeout(error)) {
+            if (!busy) {
+                System.err.println("⏳ [OllamaHealthMonitor] Ollama не ответил вовремя" +
+                    (model != null ? " (" + model + ")" : "") + ", считаем занятым: " + error.getMessage());
+            }
+            busy = true;
+        } else if (model != null) {
+            modelStates.computeIfAbsent(model, k -> new ModelState()).failedAt = System.currentTimeMillis();
+        }
+        scheduleRecheck();
+    }
+
+    /**
+     * Синхронная проверка Ollama: список моделей и задержка /api/tags
+     */
+    public synchronized void refreshNow() {
+        long startTime = System.currentTimeMillis();
+        boolean wasReachable = reachable;
+        try {
+            Request request = new Request.Builder()
+                    .url(ollamaBaseUrl + "/api/tags")
+                    .get()
+                    .build();
+
+            try (Response response = probeClient.newCall(request).execute()) {
+                if (!response.isSuccessful() || response.body() == null) {
+                    throw new IOException("Ollama ответил " + response.code());
+                }
+
+                JsonObject jsonResponse = gson.fromJson(response.body().string(), JsonObject.class);
+                Set<String> models = new HashSet<>();
+                if (jsonResponse != null && jsonResponse.has("models")) {
+                    JsonArray modelsArray = jsonResponse.getAsJsonArray("models");
+                    for (int i = 0; i < modelsArray.size(); i++) {
+                        JsonObject model = modelsArray.get(i).getAsJsonObject();
+                        if (model.has("name")) {
+                            models.add(model.get("name").getAsString());
+                        }
+                    }
+                }
+
+                installedModels = Set.copyOf(models);
+                lastProbeLatencyMs = System.currentTimeMillis() - startTime;
+                lastError = null;
+                reachable = true;
+                busy = false;
+                if (!wasReachable) {
+                    System.out.println("✅ [OllamaHealthMonitor] Ollama доступен, моделей: " + models.size());
+                }
+            }
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            if (isReadTimeout(e) && !isConnectFailure(e)) {
+                // Соединение установлено, но ответа нет: Ollama занят, доступность не меняется
+                lastProbeLatencyMs = System.currentTimeMillis() - startTime;
+                busy = true;
+                return;
+            }
+            reachable = false;
+            busy = false;
+            if (wasReachable || lastProbeAt == 0) {
+                System.err.println("⚠️ [OllamaHealthMonitor] Ollama недоступен: " + e.getMessage());
+            }
+        } finally {
+            lastProbeAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Готовность для Actuator: Ollama доступен и все обязательные модели установлены
+     */
+    @Override
+    public Health health() {
+        Map<String, Object> models = new LinkedHashMap<>();
+        boolean allRequired = true;
+        for (String model : requiredModels) {
+            boolean available = isAvailable(model);
+            allRequired &= available;
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("available", available);
+            details.put("latency_ms", getLatencyMs(model));
+            models.put(model, details);
+        }
+
+        Health.Builder builder = reachable && allRequired ? Health.up() : Health.down();
+        builder.withDetail("url", ollamaBaseUrl)
+               .withDetail("probe_latency_ms", lastProbeLatencyMs)
+               .withDetail("busy", busy)
+               .withDetail("models", models);
+        if (lastError != null) {
+            builder.withDetail("error", lastError);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Совпадение точное или с тегом: "bge-m3" соответствует "bge-m3:latest"
+     */
+    public static boolean isInstalled(String model, Collection<String> installed) {
+        for (String name : installed) {
+            if (name.equals(model) || name.startsWith(model + ":")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleRecheck() {
+        if (recheckScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> {
+                recheckScheduled.set(false);
+                refreshNow();
+            }, 500, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Соединение не установлено: отказ, неизвестный хост, нет маршрута или таймаут подключения
+     */
+    private static boolean isConnectFailure(Exception error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException ||
+                cause instanceof NoRouteToHostException) {
+                return true;
+            }
+            // Таймаут подключения OkHttp - SocketTimeoutException "connect timed out"
+            if (cause instanceof SocketTimeoutException && cause.getMessage() != null &&
+                cause.getMessage().toLowerCase(Locale.ROOT).contains("connect")) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Таймаут после установки соединения: ответ не пришел вовремя
+     */
+    private static boolean isReadTimeout(Exception error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Состояние модели по запросам клиентов
+     */
+    private static class ModelState {
+        volatile long latencyMs = -1;
+        volatile long lastSuccessAt = 0;
+        volatile long failedAt = 0;
+    }
+}
@@ -0,0 +1,369 @@
+package com.dnd.service;
+
+import com.dnd.entity.Campaign;
+import com.dnd.game_state.GameState;
+import com.dnd.repository.CampaignRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Запись хода одной транзакцией.
+ * За ход DungeonMasterAI собирает в Turn сообщение игрока, события DM и их анализ, а в конце хода
+ * commit записывает все разом: анализ (новые и обновленные NPC, локации, квесты), затем сообщения,
+ * события и строки связей пакетными INSERT через JDBC. После коммита один хук ставит события
+ * в очередь индексации и выполняет отложенные действия хода (например, сводку этапа).
+ */
+@Service
+public class TurnCommitService {
+
+    private static final String INSERT_PLAYER_MESSAGE =
+        "INSERT INTO player_messages (campaign_id, character_name, message_text, created_at) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_EVENT =
+        "INSERT INTO game_events (campaign_id, event_type, description, full_text, character_name, location_name, " +
+        "timestamp, created_at, index_pending) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // Таблица связей и ее колонка по виду сущности
+    private static final String[][] EVENT_LINKS = {
+        {"game_event_npcs", "npc_id"},
+        {"game_event_quests", "quest_id"},
+        {"game_event_locations", "location_id"}
+    };
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private CampaignRepository campaignRepository;
+
+    @Autowired
+    private AnalysisProcessor analysisProcessor;
+
+    @Autowired
+    private CampaignEntityIndex entityIndex;
+
+    @Autowired(required = false)
+    private EventIndexingService eventIndexingService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public TurnCommitService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Календарь для записи created_at/updated_at через JDBC: Hibernate пишет те же колонки в UTC
+     * (hibernate.jdbc.time_zone), и строки обоих путей должны совпадать на JVM с любой зоной
+     */
+    static Calendar utcCalendar() {
+        return Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Начинает сбор изменений хода кампании
+     */
+    public Turn begin(String sessionId) {
+        if (sessionId == null) {
+            throw new IllegalArgumentException("Не указан ID кампании");
+        }
+        return new Turn(sessionId);
+    }
+
+    /**
+     * Записывает все изменения хода одной транзакцией
+     * @return ID записанных событий в порядке добавления
+     */
+    public List<Long> commit(Turn turn) {
+        if (turn == null || turn.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long startTime = System.currentTimeMillis();
+        List<Long> eventIds;
+        try {
+            eventIds = transactionTemplate.execute(status -> write(turn, true));
+        } catch (RuntimeException e) {
+            if (!turn.hasAnalysis()) {
+                throw e;
+            }
+            // Ошибка в анализе не должна терять сам ход: повторяем запись без него
+            System.err.println("⚠️ [TurnCommit] Ошибка применения анализа (" + e.getMessage() +
+                "), ход кампании " + turn.sessionId + " записывается без анализа");
+            eventIds = transactionTemplate.execute(status -> write(turn, false));
+        }
+
+        System.out.println("💾 [TurnCommit] Ход кампании " + turn.sessionId + " записан: сообщений " +
+            turn.playerMessages.size() + ", событий " + turn.events.size() + " за " +
+            (System.currentTimeMillis() - startTime) + " мс");
+        return eventIds;
+    }
+
+    /**
+     * Запись хода (вызывается внутри транзакции)
+     */
+    private List<Long> write(Turn turn, boolean applyAnalysis) {
+        Long campaignId;
+        try {
+            campaignId = jdbcTemplate.queryForObject(
+                "SELECT id FROM campaigns WHERE session_id = ?", Long.class, turn.sessionId);
+        } catch (EmptyResultDataAccessException e) {
+            throw new IllegalArgumentException("Кампания не найдена: " + turn.sessionId);
+        }
+
+        // Анализ применяется до вставки событий: связи с только что созданными сущностями пишутся вместе с событием.
+        // Связи собираются в множества, чтобы упоминания из анализа не дублировали ID, найденные до записи
+        Campaign campaign = campaignRepository.getReferenceById(campaignId);
+        Map<String, Long> saved = new HashMap<>();
+        List<List<Set<Long>>> eventLinks = new ArrayList<>(turn.events.size());
+        for (PendingEvent event : turn.events) {
+            Set<Long> npcIds = new LinkedHashSet<>(event.npcIds);
+            Set<Long> questIds = new LinkedHashSet<>(event.questIds);
+            Set<Long> locationIds = new LinkedHashSet<>(event.locationIds);
+            if (applyAnalysis && event.analysis != null && !event.analysis.isEmpty()) {
+                AnalysisProcessor.Mentions mentions = analysisProcessor.applyToTurn(campaign, turn.sessionId, event.analysis, saved);
+                npcIds.addAll(mentions.getNpcIds());
+                questIds.addAll(mentions.getQuestIds());
+                locationIds.addAll(mentions.getLocationIds());
+            }
+            if (event.locationName != null) {
+                locationIds.addAll(entityIndex.findIds(turn.sessionId, CampaignEntityIndex.LOCATION, List.of(event.locationName)));
+            }
+            eventLinks.add(List.of(npcIds, questIds, locationIds));
+        }
+
+        if (!turn.playerMessages.isEmpty()) {
+            Calendar utc = utcCalendar();
+            jdbcTemplate.batchUpdate(INSERT_PLAYER_MESSAGE, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement statement, int i) throws SQLException {
+                    PendingPlayerMessage message = turn.playerMessages.get(i);
+                    statement.setLong(1, campaignId);
+                    statement.setString(2, message.characterName);
+                    statement.setString(3, message.text);
+                    statement.setTimestamp(4, Timestamp.valueOf(message.createdAt), utc);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return turn.playerMessages.size();
+                }
+            });
+        }
+
+        // Пометка снимается после записи эмбеддинга; если Ollama недоступен, событие проиндексируется позже
+        boolean indexingEnabled = eventIndexingService != null && eventIndexingService.isEnabled();
+        List<Long> eventIds = insertEvents(campaignId, turn.events, indexingEnabled);
+        turn.lastEventId = eventIds.isEmpty() ? null : Collections.max(eventIds);
+
+        List<List<Object[]>> links = new ArrayList<>();
+        for (int i = 0; i < EVENT_LINKS.length; i++) {
+            links.add(new ArrayList<>());
+        }
+        for (int i = 0; i < eventIds.size(); i++) {
+            for (int kind = 0; kind < EVENT_LINKS.length; kind++) {
+                for (Long id : eventLinks.get(i).get(kind)) {
+                    links.get(kind).add(new Object[]{eventIds.get(i), id});
+                }
+            }
+        }
+        for (int i = 0; i < EVENT_LINKS.length; i++) {
+            if (!links.get(i).isEmpty()) {
+                jdbcTemplate.batchUpdate("INSERT INTO " + EVENT_LINKS[i][0] + " (game_event_id, " + EVENT_LINKS[i][1] +
+                    ") VALUES (?, ?)", links.get(i));
+            }
+        }
+
+        // Один хук после коммита: индексация событий и отложенные действия хода
+        List<Long> indexIds = indexingEnabled ? eventIds : List.of();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                if (!indexIds.isEmpty()) {
+                    eventIndexingService.indexEvents(indexIds);
+                }
+                for (Runnable action : turn.afterCommit) {
+                    try {
+                        action.run();
+                    } catch (Exception e) {
+                        System.err.println("⚠️ [TurnCommit] Ошибка действия после коммита хода: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        return eventIds;
+    }
+
+    /**
+     * Пакетная вставка событий с получением сгенерированных ID
+     */
+    private List<Long> insertEvents(Long campaignId, List<PendingEvent> events, boolean indexPending) {
+        if (events.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Long> ids = jdbcTemplate.execute((ConnectionCallback<List<Long>>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_EVENT, new String[]{"id"})) {
+                Calendar utc = utcCalendar();
+                for (PendingEvent event : events) {
+                    Timestamp createdAt = Timestamp.valueOf(event.createdAt);
+                    statement.setLong(1, campaignId);
+                    statement.setString(2, event.eventType);
+                    statement.setString(3, event.description);
+                    statement.setString(4, event.fullText != null ? event.fullText : event.description);
+                    statement.setString(5, event.characterName);
+                    statement.setString(6, event.locationName);
+                    statement.setTimestamp(7, createdAt, utc);
+                    statement.setTimestamp(8, createdAt, utc);
+                    statement.setBoolean(9, indexPending);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                List<Long> generated = new ArrayList<>(events.size());
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        generated.add(keys.getLong(1));
+                    }
+                }
+                return generated;
+            }
+        });
+        if (ids == null || ids.size() != events.size()) {
+            throw new IllegalStateException("Получено " + (ids == null ? 0 : ids.size()) + " ID для " + events.size() + " событий");
+        }
+        return ids;
+    }
+
+    /**
+     * Изменения одного хода кампании, ожидающие записи
+     */
+    public static class Turn {
+        private final String sessionId;
+        private final List<PendingPlayerMessage> playerMessages = new ArrayList<>();
+        private final List<PendingEvent> events = new ArrayList<>();
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private volatile Long lastEventId;
+
+        private Turn(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Сообщение игрока
+         */
+        public void addPlayerMessage(String characterName, String text) {
+            playerMessages.add(new PendingPlayerMessage(characterName, text));
+        }
+
+        /**
+         * Событие DM со связями; анализ (если есть) применяется при записи хода
+         */
+        public void addEvent(String eventType, String description, String fullText, String characterName,
+                             String locationName, List<Long> npcIds, List<Long> questIds, List<Long> locationIds,
+                             Map<String, Object> analysis) {
+            events.add(new PendingEvent(eventType, description, fullText, characterName, locationName,
+                npcIds, questIds, locationIds, analysis));
+        }
+
+        /**
+         * Действие, которое выполнится только после успешного коммита хода
+         */
+        public void afterCommit(Runnable action) {
+            afterCommit.add(action);
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * Проставляет ID записанных событий хода событиям истории GameState (тот же тип и текст, еще без ID),
+         * чтобы RelevantContextBuilder сравнивал их с найденными в БД по ID, а не по тексту и времени
+         * @param eventIds результат commit - ID в порядке добавления событий
+         */
+        public void assignIds(List<Long> eventIds, GameState game) {
+            if (eventIds == null || game == null) {
+                return;
+            }
+            for (int i = 0; i < Math.min(eventIds.size(), events.size()); i++) {
+                game.assignEventId(events.get(i).eventType, events.get(i).description, eventIds.get(i));
+            }
+        }
+
+        /**
+         * ID последнего записанного события хода (null - событий не было); доступен в действиях после коммита
+         */
+        public Long getLastEventId() {
+            return lastEventId;
+        }
+
+        boolean hasAnalysis() {
+            for (PendingEvent event : events) {
+                if (event.analysis != null && !event.analysis.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isEmpty() {
+            return playerMessages.isEmpty() && events.isEmpty() && afterCommit.isEmpty();
+        }
+    }
+
+    private static class PendingPlayerMessage {
+        final String characterName;
+        final String text;
+        final LocalDateTime createdAt = LocalDateTime.now();
+
+        PendingPlayerMessage(String characterName, String text) {
+            this.characterName = characterName;
+            this.text = text;
+        }
+    }
+
+    private static class PendingEvent {
+        final String eventType;
+        final String description;
+        final String fullText;
+        final String characterName;
+        final String locationName;
+        final List<Long> npcIds;
+        final List<Long> questIds;
+        final List<Long> locationIds;
+        final Map<String, Object> analysis;
+        final LocalDateTime createdAt = LocalDateTime.now();
+
+        PendingEvent(String eventType, String description, String fullText, String characterName, String locationName,
+                     List<Long> npcIds, List<Long> questIds, List<Long> locationIds, Map<String, Object> analysis) {
+            this.eventType = eventType;
+            this.description = description;
+            this.fullText = fullText;
+            this.characterName = characterName;
+            this.locationName = locationName;
+            this.npcIds = npcIds != null ? new ArrayList<>(npcIds) : new ArrayList<>();
+            this.questIds = questIds != null ? new ArrayList<>(questIds) : new ArrayList<>();
+            this.locationIds = locationIds != null ? new ArrayList<>(locationIds) : new ArrayList<>();
+            this.analysis = analysis;
+        }
+    }
+}
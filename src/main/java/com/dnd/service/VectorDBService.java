@@ -1,9 +1,11 @@
 package com.dnd.service;
 
+import com.pgvector.PGvector;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -15,7 +17,8 @@ import java.util.List;
 
 /**
  * Сервис для работы с векторной БД (PostgreSQL + pgvector)
- * Обеспечивает сохранение и поиск эмбеддингов событий
+ * Обеспечивает сохранение и поиск эмбеддингов событий.
+ * Таблица event_embeddings и HNSW индекс создаются миграцией db/migration/V1__event_embeddings_hnsw.sql
  */
 @Service
 public class VectorDBService {
@@ -23,87 +26,18 @@ public class VectorDBService {
     @Autowired
     private JdbcTemplate jdbcTemplate;
     
-    /**
-     * Автоматически создает таблицу event_embeddings при старте приложения, если её нет
-     * Используется ApplicationReadyEvent чтобы гарантировать, что JdbcTemplate полностью инициализирован
-     */
-    @EventListener(ApplicationReadyEvent.class)
-    public void initializeTable() {
-            try {
-                if (jdbcTemplate == null) {
-                    System.err.println("❌ [VectorDBService] JdbcTemplate не инициализирован, пропускаем создание таблицы");
-                    return;
-                }
-                
-                String checkTableSql = """
-                    SELECT EXISTS (
-                        SELECT FROM information_schema.tables 
-                        WHERE table_schema = 'public' 
-                        AND table_name = 'event_embeddings'
-                    )
-                    """;
-                
-                Boolean tableExists = jdbcTemplate.queryForObject(checkTableSql, Boolean.class);
-                if (Boolean.FALSE.equals(tableExists)) {
-                    System.out.println("📊 [VectorDBService] Таблица event_embeddings не найдена, создаём...");
-                    
-                    // Создаем расширение pgvector
-                    try {
-                        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS vector");
-                        System.out.println("✅ [VectorDBService] Расширение pgvector создано/проверено");
-                    } catch (Exception e) {
-                        System.err.println("⚠️ [VectorDBService] Не удалось создать расширение pgvector: " + e.getMessage());
-                        // Продолжаем, возможно расширение уже существует
-                    }
-                    
-                    // Создаем таблицу
-                    String createTableSql = """
-                        CREATE TABLE public.event_embeddings (
-                            id BIGSERIAL PRIMARY KEY,
-                            event_id BIGINT NOT NULL,
-                            campaign_id BIGINT NOT NULL,
-                            embedding vector(1024) NOT NULL,
-                            description TEXT NOT NULL,
-                            quest_context TEXT,
-                            location_context TEXT,
-                            npc_context TEXT,
-                            event_type VARCHAR(100),
-                            created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-                            updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-                        )
-                        """;
-                    
-                    jdbcTemplate.execute(createTableSql);
-                    System.out.println("✅ [VectorDBService] Таблица event_embeddings создана");
-                    
-                    // Создаем индексы
-                    try {
-                        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS event_embeddings_event_id_idx ON public.event_embeddings(event_id)");
-                        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS event_embeddings_campaign_idx ON public.event_embeddings(campaign_id)");
-                        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS event_embeddings_type_idx ON public.event_embeddings(event_type)");
-                        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS event_embeddings_created_at_idx ON public.event_embeddings(created_at DESC)");
-                        
-                        // Векторный индекс
-                        jdbcTemplate.execute("""
-                            CREATE INDEX IF NOT EXISTS event_embeddings_vector_idx 
-                            ON public.event_embeddings 
-                            USING ivfflat (embedding vector_cosine_ops) 
-                            WITH (lists = 100)
-                            """);
-                        
-                        System.out.println("✅ [VectorDBService] Индексы для event_embeddings созданы");
-                    } catch (Exception e) {
-                        System.err.println("⚠️ [VectorDBService] Ошибка создания индексов: " + e.getMessage());
-                        // Продолжаем, индексы не критичны для работы
-                    }
-                } else {
-                    System.out.println("✅ [VectorDBService] Таблица event_embeddings уже существует");
-                }
-            } catch (Exception e) {
-                System.err.println("❌ [VectorDBService] Ошибка при инициализации таблицы event_embeddings: " + e.getMessage());
-                e.printStackTrace();
-            }
-    }
+    @Value("${rag.top-k:10}")
+    private int defaultTopK;
+    
+    @Value("${rag.hnsw.ef-search:40}")
+    private int efSearch;
+    
+    // Во сколько раз больше K кандидатов брать из HNSW, если pgvector не умеет iterative scan (< 0.8)
+    @Value("${rag.hnsw.candidate-multiplier:4}")
+    private int candidateMultiplier;
+    
+    // Поддерживает ли установленный pgvector hnsw.iterative_scan (определяется при первом поиске)
+    private volatile Boolean iterativeScan;
     
     /**
      * Сохраняет эмбеддинг события в БД
@@ -127,12 +61,13 @@ public class VectorDBService {
         String checkSql = "SELECT id FROM public.event_embeddings WHERE event_id = ?";
         List<Long> existing = jdbcTemplate.query(checkSql, 
                 (rs, rowNum) -> rs.getLong("id"), eventId);
+        PGvector vector = toVector(embedding);
         
         if (!existing.isEmpty()) {
             // Обновляем существующий
             String updateSql = """
                 UPDATE public.event_embeddings 
-                SET embedding = ?::vector, 
+                SET embedding = ?, 
                     description = ?, 
                     quest_context = ?, 
                     location_context = ?, 
@@ -142,14 +77,14 @@ public class VectorDBService {
                 WHERE event_id = ?
                 """;
             
-            jdbcTemplate.update(updateSql,
-                    arrayToString(embedding),
+            jdbcTemplate.update(updateSql, withVectors(
+                    vector,
                     description,
                     questContext,
                     locationContext,
                     npcContext,
                     eventType,
-                    eventId);
+                    eventId));
             
             return existing.get(0);
         } else {
@@ -158,85 +93,93 @@ public class VectorDBService {
                     INSERT INTO public.event_embeddings 
                     (event_id, campaign_id, embedding, description, quest_context, 
                      location_context, npc_context, event_type)
-                    VALUES (?, ?, ?::vector, ?, ?, ?, ?, ?)
+                    VALUES (?, ?, ?, ?, ?, ?, ?, ?)
                     RETURNING id
                     """;
             
-            Long id = jdbcTemplate.queryForObject(insertSql, Long.class,
+            List<Long> ids = jdbcTemplate.query(insertSql, withVectors(
                     eventId,
                     campaignId,
-                    arrayToString(embedding),
+                    vector,
                     description,
                     questContext,
                     locationContext,
                     npcContext,
-                    eventType);
+                    eventType), (rs, rowNum) -> rs.getLong("id"));
             
-            return id;
+            return ids.isEmpty() ? null : ids.get(0);
         }
     }
     
+    /**
+     * Сохраняет эмбеддинги батча событий: старые эмбеддинги этих событий удаляются,
+     * новые записываются одним многострочным INSERT в одной транзакции
+     *
+     * @param records Эмбеддинги событий
+     */
+    @Transactional
+    public void saveEmbeddings(List<EmbeddingRecord> records) {
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        
+        StringBuilder deleteSql = new StringBuilder("DELETE FROM public.event_embeddings WHERE event_id IN (");
+        StringBuilder insertSql = new StringBuilder("""
+            INSERT INTO public.event_embeddings 
+            (event_id, campaign_id, embedding, description, quest_context, 
+             location_context, npc_context, event_type)
+            VALUES 
+            """);
+        List<Object> deleteParams = new ArrayList<>(records.size());
+        List<Object> insertParams = new ArrayList<>(records.size() * 8);
+        
+        for (int i = 0; i < records.size(); i++) {
+            EmbeddingRecord record = records.get(i);
+            if (i > 0) {
+                deleteSql.append(", ");
+                insertSql.append(", ");
+            }
+            deleteSql.append("?");
+            insertSql.append("(?, ?, ?, ?, ?, ?, ?, ?)");
+            
+            deleteParams.add(record.eventId);
+            insertParams.add(record.eventId);
+            insertParams.add(record.campaignId);
+            insertParams.add(toVector(record.embedding));
+            insertParams.add(record.description);
+            insertParams.add(record.questContext);
+            insertParams.add(record.locationContext);
+            insertParams.add(record.npcContext);
+            insertParams.add(record.eventType);
+        }
+        deleteSql.append(")");
+        
+        jdbcTemplate.update(deleteSql.toString(), deleteParams.toArray());
+        jdbcTemplate.update(insertSql.toString(), withVectors(insertParams.toArray()));
+    }
+    
     /**
      * Ищет похожие события по векторному поиску
      * 
      * @param queryEmbedding Вектор запроса
      * @param campaignId ID кампании для фильтрации
-     * @param topK Количество результатов (null или <= 0 означает без ограничения)
+     * @param topK Количество результатов (null или <= 0 означает rag.top-k)
      * @param minSimilarity Минимальная похожесть (0.0 - 1.0)
      * @return Список найденных событий с оценкой похожести
      */
+    @Transactional(readOnly = true)
     public List<SimilarEvent> searchSimilar(float[] queryEmbedding, Long campaignId, 
                                           Integer topK, double minSimilarity) {
-        String embeddingStr = arrayToString(queryEmbedding);
+        int limit = resolveTopK(topK);
         
         System.out.println("🔍 [VectorDBService] Поиск похожих событий:");
         System.out.println("   - Campaign ID: " + campaignId);
         System.out.println("   - Минимальная похожесть: " + minSimilarity);
-        System.out.println("   - Ограничение (topK): " + (topK == null || topK <= 0 ? "нет" : topK));
+        System.out.println("   - Ограничение (topK): " + limit);
         
-        // Если topK не указан или <= 0, получаем все релевантные события без ограничения
-               if (topK == null || topK <= 0) {
-                   String sql = """
-                       SELECT
-                           e.event_id,
-                           e.description,
-                           e.quest_context,
-                           e.location_context,
-                           e.npc_context,
-                           e.event_type,
-                           1 - (e.embedding <=> ?::vector) as similarity
-                       FROM public.event_embeddings e
-                       WHERE e.campaign_id = ?
-                       AND 1 - (e.embedding <=> ?::vector) >= ?
-                       ORDER BY e.embedding <=> ?::vector
-                       """;
-            
-            List<SimilarEvent> results = jdbcTemplate.query(sql, new SimilarEventRowMapper(),
-                    embeddingStr, campaignId, embeddingStr, minSimilarity, embeddingStr);
-            System.out.println("✅ [VectorDBService] Найдено событий в БД: " + results.size());
-            return results;
-               } else {
-                   String sql = """
-                       SELECT
-                           e.event_id,
-                           e.description,
-                           e.quest_context,
-                           e.location_context,
-                           e.npc_context,
-                           e.event_type,
-                           1 - (e.embedding <=> ?::vector) as similarity
-                       FROM public.event_embeddings e
-                       WHERE e.campaign_id = ?
-                       AND 1 - (e.embedding <=> ?::vector) >= ?
-                       ORDER BY e.embedding <=> ?::vector
-                       LIMIT ?
-                       """;
-            
-            List<SimilarEvent> results = jdbcTemplate.query(sql, new SimilarEventRowMapper(),
-                    embeddingStr, campaignId, embeddingStr, minSimilarity, embeddingStr, topK);
-            System.out.println("✅ [VectorDBService] Найдено событий в БД (с ограничением " + topK + "): " + results.size());
-            return results;
-        }
+        List<SimilarEvent> results = searchNearest(queryEmbedding, campaignId, null, null, limit, minSimilarity);
+        System.out.println("✅ [VectorDBService] Найдено событий в БД (с ограничением " + limit + "): " + results.size());
+        return results;
     }
     
     /**
@@ -246,33 +189,91 @@ public class VectorDBService {
      * @param campaignId ID кампании
      * @param eventType Фильтр по типу события (null = все типы)
      * @param location Фильтр по локации (null = все локации)
-     * @param topK Количество результатов (null или <= 0 означает без ограничения)
+     * @param topK Количество результатов (null или <= 0 означает rag.top-k)
      * @param minSimilarity Минимальная похожесть
      * @return Список найденных событий
      */
+    @Transactional(readOnly = true)
     public List<SimilarEvent> searchSimilarWithFilters(float[] queryEmbedding, Long campaignId,
                                                       String eventType, String location,
                                                       Integer topK, double minSimilarity) {
-               StringBuilder sql = new StringBuilder("""
-                   SELECT
-                       e.event_id,
-                       e.description,
-                       e.quest_context,
-                       e.location_context,
-                       e.npc_context,
-                       e.event_type,
-                       1 - (e.embedding <=> ?::vector) as similarity
-                   FROM public.event_embeddings e
-                   WHERE e.campaign_id = ?
-                   AND 1 - (e.embedding <=> ?::vector) >= ?
-                   """);
+        return searchNearest(queryEmbedding, campaignId, eventType, location, resolveTopK(topK), minSimilarity);
+    }
+    
+    /**
+     * Top-K поиск ближайших соседей.
+     * Индекс HNSW общий для всех кампаний, а фильтры по кампании, типу и локации применяются к строкам,
+     * которые отдал обход индекса, - для маленькой кампании в большой таблице их может оказаться меньше K.
+     * Поэтому: на pgvector >= 0.8 включается hnsw.iterative_scan (обход продолжается, пока фильтр не пропустит
+     * K строк), на более старых версиях берется candidate-multiplier * K кандидатов. Если строк все равно
+     * меньше K, поиск повторяется точным перебором строк кампании без HNSW.
+     * Кампания, в которой строк не больше числа кандидатов, сразу ищется точным перебором: обход HNSW
+     * все равно не нашел бы больше, и каждый поиск стоил бы двух запросов.
+     * Порог похожести применяется к уже найденным K ближайшим: условие по похожести в WHERE
+     * не дает планировщику использовать индекс.
+     */
+    private List<SimilarEvent> searchNearest(float[] queryEmbedding, Long campaignId,
+                                             String eventType, String location,
+                                             int limit, double minSimilarity) {
+        boolean iterative = supportsIterativeScan();
+        int candidates = iterative ? limit : limit * Math.max(1, candidateMultiplier);
+        
+        // Счет ограничен candidates + 1 строками: для большой кампании он не читает все ее строки
+        Integer campaignRows = jdbcTemplate.queryForObject(
+            "SELECT count(*) FROM (SELECT 1 FROM public.event_embeddings WHERE campaign_id = ? LIMIT ?) campaign_rows",
+            Integer.class, campaignId, candidates + 1);
+        List<SimilarEvent> nearest = null;
+        if (campaignRows != null && campaignRows > candidates) {
+            // Настройки HNSW действуют только в текущей транзакции
+            jdbcTemplate.queryForObject("SELECT set_config('hnsw.ef_search', ?, true)", String.class,
+                    String.valueOf(Math.max(efSearch, candidates)));
+            if (iterative) {
+                jdbcTemplate.queryForObject("SELECT set_config('hnsw.iterative_scan', 'strict_order', true)", String.class);
+            }
+            nearest = queryNearest(queryEmbedding, campaignId, eventType, location, candidates);
+        }
+        if (nearest == null || nearest.size() < limit) {
+            // Маленькая кампания или обход индекса с фильтрами отдал меньше K строк: точный перебор строк кампании
+            // (по индексу campaign_id). set_config(..., true) действует до конца транзакции - возвращать не нужно
+            jdbcTemplate.queryForObject("SELECT set_config('enable_indexscan', 'off', true)", String.class);
+            nearest = queryNearest(queryEmbedding, campaignId, eventType, location, limit);
+        }
+        
+        List<SimilarEvent> results = new ArrayList<>(limit);
+        for (SimilarEvent event : nearest) {
+            if (results.size() >= limit) {
+                break;
+            }
+            if (event.getSimilarity() >= minSimilarity) {
+                results.add(event);
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * limit ближайших событий кампании с учетом фильтров, от ближайшего
+     */
+    private List<SimilarEvent> queryNearest(float[] queryEmbedding, Long campaignId,
+                                            String eventType, String location, int limit) {
+        // Вектор запроса передается один раз и используется через CTE
+        StringBuilder sql = new StringBuilder("""
+            WITH query AS (SELECT ?::vector AS embedding)
+            SELECT
+                e.event_id,
+                e.description,
+                e.quest_context,
+                e.location_context,
+                e.npc_context,
+                e.event_type,
+                1 - (e.embedding <=> (SELECT embedding FROM query)) AS similarity
+            FROM public.event_embeddings e
+            WHERE e.campaign_id = ?
+            """);
         
         List<Object> params = new ArrayList<>();
-        String embeddingStr = arrayToString(queryEmbedding);
-        params.add(embeddingStr);
+        params.add(toVector(queryEmbedding));
         params.add(campaignId);
-        params.add(embeddingStr);
-        params.add(minSimilarity);
         
         if (eventType != null && !eventType.trim().isEmpty()) {
             sql.append(" AND e.event_type = ?");
@@ -284,16 +285,47 @@ public class VectorDBService {
             params.add("%" + location + "%");
         }
         
-        sql.append(" ORDER BY e.embedding <=> ?::vector");
-        params.add(embeddingStr);
+        sql.append("""
+            ORDER BY e.embedding <=> (SELECT embedding FROM query)
+            LIMIT ?
+            """);
+        params.add(limit);
         
-        // Добавляем LIMIT только если topK указан и > 0
+        return jdbcTemplate.query(sql.toString(), withVectors(params.toArray()), new SimilarEventRowMapper());
+    }
+    
+    /**
+     * pgvector >= 0.8 поддерживает hnsw.iterative_scan
+     */
+    private boolean supportsIterativeScan() {
+        Boolean supported = iterativeScan;
+        if (supported == null) {
+            List<String> versions = jdbcTemplate.query(
+                "SELECT extversion FROM pg_extension WHERE extname = 'vector'", (rs, rowNum) -> rs.getString(1));
+            supported = !versions.isEmpty() && isAtLeast(versions.get(0), 0, 8);
+            iterativeScan = supported;
+            System.out.println("ℹ️ [VectorDBService] pgvector " + (versions.isEmpty() ? "?" : versions.get(0)) +
+                ", iterative scan: " + (supported ? "да" : "нет (берется больше кандидатов)"));
+        }
+        return supported;
+    }
+    
+    static boolean isAtLeast(String version, int major, int minor) {
+        try {
+            String[] parts = version.split("\\.");
+            int actualMajor = Integer.parseInt(parts[0]);
+            int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    private int resolveTopK(Integer topK) {
         if (topK != null && topK > 0) {
-            sql.append(" LIMIT ?");
-            params.add(topK);
+            return topK;
         }
-        
-        return jdbcTemplate.query(sql.toString(), new SimilarEventRowMapper(), params.toArray());
+        return Math.max(1, defaultTopK);
     }
     
     /**
@@ -319,20 +351,54 @@ public class VectorDBService {
     }
     
     /**
-     * Преобразует массив float в строку для PostgreSQL vector типа
+     * Преобразует массив float в PGvector - параметр запроса вместо строки, собранной вручную
      */
-    private String arrayToString(float[] array) {
+    private PGvector toVector(float[] array) {
         if (array == null || array.length == 0) {
             throw new IllegalArgumentException("Массив не может быть пустым");
         }
+        return new PGvector(array);
+    }
+    
+    /**
+     * Устанавливает параметры запроса, предварительно регистрируя тип vector на соединении.
+     * pgjdbc передает PGobject в бинарном формате, только если OID типа указан в binaryTransferEnable;
+     * OID типа vector свой в каждой БД и не настроен, поэтому вектор по-прежнему уходит текстом,
+     * который формирует PGvector, и разбирается сервером.
+     */
+    private PreparedStatementSetter withVectors(Object... params) {
+        ArgumentPreparedStatementSetter setter = new ArgumentPreparedStatementSetter(params);
+        return ps -> {
+            PGvector.addVectorType(ps.getConnection());
+            setter.setValues(ps);
+        };
+    }
+    
+    /**
+     * Эмбеддинг события для пакетной записи
+     */
+    public static class EmbeddingRecord {
+        private final Long eventId;
+        private final Long campaignId;
+        private final float[] embedding;
+        private final String description;
+        private final String questContext;
+        private final String locationContext;
+        private final String npcContext;
+        private final String eventType;
         
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < array.length; i++) {
-            if (i > 0) sb.append(",");
-            sb.append(array[i]);
+        public EmbeddingRecord(Long eventId, Long campaignId, float[] embedding, String description,
+                               String questContext, String locationContext, String npcContext,
+                               String eventType) {
+            this.eventId = eventId;
+            this.campaignId = campaignId;
+            this.embedding = embedding;
+            this.description = description;
+            this.questContext = questContext;
+            this.locationContext = locationContext;
+            this.npcContext = npcContext;
+            this.eventType = eventType;
         }
-        sb.append("]");
-        return sb.toString();
     }
     
     /**
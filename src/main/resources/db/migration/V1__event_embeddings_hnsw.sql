@@ -0,0 +1,29 @@
+-- Таблица эмбеддингов событий для RAG (раньше создавалась в VectorDBService.initializeTable)
+CREATE EXTENSION IF NOT EXISTS vector;
+
+CREATE TABLE IF NOT EXISTS public.event_embeddings (
+    id BIGSERIAL PRIMARY KEY,
+    event_id BIGINT NOT NULL,
+    campaign_id BIGINT NOT NULL,
+    embedding vector(1024) NOT NULL,
+    description TEXT NOT NULL,
+    quest_context TEXT,
+    location_context TEXT,
+    npc_context TEXT,
+    event_type VARCHAR(100),
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS event_embeddings_event_id_idx ON public.event_embeddings(event_id);
+CREATE INDEX IF NOT EXISTS event_embeddings_campaign_idx ON public.event_embeddings(campaign_id);
+CREATE INDEX IF NOT EXISTS event_embeddings_type_idx ON public.event_embeddings(event_type);
+CREATE INDEX IF NOT EXISTS event_embeddings_created_at_idx ON public.event_embeddings(created_at DESC);
+
+-- ivfflat индекс строился на пустой таблице (lists = 100 без данных) и не давал выигрыша.
+-- HNSW не требует обучения на данных и поддерживает вставки без перестроения.
+DROP INDEX IF EXISTS public.event_embeddings_vector_idx;
+CREATE INDEX event_embeddings_vector_idx
+    ON public.event_embeddings
+    USING hnsw (embedding vector_cosine_ops)
+    WITH (m = 16, ef_construction = 64);
@@ -0,0 +1,9 @@
+-- Постоянный уровень кэша эмбеддингов: ключ - модель + SHA-256 текста.
+-- Размерность не фиксируется, чтобы при смене ollama.embedding.model кэш не требовал миграции
+CREATE TABLE IF NOT EXISTS public.embedding_cache (
+    model VARCHAR(200) NOT NULL,
+    text_hash CHAR(64) NOT NULL,
+    embedding vector NOT NULL,
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (model, text_hash)
+);
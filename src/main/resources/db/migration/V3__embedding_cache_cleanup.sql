@@ -0,0 +1,2 @@
+-- Очистка кэша эмбеддингов по TTL и лимиту строк идет по времени записи
+CREATE INDEX IF NOT EXISTS idx_embedding_cache_created_at ON public.embedding_cache (created_at);
@@ -0,0 +1,13 @@
+-- Учет индексации событий: пометка ожидания, неудачные попытки, последняя ошибка
+-- и частичный индекс для поиска ожидающих событий.
+-- На новой БД миграции выполняются раньше, чем Hibernate создает таблицы, поэтому game_events
+-- создается здесь с первичным ключом; остальные колонки и связи добавит Hibernate (ddl-auto=update)
+CREATE TABLE IF NOT EXISTS public.game_events (
+    id BIGSERIAL PRIMARY KEY
+);
+
+ALTER TABLE public.game_events ADD COLUMN IF NOT EXISTS index_pending BOOLEAN;
+ALTER TABLE public.game_events ADD COLUMN IF NOT EXISTS index_attempts INTEGER DEFAULT 0;
+ALTER TABLE public.game_events ADD COLUMN IF NOT EXISTS index_error TEXT;
+
+CREATE INDEX IF NOT EXISTS idx_game_events_index_pending ON public.game_events (id) WHERE index_pending;
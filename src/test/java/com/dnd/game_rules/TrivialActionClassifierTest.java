@@ -0,0 +1,96 @@
+package com.dnd.game_rules;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Словарь и правила TrivialActionClassifier на размеченном корпусе (без эмбеддингов)
+ */
+public class TrivialActionClassifierTest {
+
+    private final TrivialActionClassifier classifier = new TrivialActionClassifier(null, 5, 0.8);
+
+    @Test
+    public void corpusHasNoMissedChecks() {
+        Map<String, Object> report = classifier.evaluate();
+
+        assertTrue((Integer) report.get("corpus_size") > 0);
+        // Ложный TRIVIAL - пропущенный бросок кубиков
+        assertEquals("ошибки: " + report.get("errors"), 0, report.get("false_positive"));
+        assertTrue("recall " + report.get("recall"), (Double) report.get("recall") >= 0.7);
+    }
+
+    @Test
+    public void englishStemsMatchWholeWords() {
+        assertEquals("rest", TrivialActionClassifier.matchStem("resting", Set.of("rest")));
+        assertEquals("take", TrivialActionClassifier.matchStem("taking", Set.of("take")));
+        assertEquals("stab", TrivialActionClassifier.matchStem("stabbing", Set.of("stab")));
+        assertNull(TrivialActionClassifier.matchStem("restrain", Set.of("rest")));
+        assertNull(TrivialActionClassifier.matchStem("headbutt", Set.of("head")));
+        assertNull(TrivialActionClassifier.matchStem("ready", Set.of("read")));
+        assertNull(TrivialActionClassifier.matchStem("his", Set.of("hi")));
+        // Русские основы по-прежнему совпадают по префиксу
+        assertNotNull(TrivialActionClassifier.matchStem("подхожу", Set.of("подхож")));
+    }
+
+    @Test
+    public void speechWithDeceptionCueIsCheck() {
+        assertVerdict(TrivialActionClassifier.Verdict.CHECK, "I tell the guard I'm the king's envoy");
+        assertVerdict(TrivialActionClassifier.Verdict.CHECK, "Говорю стражнику, что я посланник короля");
+    }
+
+    @Test
+    public void speechOrTakeWithPersonIsLeftToNeighbours() {
+        assertVerdict(TrivialActionClassifier.Verdict.UNCERTAIN, "беру кошелек у торговца");
+        assertVerdict(TrivialActionClassifier.Verdict.UNCERTAIN, "I take the key from the guard's belt");
+        assertVerdict(TrivialActionClassifier.Verdict.TRIVIAL, "Беру ключ со стола");
+        assertVerdict(TrivialActionClassifier.Verdict.TRIVIAL, "I take the letter");
+    }
+
+    @Test
+    public void classifyWithoutEmbeddingsNeverReturnsTrivialForCheckRows() {
+        for (String action : List.of("I restrain the prisoner", "I headbutt the bandit", "I ready my crossbow")) {
+            assertFalse(action, classifier.classify(action).isTrivial());
+        }
+    }
+
+    @Test
+    public void secondActionUnknownVerbOrHazardIsNotTrivial() {
+        for (String action : List.of("Иду к гоблину и убиваю его", "I walk up to the goblin and kill it",
+                "I kill the sleeping guard", "Я пью яд", "I drink the unknown potion", "I walk into the fire",
+                "Выхожу на тонкий лед")) {
+            assertVerdict(TrivialActionClassifier.Verdict.UNCERTAIN, action);
+            assertFalse(action, classifier.classify(action).isTrivial());
+        }
+        assertVerdict(TrivialActionClassifier.Verdict.TRIVIAL, "Покупаю верёвку и фонарь");
+        assertVerdict(TrivialActionClassifier.Verdict.TRIVIAL, "Выпиваю воду из фляги");
+    }
+
+    @Test
+    public void lexicalTrivialNeedsNeighboursWhenEmbeddingsAreUp() {
+        // Действие далеко от всех примеров: соседи не подтверждают вердикт словаря
+        String action = "I take the letter";
+        TextEmbedder embedder = texts -> texts.stream()
+            .map(text -> text.equals(action) ? new float[]{0f, 1f} : new float[]{1f, 0f})
+            .toList();
+        TrivialActionClassifier withNeighbours = new TrivialActionClassifier(embedder, 5, 0.8);
+
+        TrivialActionClassifier.Classification result = withNeighbours.classify(action);
+        assertEquals(result.getReason(), TrivialActionClassifier.Verdict.UNCERTAIN, result.getVerdict());
+        assertEquals("lexicon+knn", result.getSource());
+    }
+
+    private void assertVerdict(TrivialActionClassifier.Verdict expected, String action) {
+        TrivialActionClassifier.Classification result = classifier.classifyLexical(action);
+        assertEquals(action + ": " + result.getReason(), expected, result.getVerdict());
+    }
+}
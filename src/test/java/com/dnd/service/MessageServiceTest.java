@@ -0,0 +1,80 @@
+package com.dnd.service;
+
+import com.dnd.entity.Campaign;
+import com.dnd.repository.CampaignRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Курсоры истории сообщений: неизвестный курсор не должен выглядеть как "новых сообщений нет"
+ */
+public class MessageServiceTest {
+
+    private static final String CAMPAIGN = "campaign-1";
+
+    private final MessageService messageService = new MessageService();
+    private final CampaignRepository campaignRepository = mock(CampaignRepository.class);
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    @Before
+    public void setUp() {
+        Campaign campaign = new Campaign(CAMPAIGN);
+        campaign.setId(7L);
+        when(campaignRepository.findBySessionId(CAMPAIGN)).thenReturn(Optional.of(campaign));
+        ReflectionTestUtils.setField(messageService, "campaignRepository", campaignRepository);
+        ReflectionTestUtils.setField(messageService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(messageService, "historyPageSize", 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownAfterCursorIsRejected() {
+        when(jdbcTemplate.queryForList(anyString(), eq(Timestamp.class), any(), any())).thenReturn(List.of());
+
+        messageService.getMessageHistoryPage(CAMPAIGN, null, "e:404", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownBeforeCursorIsRejected() {
+        when(jdbcTemplate.queryForList(anyString(), eq(Timestamp.class), any(), any())).thenReturn(List.of());
+
+        messageService.getMessageHistoryPage(CAMPAIGN, "p:404", null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedCursorIsRejected() {
+        messageService.getMessageHistoryPage(CAMPAIGN, null, "404", null);
+    }
+
+    @Test
+    public void cursorIsLookedUpInItsCampaign() {
+        when(jdbcTemplate.queryForList(anyString(), eq(Timestamp.class), any(), any()))
+            .thenReturn(List.of(Timestamp.valueOf("2026-01-01 12:00:00")));
+
+        messageService.getMessageHistoryPage(CAMPAIGN, null, "e:5", null);
+
+        verify(jdbcTemplate).queryForList(contains("FROM game_events WHERE id = ? AND campaign_id = ?"),
+            eq(Timestamp.class), eq(5L), eq(7L));
+    }
+
+    @Test
+    public void latestPageDoesNotLookUpCursor() {
+        messageService.getMessageHistoryPage(CAMPAIGN, null, null, null);
+
+        verify(jdbcTemplate, never()).queryForList(anyString(), eq(Timestamp.class), any(), any());
+    }
+}